@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Claims of the users and groups provisioned by the benchmarks.
+ */
+public final class BenchmarkClaims {
+
+    // attributes the mapping plan covers, with multi-valued ones only in their typed form, which the plan
+    // does not let the comma separated form be mixed with.
+    private static final String[] CORE_ATTRIBUTES = {"externalId", "displayName", "nickName", "profileUrl", "title",
+            "userType", "preferredLanguage", "locale", "timezone", "active", "name.formatted", "name.familyName",
+            "name.givenName", "name.middleName", "name.honorificPrefix", "name.honorificSuffix", "emails.work",
+            "emails.home", "emails.other", "phoneNumbers.work", "phoneNumbers.home", "phoneNumbers.mobile",
+            "phoneNumbers.fax", "phoneNumbers.pager", "phoneNumbers.other", "ims.aim", "ims.gtalk", "ims.icq",
+            "ims.xmpp", "ims.msn", "ims.skype", "ims.qq", "ims.yahoo", "photos.photo", "photos.thumbnail",
+            "groups.direct", "groups.indirect", "entitlements", "roles", "emails.mobile", "emails.fax",
+            "emails.pager", "emails.primary", "phoneNumbers.primary", "ims.other", "photos.other", "groups.other",
+            "emails.internal", "phoneNumbers.internal", "ims.internal"};
+
+    /**
+     * Largest number of distinct claims of the SCIM core dialect a user can carry with the mapping plan
+     * covering all of them.
+     */
+    public static final int MAX_CLAIM_COUNT = CORE_ATTRIBUTES.length;
+
+    /**
+     * Dialect of the claims users carry beyond {@link #MAX_CLAIM_COUNT}.
+     */
+    public static final String EXTENSION_DIALECT = "urn:scim:schemas:extension:wso2:1.0";
+
+    private BenchmarkClaims() {
+    }
+
+    /**
+     * @param claimCount number of claims
+     * @return single-valued claims of a user in the SCIM core dialect, followed by claims of the extension
+     * dialect beyond {@link #MAX_CLAIM_COUNT}
+     */
+    public static Map<String, String> getUserClaims(int claimCount) {
+
+        Map<String, String> claims = new LinkedHashMap<>();
+        for (int i = 0; i < Math.min(claimCount, MAX_CLAIM_COUNT); i++) {
+            String attribute = CORE_ATTRIBUTES[i];
+            claims.put(SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT + ":" + attribute,
+                    "active".equals(attribute) ? "true" : "value-" + i);
+        }
+        for (int i = MAX_CLAIM_COUNT; i < claimCount; i++) {
+            claims.put(EXTENSION_DIALECT + ":attribute" + i, "value-" + i);
+        }
+        return claims;
+    }
+
+    /**
+     * @param userName   user name
+     * @param claimCount number of claims besides the user name
+     * @return attributes of a user entity, keyed by claim mappings to the SCIM core dialect
+     */
+    public static Map<ClaimMapping, List<String>> getUserAttributes(String userName, int claimCount) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(ClaimMapping.build(IdentityProvisioningConstants.USERNAME_CLAIM_URI,
+                IdentityProvisioningConstants.USERNAME_CLAIM_URI, null, false), Collections.singletonList(userName));
+        for (Map.Entry<String, String> claim : getUserClaims(claimCount).entrySet()) {
+            attributes.put(ClaimMapping.build(claim.getKey(), claim.getKey(), null, false),
+                    Collections.singletonList(claim.getValue()));
+        }
+        return attributes;
+    }
+
+    /**
+     * @param groupName   display name of the group
+     * @param memberCount number of members
+     * @return attributes of a group entity
+     */
+    public static Map<ClaimMapping, List<String>> getGroupAttributes(String groupName, int memberCount) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(ClaimMapping.build(IdentityProvisioningConstants.GROUP_CLAIM_URI,
+                IdentityProvisioningConstants.GROUP_CLAIM_URI, null, false), Collections.singletonList(groupName));
+        attributes.put(ClaimMapping.build(IdentityProvisioningConstants.USERNAME_CLAIM_URI,
+                IdentityProvisioningConstants.USERNAME_CLAIM_URI, null, false), getMemberNames(memberCount));
+        return attributes;
+    }
+
+    /**
+     * @param memberCount number of members
+     * @return user names of the members of a group
+     */
+    public static List<String> getMemberNames(int memberCount) {
+
+        List<String> memberNames = new ArrayList<>(memberCount);
+        for (int i = 0; i < memberCount; i++) {
+            memberNames.add("member-" + i + "@example.org");
+        }
+        return memberNames;
+    }
+}
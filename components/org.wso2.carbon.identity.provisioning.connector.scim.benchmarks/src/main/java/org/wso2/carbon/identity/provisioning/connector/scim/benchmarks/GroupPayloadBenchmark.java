@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.StreamingGroupRequestEntity;
+import org.wso2.charon.core.client.SCIMClient;
+import org.wso2.charon.core.exceptions.CharonException;
+import org.wso2.charon.core.objects.Group;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the request body of a group with its members, through a charon group and through the
+ * streaming request entity. Run through {@link BenchmarkRunner}, the GC profiler reports the bytes
+ * allocated per operation ({@code gc.alloc.rate.norm}) of each path next to its time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupPayloadBenchmark {
+
+    private static final String GROUP_NAME = "benchmark-group";
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int memberCount;
+
+    private List<String> memberNames;
+    private SCIMClient scimClient;
+
+    @Setup
+    public void setUp() {
+
+        memberNames = BenchmarkClaims.getMemberNames(memberCount);
+        scimClient = new SCIMClient();
+    }
+
+    @Benchmark
+    public byte[] charonGroup() throws CharonException {
+
+        Group group = new Group();
+        group.setDisplayName(GROUP_NAME);
+        for (String memberName : memberNames) {
+            Map<String, Object> member = new HashMap<>();
+            member.put(SCIMConstants.CommonSchemaConstants.DISPLAY, memberName);
+            group.setMember(member);
+        }
+        return scimClient.encodeSCIMObject(group, SCIMConstants.identifyFormat(SCIMConstants.APPLICATION_JSON))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The transport reads the content length before writing the body, as it does for a real request.
+     */
+    @Benchmark
+    public long streamingEntity() throws IOException {
+
+        StreamingGroupRequestEntity entity = new StreamingGroupRequestEntity(GROUP_NAME, memberNames);
+        long contentLength = entity.getContentLength();
+        DiscardingOutputStream outputStream = new DiscardingOutputStream();
+        entity.writeRequest(outputStream);
+        return contentLength + outputStream.count;
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
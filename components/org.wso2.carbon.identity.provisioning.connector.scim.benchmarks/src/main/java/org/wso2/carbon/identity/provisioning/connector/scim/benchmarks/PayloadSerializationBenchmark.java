@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.UserAttributeMappingPlan;
+import org.wso2.carbon.identity.scim.common.utils.AttributeMapper;
+import org.wso2.charon.core.client.SCIMClient;
+import org.wso2.charon.core.exceptions.CharonException;
+import org.wso2.charon.core.objects.User;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a mapped SCIM user to the request body, through the charon encoder and through
+ * org.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadSerializationBenchmark {
+
+    @Param({"10", "50"})
+    public int claimCount;
+
+    private User user;
+    private JSONObject userData;
+    private SCIMClient scimClient;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        user = (User) AttributeMapper.constructSCIMObjectFromAttributes(BenchmarkClaims.getUserClaims(claimCount),
+                SCIMConstants.USER_INT);
+        user.setUserName("benchmark-user");
+        userData = UserAttributeMappingPlan.getPlan(SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT)
+                .apply(BenchmarkClaims.getUserClaims(claimCount));
+        userData.put(SCIMConstants.UserSchemaConstants.USER_NAME, "benchmark-user");
+        scimClient = new SCIMClient();
+    }
+
+    @Benchmark
+    public byte[] charonEncoder() throws CharonException {
+        return scimClient.encodeSCIMObject(user, SCIMConstants.identifyFormat(SCIMConstants.APPLICATION_JSON))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] json() throws JSONException {
+        return userData.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
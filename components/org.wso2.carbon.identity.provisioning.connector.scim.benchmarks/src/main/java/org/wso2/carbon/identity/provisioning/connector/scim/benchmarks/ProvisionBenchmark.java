@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.application.common.model.Property;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisionedIdentifier;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnector;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full {@code provision()} calls of a synchronous connector against a SCIM service provider stub on the
+ * loopback interface, so the time measured is the connector's own work plus a local HTTP round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ProvisionBenchmark {
+
+    private static final int GROUP_MEMBER_COUNT = 100;
+
+    @Param({"10", "50"})
+    public int claimCount;
+
+    @Param({"false", "true"})
+    public boolean mappingPlanEnabled;
+
+    private final AtomicLong lastUserNumber = new AtomicLong();
+    private StubSCIMServer server;
+    private SCIMProvisioningConnector connector;
+    private ProvisioningEntity userUpdate;
+    private ProvisioningEntity groupUpdate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, IdentityProvisioningException {
+
+        server = new StubSCIMServer(8);
+        connector = new SCIMProvisioningConnector();
+        connector.init(new Property[]{
+                createProperty(SCIMProvisioningConnectorConstants.SCIM_USER_EP,
+                        server.getBaseUrl() + StubSCIMServer.USERS_PATH),
+                createProperty(SCIMProvisioningConnectorConstants.SCIM_GROUP_EP,
+                        server.getBaseUrl() + StubSCIMServer.GROUPS_PATH),
+                createProperty(SCIMProvisioningConnectorConstants.SCIM_USERNAME, "admin"),
+                createProperty(SCIMProvisioningConnectorConstants.SCIM_PASSWORD, "admin"),
+                createProperty(SCIMProvisioningConnectorConstants.SCIM_MAPPING_PLAN_ENABLED,
+                        String.valueOf(mappingPlanEnabled))});
+
+        userUpdate = new ProvisioningEntity(ProvisioningEntityType.USER, "benchmark-user", ProvisioningOperation.PUT,
+                BenchmarkClaims.getUserAttributes("benchmark-user", claimCount));
+        groupUpdate = new ProvisioningEntity(ProvisioningEntityType.GROUP, "benchmark-group",
+                ProvisioningOperation.PUT, BenchmarkClaims.getGroupAttributes("benchmark-group", GROUP_MEMBER_COUNT));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        connector.shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    public ProvisionedIdentifier createUser() throws IdentityProvisioningException {
+
+        String userName = "benchmark-user-" + lastUserNumber.incrementAndGet();
+        return connector.provision(new ProvisioningEntity(ProvisioningEntityType.USER, userName,
+                ProvisioningOperation.POST, BenchmarkClaims.getUserAttributes(userName, claimCount)));
+    }
+
+    @Benchmark
+    public ProvisionedIdentifier updateUser() throws IdentityProvisioningException {
+        return connector.provision(userUpdate);
+    }
+
+    @Benchmark
+    public ProvisionedIdentifier updateGroup() throws IdentityProvisioningException {
+        return connector.provision(groupUpdate);
+    }
+
+    private static Property createProperty(String name, String value) {
+
+        Property property = new Property();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+}
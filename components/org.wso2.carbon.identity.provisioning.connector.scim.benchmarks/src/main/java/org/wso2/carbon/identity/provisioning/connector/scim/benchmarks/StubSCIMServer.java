@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process SCIM service provider on the loopback interface, answering every request successfully
+ * without keeping any state. Creations are assigned sequential ids and filtered lookups always find
+ * one resource. Given an SSL context, it serves HTTPS instead of plain HTTP.
+ */
+class StubSCIMServer {
+
+    static final String USERS_PATH = "/scim/Users";
+    static final String GROUPS_PATH = "/scim/Groups";
+
+    static {
+        // without it, responses written in more than one piece wait for the delayed ACK of the client.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong lastId = new AtomicLong();
+
+    StubSCIMServer(int threads) throws IOException {
+        this(threads, null);
+    }
+
+    /**
+     * @param threads    number of threads serving requests
+     * @param sslContext context providing the server certificate, or null to serve plain HTTP
+     * @throws IOException if the server cannot be bound
+     */
+    StubSCIMServer(int threads, SSLContext sslContext) throws IOException {
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        if (sslContext != null) {
+            HttpsServer httpsServer = HttpsServer.create(address, 1024);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(address, 1024);
+        }
+        executor = Executors.newFixedThreadPool(threads);
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        };
+        server.createContext(USERS_PATH, handler);
+        server.createContext(GROUPS_PATH, handler);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return base URL of the server, such as {@code http://127.0.0.1:41000}
+     */
+    String getBaseUrl() {
+        return (server instanceof HttpsServer ? "https://" : "http://")
+                + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    void stop() {
+
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (requestBody.read(buffer) != -1) {
+                // the body is read so that the connection can be reused.
+            }
+        }
+
+        String method = exchange.getRequestMethod();
+        int status = 200;
+        String body;
+        if ("POST".equals(method)) {
+            status = 201;
+            body = "{\"id\":\"" + lastId.incrementAndGet() + "\"}";
+        } else if ("GET".equals(method)) {
+            body = "{\"totalResults\":1,\"Resources\":[{\"id\":\"" + lastId.incrementAndGet() + "\"}]}";
+        } else {
+            body = "{}";
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+}
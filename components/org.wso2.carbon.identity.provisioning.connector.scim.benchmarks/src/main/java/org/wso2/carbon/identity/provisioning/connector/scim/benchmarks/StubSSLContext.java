@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+/**
+ * SSL context holding a throwaway self-signed certificate for {@code localhost}, which it both presents
+ * and trusts. The key pair is generated with the JDK keytool, so nothing is kept in the source tree.
+ */
+final class StubSSLContext {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private static final String ALIAS = "scim-stub";
+
+    private StubSSLContext() {
+    }
+
+    /**
+     * @return SSL context for the stub server, also suitable as the default context of the client
+     * @throws IOException              if the key store cannot be generated or read
+     * @throws GeneralSecurityException if the SSL context cannot be initialized
+     */
+    static SSLContext create() throws IOException, GeneralSecurityException {
+
+        File keyStoreFile = File.createTempFile("scim-stub", ".jks");
+        if (!keyStoreFile.delete()) {
+            throw new IOException("Cannot prepare key store " + keyStoreFile);
+        }
+        try {
+            generateKeyPair(keyStoreFile);
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            try (InputStream in = new FileInputStream(keyStoreFile)) {
+                keyStore.load(in, PASSWORD);
+            }
+
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                    KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+            // the trust manager takes the certificate of the key entry as trusted.
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+            return sslContext;
+        } finally {
+            keyStoreFile.delete();
+        }
+    }
+
+    private static void generateKeyPair(File keyStoreFile) throws IOException {
+
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        String password = new String(PASSWORD);
+        Process process = new ProcessBuilder(Arrays.asList(keytool, "-genkeypair", "-alias", ALIAS,
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+                "-storetype", "JKS", "-keystore", keyStoreFile.getAbsolutePath(), "-storepass", password,
+                "-keypass", password)).redirectErrorStream(true).start();
+        try (InputStream output = process.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            while (output.read(buffer) != -1) {
+                // drained so that keytool cannot block on a full pipe.
+            }
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed to generate the stub key pair, exit code "
+                        + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating the stub key pair", e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpResponse;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMTransportConfig;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a SCIM user creation against an HTTPS stub on the loopback interface, with the connection
+ * pool of the transport and without it. Without the pool a transport is built and closed for every
+ * request, as the connector did before, so each request pays for a new TCP connection and TLS handshake.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TLSTransportBenchmark {
+
+    private static final String USER = "{\"schemas\":[\"urn:scim:schemas:core:1.0\"],\"userName\":\"benchmark-user\"," +
+            "\"emails\":[{\"value\":\"benchmark-user@wso2.com\",\"primary\":true}]}";
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private StubSCIMServer server;
+    private SCIMTransportConfig config;
+    private SCIMHttpTransport sharedTransport;
+    private String userEndpoint;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+
+        SSLContext sslContext = StubSSLContext.create();
+        // the transport opens its TLS connections through the default SSL context.
+        SSLContext.setDefault(sslContext);
+        server = new StubSCIMServer(8, sslContext);
+        userEndpoint = server.getBaseUrl() + StubSCIMServer.USERS_PATH;
+        config = new SCIMTransportConfig();
+        if (pooled) {
+            sharedTransport = new SCIMHttpTransport("admin", "admin", config);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        if (sharedTransport != null) {
+            sharedTransport.close();
+        }
+        server.stop();
+    }
+
+    @Benchmark
+    public SCIMHttpResponse createUser() throws IOException {
+
+        if (pooled) {
+            return sharedTransport.post(userEndpoint, USER);
+        }
+        SCIMHttpTransport transport = new SCIMHttpTransport("admin", "admin", config);
+        try {
+            return transport.post(userEndpoint, USER);
+        } finally {
+            transport.close();
+        }
+    }
+}
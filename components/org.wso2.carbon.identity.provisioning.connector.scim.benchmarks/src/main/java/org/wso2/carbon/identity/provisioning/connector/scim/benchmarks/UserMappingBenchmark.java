@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.UserAttributeMappingPlan;
+import org.wso2.carbon.identity.scim.common.utils.AttributeMapper;
+import org.wso2.charon.core.exceptions.CharonException;
+import org.wso2.charon.core.exceptions.NotFoundException;
+import org.wso2.charon.core.objects.User;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the SCIM user from the claims of a user entity, through the attribute mapper and
+ * through the compiled mapping plan, falling back to the mapper as the connector does when the plan does
+ * not cover all the claims.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserMappingBenchmark {
+
+    /**
+     * Up to {@link BenchmarkClaims#MAX_CLAIM_COUNT}, the mapping plan covers every claim. Larger users
+     * carry extension claims, which the plan leaves to the attribute mapper, so the plan is measured with
+     * its fallback.
+     */
+    @Param({"10", "50", "200"})
+    public int claimCount;
+
+    private Map<String, String> claims;
+    private UserAttributeMappingPlan mappingPlan;
+
+    @Setup
+    public void setUp() throws JSONException {
+
+        claims = BenchmarkClaims.getUserClaims(claimCount);
+        mappingPlan = UserAttributeMappingPlan.getPlan(SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT);
+        if (mappingPlan == null) {
+            throw new IllegalStateException("No mapping plan for the SCIM core dialect");
+        }
+        // the plan gives up on claims it does not cover, which would measure a lookup instead of a mapping.
+        boolean covered = claimCount <= BenchmarkClaims.MAX_CLAIM_COUNT;
+        if ((mappingPlan.apply(claims) != null) != covered) {
+            throw new IllegalStateException("Mapping plan is expected " + (covered ? "" : "not ") + "to cover the "
+                    + claimCount + " benchmark claims");
+        }
+    }
+
+    @Benchmark
+    public User attributeMapper() throws CharonException, NotFoundException {
+        return (User) AttributeMapper.constructSCIMObjectFromAttributes(claims, SCIMConstants.USER_INT);
+    }
+
+    @Benchmark
+    public Object mappingPlan() throws JSONException, CharonException, NotFoundException {
+
+        JSONObject user = mappingPlan.apply(claims);
+        if (user != null) {
+            return user;
+        }
+        return AttributeMapper.constructSCIMObjectFromAttributes(claims, SCIMConstants.USER_INT);
+    }
+}
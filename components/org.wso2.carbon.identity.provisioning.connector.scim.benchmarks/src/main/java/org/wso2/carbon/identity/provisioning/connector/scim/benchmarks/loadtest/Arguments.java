@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line arguments given as {@code --name=value}.
+ */
+class Arguments {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    Arguments(String[] args) {
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Invalid argument : " + arg);
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+    }
+
+    private Arguments(Map<String, String> values) {
+        this.values.putAll(values);
+    }
+
+    /**
+     * @return these arguments, overridden by the arguments named with the prefix, such as
+     * {@code --target.latency=fixed:200} overriding {@code --latency}
+     */
+    Arguments withPrefixed(String prefix) {
+
+        Arguments arguments = new Arguments(values);
+        arguments.values.putAll(getPrefixed(prefix));
+        return arguments;
+    }
+
+    boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+        return values.containsKey(name) ? values.get(name) : defaultValue;
+    }
+
+    int getInt(String name, int defaultValue) {
+        return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+        return values.containsKey(name) ? Double.parseDouble(values.get(name)) : defaultValue;
+    }
+
+    /**
+     * @return the values of the arguments named with the prefix, keyed by the rest of their names
+     */
+    Map<String, String> getPrefixed(String prefix) {
+
+        Map<String, String> prefixed = new HashMap<>();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            if (value.getKey().startsWith(prefix)) {
+                prefixed.put(value.getKey().substring(prefix.length()), value.getValue());
+            }
+        }
+        return prefixed;
+    }
+
+    /**
+     * @return mock server configuration given by the arguments
+     */
+    MockServerConfig getMockServerConfig() {
+
+        MockServerConfig config = new MockServerConfig();
+        config.setScimVersion(get("scim-version", config.getScimVersion()));
+        if (has("latency")) {
+            config.setLatency(LatencyDistribution.parse(get("latency", null)));
+        }
+        config.setErrorRate(getDouble("error-rate", config.getErrorRate()));
+        config.setThrottleRate(getDouble("throttle-rate", config.getThrottleRate()));
+        config.setRateLimit(getInt("rate-limit", config.getRateLimit()));
+        config.setSlowBodyRate(getDouble("slow-body-rate", config.getSlowBodyRate()));
+        config.setSlowBodyDelay(getInt("slow-body-delay", config.getSlowBodyDelay()));
+        config.setThreads(getInt("server-threads", config.getThreads()));
+        config.setGzip(Boolean.parseBoolean(get("gzip", String.valueOf(config.isGzip()))));
+        config.setEtag(Boolean.parseBoolean(get("etag", String.valueOf(config.isEtag()))));
+        config.setConflictRate(getDouble("conflict-rate", config.getConflictRate()));
+        return config;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.loadtest;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Distribution of the latency the mock SCIM server adds to its responses, given as
+ * {@code fixed:<ms>}, {@code uniform:<min ms>:<max ms>}, {@code exponential:<mean ms>} or
+ * {@code lognormal:<median ms>:<sigma>}.
+ */
+public class LatencyDistribution {
+
+    private enum Type {
+        FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL
+    }
+
+    private final Type type;
+    private final double first;
+    private final double second;
+    private final String specification;
+
+    private LatencyDistribution(Type type, double first, double second, String specification) {
+
+        this.type = type;
+        this.first = first;
+        this.second = second;
+        this.specification = specification;
+    }
+
+    /**
+     * @param specification distribution, such as {@code lognormal:20:0.5}
+     * @return parsed distribution
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    public static LatencyDistribution parse(String specification) {
+
+        String[] parts = specification.split(":");
+        try {
+            Type type = Type.valueOf(parts[0].toUpperCase(Locale.ENGLISH));
+            double first = parts.length > 1 ? Double.parseDouble(parts[1]) : 0;
+            double second = parts.length > 2 ? Double.parseDouble(parts[2]) : first;
+            if ((type == Type.UNIFORM || type == Type.LOGNORMAL) && parts.length != 3
+                    || (type == Type.FIXED || type == Type.EXPONENTIAL) && parts.length != 2) {
+                throw new IllegalArgumentException("Invalid latency distribution : " + specification);
+            }
+            return new LatencyDistribution(type, first, second, specification);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency distribution : " + specification, e);
+        }
+    }
+
+    /**
+     * @return distribution adding no latency
+     */
+    public static LatencyDistribution none() {
+        return new LatencyDistribution(Type.FIXED, 0, 0, "fixed:0");
+    }
+
+    /**
+     * @param random source of randomness
+     * @return latency in milliseconds
+     */
+    public long sample(Random random) {
+
+        double latency;
+        switch (type) {
+            case UNIFORM:
+                latency = first + random.nextDouble() * (second - first);
+                break;
+            case EXPONENTIAL:
+                latency = -first * Math.log(1 - random.nextDouble());
+                break;
+            case LOGNORMAL:
+                latency = first * Math.exp(second * random.nextGaussian());
+                break;
+            default:
+                latency = first;
+        }
+        return Math.max(0, Math.round(latency));
+    }
+
+    @Override
+    public String toString() {
+        return specification;
+    }
+}
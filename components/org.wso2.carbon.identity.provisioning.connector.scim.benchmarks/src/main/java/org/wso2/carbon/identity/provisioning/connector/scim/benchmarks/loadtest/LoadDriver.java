@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.loadtest;
+
+import org.wso2.carbon.identity.application.common.model.Property;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnector;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.BenchmarkClaims;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.LatencyHistogram;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.EndpointRateLimiter;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.RequestScheduler;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.SchedulerFlow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes a synthetic stream of provisioning entities through a {@link SCIMProvisioningConnector} against
+ * an embedded {@link MockSCIMServer} for a fixed time, then reports the throughput, the latency
+ * percentiles of {@code provision()} and the resources used. Everything runs in one process on the
+ * loopback interface.
+ * <p>
+ * Options, all given as {@code --name=value}:
+ * <ul>
+ * <li>{@code duration}, {@code warmup}: measured and warm-up time in seconds, 60 and 10 by default</li>
+ * <li>{@code threads}: number of threads calling the connector, 16 by default</li>
+ * <li>{@code group-ratio}: fraction of the operations on groups, 0.1 by default</li>
+ * <li>{@code update-ratio}, {@code delete-ratio}: fraction of the operations updating and deleting
+ * entities, 0.7 and 0.05 by default, the rest creating them</li>
+ * <li>{@code group-size}: number of members of the provisioned groups, 100 by default</li>
+ * <li>{@code claims}: number of claims of the provisioned users, 20 by default</li>
+ * <li>{@code scim-version}: {@code 1.1} or {@code 2.0}, deciding the responses of the server</li>
+ * <li>{@code latency}: latency added by the server, such as {@code fixed:20}, {@code uniform:10:50},
+ * {@code exponential:20} or {@code lognormal:20:0.5}, none by default</li>
+ * <li>{@code error-rate}, {@code throttle-rate}: fractions of the requests answered with 500 and 429</li>
+ * <li>{@code rate-limit}: requests per second the server accepts before answering with 429</li>
+ * <li>{@code slow-body-rate}, {@code slow-body-delay}: fraction of the responses whose body is
+ * written in pieces, and the delay in milliseconds after each piece</li>
+ * <li>{@code server-threads}: number of threads of the server, 200 by default</li>
+ * <li>{@code gzip}: whether the server accepts compressed requests, true by default</li>
+ * <li>{@code etag}, {@code conflict-rate}: whether the server returns resource versions, and the fraction
+ * of the writes carrying If-Match it answers with 412</li>
+ * <li>{@code fanout-targets}: number of further servers the connector mirrors the entities to, as
+ * fan-out targets, 0 by default</li>
+ * <li>{@code target.<option>}: server option applying to the fan-out targets only, such as
+ * {@code --target.latency=fixed:200}</li>
+ * <li>{@code connector.<property>}: connector property, such as
+ * {@code --connector.scim-async-provisioning-enabled=true}</li>
+ * </ul>
+ */
+public final class LoadDriver {
+
+    private static final String CONNECTOR_PROPERTY_PREFIX = "connector.";
+    private static final String TARGET_OPTION_PREFIX = "target.";
+    private static final String TARGET_PREFIX = "target-";
+    private static final String USER_PREFIX = "load-user-";
+    private static final String GROUP_PREFIX = "load-group-";
+
+    private final int threadCount;
+    private final double groupRatio;
+    private final double updateRatio;
+    private final double deleteRatio;
+    private final int groupSize;
+    private final int claimCount;
+
+    private final AtomicLong lastUserNumber = new AtomicLong();
+    private final AtomicLong lastGroupNumber = new AtomicLong();
+    private final LatencyHistogram[][] latencies =
+            new LatencyHistogram[ProvisioningEntityType.values().length][ProvisioningOperation.values().length];
+    private final AtomicLong errorCount = new AtomicLong();
+    private volatile boolean measuring;
+
+    private LoadDriver(Arguments arguments) {
+
+        threadCount = arguments.getInt("threads", 16);
+        groupRatio = arguments.getDouble("group-ratio", 0.1);
+        updateRatio = arguments.getDouble("update-ratio", 0.7);
+        deleteRatio = arguments.getDouble("delete-ratio", 0.05);
+        groupSize = arguments.getInt("group-size", 100);
+        claimCount = Math.min(arguments.getInt("claims", 20), BenchmarkClaims.MAX_CLAIM_COUNT);
+        for (LatencyHistogram[] entityLatencies : latencies) {
+            for (int i = 0; i < entityLatencies.length; i++) {
+                entityLatencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, IdentityProvisioningException, InterruptedException {
+
+        Arguments arguments = new Arguments(args);
+        MockServerConfig serverConfig = arguments.getMockServerConfig();
+        int duration = arguments.getInt("duration", 60);
+        int warmup = arguments.getInt("warmup", 10);
+
+        MockServerConfig targetConfig = arguments.withPrefixed(TARGET_OPTION_PREFIX).getMockServerConfig();
+        int targetCount = arguments.getInt("fanout-targets", 0);
+
+        MockSCIMServer server = new MockSCIMServer(serverConfig);
+        List<MockSCIMServer> targets = new ArrayList<>();
+        SCIMProvisioningConnector connector = new SCIMProvisioningConnector();
+        try {
+            for (int i = 0; i < targetCount; i++) {
+                targets.add(new MockSCIMServer(targetConfig));
+            }
+            connector.init(getConnectorProperties(server, targets,
+                    arguments.getPrefixed(CONNECTOR_PROPERTY_PREFIX)));
+            LoadDriver driver = new LoadDriver(arguments);
+            System.out.println("Server : " + serverConfig);
+            if (targetCount > 0) {
+                System.out.println("Fan-out targets : " + targetCount + " x " + targetConfig);
+            }
+            System.out.println("Load : " + driver);
+            driver.run(connector, server, targets, warmup, duration);
+        } finally {
+            server.stop();
+            for (MockSCIMServer target : targets) {
+                target.stop();
+            }
+        }
+    }
+
+    private void run(SCIMProvisioningConnector connector, MockSCIMServer server, List<MockSCIMServer> targets,
+                     int warmup, int duration) throws InterruptedException {
+
+        List<Thread> workers = new ArrayList<>(threadCount);
+        final long endTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + duration);
+        for (int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(new Worker(connector, endTime), "SCIMLoadDriver-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+        ProvisioningMetrics metrics = ProvisioningMetrics.getInstance();
+        metrics.reset();
+        long startRequests = server.getRequestCount();
+        long startBulkOperations = server.getBulkOperationCount();
+        long startErrors = server.getErrorCount();
+        long startThrottled = server.getThrottledCount();
+        long startSlowBodies = server.getSlowBodyCount();
+        long startBytesReceived = server.getBytesReceived();
+        long startBytesSent = server.getBytesSent();
+        long startCompressed = server.getCompressedRequestCount();
+        long startConditional = server.getConditionalRequestCount();
+        long startConflicts = server.getConflictCount();
+        long[] startTargetRequests = new long[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            startTargetRequests[i] = targets.get(i).getRequestCount();
+        }
+        ResourceUsage resources = new ResourceUsage();
+        resources.start();
+        measuring = true;
+        long startTime = System.nanoTime();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        measuring = false;
+        long callTime = System.nanoTime() - startTime;
+        int backlog = connector.getCoalescingBacklog();
+        for (int depth : connector.getAsyncLaneDepths()) {
+            backlog += depth;
+        }
+        // asynchronous, batched and coalesced operations are only complete once the connector is drained.
+        connector.shutdown();
+        long drainTime = System.nanoTime() - startTime - callTime;
+        resources.stop();
+
+        long calls = 0;
+        for (LatencyHistogram[] entityLatencies : latencies) {
+            for (LatencyHistogram latency : entityLatencies) {
+                calls += latency.getCount();
+            }
+        }
+        long completed = metrics.getSuccessCount() + metrics.getFailureCount() + metrics.getBatchedCount();
+        double callSeconds = callTime / 1e9;
+        double totalSeconds = (callTime + drainTime) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "provision() calls : %d in %.1f s, %.1f/s, %d failed",
+                calls, callSeconds, calls / callSeconds, errorCount.get()));
+        System.out.println(String.format(Locale.ENGLISH, "Operations sent : %d in %.1f s including %.1f s "
+                        + "draining, %.1f/s, %d failed, %d skipped", completed, totalSeconds, drainTime / 1e9,
+                completed / totalSeconds, metrics.getFailureCount(), metrics.getSkippedCount()));
+        System.out.println("Backlog when the calls stopped : " + backlog + " operations queued in the connector");
+        System.out.println(String.format(Locale.ENGLISH, "Requests : %d, %.1f/s, %.1f KB sent per request",
+                metrics.getRequestCount(), metrics.getRequestCount() / totalSeconds,
+                metrics.getRequestCount() == 0 ? 0 : metrics.getBytesSent() / 1024.0 / metrics.getRequestCount()));
+        System.out.println(String.format(Locale.ENGLISH, "Server : %d requests, %d bulk operations, "
+                        + "%d errors injected, %d throttled, %d slow bodies",
+                server.getRequestCount() - startRequests, server.getBulkOperationCount() - startBulkOperations,
+                server.getErrorCount() - startErrors, server.getThrottledCount() - startThrottled,
+                server.getSlowBodyCount() - startSlowBodies));
+        System.out.println(String.format(Locale.ENGLISH, "Server traffic : %.1f KB received, %.1f KB sent, "
+                        + "%d compressed requests, %d conditional requests, %d conflicts",
+                (server.getBytesReceived() - startBytesReceived) / 1024.0,
+                (server.getBytesSent() - startBytesSent) / 1024.0, server.getCompressedRequestCount() - startCompressed,
+                server.getConditionalRequestCount() - startConditional, server.getConflictCount() - startConflicts));
+        for (int i = 0; i < targets.size(); i++) {
+            System.out.println(String.format(Locale.ENGLISH, "Fan-out target %d : %d requests", i,
+                    targets.get(i).getRequestCount() - startTargetRequests[i]));
+        }
+        // the scheduler and the rate limiters are node-wide, so these include the warm-up.
+        for (EndpointRateLimiter rateLimiter : RequestScheduler.getInstance().getRateLimiters()) {
+            System.out.println(String.format(Locale.ENGLISH, "Rate limit %s : %d/s, %d delayed by %.1f ms on "
+                            + "average, %d rejected, %d paused", rateLimiter.getEndpoint(), rateLimiter.getRate(),
+                    rateLimiter.getDelayedCount(), rateLimiter.getMeanDelay(), rateLimiter.getRejectedCount(),
+                    rateLimiter.getPauseCount()));
+        }
+        for (SchedulerFlow flow : RequestScheduler.getInstance().getFlows()) {
+            System.out.println(String.format(Locale.ENGLISH, "Scheduler flow %s : %d granted, %d timed out, "
+                            + "wait p99 %.2f ms, max %.2f ms", flow.getName(), flow.getGrantedCount(),
+                    flow.getTimeoutCount(), flow.getWaitTime().getPercentile(99), flow.getWaitTime().getMax()));
+        }
+        System.out.println(String.format(Locale.ENGLISH, "Resources : %.2f cores, %d GCs taking %d ms, "
+                        + "%.1f MB peak heap, %d peak threads", resources.getCpuCores(), resources.getGcCount(),
+                resources.getGcTime(), resources.getPeakHeap() / 1048576.0, resources.getPeakThreads()));
+
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "%-6s %-7s %10s %10s %10s %10s %10s %10s",
+                "Entity", "Op", "Calls", "Mean ms", "p50 ms", "p99 ms", "p99.9 ms", "Max ms"));
+        for (ProvisioningEntityType entityType : ProvisioningEntityType.values()) {
+            for (ProvisioningOperation operation : ProvisioningOperation.values()) {
+                LatencyHistogram latency = latencies[entityType.ordinal()][operation.ordinal()];
+                if (latency.getCount() > 0) {
+                    System.out.println(String.format(Locale.ENGLISH,
+                            "%-6s %-7s %10d %10.2f %10.2f %10.2f %10.2f %10.2f", entityType, operation,
+                            latency.getCount(), latency.getMean(), latency.getPercentile(50),
+                            latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax()));
+                }
+            }
+        }
+    }
+
+    private static Property[] getConnectorProperties(MockSCIMServer server, List<MockSCIMServer> targets,
+                                                     Map<String, String> overrides) {
+
+        List<Property> properties = new ArrayList<>();
+        properties.add(createProperty(SCIMProvisioningConnectorConstants.SCIM_USER_EP,
+                server.getBaseUrl() + MockSCIMServer.USERS_PATH));
+        properties.add(createProperty(SCIMProvisioningConnectorConstants.SCIM_GROUP_EP,
+                server.getBaseUrl() + MockSCIMServer.GROUPS_PATH));
+        properties.add(createProperty(SCIMProvisioningConnectorConstants.SCIM_USERNAME, "admin"));
+        properties.add(createProperty(SCIMProvisioningConnectorConstants.SCIM_PASSWORD, "admin"));
+        for (int i = 0; i < targets.size(); i++) {
+            String prefix = SCIMProvisioningConnectorConstants.SCIM_FANOUT_TARGET_PREFIX + TARGET_PREFIX + i + ".";
+            properties.add(createProperty(prefix + SCIMProvisioningConnectorConstants.SCIM_USER_EP,
+                    targets.get(i).getBaseUrl() + MockSCIMServer.USERS_PATH));
+            properties.add(createProperty(prefix + SCIMProvisioningConnectorConstants.SCIM_GROUP_EP,
+                    targets.get(i).getBaseUrl() + MockSCIMServer.GROUPS_PATH));
+            properties.add(createProperty(prefix + SCIMProvisioningConnectorConstants.SCIM_USERNAME, "admin"));
+            properties.add(createProperty(prefix + SCIMProvisioningConnectorConstants.SCIM_PASSWORD, "admin"));
+        }
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            if (SCIMProvisioningConnectorConstants.SCIM_BULK_EP.equals(override.getKey())
+                    && Boolean.parseBoolean(override.getValue())) {
+                // --connector.scim-bulk-ep=true targets the bulk endpoint of the embedded server.
+                properties.add(createProperty(override.getKey(), server.getBaseUrl() + MockSCIMServer.BULK_PATH));
+            } else {
+                properties.add(createProperty(override.getKey(), override.getValue()));
+            }
+        }
+        return properties.toArray(new Property[properties.size()]);
+    }
+
+    private static Property createProperty(String name, String value) {
+
+        Property property = new Property();
+        property.setName(name);
+        property.setValue(value);
+        return property;
+    }
+
+    private ProvisioningEntity nextEntity(Random random) {
+
+        boolean group = random.nextDouble() < groupRatio;
+        AtomicLong lastNumber = group ? lastGroupNumber : lastUserNumber;
+        double choice = random.nextDouble();
+        ProvisioningOperation operation;
+        long number;
+        if (lastNumber.get() == 0 || choice >= updateRatio + deleteRatio) {
+            operation = ProvisioningOperation.POST;
+            number = lastNumber.incrementAndGet();
+        } else {
+            operation = choice < updateRatio ? ProvisioningOperation.PUT : ProvisioningOperation.DELETE;
+            number = 1 + (long) (random.nextDouble() * lastNumber.get());
+        }
+
+        if (group) {
+            String groupName = GROUP_PREFIX + number;
+            return new ProvisioningEntity(ProvisioningEntityType.GROUP, groupName, operation,
+                    BenchmarkClaims.getGroupAttributes(groupName,
+                            operation == ProvisioningOperation.DELETE ? 0 : groupSize));
+        }
+        String userName = USER_PREFIX + number;
+        return new ProvisioningEntity(ProvisioningEntityType.USER, userName, operation,
+                BenchmarkClaims.getUserAttributes(userName, operation == ProvisioningOperation.DELETE ? 0 : claimCount));
+    }
+
+    @Override
+    public String toString() {
+        return threadCount + " threads, group ratio " + groupRatio + ", update ratio " + updateRatio
+                + ", delete ratio " + deleteRatio + ", " + groupSize + " members per group, " + claimCount
+                + " claims per user";
+    }
+
+    private class Worker implements Runnable {
+
+        private final SCIMProvisioningConnector connector;
+        private final long endTime;
+
+        Worker(SCIMProvisioningConnector connector, long endTime) {
+
+            this.connector = connector;
+            this.endTime = endTime;
+        }
+
+        @Override
+        public void run() {
+
+            Random random = ThreadLocalRandom.current();
+            while (System.nanoTime() < endTime) {
+                ProvisioningEntity entity = nextEntity(random);
+                long startTime = System.nanoTime();
+                boolean failed = false;
+                try {
+                    connector.provision(entity);
+                } catch (IdentityProvisioningException e) {
+                    failed = true;
+                }
+                if (measuring) {
+                    latencies[entity.getEntityType().ordinal()][entity.getOperation().ordinal()]
+                            .record(System.nanoTime() - startTime);
+                    if (failed) {
+                        errorCount.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * SCIM service provider on the loopback interface for load tests. It keeps no resources: creations are
+ * assigned sequential ids, filtered lookups always find one resource and bulk operations all succeed,
+ * unless a fault is injected. Before answering, it waits for a latency drawn from the configured
+ * distribution, then it may answer with 429 or 500 at the configured rates, and it may write the body
+ * of a successful response slowly.
+ * <p>
+ * Gzip compressed requests are accepted, and responses compressed for clients accepting it, unless gzip
+ * is disabled, in which case compressed requests are answered with 415. If etags are enabled, every
+ * resource returned carries a new version, and writes carrying If-Match may be answered with 412.
+ */
+public class MockSCIMServer {
+
+    public static final String USERS_PATH = "/scim/Users";
+    public static final String GROUPS_PATH = "/scim/Groups";
+    public static final String BULK_PATH = "/scim/Bulk";
+
+    private static final String SCIM1_SCHEMA = "urn:scim:schemas:core:1.0";
+    private static final String SCIM2_LIST_RESPONSE = "urn:ietf:params:scim:api:messages:2.0:ListResponse";
+    private static final String SCIM2_BULK_RESPONSE = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+    private static final String SCIM2_ERROR = "urn:ietf:params:scim:api:messages:2.0:Error";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int SLOW_BODY_PIECES = 4;
+    private static final int SC_PRECONDITION_FAILED = 412;
+    private static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final String GZIP = "gzip";
+
+    static {
+        // without it, responses written in more than one piece wait for the delayed ACK of the client.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final MockServerConfig config;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong lastId = new AtomicLong();
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bulkOperationCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong slowBodyCount = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong compressedRequestCount = new AtomicLong();
+    private final AtomicLong conditionalRequestCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    private final Object rateLimitLock = new Object();
+    private long rateLimitWindow;
+    private int rateLimitWindowCount;
+
+    /**
+     * Starts the server on an ephemeral port.
+     *
+     * @param config behaviour of the server
+     * @throws IOException if the server cannot be started
+     */
+    public MockSCIMServer(MockServerConfig config) throws IOException {
+        this(config, 0);
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param config behaviour of the server
+     * @param port   port to listen to, or 0 for an ephemeral port
+     * @throws IOException if the server cannot be started
+     */
+    public MockSCIMServer(MockServerConfig config, int port) throws IOException {
+
+        this.config = config;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Executors.newFixedThreadPool(config.getThreads());
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        };
+        server.createContext(USERS_PATH, handler);
+        server.createContext(GROUPS_PATH, handler);
+        server.createContext(BULK_PATH, handler);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Runs a server until the process is stopped, so that it can be targeted by a connector running
+     * elsewhere. Accepts {@code --port=<port>} besides the options of {@link MockServerConfig}, see
+     * {@link LoadDriver}.
+     */
+    public static void main(String[] args) throws IOException {
+
+        Arguments arguments = new Arguments(args);
+        MockServerConfig config = arguments.getMockServerConfig();
+        MockSCIMServer server = new MockSCIMServer(config, arguments.getInt("port", 9853));
+        System.out.println("Mock SCIM server (" + config + ") listening at " + server.getBaseUrl());
+        System.out.println("Users : " + server.getBaseUrl() + USERS_PATH);
+        System.out.println("Groups : " + server.getBaseUrl() + GROUPS_PATH);
+        System.out.println("Bulk : " + server.getBaseUrl() + BULK_PATH);
+    }
+
+    /**
+     * @return base URL of the server, such as {@code http://127.0.0.1:41000}
+     */
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return number of operations received in bulk requests
+     */
+    public long getBulkOperationCount() {
+        return bulkOperationCount.get();
+    }
+
+    /**
+     * @return number of requests and bulk operations answered with an injected 500
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @return number of requests answered with 429
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * @return number of responses whose body was written slowly
+     */
+    public long getSlowBodyCount() {
+        return slowBodyCount.get();
+    }
+
+    /**
+     * @return number of request body bytes received, as sent on the wire
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return number of response body bytes sent, as sent on the wire
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return number of requests with a gzip compressed body
+     */
+    public long getCompressedRequestCount() {
+        return compressedRequestCount.get();
+    }
+
+    /**
+     * @return number of requests carrying If-Match
+     */
+    public long getConditionalRequestCount() {
+        return conditionalRequestCount.get();
+    }
+
+    /**
+     * @return number of requests answered with an injected 412
+     */
+    public long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+
+        requestCount.incrementAndGet();
+        byte[] request = readBody(exchange);
+        bytesReceived.addAndGet(request.length);
+        if (GZIP.equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            compressedRequestCount.incrementAndGet();
+            if (!config.isGzip()) {
+                send(exchange, SC_UNSUPPORTED_MEDIA_TYPE, getError(SC_UNSUPPORTED_MEDIA_TYPE,
+                        "Compressed requests are not supported"), false);
+                return;
+            }
+            request = decompress(request);
+        }
+
+        Random random = ThreadLocalRandom.current();
+        sleep(config.getLatency().sample(random));
+
+        if (isThrottled(random)) {
+            throttledCount.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, SC_TOO_MANY_REQUESTS, getError(SC_TOO_MANY_REQUESTS, "Too many requests"), false);
+            return;
+        }
+        if (random.nextDouble() < config.getErrorRate()) {
+            errorCount.incrementAndGet();
+            send(exchange, 500, getError(500, "Injected failure"), false);
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if (exchange.getRequestHeaders().getFirst("If-Match") != null) {
+            conditionalRequestCount.incrementAndGet();
+            if (config.isEtag() && random.nextDouble() < config.getConflictRate()) {
+                conflictCount.incrementAndGet();
+                send(exchange, SC_PRECONDITION_FAILED, getError(SC_PRECONDITION_FAILED, "Version mismatch"), false);
+                return;
+            }
+        }
+        boolean slow = random.nextDouble() < config.getSlowBodyRate();
+        if (slow) {
+            slowBodyCount.incrementAndGet();
+        }
+        if (path.startsWith(BULK_PATH)) {
+            send(exchange, 200, getBulkResponse(request, random), slow);
+        } else if ("POST".equals(method)) {
+            send(exchange, 201, getResource(String.valueOf(lastId.incrementAndGet())), slow);
+        } else if ("GET".equals(method)) {
+            send(exchange, 200, getListResponse(String.valueOf(lastId.incrementAndGet())), slow);
+        } else if ("DELETE".equals(method)) {
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            send(exchange, 200, getResource(path.substring(path.lastIndexOf('/') + 1)), slow);
+        }
+    }
+
+    private boolean isThrottled(Random random) {
+
+        if (config.getRateLimit() > 0) {
+            long window = System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+            synchronized (rateLimitLock) {
+                if (window != rateLimitWindow) {
+                    rateLimitWindow = window;
+                    rateLimitWindowCount = 0;
+                }
+                if (++rateLimitWindowCount > config.getRateLimit()) {
+                    return true;
+                }
+            }
+        }
+        return random.nextDouble() < config.getThrottleRate();
+    }
+
+    private JSONObject getResource(String id) {
+
+        JSONObject resource = new JSONObject();
+        try {
+            resource.put("schemas", new JSONArray().put(config.isScim2()
+                    ? "urn:ietf:params:scim:schemas:core:2.0:User" : SCIM1_SCHEMA));
+            resource.put("id", id);
+            if (config.isEtag()) {
+                resource.put("meta", new JSONObject().put("version", "W/\"" + lastVersion.incrementAndGet() + "\""));
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return resource;
+    }
+
+    private JSONObject getListResponse(String id) {
+
+        JSONObject list = new JSONObject();
+        try {
+            list.put("schemas", new JSONArray().put(config.isScim2() ? SCIM2_LIST_RESPONSE : SCIM1_SCHEMA));
+            list.put("totalResults", 1);
+            list.put("Resources", new JSONArray().put(getResource(id)));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return list;
+    }
+
+    private JSONObject getBulkResponse(byte[] request, Random random) {
+
+        JSONObject response = new JSONObject();
+        try {
+            JSONArray operations = new JSONObject(new String(request, StandardCharsets.UTF_8))
+                    .optJSONArray("Operations");
+            JSONArray results = new JSONArray();
+            for (int i = 0; operations != null && i < operations.length(); i++) {
+                JSONObject operation = operations.getJSONObject(i);
+                bulkOperationCount.incrementAndGet();
+
+                String method = operation.optString("method");
+                int status = "POST".equals(method) ? 201 : "DELETE".equals(method) ? 204 : 200;
+                boolean failed = random.nextDouble() < config.getErrorRate();
+                if (failed) {
+                    errorCount.incrementAndGet();
+                    status = 500;
+                }
+
+                JSONObject result = new JSONObject();
+                result.put("method", method);
+                if (operation.has("bulkId")) {
+                    result.put("bulkId", operation.getString("bulkId"));
+                }
+                if (!failed && "POST".equals(method)) {
+                    result.put("location", getBaseUrl() + operation.optString("path") + "/"
+                            + lastId.incrementAndGet());
+                }
+                if (config.isScim2()) {
+                    result.put("status", String.valueOf(status));
+                    if (failed) {
+                        result.put("response", getError(status, "Injected failure"));
+                    }
+                } else {
+                    JSONObject statusObject = new JSONObject().put("code", String.valueOf(status));
+                    if (failed) {
+                        statusObject.put("description", "Injected failure");
+                    }
+                    result.put("status", statusObject);
+                }
+                results.put(result);
+            }
+            response.put("schemas", new JSONArray().put(config.isScim2() ? SCIM2_BULK_RESPONSE : SCIM1_SCHEMA));
+            response.put("Operations", results);
+        } catch (JSONException e) {
+            return getError(400, "Invalid bulk request : " + e.getMessage());
+        }
+        return response;
+    }
+
+    private JSONObject getError(int status, String detail) {
+
+        JSONObject error = new JSONObject();
+        try {
+            if (config.isScim2()) {
+                error.put("schemas", new JSONArray().put(SCIM2_ERROR));
+                error.put("status", String.valueOf(status));
+                error.put("detail", detail);
+            } else {
+                error.put("Errors", new JSONArray().put(new JSONObject().put("code", String.valueOf(status))
+                        .put("description", detail)));
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return error;
+    }
+
+    private void send(HttpExchange exchange, int status, JSONObject body, boolean slow) throws IOException {
+
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", config.isScim2() ? "application/scim+json"
+                : "application/json");
+        JSONObject meta = body.optJSONObject("meta");
+        if (meta != null && meta.has("version")) {
+            exchange.getResponseHeaders().set("ETag", meta.optString("version"));
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (config.isGzip() && acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ENGLISH).contains(GZIP)) {
+            bytes = compress(bytes);
+            exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+        }
+        bytesSent.addAndGet(bytes.length);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            if (!slow) {
+                responseBody.write(bytes);
+                return;
+            }
+            // the headers and each piece of the body are flushed separately, so the client waits for the rest.
+            int pieceSize = Math.max(1, (bytes.length + SLOW_BODY_PIECES - 1) / SLOW_BODY_PIECES);
+            for (int offset = 0; offset < bytes.length; offset += pieceSize) {
+                responseBody.write(bytes, offset, Math.min(pieceSize, bytes.length - offset));
+                responseBody.flush();
+                sleep(config.getSlowBodyDelay());
+            }
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = requestBody.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] compress(byte[] bytes) throws IOException {
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] bytes) throws IOException {
+
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        return decompressed.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
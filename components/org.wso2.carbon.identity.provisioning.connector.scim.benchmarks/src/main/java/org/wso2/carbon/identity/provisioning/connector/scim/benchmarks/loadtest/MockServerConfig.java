@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.loadtest;
+
+/**
+ * Behaviour of the mock SCIM server: SCIM version, added latency, injected faults, compression and
+ * resource versions.
+ */
+public class MockServerConfig {
+
+    private String scimVersion = "1.1";
+    private LatencyDistribution latency = LatencyDistribution.none();
+    private double errorRate;
+    private double throttleRate;
+    private int rateLimit;
+    private double slowBodyRate;
+    private int slowBodyDelay = 10;
+    private int threads = 200;
+    private boolean gzip = true;
+    private boolean etag;
+    private double conflictRate;
+
+    /**
+     * @return {@code 1.1} or {@code 2.0}, deciding the schemas and content type of the responses
+     */
+    public String getScimVersion() {
+        return scimVersion;
+    }
+
+    public void setScimVersion(String scimVersion) {
+
+        if (!"1.1".equals(scimVersion) && !"2.0".equals(scimVersion)) {
+            throw new IllegalArgumentException("Unsupported SCIM version : " + scimVersion);
+        }
+        this.scimVersion = scimVersion;
+    }
+
+    public boolean isScim2() {
+        return "2.0".equals(scimVersion);
+    }
+
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public void setLatency(LatencyDistribution latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return fraction of the requests answered with 500, between 0 and 1
+     */
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @return fraction of the requests answered with 429, between 0 and 1
+     */
+    public double getThrottleRate() {
+        return throttleRate;
+    }
+
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @return requests accepted per second before answering with 429, or 0 for no limit
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * @return fraction of the responses whose body is written slowly, between 0 and 1
+     */
+    public double getSlowBodyRate() {
+        return slowBodyRate;
+    }
+
+    public void setSlowBodyRate(double slowBodyRate) {
+        this.slowBodyRate = slowBodyRate;
+    }
+
+    /**
+     * @return delay in milliseconds between the pieces of a slowly written body
+     */
+    public int getSlowBodyDelay() {
+        return slowBodyDelay;
+    }
+
+    public void setSlowBodyDelay(int slowBodyDelay) {
+        this.slowBodyDelay = slowBodyDelay;
+    }
+
+    /**
+     * @return number of threads serving requests
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return whether gzip compressed requests are accepted and responses compressed on demand. Compressed
+     * requests are answered with 415 otherwise.
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return whether resources carry a version, returned as their ETag and {@code meta.version}
+     */
+    public boolean isEtag() {
+        return etag;
+    }
+
+    public void setEtag(boolean etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * @return fraction of the writes carrying If-Match answered with 412, between 0 and 1
+     */
+    public double getConflictRate() {
+        return conflictRate;
+    }
+
+    public void setConflictRate(double conflictRate) {
+        this.conflictRate = conflictRate;
+    }
+
+    @Override
+    public String toString() {
+        return "SCIM " + scimVersion + ", latency " + latency + ", error rate " + errorRate + ", throttle rate "
+                + throttleRate + ", rate limit " + (rateLimit > 0 ? rateLimit + "/s" : "none") + ", slow body rate "
+                + slowBodyRate + ", gzip " + (gzip ? "accepted" : "rejected") + ", etags "
+                + (etag ? "with conflict rate " + conflictRate : "off") + ", " + threads + " threads";
+    }
+}
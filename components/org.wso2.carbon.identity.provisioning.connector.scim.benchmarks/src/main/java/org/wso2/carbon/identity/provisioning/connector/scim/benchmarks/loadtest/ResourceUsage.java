@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmarks.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Resources used by the process between {@link #start()} and {@link #stop()}: CPU time, garbage
+ * collections, peak heap and peak thread count. The mock server, when embedded, is included.
+ */
+class ResourceUsage {
+
+    private long startTime;
+    private long startCpuTime;
+    private long startGcCount;
+    private long startGcTime;
+
+    private long elapsedTime;
+    private long cpuTime = -1;
+    private long gcCount;
+    private long gcTime;
+    private long peakHeap;
+    private int peakThreads;
+
+    void start() {
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        startGcCount = getTotalGcCount();
+        startGcTime = getTotalGcTime();
+        startCpuTime = getProcessCpuTime();
+        startTime = System.nanoTime();
+    }
+
+    void stop() {
+
+        elapsedTime = System.nanoTime() - startTime;
+        long endCpuTime = getProcessCpuTime();
+        cpuTime = startCpuTime < 0 || endCpuTime < 0 ? -1 : endCpuTime - startCpuTime;
+        gcCount = getTotalGcCount() - startGcCount;
+        gcTime = getTotalGcTime() - startGcTime;
+        peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        peakThreads = threads.getPeakThreadCount();
+    }
+
+    /**
+     * @return average number of cores busy, or -1 if the CPU time of the process is not available
+     */
+    double getCpuCores() {
+        return cpuTime < 0 || elapsedTime == 0 ? -1 : (double) cpuTime / elapsedTime;
+    }
+
+    long getGcCount() {
+        return gcCount;
+    }
+
+    /**
+     * @return time spent in garbage collections, in milliseconds
+     */
+    long getGcTime() {
+        return gcTime;
+    }
+
+    /**
+     * @return sum of the peak usage of the heap memory pools, in bytes
+     */
+    long getPeakHeap() {
+        return peakHeap;
+    }
+
+    int getPeakThreads() {
+        return peakThreads;
+    }
+
+    private static long getTotalGcCount() {
+
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getTotalGcTime() {
+
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static long getProcessCpuTime() {
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
@@ -23,34 +23,147 @@ import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
 import org.wso2.carbon.identity.application.common.model.Property;
 import org.wso2.carbon.identity.provisioning.*;
-import org.wso2.carbon.identity.scim.common.impl.ProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.bulk.BulkOperationCallback;
+import org.wso2.carbon.identity.provisioning.connector.scim.bulk.SCIMBulkProcessor;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.GroupMembershipStore;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.SCIMResourceIdCache;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.UserAttributeFingerprintStore;
+import org.wso2.carbon.identity.provisioning.connector.scim.executor.AsyncRejectionPolicy;
+import org.wso2.carbon.identity.provisioning.connector.scim.executor.CoalescingStage;
+import org.wso2.carbon.identity.provisioning.connector.scim.executor.StripedProvisioningExecutor;
+import org.wso2.carbon.identity.provisioning.connector.scim.fanout.FanOutCompletion;
+import org.wso2.carbon.identity.provisioning.connector.scim.fanout.FanOutCompletionPolicy;
+import org.wso2.carbon.identity.provisioning.connector.scim.fanout.FanOutException;
+import org.wso2.carbon.identity.provisioning.connector.scim.fanout.SCIMFanOut;
+import org.wso2.carbon.identity.provisioning.connector.scim.fanout.SCIMFanOutTarget;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointGuardConfig;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointGuardRegistry;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointUnavailableException;
+import org.wso2.carbon.identity.provisioning.connector.scim.journal.JournalSyncPolicy;
+import org.wso2.carbon.identity.provisioning.connector.scim.journal.ProvisioningJournal;
+import org.wso2.carbon.identity.provisioning.connector.scim.journal.UnreplayableOperationException;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.UserAttributeMappingPlan;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.LocalIdentitySource;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.ReconciliationConfig;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.ReconciliationEngine;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.ReconciliationReport;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.ReconciliationTarget;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.ResourceComparator;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.UserStoreIdentitySource;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.RequestScheduler;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.SchedulerFlow;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMMemberResolver;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMResourceClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMTransportConfig;
 import org.wso2.carbon.identity.scim.common.utils.AttributeMapper;
-import org.wso2.carbon.identity.scim.common.utils.SCIMCommonConstants;
 import org.wso2.carbon.user.core.UserStoreException;
+import org.wso2.carbon.user.core.UserStoreManager;
+import org.wso2.carbon.utils.CarbonUtils;
 import org.wso2.charon.core.config.SCIMConfigConstants;
 import org.wso2.charon.core.config.SCIMProvider;
-import org.wso2.charon.core.exceptions.CharonException;
 import org.wso2.charon.core.objects.Group;
 import org.wso2.charon.core.objects.User;
 import org.wso2.charon.core.schema.SCIMConstants;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConnector {
 
     private static final long serialVersionUID = -2800777564581005554L;
     private static Log log = LogFactory.getLog(SCIMProvisioningConnector.class);
+    // the password is never returned, and the schemas depend on the extensions of the SCIM provider.
+    private static final Collection<String> RECONCILE_IGNORED_ATTRIBUTES = Arrays.asList(
+            SCIMConstants.UserSchemaConstants.PASSWORD, SCIMConstants.CommonSchemaConstants.SCHEMAS);
     private SCIMProvider scimProvider;
     private String userStoreDomainName;
+    private transient StripedProvisioningExecutor asyncExecutor;
+    private long asyncShutdownTimeout = SCIMProvisioningConnectorConstants.DEFAULT_ASYNC_SHUTDOWN_TIMEOUT;
+    private transient SCIMHttpTransport transport;
+    private transient SCIMResourceClient scimClient;
+    private transient SCIMResourceIdCache idCache;
+    private transient SCIMMemberResolver memberResolver;
+    private transient SCIMBulkProcessor bulkProcessor;
+    private transient UserAttributeFingerprintStore fingerprintStore;
+    private transient GroupMembershipStore membershipStore;
+    private int groupPatchChunkSize = SCIMProvisioningConnectorConstants.DEFAULT_GROUP_PATCH_CHUNK_SIZE;
+    private transient ProvisioningJournal journal;
+    private transient CoalescingStage coalescingStage;
+    private transient UserAttributeMappingPlan mappingPlan;
+    private transient volatile long lastActivityTime = System.currentTimeMillis();
+    // provision calls in progress, notified on when it drops to zero.
+    private final transient AtomicInteger activeCalls = new AtomicInteger();
+    private transient String identityProviderName;
+    private transient ReconciliationConfig reconciliationConfig;
+    private transient volatile ReconciliationEngine reconciliationEngine;
+    private transient SCIMFanOut fanOut;
 
     @Override
     public void init(Property[] provisioningProperties) throws IdentityProvisioningException {
         scimProvider = new SCIMProvider();
+        boolean asyncEnabled = false;
+        int asyncStripeCount = SCIMProvisioningConnectorConstants.DEFAULT_ASYNC_STRIPE_COUNT;
+        int asyncQueueCapacity = SCIMProvisioningConnectorConstants.DEFAULT_ASYNC_QUEUE_CAPACITY;
+        AsyncRejectionPolicy asyncRejectionPolicy = AsyncRejectionPolicy.BLOCK;
+        String bulkEndpoint = null;
+        int bulkMaxOperations = SCIMProvisioningConnectorConstants.DEFAULT_BULK_MAX_OPERATIONS;
+        int bulkMaxPayloadSize = SCIMProvisioningConnectorConstants.DEFAULT_BULK_MAX_PAYLOAD_SIZE;
+        int bulkFlushInterval = SCIMProvisioningConnectorConstants.DEFAULT_BULK_FLUSH_INTERVAL;
+        SCIMTransportConfig transportConfig = new SCIMTransportConfig();
+        int idCacheSize = SCIMProvisioningConnectorConstants.DEFAULT_ID_CACHE_SIZE;
+        int idCacheTTL = SCIMProvisioningConnectorConstants.DEFAULT_ID_CACHE_TTL;
+        boolean diffUpdatesEnabled = false;
+        int fingerprintCacheSize = SCIMProvisioningConnectorConstants.DEFAULT_FINGERPRINT_CACHE_SIZE;
+        boolean membershipDeltaEnabled = false;
+        int membershipCacheSize = SCIMProvisioningConnectorConstants.DEFAULT_MEMBERSHIP_CACHE_SIZE;
+        boolean journalEnabled = false;
+        String journalDirectory = null;
+        JournalSyncPolicy journalSyncPolicy = JournalSyncPolicy.INTERVAL;
+        int journalSyncInterval = SCIMProvisioningConnectorConstants.DEFAULT_JOURNAL_SYNC_INTERVAL;
+        int journalSegmentSize = SCIMProvisioningConnectorConstants.DEFAULT_JOURNAL_SEGMENT_SIZE;
+        int journalReplayInterval = SCIMProvisioningConnectorConstants.DEFAULT_JOURNAL_REPLAY_INTERVAL;
+        int journalMaxAttempts = SCIMProvisioningConnectorConstants.DEFAULT_JOURNAL_MAX_ATTEMPTS;
+        boolean guardEnabled = false;
+        EndpointGuardConfig guardConfig = new EndpointGuardConfig();
+        int coalescingWindow = 0;
+        int coalescingCapacity = SCIMProvisioningConnectorConstants.DEFAULT_COALESCING_CAPACITY;
+        AsyncRejectionPolicy coalescingRejectionPolicy = AsyncRejectionPolicy.BLOCK;
+        boolean mappingPlanEnabled = false;
+        boolean memberResolutionEnabled = false;
+        boolean conditionalWritesEnabled = false;
+        int memberResolutionBatchSize = SCIMProvisioningConnectorConstants.DEFAULT_MEMBER_RESOLUTION_BATCH_SIZE;
+        int memberResolutionThreads = SCIMProvisioningConnectorConstants.DEFAULT_MEMBER_RESOLUTION_THREADS;
+        String reconcileDirectory = null;
+        reconciliationConfig = new ReconciliationConfig();
+        Map<String, Map<String, String>> fanOutTargetProperties = new TreeMap<>();
+        FanOutCompletionPolicy fanOutCompletionPolicy = FanOutCompletionPolicy.ALL;
+        int fanOutTimeout = SCIMProvisioningConnectorConstants.DEFAULT_FANOUT_TIMEOUT;
+        int fanOutThreads = SCIMProvisioningConnectorConstants.DEFAULT_FANOUT_THREADS;
+        int fanOutQueueCapacity = SCIMProvisioningConnectorConstants.DEFAULT_FANOUT_QUEUE_CAPACITY;
+        boolean schedulerEnabled = false;
+        String schedulerFlowName = null;
+        int schedulerWeight = SCIMProvisioningConnectorConstants.DEFAULT_SCHEDULER_WEIGHT;
+        int rateLimit = 0;
+        int rateLimitBurst = 0;
 
         if (provisioningProperties != null && provisioningProperties.length > 0) {
 
@@ -71,6 +184,170 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
                     populateSCIMProvider(property, SCIMProvisioningConnectorConstants.SCIM_ENABLE_PASSWORD_PROVISIONING);
                 }else if (SCIMProvisioningConnectorConstants.SCIM_DEFAULT_PASSWORD.equals(property.getName())){
                     populateSCIMProvider(property, SCIMProvisioningConnectorConstants.SCIM_DEFAULT_PASSWORD);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ASYNC_PROVISIONING_ENABLED.equals(property.getName())) {
+                    asyncEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ASYNC_STRIPE_COUNT.equals(property.getName())) {
+                    asyncStripeCount = getIntPropertyValue(property, asyncStripeCount);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ASYNC_QUEUE_CAPACITY.equals(property.getName())) {
+                    asyncQueueCapacity = getIntPropertyValue(property, asyncQueueCapacity);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ASYNC_REJECTION_POLICY.equals(property.getName())) {
+                    asyncRejectionPolicy = AsyncRejectionPolicy.fromValue(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ASYNC_SHUTDOWN_TIMEOUT.equals(property.getName())) {
+                    asyncShutdownTimeout = getIntPropertyValue(property, (int) asyncShutdownTimeout);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_BULK_EP.equals(property.getName())) {
+                    bulkEndpoint = getPropertyValue(property);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_BULK_MAX_OPERATIONS.equals(property.getName())) {
+                    bulkMaxOperations = getIntPropertyValue(property, bulkMaxOperations);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_BULK_MAX_PAYLOAD_SIZE.equals(property.getName())) {
+                    bulkMaxPayloadSize = getIntPropertyValue(property, bulkMaxPayloadSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_BULK_FLUSH_INTERVAL.equals(property.getName())) {
+                    bulkFlushInterval = getIntPropertyValue(property, bulkFlushInterval);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_MAX_CONNECTIONS.equals(property.getName())) {
+                    transportConfig.setMaxConnections(getIntPropertyValue(property,
+                            transportConfig.getMaxConnections()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_MAX_CONNECTIONS_PER_ROUTE.equals(
+                        property.getName())) {
+                    transportConfig.setMaxConnectionsPerRoute(getIntPropertyValue(property,
+                            transportConfig.getMaxConnectionsPerRoute()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_CONNECT_TIMEOUT.equals(property.getName())) {
+                    transportConfig.setConnectTimeout(getIntPropertyValue(property,
+                            transportConfig.getConnectTimeout()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_READ_TIMEOUT.equals(property.getName())) {
+                    transportConfig.setReadTimeout(getIntPropertyValue(property, transportConfig.getReadTimeout()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_IDLE_TIMEOUT.equals(property.getName())) {
+                    transportConfig.setIdleTimeout(getIntPropertyValue(property, transportConfig.getIdleTimeout()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_REQUEST_COMPRESSION_ENABLED.equals(
+                        property.getName())) {
+                    transportConfig.setRequestCompressionEnabled(Boolean.parseBoolean(getPropertyValue(property)));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_RESPONSE_COMPRESSION_ENABLED.equals(
+                        property.getName())) {
+                    transportConfig.setResponseCompressionEnabled(Boolean.parseBoolean(getPropertyValue(property)));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_HTTP_COMPRESSION_THRESHOLD.equals(
+                        property.getName())) {
+                    transportConfig.setCompressionThreshold(getIntPropertyValue(property,
+                            transportConfig.getCompressionThreshold()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_SCHEDULER_TIMEOUT.equals(property.getName())) {
+                    transportConfig.setSchedulingTimeout(getIntPropertyValue(property,
+                            transportConfig.getSchedulingTimeout()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_CONDITIONAL_WRITES_ENABLED.equals(
+                        property.getName())) {
+                    conditionalWritesEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ID_CACHE_SIZE.equals(property.getName())) {
+                    idCacheSize = getIntPropertyValue(property, idCacheSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_ID_CACHE_TTL.equals(property.getName())) {
+                    idCacheTTL = getIntPropertyValue(property, idCacheTTL);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_DIFF_UPDATES_ENABLED.equals(property.getName())) {
+                    diffUpdatesEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_FINGERPRINT_CACHE_SIZE.equals(property.getName())) {
+                    fingerprintCacheSize = getIntPropertyValue(property, fingerprintCacheSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_MEMBERSHIP_DELTA_ENABLED.equals(property.getName())) {
+                    membershipDeltaEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_MEMBERSHIP_CACHE_SIZE.equals(property.getName())) {
+                    membershipCacheSize = getIntPropertyValue(property, membershipCacheSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GROUP_PATCH_CHUNK_SIZE.equals(property.getName())) {
+                    groupPatchChunkSize = getIntPropertyValue(property, groupPatchChunkSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_ENABLED.equals(property.getName())) {
+                    journalEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_DIRECTORY.equals(property.getName())) {
+                    journalDirectory = getPropertyValue(property);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_SYNC_POLICY.equals(property.getName())) {
+                    journalSyncPolicy = JournalSyncPolicy.fromValue(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_SYNC_INTERVAL.equals(property.getName())) {
+                    journalSyncInterval = getIntPropertyValue(property, journalSyncInterval);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_SEGMENT_SIZE.equals(property.getName())) {
+                    journalSegmentSize = getIntPropertyValue(property, journalSegmentSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_REPLAY_INTERVAL.equals(
+                        property.getName())) {
+                    journalReplayInterval = getIntPropertyValue(property, journalReplayInterval);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_JOURNAL_MAX_ATTEMPTS.equals(property.getName())) {
+                    journalMaxAttempts = getIntPropertyValue(property, journalMaxAttempts);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GUARD_ENABLED.equals(property.getName())) {
+                    guardEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GUARD_INITIAL_LIMIT.equals(property.getName())) {
+                    guardConfig.setInitialLimit(getIntPropertyValue(property, guardConfig.getInitialLimit()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GUARD_MIN_LIMIT.equals(property.getName())) {
+                    guardConfig.setMinLimit(getIntPropertyValue(property, guardConfig.getMinLimit()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GUARD_MAX_LIMIT.equals(property.getName())) {
+                    guardConfig.setMaxLimit(getIntPropertyValue(property, guardConfig.getMaxLimit()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GUARD_LATENCY_THRESHOLD.equals(
+                        property.getName())) {
+                    guardConfig.setLatencyThreshold(getIntPropertyValue(property,
+                            guardConfig.getLatencyThreshold()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GUARD_ACQUIRE_TIMEOUT.equals(property.getName())) {
+                    guardConfig.setAcquireTimeout(getIntPropertyValue(property, guardConfig.getAcquireTimeout()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_CIRCUIT_FAILURE_RATE_THRESHOLD.equals(
+                        property.getName())) {
+                    guardConfig.setFailureRateThreshold(getIntPropertyValue(property,
+                            guardConfig.getFailureRateThreshold()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_CIRCUIT_WINDOW_SIZE.equals(property.getName())) {
+                    guardConfig.setWindowSize(getIntPropertyValue(property, guardConfig.getWindowSize()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_CIRCUIT_OPEN_DURATION.equals(property.getName())) {
+                    guardConfig.setOpenDuration(getIntPropertyValue(property, guardConfig.getOpenDuration()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_CIRCUIT_HALF_OPEN_PROBES.equals(
+                        property.getName())) {
+                    guardConfig.setHalfOpenProbes(getIntPropertyValue(property, guardConfig.getHalfOpenProbes()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_COALESCING_WINDOW.equals(property.getName())) {
+                    coalescingWindow = getIntPropertyValue(property, coalescingWindow);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_COALESCING_CAPACITY.equals(property.getName())) {
+                    coalescingCapacity = getIntPropertyValue(property, coalescingCapacity);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_COALESCING_REJECTION_POLICY.equals(
+                        property.getName())) {
+                    coalescingRejectionPolicy = AsyncRejectionPolicy.fromValue(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_MAPPING_PLAN_ENABLED.equals(property.getName())) {
+                    mappingPlanEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_MEMBER_RESOLUTION_ENABLED.equals(
+                        property.getName())) {
+                    memberResolutionEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_MEMBER_RESOLUTION_BATCH_SIZE.equals(
+                        property.getName())) {
+                    memberResolutionBatchSize = getIntPropertyValue(property, memberResolutionBatchSize);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_MEMBER_RESOLUTION_THREADS.equals(
+                        property.getName())) {
+                    memberResolutionThreads = getIntPropertyValue(property, memberResolutionThreads);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RECONCILE_DIRECTORY.equals(property.getName())) {
+                    reconcileDirectory = getPropertyValue(property);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RECONCILE_PAGE_SIZE.equals(property.getName())) {
+                    reconciliationConfig.setPageSize(getIntPropertyValue(property,
+                            reconciliationConfig.getPageSize()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RECONCILE_PARTITION_SIZE.equals(
+                        property.getName())) {
+                    reconciliationConfig.setPartitionSize(getIntPropertyValue(property,
+                            reconciliationConfig.getPartitionSize()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RECONCILE_THREADS.equals(property.getName())) {
+                    reconciliationConfig.setThreads(getIntPropertyValue(property, reconciliationConfig.getThreads()));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RECONCILE_DELETE_ENABLED.equals(
+                        property.getName())) {
+                    reconciliationConfig.setDeleteEnabled(Boolean.parseBoolean(getPropertyValue(property)));
+                } else if (property.getName() != null && property.getName().startsWith(
+                        SCIMProvisioningConnectorConstants.SCIM_FANOUT_TARGET_PREFIX)) {
+                    addFanOutTargetProperty(fanOutTargetProperties, property);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_FANOUT_COMPLETION_POLICY.equals(
+                        property.getName())) {
+                    fanOutCompletionPolicy = FanOutCompletionPolicy.fromValue(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_FANOUT_TIMEOUT.equals(property.getName())) {
+                    fanOutTimeout = getIntPropertyValue(property, fanOutTimeout);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_FANOUT_THREADS.equals(property.getName())) {
+                    fanOutThreads = getIntPropertyValue(property, fanOutThreads);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_FANOUT_QUEUE_CAPACITY.equals(property.getName())) {
+                    fanOutQueueCapacity = getIntPropertyValue(property, fanOutQueueCapacity);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_SCHEDULER_ENABLED.equals(property.getName())) {
+                    schedulerEnabled = Boolean.parseBoolean(getPropertyValue(property));
+                } else if (SCIMProvisioningConnectorConstants.SCIM_SCHEDULER_FLOW.equals(property.getName())) {
+                    schedulerFlowName = getPropertyValue(property);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_SCHEDULER_WEIGHT.equals(property.getName())) {
+                    schedulerWeight = getIntPropertyValue(property, schedulerWeight);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_SCHEDULER_MAX_CONCURRENCY.equals(
+                        property.getName())) {
+                    if (StringUtils.isNotBlank(getPropertyValue(property))) {
+                        log.warn("Ignoring connector property "
+                                + SCIMProvisioningConnectorConstants.SCIM_SCHEDULER_MAX_CONCURRENCY + ". The number "
+                                + "of SCIM requests the node sends at a time is set with the system property "
+                                + SCIMProvisioningConnectorConstants.SCHEDULER_MAX_CONCURRENCY_PROPERTY);
+                    }
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT.equals(property.getName())) {
+                    rateLimit = getIntPropertyValue(property, rateLimit);
+                } else if (SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT_BURST.equals(property.getName())) {
+                    rateLimitBurst = getIntPropertyValue(property, rateLimitBurst);
                 }
 
                 if (IdentityProvisioningConstants.JIT_PROVISIONING_ENABLED.equals(property
@@ -79,51 +356,853 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
                 }
             }
         }
+
+        for (Map.Entry<String, Map<String, String>> target : fanOutTargetProperties.entrySet()) {
+            if (StringUtils.isBlank(target.getValue().get(SCIMProvisioningConnectorConstants.SCIM_USER_EP))
+                    && StringUtils.isBlank(target.getValue().get(SCIMProvisioningConnectorConstants.SCIM_GROUP_EP))) {
+                throw new IdentityProvisioningException("No SCIM endpoint configured for fan-out target "
+                        + target.getKey());
+            }
+        }
+
+        transport = new SCIMHttpTransport(scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USERNAME),
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_PASSWORD), transportConfig);
+        if (guardEnabled) {
+            for (String endpoint : new String[]{
+                    scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT),
+                    scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT), bulkEndpoint}) {
+                if (StringUtils.isNotBlank(endpoint)) {
+                    transport.addEndpointGuard(EndpointGuardRegistry.getGuard(endpoint, guardConfig));
+                }
+            }
+        }
+        addRateLimiters(transport, rateLimit, rateLimitBurst,
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT),
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT), bulkEndpoint);
+        SchedulerFlow schedulerFlow = null;
+        if (schedulerEnabled) {
+            if (StringUtils.isBlank(schedulerFlowName)) {
+                schedulerFlowName = PrivilegedCarbonContext.getThreadLocalCarbonContext().getTenantDomain();
+            }
+            schedulerFlow = RequestScheduler.getInstance().getFlow(schedulerFlowName, schedulerWeight);
+            transport.setSchedulerFlow(schedulerFlow);
+            if (log.isDebugEnabled()) {
+                log.debug("Scheduling SCIM requests of connector in flow " + schedulerFlowName + " with weight "
+                        + schedulerWeight);
+            }
+        }
+        if (idCacheSize > 0) {
+            idCache = new SCIMResourceIdCache(idCacheSize, idCacheTTL);
+        }
+        if (memberResolutionEnabled) {
+            memberResolver = new SCIMMemberResolver(transport,
+                    scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT), idCache,
+                    memberResolutionBatchSize, memberResolutionThreads);
+        }
+        scimClient = new SCIMResourceClient(transport,
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT),
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT), idCache, memberResolver,
+                conditionalWritesEnabled);
+        if (!fanOutTargetProperties.isEmpty()) {
+            List<SCIMFanOutTarget> targets = new ArrayList<>();
+            for (Map.Entry<String, Map<String, String>> target : fanOutTargetProperties.entrySet()) {
+                Map<String, String> targetProperties = target.getValue();
+                String targetUserEndpoint = targetProperties.get(SCIMProvisioningConnectorConstants.SCIM_USER_EP);
+                String targetGroupEndpoint = targetProperties.get(SCIMProvisioningConnectorConstants.SCIM_GROUP_EP);
+                SCIMHttpTransport targetTransport = new SCIMHttpTransport(
+                        targetProperties.get(SCIMProvisioningConnectorConstants.SCIM_USERNAME),
+                        targetProperties.get(SCIMProvisioningConnectorConstants.SCIM_PASSWORD), transportConfig);
+                if (guardEnabled) {
+                    for (String endpoint : new String[]{targetUserEndpoint, targetGroupEndpoint}) {
+                        if (StringUtils.isNotBlank(endpoint)) {
+                            targetTransport.addEndpointGuard(EndpointGuardRegistry.getGuard(endpoint, guardConfig));
+                        }
+                    }
+                }
+                String targetPrefix = SCIMProvisioningConnectorConstants.SCIM_FANOUT_TARGET_PREFIX + target.getKey()
+                        + ".";
+                int targetRateLimit = getIntValue(targetPrefix + SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT,
+                        targetProperties.get(SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT), rateLimit);
+                int targetRateLimitBurst = getIntValue(
+                        targetPrefix + SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT_BURST,
+                        targetProperties.get(SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT_BURST), rateLimitBurst);
+                addRateLimiters(targetTransport, targetRateLimit, targetRateLimitBurst, targetUserEndpoint,
+                        targetGroupEndpoint);
+                targetTransport.setSchedulerFlow(schedulerFlow);
+                SCIMResourceIdCache targetIdCache = idCacheSize > 0 ?
+                        new SCIMResourceIdCache(idCacheSize, idCacheTTL) : null;
+                SCIMMemberResolver targetMemberResolver = memberResolutionEnabled ?
+                        new SCIMMemberResolver(targetTransport, targetUserEndpoint, targetIdCache,
+                                memberResolutionBatchSize, memberResolutionThreads) : null;
+                targets.add(new SCIMFanOutTarget(target.getKey(), targetTransport,
+                        new SCIMResourceClient(targetTransport, targetUserEndpoint, targetGroupEndpoint,
+                                targetIdCache, targetMemberResolver, conditionalWritesEnabled),
+                        targetMemberResolver, fanOutThreads, fanOutQueueCapacity));
+            }
+            fanOut = new SCIMFanOut(targets, fanOutCompletionPolicy, fanOutTimeout);
+            if (log.isDebugEnabled()) {
+                log.debug("Fan-out enabled for SCIM connector to targets " + fanOutTargetProperties.keySet()
+                        + " with completion policy " + fanOutCompletionPolicy.getValue());
+            }
+        }
+        reconciliationConfig.setDirectory(StringUtils.isNotBlank(reconcileDirectory) ?
+                new File(reconcileDirectory) : getDefaultDirectory(
+                SCIMProvisioningConnectorConstants.DEFAULT_RECONCILE_DIRECTORY));
+        if (mappingPlanEnabled) {
+            mappingPlan = UserAttributeMappingPlan.getPlan(getClaimDialectUri());
+        }
+        if (diffUpdatesEnabled && fingerprintCacheSize > 0) {
+            fingerprintStore = new UserAttributeFingerprintStore(fingerprintCacheSize);
+        }
+        if (membershipDeltaEnabled && membershipCacheSize > 0) {
+            membershipStore = new GroupMembershipStore(membershipCacheSize);
+        }
+
+        if (StringUtils.isNotBlank(bulkEndpoint)) {
+            bulkProcessor = new SCIMBulkProcessor(bulkEndpoint, transport, idCache, bulkMaxOperations,
+                    bulkMaxPayloadSize, bulkFlushInterval);
+            if (log.isDebugEnabled()) {
+                log.debug("Bulk provisioning enabled for SCIM connector with bulk endpoint " + bulkEndpoint);
+            }
+        }
+
+        // coalesced operations are always provisioned by the executor, so that the stage only queues them.
+        if (asyncEnabled || coalescingWindow > 0) {
+            asyncExecutor = new StripedProvisioningExecutor(asyncStripeCount, asyncQueueCapacity,
+                    asyncRejectionPolicy);
+            if (log.isDebugEnabled()) {
+                log.debug("Asynchronous provisioning enabled for SCIM connector with " + asyncStripeCount
+                        + " stripes, queue capacity " + asyncQueueCapacity + " and rejection policy "
+                        + asyncRejectionPolicy.getValue());
+            }
+        }
+
+        if (journalEnabled) {
+            File directory = StringUtils.isNotBlank(journalDirectory) ? new File(journalDirectory) :
+                    getDefaultDirectory(SCIMProvisioningConnectorConstants.DEFAULT_JOURNAL_DIRECTORY);
+            journal = new ProvisioningJournal(directory, journalSyncPolicy, journalSegmentSize, journalMaxAttempts);
+            journal.start(new ProvisioningJournal.ReplayHandler() {
+                @Override
+                public boolean replay(ProvisioningEntity provisioningEntity, boolean passwordOmitted)
+                        throws IdentityProvisioningException {
+                    if (passwordOmitted) {
+                        checkReplayWithoutPassword(provisioningEntity);
+                    }
+                    try {
+                        doProvision(provisioningEntity, null);
+                        return true;
+                    } catch (FanOutException e) {
+                        // the primary target has completed the operation, which is all the journal tracks.
+                        return true;
+                    } catch (IdentityProvisioningException e) {
+                        if (isEndpointUnavailable(e)) {
+                            return false;
+                        }
+                        throw e;
+                    }
+                }
+            }, journalReplayInterval, journalSyncInterval);
+            if (fanOut != null) {
+                SCIMFanOut.TargetOperationFactory targetOperationFactory = new SCIMFanOut.TargetOperationFactory() {
+                    @Override
+                    public SCIMFanOut.TargetOperation create(ProvisioningEntity provisioningEntity,
+                                                             boolean passwordOmitted)
+                            throws IdentityProvisioningException {
+                        return getTargetOperation(provisioningEntity, passwordOmitted);
+                    }
+                };
+                // each target retries its failed operations from its own journal, next to that of the connector.
+                for (SCIMFanOutTarget target : fanOut.getTargets()) {
+                    File targetDirectory = new File(directory.getPath() + "-" + target.getName());
+                    target.startJournal(new ProvisioningJournal(targetDirectory, journalSyncPolicy,
+                            journalSegmentSize, journalMaxAttempts), targetOperationFactory, journalReplayInterval,
+                            journalSyncInterval);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Provisioning journal enabled for SCIM connector in " + directory + " with sync policy "
+                        + journalSyncPolicy.getValue());
+            }
+        }
+
+        if (coalescingWindow > 0) {
+            coalescingStage = new CoalescingStage(coalescingWindow, coalescingCapacity, coalescingRejectionPolicy,
+                    journal, new CoalescingStage.Dispatcher() {
+                @Override
+                public void dispatch(ProvisioningEntity provisioningEntity, long journalSequence)
+                        throws IdentityProvisioningException {
+                    provisionAsync(provisioningEntity, journalSequence);
+                }
+            });
+            if (log.isDebugEnabled()) {
+                log.debug("Coalescing enabled for SCIM connector with a window of " + coalescingWindow + "ms, "
+                        + "capacity " + coalescingCapacity + " and rejection policy "
+                        + coalescingRejectionPolicy.getValue());
+            }
+        }
+    }
+
+    /**
+     * Holds the requests of the transport to each endpoint to the rate limit of the endpoint, shared with
+     * the other connectors sending to it.
+     *
+     * @param rate      requests per second accepted by each endpoint, or 0 not to limit them
+     * @param burst     requests sent without delay after an endpoint has been idle, or 0 for one second of
+     *                  requests
+     * @param endpoints SCIM endpoint URLs, blank ones being skipped
+     */
+    private static void addRateLimiters(SCIMHttpTransport transport, int rate, int burst, String... endpoints) {
+
+        if (rate <= 0) {
+            return;
+        }
+        for (String endpoint : endpoints) {
+            if (StringUtils.isNotBlank(endpoint)) {
+                transport.addRateLimiter(RequestScheduler.getInstance().getRateLimiter(endpoint, rate,
+                        burst > 0 ? burst : rate));
+            }
+        }
+    }
+
+    /**
+     * Files a property named {@code scim-fanout-target.<target>.<property>} under its target.
+     *
+     * @param targetProperties properties of each fan-out target, keyed by target name
+     * @param property         fan-out target property
+     */
+    private void addFanOutTargetProperty(Map<String, Map<String, String>> targetProperties, Property property) {
+
+        String name = property.getName().substring(
+                SCIMProvisioningConnectorConstants.SCIM_FANOUT_TARGET_PREFIX.length());
+        int separator = name.indexOf('.');
+        if (separator <= 0) {
+            log.warn("Invalid SCIM fan-out target property " + property.getName() + ". Ignoring it.");
+            return;
+        }
+        String target = name.substring(0, separator);
+        Map<String, String> properties = targetProperties.get(target);
+        if (properties == null) {
+            properties = new HashMap<>();
+            targetProperties.put(target, properties);
+        }
+        properties.put(name.substring(separator + 1), getPropertyValue(property));
+    }
+
+    /**
+     * @param parent directory relative to the carbon home
+     * @return directory of this connector under the given one, named after its identity provider and SCIM
+     * endpoints so that connectors of different identity providers or SCIM providers do not share it
+     */
+    private File getDefaultDirectory(String parent) {
+
+        String endpoints = scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT) + "|"
+                + scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT);
+        if (identityProviderName != null) {
+            endpoints = identityProviderName + "|" + endpoints;
+        }
+        return new File(new File(CarbonUtils.getCarbonHome(), parent), Integer.toHexString(endpoints.hashCode()));
+    }
+
+    /**
+     * Stops the reconciliation in progress, if any, dispatches the operations held for coalescing, stops
+     * the asynchronous executor, if any, after draining the provisioning tasks already queued, sends the
+     * pending bulk operations, closes the journal, sends the operations queued for the fan-out targets and
+     * closes the pooled connections to the SCIM provider and the fan-out targets.
+     */
+    public void shutdown() {
+
+        ReconciliationEngine engine = reconciliationEngine;
+        if (engine != null) {
+            engine.stop();
+        }
+        if (coalescingStage != null) {
+            coalescingStage.shutdown(asyncShutdownTimeout);
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown(asyncShutdownTimeout);
+        }
+        if (bulkProcessor != null) {
+            bulkProcessor.shutdown();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (fanOut != null) {
+            fanOut.shutdown(asyncShutdownTimeout);
+        }
+        if (memberResolver != null) {
+            memberResolver.shutdown();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * @return cache of the SCIM ids resolved by this connector, or null if id caching is disabled
+     */
+    public SCIMResourceIdCache getResourceIdCache() {
+        return idCache;
+    }
+
+    /**
+     * @return number of provisioning tasks waiting in each asynchronous lane, or an empty array if
+     * asynchronous provisioning is disabled
+     */
+    public int[] getAsyncLaneDepths() {
+
+        if (asyncExecutor == null) {
+            return new int[0];
+        }
+        return asyncExecutor.getLaneDepths();
+    }
+
+    /**
+     * @return number of operations recorded in the journals of the SCIM provider and the fan-out targets and
+     * not acknowledged yet, or 0 if journaling is disabled
+     */
+    public int getJournalBacklog() {
+
+        if (journal == null) {
+            return 0;
+        }
+        int backlog = journal.getUnacknowledgedCount();
+        if (fanOut != null) {
+            for (SCIMFanOutTarget target : fanOut.getTargets()) {
+                backlog += target.getJournalBacklog();
+            }
+        }
+        return backlog;
+    }
+
+    /**
+     * @return number of operations held for coalescing, or 0 if coalescing is disabled
+     */
+    public int getCoalescingBacklog() {
+
+        if (coalescingStage == null) {
+            return 0;
+        }
+        return coalescingStage.getPendingCount();
+    }
+
+    /**
+     * @return last time an entity was handed to this connector for provisioning
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    /**
+     * Names the identity provider this connector provisions for. Must be called before {@link #init}.
+     *
+     * @param identityProviderName name of the identity provider, or null if unknown
+     */
+    void setIdentityProviderName(String identityProviderName) {
+        this.identityProviderName = identityProviderName;
+    }
+
+    /**
+     * @return number of provision calls in progress on this connector
+     */
+    public int getActiveCallCount() {
+        return activeCalls.get();
+    }
+
+    /**
+     * Waits for the provision calls in progress on this connector to return.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if no provision call is in progress
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(long timeout) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (activeCalls) {
+            while (activeCalls.get() > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                activeCalls.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of remote calls saved by coalescing successive operations on the same user or
+     * group, or 0 if coalescing is disabled
+     */
+    public long getCoalescedCallCount() {
+
+        if (coalescingStage == null) {
+            return 0;
+        }
+        return coalescingStage.getSavedCallCount();
+    }
+
+    /**
+     * Brings the SCIM provider in line with the given users and groups, creating the missing ones,
+     * replacing the ones that differ and, if {@code scim-reconcile-delete-enabled} is set, deleting the ones
+     * absent locally. Progress is checkpointed in {@code scim-reconcile-directory}, so a run that was
+     * stopped or failed resumes where it left off when this method is called again.
+     *
+     * @param source local users and groups, with their claims in the SCIM dialect
+     * @return outcome of the run
+     * @throws IdentityProvisioningException if a reconciliation is already running, or if the run was
+     *                                       stopped or could not complete
+     */
+    public ReconciliationReport reconcile(LocalIdentitySource source) throws IdentityProvisioningException {
+
+        ReconciliationEngine engine = new ReconciliationEngine(scimClient, idCache, new ReconciliationTarget() {
+            @Override
+            public boolean isUpToDate(ProvisioningEntity localEntity, JSONObject remoteResource)
+                    throws IdentityProvisioningException {
+                return isReconciled(localEntity, remoteResource);
+            }
+
+            @Override
+            public void provision(ProvisioningEntity provisioningEntity) throws IdentityProvisioningException {
+
+                // the caches describe what was last sent, which the SCIM provider no longer holds.
+                if (fingerprintStore != null && provisioningEntity.getEntityType() == ProvisioningEntityType.USER) {
+                    fingerprintStore.invalidate(provisioningEntity.getEntityName());
+                }
+                if (membershipStore != null && provisioningEntity.getEntityType() == ProvisioningEntityType.GROUP) {
+                    membershipStore.invalidate(provisioningEntity.getEntityName());
+                }
+                SCIMProvisioningConnector.this.provision(provisioningEntity);
+            }
+        }, reconciliationConfig);
+
+        synchronized (this) {
+            if (reconciliationEngine != null) {
+                throw new IdentityProvisioningException("A reconciliation is already running for the SCIM provider");
+            }
+            reconciliationEngine = engine;
+        }
+        try {
+            return engine.run(source);
+        } finally {
+            reconciliationEngine = null;
+        }
+    }
+
+    /**
+     * Starts reconciling the SCIM provider with the users and roles of the {@code scim-user-store-domain} in
+     * the background, listing the users a reconciliation page at a time. The outcome is logged.
+     *
+     * @param userStoreManager user store manager of the tenant of the connector
+     * @return false if a reconciliation is already running
+     * @throws IdentityProvisioningException if the claims of the user store cannot be read
+     */
+    public boolean startUserStoreReconciliation(UserStoreManager userStoreManager)
+            throws IdentityProvisioningException {
+
+        final LocalIdentitySource source = new UserStoreIdentitySource(userStoreManager, userStoreDomainName,
+                getClaimDialectUri(), reconciliationConfig.getPageSize());
+        synchronized (this) {
+            if (reconciliationEngine != null) {
+                return false;
+            }
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ReconciliationReport report = reconcile(source);
+                    log.info("Reconciliation of the SCIM provider of " + identityProviderName + " with user store "
+                            + "domain " + userStoreDomainName + " completed. " + report);
+                } catch (IdentityProvisioningException e) {
+                    log.error("Error while reconciling the SCIM provider of " + identityProviderName
+                            + " with user store domain " + userStoreDomainName, e);
+                }
+            }
+        }, "SCIMReconciliation-" + identityProviderName);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * @param localEntity    local user or group
+     * @param remoteResource SCIM resource of the same name
+     * @return whether the SCIM resource already holds the attributes the entity would be provisioned with
+     */
+    private boolean isReconciled(ProvisioningEntity localEntity, JSONObject remoteResource)
+            throws IdentityProvisioningException {
+
+        try {
+            if (localEntity.getEntityType() == ProvisioningEntityType.USER) {
+                JSONObject user = buildUser(getSingleValuedClaims(localEntity.getAttributes()));
+                user.put(SCIMConstants.UserSchemaConstants.USER_NAME, localEntity.getEntityName());
+                return ResourceComparator.contains(remoteResource, user, RECONCILE_IGNORED_ATTRIBUTES);
+            }
+
+            Set<String> members = new HashSet<>();
+            JSONArray remoteMembers = remoteResource.optJSONArray(SCIMConstants.GroupSchemaConstants.MEMBERS);
+            if (remoteMembers != null) {
+                for (int i = 0; i < remoteMembers.length(); i++) {
+                    String member = remoteMembers.getJSONObject(i).optString(
+                            SCIMConstants.CommonSchemaConstants.DISPLAY, null);
+                    if (member == null) {
+                        // members are only known by id, which cannot be matched with local user names.
+                        return false;
+                    }
+                    members.add(member);
+                }
+            }
+            List<String> userNames = getUserNames(localEntity.getAttributes());
+            return userNames != null ? members.equals(new HashSet<>(userNames)) : members.isEmpty();
+        } catch (Exception e) {
+            throw new IdentityProvisioningException("Error while comparing " + localEntity.getEntityType() + " "
+                    + localEntity.getEntityName() + " with the SCIM provider", e);
+        }
     }
 
     @Override
     public ProvisionedIdentifier provision(ProvisioningEntity provisioningEntity)
             throws IdentityProvisioningException {
 
+        lastActivityTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        activeCalls.incrementAndGet();
+        try {
+            return submitEntity(provisioningEntity, startTime);
+        } finally {
+            if (activeCalls.decrementAndGet() == 0) {
+                synchronized (activeCalls) {
+                    activeCalls.notifyAll();
+                }
+            }
+        }
+    }
+
+    private ProvisionedIdentifier submitEntity(ProvisioningEntity provisioningEntity, long startTime)
+            throws IdentityProvisioningException {
+
         if (provisioningEntity != null) {
 
             if (provisioningEntity.isJitProvisioning() && !isJitProvisioningEnabled()) {
                 log.debug("JIT provisioning disabled for SCIM connector");
+                ProvisioningMetrics.getInstance().recordSkipped(provisioningEntity.getEntityType(),
+                        provisioningEntity.getOperation());
                 return null;
             }
 
-            if (provisioningEntity.getEntityType() == ProvisioningEntityType.USER) {
-                if (provisioningEntity.getOperation() == ProvisioningOperation.DELETE) {
-                    deleteUser(provisioningEntity);
-                } else if (provisioningEntity.getOperation() == ProvisioningOperation.POST) {
-                    createUser(provisioningEntity);
-                } else if (provisioningEntity.getOperation() == ProvisioningOperation.PUT) {
-                    updateUser(provisioningEntity, ProvisioningOperation.PUT);
-                } else if (provisioningEntity.getOperation() == ProvisioningOperation.PATCH) {
-                    updateUser(provisioningEntity, ProvisioningOperation.PATCH);
+            try {
+                if (coalescingStage != null) {
+                    coalescingStage.submit(getEntityKey(provisioningEntity), provisioningEntity);
                 } else {
-                    log.warn("Unsupported provisioning opertaion.");
+                    dispatchEntity(provisioningEntity);
+                }
+            } finally {
+                ProvisioningMetrics.getInstance().recordProvisionCall(System.nanoTime() - startTime);
+            }
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Records the entity in the journal, if journaling is enabled, and provisions it, asynchronously if
+     * an executor is configured.
+     *
+     * @param provisioningEntity
+     * @throws IdentityProvisioningException
+     */
+    private void dispatchEntity(ProvisioningEntity provisioningEntity) throws IdentityProvisioningException {
+
+        long journalSequence = journal != null ?
+                journal.append(getEntityKey(provisioningEntity), provisioningEntity) : 0;
+        if (asyncExecutor != null) {
+            provisionAsync(provisioningEntity, journalSequence);
+        } else {
+            provisionEntity(provisioningEntity, journalSequence);
+        }
+    }
+
+    /**
+     * Queues the entity to be provisioned by a worker thread. Operations on the same user or group are
+     * queued on the same lane so that they reach the SCIM target in order. Failures are logged since
+     * the caller has already returned by then, except when a full lane runs the entity on behalf of the
+     * caller under the {@code sync} rejection policy, which throws the failure to the caller.
+     *
+     * @param provisioningEntity
+     * @param journalSequence    sequence number of the entity in the journal, if journaling is enabled
+     * @throws IdentityProvisioningException
+     */
+    private void provisionAsync(final ProvisioningEntity provisioningEntity, final long journalSequence)
+            throws IdentityProvisioningException {
+
+        String entityKey = getEntityKey(provisioningEntity);
+        asyncExecutor.submit(entityKey, new StripedProvisioningExecutor.ProvisioningTask() {
+            @Override
+            public void run() throws IdentityProvisioningException {
+                provisionEntity(provisioningEntity, journalSequence);
+            }
+
+            @Override
+            public void onFailure(IdentityProvisioningException e) {
+                log.error("Error while asynchronously provisioning " + provisioningEntity.getEntityType()
+                        + " : " + provisioningEntity.getEntityName(), e);
+            }
+        });
+    }
+
+    /**
+     * Builds a key identifying the remote resource the entity refers to. A renamed group is keyed by
+     * its old name, so that the rename is ordered after the operations that were issued before it.
+     *
+     * @param provisioningEntity
+     * @return entity type and user or group name, or null if the entity carries no name
+     */
+    private String getEntityKey(ProvisioningEntity provisioningEntity) {
+
+        List<String> names = null;
+        if (provisioningEntity.getEntityType() == ProvisioningEntityType.USER) {
+            names = getUserNames(provisioningEntity.getAttributes());
+        } else if (provisioningEntity.getEntityType() == ProvisioningEntityType.GROUP) {
+            String oldGroupName = ProvisioningUtil.getAttributeValue(provisioningEntity,
+                    IdentityProvisioningConstants.OLD_GROUP_NAME_CLAIM_URI);
+            if (StringUtils.isNotEmpty(oldGroupName)) {
+                return provisioningEntity.getEntityType() + ":" + oldGroupName;
+            }
+            names = getGroupNames(provisioningEntity.getAttributes());
+        }
+
+        if (CollectionUtils.isNotEmpty(names)) {
+            return provisioningEntity.getEntityType() + ":" + names.get(0);
+        }
+        return provisioningEntity.getEntityName() != null ?
+                provisioningEntity.getEntityType() + ":" + provisioningEntity.getEntityName() : null;
+    }
+
+    /**
+     * Provisions the entity and records the outcome in the journal, if journaling is enabled. An entity
+     * queued behind a failed operation on the same user or group is left to the journal replay, and one
+     * superseded by a later operation is not sent at all.
+     *
+     * @param provisioningEntity
+     * @param journalSequence    sequence number of the entity in the journal
+     * @throws IdentityProvisioningException
+     */
+    private void provisionEntity(ProvisioningEntity provisioningEntity, final long journalSequence)
+            throws IdentityProvisioningException {
+
+        if (journal == null) {
+            doProvision(provisioningEntity, null);
+            return;
+        }
+
+        if (!journal.beginSend(journalSequence)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not sending " + provisioningEntity.getEntityType() + " : "
+                        + provisioningEntity.getEntityName() + " now, since it was superseded or an earlier "
+                        + "operation on it is pending in the journal");
+            }
+            return;
+        }
+
+        boolean completed;
+        try {
+            completed = doProvision(provisioningEntity, new BulkOperationCallback() {
+                @Override
+                public void onSuccess() {
+                    journal.acknowledge(journalSequence);
                 }
 
-            } else if (provisioningEntity.getEntityType() == ProvisioningEntityType.GROUP) {
-                if (provisioningEntity.getOperation() == ProvisioningOperation.DELETE) {
-                    deleteGroup(provisioningEntity);
-                } else if (provisioningEntity.getOperation() == ProvisioningOperation.POST) {
-                    createGroup(provisioningEntity);
-                } else if (provisioningEntity.getOperation() == ProvisioningOperation.PUT) {
-                    updateGroup(provisioningEntity);
-                } else if (provisioningEntity.getOperation() == ProvisioningOperation.PATCH) {
-                    updateGroup(provisioningEntity);
-                }else {
-                    log.warn("Unsupported provisioning operation.");
+                @Override
+                public void onFailure() {
+                    journal.fail(journalSequence);
                 }
+            });
+        } catch (FanOutException e) {
+            // the journal only tracks the primary target, which has completed the operation.
+            journal.acknowledge(journalSequence);
+            throw e;
+        } catch (IdentityProvisioningException e) {
+            // an endpoint shedding load is not the operation's fault, so it is replayed without counting
+            // an attempt.
+            if (isEndpointUnavailable(e)) {
+                journal.defer(journalSequence);
             } else {
-                log.warn("Unsupported provisioning entity.");
+                journal.fail(journalSequence);
             }
+            throw e;
+        }
+        if (completed) {
+            journal.acknowledge(journalSequence);
         }
+    }
 
-        return null;
+    /**
+     * @param provisioningEntity
+     * @param bulkCallback       notified of the outcome of creations left in a bulk batch. Creations are
+     *                           only batched without it when journaling is disabled.
+     * @return false if the entity was left in a bulk batch, true once it has been provisioned
+     * @throws IdentityProvisioningException
+     */
+    private boolean doProvision(ProvisioningEntity provisioningEntity, BulkOperationCallback bulkCallback)
+            throws IdentityProvisioningException {
+
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        boolean completed = false;
+        try {
+            completed = sendEntity(provisioningEntity, bulkCallback);
+            failed = false;
+            return completed;
+        } finally {
+            if (completed || failed) {
+                ProvisioningMetrics.getInstance().recordOperation(provisioningEntity.getEntityType(),
+                        provisioningEntity.getOperation(), System.nanoTime() - startTime, failed);
+            } else {
+                ProvisioningMetrics.getInstance().recordBatched(provisioningEntity.getEntityType(),
+                        provisioningEntity.getOperation());
+            }
+        }
+    }
 
+    /**
+     * @param provisioningEntity
+     * @param bulkCallback
+     * @return false if the entity was left in a bulk batch
+     * @throws IdentityProvisioningException
+     */
+    private boolean sendEntity(ProvisioningEntity provisioningEntity, BulkOperationCallback bulkCallback)
+            throws IdentityProvisioningException {
+
+        // only creations are batched. Anything else sent directly may depend on a batched creation, so
+        // the batch holding it is sent first.
+        if (bulkProcessor != null && (provisioningEntity.getOperation() != ProvisioningOperation.POST
+                || !isBatched(bulkCallback))) {
+            flushPendingCreations(provisioningEntity);
+        }
+
+        if (provisioningEntity.getEntityType() == ProvisioningEntityType.USER) {
+            if (provisioningEntity.getOperation() == ProvisioningOperation.DELETE) {
+                deleteUser(provisioningEntity);
+            } else if (provisioningEntity.getOperation() == ProvisioningOperation.POST) {
+                return createUser(provisioningEntity, bulkCallback);
+            } else if (provisioningEntity.getOperation() == ProvisioningOperation.PUT) {
+                updateUser(provisioningEntity, ProvisioningOperation.PUT);
+            } else if (provisioningEntity.getOperation() == ProvisioningOperation.PATCH) {
+                updateUser(provisioningEntity, ProvisioningOperation.PATCH);
+            } else {
+                log.warn("Unsupported provisioning opertaion.");
+            }
+
+        } else if (provisioningEntity.getEntityType() == ProvisioningEntityType.GROUP) {
+            if (provisioningEntity.getOperation() == ProvisioningOperation.DELETE) {
+                deleteGroup(provisioningEntity);
+            } else if (provisioningEntity.getOperation() == ProvisioningOperation.POST) {
+                return createGroup(provisioningEntity, bulkCallback);
+            } else if (provisioningEntity.getOperation() == ProvisioningOperation.PUT) {
+                updateGroup(provisioningEntity);
+            } else if (provisioningEntity.getOperation() == ProvisioningOperation.PATCH) {
+                updateGroup(provisioningEntity);
+            }else {
+                log.warn("Unsupported provisioning operation.");
+            }
+        } else {
+            log.warn("Unsupported provisioning entity.");
+        }
+        return true;
+    }
+
+    /**
+     * Sends the bulk batch holding the creation of the user or group, or of the group members, if any,
+     * and waits for it to complete.
+     *
+     * @param provisioningEntity
+     */
+    private void flushPendingCreations(ProvisioningEntity provisioningEntity) {
+
+        List<String> userNames = getUserNames(provisioningEntity.getAttributes());
+        if (provisioningEntity.getEntityType() == ProvisioningEntityType.USER) {
+            bulkProcessor.flushIfPending(ProvisioningEntityType.USER, userNames);
+        } else if (provisioningEntity.getEntityType() == ProvisioningEntityType.GROUP) {
+            List<String> groupNames = new ArrayList<>();
+            List<String> names = getGroupNames(provisioningEntity.getAttributes());
+            if (names != null) {
+                groupNames.addAll(names);
+            }
+            String oldGroupName = ProvisioningUtil.getAttributeValue(provisioningEntity,
+                    IdentityProvisioningConstants.OLD_GROUP_NAME_CLAIM_URI);
+            if (StringUtils.isNotEmpty(oldGroupName)) {
+                groupNames.add(oldGroupName);
+            }
+            bulkProcessor.flushIfPending(ProvisioningEntityType.GROUP, groupNames);
+            // the members of a group are looked up by name, so their creation must have completed.
+            bulkProcessor.flushIfPending(ProvisioningEntityType.USER, userNames);
+        }
+    }
+
+    /**
+     * Refuses to replay a user creation whose password was not journaled when passwords are provisioned,
+     * since the user would be created with a generated password instead of the one given.
+     *
+     * @param provisioningEntity entity replayed from the journal without its password claim
+     * @throws UnreplayableOperationException if the entity is a user creation
+     */
+    private void checkReplayWithoutPassword(ProvisioningEntity provisioningEntity)
+            throws UnreplayableOperationException {
+
+        if (!"true".equals(scimProvider.getProperty(
+                SCIMProvisioningConnectorConstants.SCIM_ENABLE_PASSWORD_PROVISIONING))) {
+            // the password is not sent to the SCIM provider either way.
+            return;
+        }
+        if (provisioningEntity.getEntityType() == ProvisioningEntityType.USER
+                && provisioningEntity.getOperation() == ProvisioningOperation.POST) {
+            throw new UnreplayableOperationException("User " + provisioningEntity.getEntityName() + " cannot be "
+                    + "created from the journal, since its password is not journaled. The user has to be "
+                    + "provisioned again.");
+        }
+        log.warn("Replaying " + provisioningEntity.getEntityType() + " " + provisioningEntity.getOperation()
+                + " of " + provisioningEntity.getEntityName() + " from the journal without its password change");
+    }
+
+    /**
+     * @param e provisioning failure
+     * @return whether the failure was caused by a SCIM endpoint whose circuit is open or whose
+     * concurrency limit is reached
+     */
+    private static boolean isEndpointUnavailable(Throwable e) {
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EndpointUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void notifySuccess(BulkOperationCallback bulkCallback) {
+
+        if (bulkCallback != null) {
+            bulkCallback.onSuccess();
+        }
+    }
+
+    private static void notifyFailure(BulkOperationCallback bulkCallback) {
+
+        if (bulkCallback != null) {
+            bulkCallback.onFailure();
+        }
+    }
+
+    /**
+     * @param bulkCallback callback given for the creation
+     * @return whether a creation is to be left in a bulk batch. Creations replayed from the journal are
+     * sent directly, since the replay needs their outcome straight away.
+     */
+    private boolean isBatched(BulkOperationCallback bulkCallback) {
+        return bulkProcessor != null && (journal == null || bulkCallback != null);
     }
 
     /**
@@ -133,50 +1212,194 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
     private void updateUser(ProvisioningEntity userEntity, ProvisioningOperation provisioningOperation) throws
             IdentityProvisioningException {
 
+        String userName = null;
+        FanOutCompletion fanOutCompletion = null;
         try {
 
             List<String> userNames = getUserNames(userEntity.getAttributes());
-            String userName = null;
 
             if (CollectionUtils.isNotEmpty(userNames)) {
                 userName = userNames.get(0);
             }
 
-            int httpMethod = SCIMConstants.POST;
-            User user = null;
-
             // get single-valued claims
             Map<String, String> singleValued = getSingleValuedClaims(userEntity.getAttributes());
 
-            // if user created through management console, claim values are not present.
-            if (MapUtils.isNotEmpty(singleValued)) {
-                user = (User) AttributeMapper.constructSCIMObjectFromAttributes(singleValued,
-                        SCIMConstants.USER_INT);
+            JSONObject user = null;
+            UserAttributeFingerprintStore.AttributeDelta delta = fingerprintStore != null ?
+                    fingerprintStore.diff(userName, singleValued) : null;
+            if (delta != null) {
+                patchUser(userName, singleValued, delta, userEntity);
             } else {
-                user = new User();
+                user = buildUser(singleValued, userName, userEntity);
+                scimClient.updateUser(userName, user, provisioningOperation);
+            }
+            if (fingerprintStore != null) {
+                fingerprintStore.put(userName, singleValued);
             }
 
-            user.setUserName(userName);
-            setUserPassword(user, userEntity);
-
-            ProvisioningClient scimProvisioningClient = new ProvisioningClient(scimProvider, user,
-                    httpMethod, null);
-            if (ProvisioningOperation.PUT.equals(provisioningOperation)) {
-                scimProvisioningClient.provisionUpdateUser();
-            } else if (ProvisioningOperation.PATCH.equals(provisioningOperation)) {
-                scimProvisioningClient.provisionPatchUser();
+            if (fanOut != null) {
+                // the fan-out targets are sent the whole user, whatever was sent to the primary target.
+                fanOutCompletion = fanOutUser(userEntity, userName,
+                        user != null ? user : buildUser(singleValued, userName, userEntity));
             }
         } catch (Exception e) {
+            // the state of the user in the SCIM provider is unknown, so the next update is sent in full.
+            if (fingerprintStore != null) {
+                fingerprintStore.invalidate(userName);
+            }
             throw new IdentityProvisioningException("Error while creating the user", e);
         }
+        awaitFanOut(fanOutCompletion);
+    }
+
+    /**
+     * Sends only the attributes that changed since the user was last provisioned, or nothing at all if
+     * no attribute changed. Removed attributes are listed for removal in the PATCH request. Changes to a
+     * complex or multi-valued attribute, such as {@code emails.work}, replace the whole attribute, since
+     * a SCIM PATCH would otherwise add a value next to the old one.
+     *
+     * @param userName     user name
+     * @param claims       current single-valued claims of the user
+     * @param delta        difference with the claims last provisioned
+     * @param userEntity   entity being provisioned
+     * @throws Exception
+     */
+    private void patchUser(String userName, Map<String, String> claims, UserAttributeFingerprintStore.AttributeDelta
+            delta, ProvisioningEntity userEntity) throws Exception {
+
+        // only an explicit password change is sent. The default password is only meant for creation.
+        String password = null;
+        if ("true".equals(scimProvider.getProperty(
+                SCIMProvisioningConnectorConstants.SCIM_ENABLE_PASSWORD_PROVISIONING))) {
+            password = ProvisioningUtil.getAttributeValue(userEntity, IdentityProvisioningConstants.PASSWORD_CLAIM_URI);
+        }
+
+        if (delta.isEmpty() && StringUtils.isEmpty(password)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Attributes of user " + userName + " did not change. Skipping SCIM update.");
+            }
+            return;
+        }
+
+        Set<String> replacedAttributes = new HashSet<>();
+        Set<String> removedAttributes = new HashSet<>();
+        for (String claimUri : delta.getRemovedClaims()) {
+            String parentAttribute = getParentAttributeName(claimUri);
+            if (parentAttribute != null) {
+                replacedAttributes.add(parentAttribute);
+            } else {
+                removedAttributes.add(getAttributeName(claimUri));
+            }
+        }
+        for (String claimUri : delta.getChangedClaims().keySet()) {
+            String parentAttribute = getParentAttributeName(claimUri);
+            if (parentAttribute != null) {
+                replacedAttributes.add(parentAttribute);
+            }
+        }
+
+        Map<String, String> patchClaims = new HashMap<>(delta.getChangedClaims());
+        if (!replacedAttributes.isEmpty()) {
+            for (Map.Entry<String, String> claim : claims.entrySet()) {
+                String parentAttribute = getParentAttributeName(claim.getKey());
+                if (parentAttribute != null && replacedAttributes.contains(parentAttribute)) {
+                    patchClaims.put(claim.getKey(), claim.getValue());
+                }
+            }
+            removedAttributes.addAll(replacedAttributes);
+        }
+
+        JSONObject user = buildUser(patchClaims);
+        user.put(SCIMConstants.UserSchemaConstants.USER_NAME, userName);
+        if (StringUtils.isNotEmpty(password)) {
+            user.put(SCIMConstants.UserSchemaConstants.PASSWORD, password);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Patching user " + userName + " with " + patchClaims.size() + " changed claims and "
+                    + removedAttributes.size() + " removed attributes");
+        }
+        scimClient.patchUser(userName, user, removedAttributes);
+    }
+
+    /**
+     * Maps the claims to a SCIM user, through the compiled mapping plan if it is enabled and covers all
+     * the claims.
+     *
+     * @param claims single-valued claims in the SCIM dialect
+     * @return user encoded as SCIM JSON
+     * @throws Exception
+     */
+    private JSONObject buildUser(Map<String, String> claims) throws Exception {
+
+        if (mappingPlan != null) {
+            JSONObject user = mappingPlan.apply(claims);
+            if (user != null) {
+                return user;
+            }
+        }
+
+        // if user created through management console, claim values are not present.
+        User user;
+        if (MapUtils.isNotEmpty(claims)) {
+            user = (User) AttributeMapper.constructSCIMObjectFromAttributes(claims, SCIMConstants.USER_INT);
+        } else {
+            user = new User();
+        }
+        return new JSONObject(scimClient.encode(user));
+    }
+
+    /**
+     * @param claims     single-valued claims in the SCIM dialect
+     * @param userName   user name
+     * @param userEntity entity being provisioned
+     * @return user encoded as SCIM JSON with all its attributes, as sent to create or replace it
+     * @throws Exception
+     */
+    private JSONObject buildUser(Map<String, String> claims, String userName, ProvisioningEntity userEntity)
+            throws Exception {
+
+        JSONObject user = buildUser(claims);
+        user.put(SCIMConstants.UserSchemaConstants.USER_NAME, userName);
+        setUserPassword(user, userEntity);
+        return user;
+    }
+
+    /**
+     * @param claimUri claim URI in the SCIM dialect
+     * @return SCIM attribute path of the claim, such as {@code name.givenName}
+     */
+    private String getAttributeName(String claimUri) {
+
+        String corePrefix = SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT + ":";
+        return claimUri.startsWith(corePrefix) ? claimUri.substring(corePrefix.length()) : claimUri;
+    }
+
+    /**
+     * @param claimUri claim URI in the SCIM dialect
+     * @return name of the complex or multi-valued attribute the claim is a sub-attribute of, such as
+     * {@code emails} for {@code emails.work}, or null if the claim maps to a simple attribute
+     */
+    private String getParentAttributeName(String claimUri) {
+
+        String attributeName = getAttributeName(claimUri);
+        // extension attributes keep their schema URI, which may itself contain dots.
+        int pathStart = attributeName.lastIndexOf(':') + 1;
+        int separator = attributeName.indexOf('.', pathStart);
+        return separator > pathStart ? attributeName.substring(0, separator) : null;
     }
 
     /**
      * @param userEntity
+     * @param bulkCallback
+     * @return false if the creation was left in a bulk batch
      * @throws UserStoreException
      */
-    private void createUser(ProvisioningEntity userEntity) throws IdentityProvisioningException {
+    private boolean createUser(final ProvisioningEntity userEntity, final BulkOperationCallback bulkCallback)
+            throws IdentityProvisioningException {
 
+        FanOutCompletion fanOutCompletion;
         try {
 
             List<String> userNames = getUserNames(userEntity.getAttributes());
@@ -186,26 +1409,45 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
                 userName = userNames.get(0);
             }
 
-            int httpMethod = SCIMConstants.POST;
-            User user = null;
-
             // get single-valued claims
             Map<String, String> singleValued = getSingleValuedClaims(userEntity.getAttributes());
 
-            // if user created through management console, claim values are not present.
-            user = (User) AttributeMapper.constructSCIMObjectFromAttributes(singleValued,
-                    SCIMConstants.USER_INT);
-
-            user.setUserName(userName);
-            setUserPassword(user, userEntity);
+            final JSONObject user = buildUser(singleValued, userName, userEntity);
+
+            if (isBatched(bulkCallback)) {
+                // the primary target completes the creation with the batch, so the fan-out targets are
+                // sent it then and not waited for.
+                final String createdUserName = userName;
+                final Map<String, String> createdClaims = singleValued;
+                bulkProcessor.addUserCreation(userName, user, new BulkOperationCallback() {
+                    @Override
+                    public void onSuccess() {
+                        if (fingerprintStore != null) {
+                            fingerprintStore.put(createdUserName, createdClaims);
+                        }
+                        fanOutUser(userEntity, createdUserName, user);
+                        notifySuccess(bulkCallback);
+                    }
+
+                    @Override
+                    public void onFailure() {
+                        notifyFailure(bulkCallback);
+                    }
+                });
+                return false;
+            }
 
-            ProvisioningClient scimProvsioningClient = new ProvisioningClient(scimProvider, user,
-                    httpMethod, null);
-            scimProvsioningClient.provisionCreateUser();
+            scimClient.createUser(userName, user);
+            if (fingerprintStore != null) {
+                fingerprintStore.put(userName, singleValued);
+            }
+            fanOutCompletion = fanOutUser(userEntity, userName, user);
 
         } catch (Exception e) {
             throw new IdentityProvisioningException("Error while creating the user", e);
         }
+        awaitFanOut(fanOutCompletion);
+        return true;
     }
 
     /**
@@ -214,6 +1456,7 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
      */
     private void deleteUser(ProvisioningEntity userEntity) throws IdentityProvisioningException {
 
+        FanOutCompletion fanOutCompletion;
         try {
             List<String> userNames = getUserNames(userEntity.getAttributes());
             String userName = null;
@@ -222,25 +1465,28 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
                 userName = userNames.get(0);
             }
 
-            int httpMethod = SCIMConstants.DELETE;
-            User user = null;
-            user = new User();
-            user.setUserName(userName);
-            ProvisioningClient scimProvsioningClient = new ProvisioningClient(scimProvider, user,
-                    httpMethod, null);
-            scimProvsioningClient.provisionDeleteUser();
+            if (fingerprintStore != null) {
+                fingerprintStore.invalidate(userName);
+            }
+            scimClient.deleteUser(userName);
+            fanOutCompletion = fanOutDelete(userEntity, userName);
 
         } catch (Exception e) {
             throw new IdentityProvisioningException("Error while deleting user.", e);
         }
+        awaitFanOut(fanOutCompletion);
     }
 
     /**
      * @param groupEntity
-     * @return
+     * @param bulkCallback
+     * @return false if the creation was left in a bulk batch
      * @throws IdentityProvisioningException
      */
-    private String createGroup(ProvisioningEntity groupEntity) throws IdentityProvisioningException {
+    private boolean createGroup(final ProvisioningEntity groupEntity, final BulkOperationCallback bulkCallback)
+            throws IdentityProvisioningException {
+
+        FanOutCompletion fanOutCompletion;
         try {
             List<String> groupNames = getGroupNames(groupEntity.getAttributes());
             String groupName = null;
@@ -249,30 +1495,59 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
                 groupName = groupNames.get(0);
             }
 
-            int httpMethod = SCIMConstants.POST;
-            Group group = null;
-            group = new Group();
-            group.setDisplayName(groupName);
-
             List<String> userList = getUserNames(groupEntity.getAttributes());
 
-            if (CollectionUtils.isNotEmpty(userList)) {
-                for (Iterator<String> iterator = userList.iterator(); iterator.hasNext(); ) {
-                    String userName = iterator.next();
-                    Map<String, Object> members = new HashMap<>();
-                    members.put(SCIMConstants.CommonSchemaConstants.DISPLAY, userName);
-                    group.setMember(members);
+            if (isBatched(bulkCallback)) {
+                Group group = new Group();
+                group.setDisplayName(groupName);
+
+                if (CollectionUtils.isNotEmpty(userList)) {
+                    // members created in the same batch are not found, and are referenced by bulkId instead.
+                    Map<String, String> userIds = scimClient.getUserIds(userList);
+                    for (Iterator<String> iterator = userList.iterator(); iterator.hasNext(); ) {
+                        String userName = iterator.next();
+                        Map<String, Object> members = new HashMap<>();
+                        if (userIds.containsKey(userName)) {
+                            members.put(SCIMConstants.CommonSchemaConstants.VALUE, userIds.get(userName));
+                        }
+                        members.put(SCIMConstants.CommonSchemaConstants.DISPLAY, userName);
+                        group.setMember(members);
+                    }
                 }
+                // not waiting for the fan-out targets, as for users left in a batch.
+                final String createdGroupName = groupName;
+                final List<String> createdMembers = userList;
+                bulkProcessor.addGroupCreation(groupName, new JSONObject(scimClient.encode(group)),
+                        new BulkOperationCallback() {
+                            @Override
+                            public void onSuccess() {
+                                if (membershipStore != null) {
+                                    membershipStore.put(createdGroupName, createdMembers);
+                                }
+                                fanOutGroup(groupEntity, createdGroupName, null, createdMembers);
+                                notifySuccess(bulkCallback);
+                            }
+
+                            @Override
+                            public void onFailure() {
+                                notifyFailure(bulkCallback);
+                            }
+                        });
+                return false;
             }
 
-            ProvisioningClient scimProvsioningClient = new ProvisioningClient(scimProvider, group,
-                    httpMethod, null);
-            scimProvsioningClient.provisionCreateGroup();
+            // the group is streamed to the request body from the member names.
+            scimClient.createGroup(groupName, userList);
+            if (membershipStore != null) {
+                membershipStore.put(groupName, userList);
+            }
+            fanOutCompletion = fanOutGroup(groupEntity, groupName, null, userList);
         } catch (Exception e) {
             throw new IdentityProvisioningException("Error while adding group.", e);
         }
 
-        return null;
+        awaitFanOut(fanOutCompletion);
+        return true;
     }
 
     /**
@@ -280,6 +1555,8 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
      * @throws IdentityProvisioningException
      */
     private void deleteGroup(ProvisioningEntity groupEntity) throws IdentityProvisioningException {
+
+        FanOutCompletion fanOutCompletion;
         try {
 
             List<String> groupNames = getGroupNames(groupEntity.getAttributes());
@@ -289,19 +1566,16 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
                 groupName = groupNames.get(0);
             }
 
-            int httpMethod = SCIMConstants.DELETE;
-            Group group = null;
-
-            group = new Group();
-            group.setDisplayName(groupName);
-
-            ProvisioningClient scimProvsioningClient = new ProvisioningClient(scimProvider, group,
-                    httpMethod, null);
-            scimProvsioningClient.provisionDeleteGroup();
+            if (membershipStore != null) {
+                membershipStore.invalidate(groupName);
+            }
+            scimClient.deleteGroup(groupName);
+            fanOutCompletion = fanOutDelete(groupEntity, groupName);
 
         } catch (Exception e) {
             throw new IdentityProvisioningException("Error while deleting group.", e);
         }
+        awaitFanOut(fanOutCompletion);
     }
 
     /**
@@ -309,48 +1583,224 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
      * @throws IdentityProvisioningException
      */
     private void updateGroup(ProvisioningEntity groupEntity) throws IdentityProvisioningException {
+
+        String groupName = null;
+        String oldGroupName = null;
+        FanOutCompletion fanOutCompletion = null;
         try {
 
             List<String> groupNames = getGroupNames(groupEntity.getAttributes());
-            String groupName = null;
 
             if (CollectionUtils.isNotEmpty(groupNames)) {
                 groupName = groupNames.get(0);
             }
 
-            int httpMethod = SCIMConstants.PUT;
-            Group group = new Group();
-            group.setDisplayName(groupName);
-
             List<String> userList = getUserNames(groupEntity.getAttributes());
-
-            if (CollectionUtils.isNotEmpty(userList)) {
-                for (Iterator<String> iterator = userList.iterator(); iterator.hasNext(); ) {
-                    String userName = iterator.next();
-                    Map<String, Object> members = new HashMap<>();
-                    members.put(SCIMConstants.CommonSchemaConstants.DISPLAY, userName);
-                    group.setMember(members);
-                }
-            }
-            String oldGroupName = ProvisioningUtil.getAttributeValue(groupEntity,
+            oldGroupName = ProvisioningUtil.getAttributeValue(groupEntity,
                                                                 IdentityProvisioningConstants.OLD_GROUP_NAME_CLAIM_URI);
-            ProvisioningClient scimProvsioningClient = null;
             if (StringUtils.isEmpty(oldGroupName)) {
-                scimProvsioningClient = new ProvisioningClient(scimProvider, group, httpMethod, null);
-            } else {
-                Map<String, Object> additionalInformation = new HashMap();
-                additionalInformation.put(SCIMCommonConstants.IS_ROLE_NAME_CHANGED_ON_UPDATE, true);
-                additionalInformation.put(SCIMCommonConstants.OLD_GROUP_NAME, oldGroupName);
-                scimProvsioningClient = new ProvisioningClient(scimProvider, group, httpMethod, additionalInformation);
+                oldGroupName = null;
             }
-            if (ProvisioningOperation.PUT.equals(groupEntity.getOperation())) {
-                scimProvsioningClient.provisionUpdateGroup();
-            }else if(ProvisioningOperation.PATCH.equals(groupEntity.getOperation())){
-                scimProvsioningClient.provisionPatchGroup();
+            GroupMembershipStore.MembershipDelta delta = membershipStore != null ?
+                    membershipStore.diff(oldGroupName != null ? oldGroupName : groupName, userList) : null;
+            if (delta != null) {
+                patchGroupMembers(groupName, oldGroupName, delta);
+            } else {
+                scimClient.updateGroup(groupName, oldGroupName, userList, groupEntity.getOperation());
+                if (membershipStore != null) {
+                    membershipStore.invalidate(oldGroupName);
+                    membershipStore.put(groupName, userList);
+                }
             }
+            fanOutCompletion = fanOutGroup(groupEntity, groupName, oldGroupName, userList);
         } catch (Exception e) {
+            // the members of the group in the SCIM provider are unknown, so the next update is sent in full.
+            if (membershipStore != null) {
+                membershipStore.invalidate(groupName);
+                membershipStore.invalidate(oldGroupName);
+            }
             throw new IdentityProvisioningException("Error while updating group.", e);
         }
+        awaitFanOut(fanOutCompletion);
+    }
+
+    /**
+     * Sends only the members added to and removed from the group since it was last provisioned, in
+     * chunks of at most {@code scim-group-patch-chunk-size} members, or nothing at all if the members
+     * and the name of the group did not change.
+     *
+     * @param groupName    display name of the group
+     * @param oldGroupName previous display name if the group is being renamed, null otherwise
+     * @param delta        difference with the members last provisioned
+     * @throws IdentityProvisioningException
+     */
+    private void patchGroupMembers(String groupName, String oldGroupName, GroupMembershipStore.MembershipDelta
+            delta) throws IdentityProvisioningException {
+
+        if (delta.isEmpty() && oldGroupName == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Members of group " + groupName + " did not change. Skipping SCIM update.");
+            }
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Patching group " + groupName + " with " + delta.getAddedMembers().size() + " added and "
+                    + delta.getRemovedMembers().size() + " removed members");
+        }
+        if (oldGroupName != null) {
+            scimClient.patchGroupMembers(oldGroupName, groupName, delta.getAddedMembers(),
+                    delta.getRemovedMembers(), groupPatchChunkSize);
+            membershipStore.invalidate(oldGroupName);
+        } else {
+            scimClient.patchGroupMembers(groupName, null, delta.getAddedMembers(), delta.getRemovedMembers(),
+                    groupPatchChunkSize);
+        }
+        membershipStore.put(groupName, delta);
+    }
+
+    /**
+     * Hands the creation or replacement of the user to the fan-out targets, once the primary target has
+     * completed it.
+     *
+     * @param userEntity entity being provisioned
+     * @param userName   user name
+     * @param user       user encoded as SCIM JSON with all its attributes. It must not be modified
+     *                   afterwards.
+     * @return completion of the operation on the fan-out targets, or null if there are none
+     */
+    private FanOutCompletion fanOutUser(ProvisioningEntity userEntity, String userName, JSONObject user) {
+
+        if (fanOut == null) {
+            return null;
+        }
+        return fanOut.submit(getEntityKey(userEntity), "provisioning user " + userName, userEntity,
+                getUserOperation(userName, user));
+    }
+
+    /**
+     * Hands the creation or replacement of the group to the fan-out targets, once the primary target has
+     * completed it.
+     *
+     * @param groupEntity  entity being provisioned
+     * @param groupName    display name of the group
+     * @param oldGroupName previous display name if the group is being renamed, null otherwise
+     * @param memberNames  user names of the members of the group
+     * @return completion of the operation on the fan-out targets, or null if there are none
+     */
+    private FanOutCompletion fanOutGroup(ProvisioningEntity groupEntity, String groupName, String oldGroupName,
+                                         List<String> memberNames) {
+
+        if (fanOut == null) {
+            return null;
+        }
+        return fanOut.submit(getEntityKey(groupEntity), "provisioning group " + groupName, groupEntity,
+                getGroupOperation(groupName, oldGroupName, memberNames));
+    }
+
+    /**
+     * Hands the deletion of the user or group to the fan-out targets, once the primary target has
+     * completed it.
+     *
+     * @param entity entity being deleted
+     * @param name   user name or display name of the group
+     * @return completion of the operation on the fan-out targets, or null if there are none
+     */
+    private FanOutCompletion fanOutDelete(ProvisioningEntity entity, String name) {
+
+        if (fanOut == null) {
+            return null;
+        }
+        return fanOut.submit(getEntityKey(entity), "deleting " + entity.getEntityType() + " " + name, entity,
+                getDeleteOperation(entity.getEntityType(), name));
+    }
+
+    /**
+     * Builds the operation sent to a fan-out target for a user or group replayed from its journal, the
+     * same way it is built when the user or group is provisioned.
+     *
+     * @param entity          user or group recorded in the journal of the target
+     * @param passwordOmitted whether the entity carried a password claim, which was not journaled
+     * @return operation to send
+     * @throws IdentityProvisioningException
+     */
+    private SCIMFanOut.TargetOperation getTargetOperation(ProvisioningEntity entity, boolean passwordOmitted)
+            throws IdentityProvisioningException {
+
+        if (passwordOmitted) {
+            checkReplayWithoutPassword(entity);
+        }
+        if (entity.getEntityType() == ProvisioningEntityType.USER) {
+            List<String> userNames = getUserNames(entity.getAttributes());
+            String userName = CollectionUtils.isNotEmpty(userNames) ? userNames.get(0) : null;
+            if (entity.getOperation() == ProvisioningOperation.DELETE) {
+                return getDeleteOperation(ProvisioningEntityType.USER, userName);
+            }
+            try {
+                return getUserOperation(userName, buildUser(getSingleValuedClaims(entity.getAttributes()),
+                        userName, entity));
+            } catch (Exception e) {
+                throw new IdentityProvisioningException("Error while encoding user " + userName, e);
+            }
+        }
+
+        List<String> groupNames = getGroupNames(entity.getAttributes());
+        String groupName = CollectionUtils.isNotEmpty(groupNames) ? groupNames.get(0) : null;
+        if (entity.getOperation() == ProvisioningOperation.DELETE) {
+            return getDeleteOperation(ProvisioningEntityType.GROUP, groupName);
+        }
+        String oldGroupName = ProvisioningUtil.getAttributeValue(entity,
+                IdentityProvisioningConstants.OLD_GROUP_NAME_CLAIM_URI);
+        return getGroupOperation(groupName, StringUtils.isEmpty(oldGroupName) ? null : oldGroupName,
+                getUserNames(entity.getAttributes()));
+    }
+
+    private static SCIMFanOut.TargetOperation getUserOperation(final String userName, final JSONObject user) {
+
+        return new SCIMFanOut.TargetOperation() {
+            @Override
+            public void send(SCIMResourceClient client) throws IdentityProvisioningException {
+                client.replaceUser(userName, user);
+            }
+        };
+    }
+
+    private static SCIMFanOut.TargetOperation getGroupOperation(final String groupName, final String oldGroupName,
+                                                                final List<String> memberNames) {
+
+        return new SCIMFanOut.TargetOperation() {
+            @Override
+            public void send(SCIMResourceClient client) throws IdentityProvisioningException {
+                client.replaceGroup(groupName, oldGroupName, memberNames);
+            }
+        };
+    }
+
+    private static SCIMFanOut.TargetOperation getDeleteOperation(final ProvisioningEntityType entityType,
+                                                                 final String name) {
+
+        return new SCIMFanOut.TargetOperation() {
+            @Override
+            public void send(SCIMResourceClient client) throws IdentityProvisioningException {
+                if (entityType == ProvisioningEntityType.USER) {
+                    client.deleteUser(name);
+                } else {
+                    client.deleteGroup(name);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param fanOutCompletion completion of an operation on the fan-out targets, or null if there are none
+     * @throws FanOutException if the operation did not complete on the targets the completion policy
+     *                         requires
+     */
+    private static void awaitFanOut(FanOutCompletion fanOutCompletion) throws FanOutException {
+
+        if (fanOutCompletion != null) {
+            fanOutCompletion.await();
+        }
     }
 
     @Override
@@ -373,6 +1823,29 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
         }
     }
 
+    private String getPropertyValue(Property property) {
+
+        return StringUtils.isNotEmpty(property.getValue()) ? property.getValue() : property.getDefaultValue();
+    }
+
+    private int getIntPropertyValue(Property property, int defaultValue) {
+        return getIntValue(property.getName(), getPropertyValue(property), defaultValue);
+    }
+
+    private static int getIntValue(String name, String value, int defaultValue) {
+
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value '" + value + "' for SCIM connector property " + name
+                    + ". Using default value " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     @Override
     public String getClaimDialectUri() throws IdentityProvisioningException {
         return SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT;
@@ -382,11 +1855,12 @@ public class SCIMProvisioningConnector extends AbstractOutboundProvisioningConne
         return true;
     }
 
-    private void setUserPassword(User user, ProvisioningEntity userEntity) throws CharonException {
+    private void setUserPassword(JSONObject user, ProvisioningEntity userEntity) throws JSONException {
         if ("true".equals(scimProvider.getProperty(SCIMProvisioningConnectorConstants.SCIM_ENABLE_PASSWORD_PROVISIONING))) {
-            user.setPassword(getPassword(userEntity.getAttributes()));
+            user.put(SCIMConstants.UserSchemaConstants.PASSWORD, getPassword(userEntity.getAttributes()));
         } else if (StringUtils.isNotBlank(scimProvider.getProperty(SCIMProvisioningConnectorConstants.SCIM_DEFAULT_PASSWORD))) {
-            user.setPassword(scimProvider.getProperty(SCIMProvisioningConnectorConstants.SCIM_DEFAULT_PASSWORD));
+            user.put(SCIMConstants.UserSchemaConstants.PASSWORD,
+                    scimProvider.getProperty(SCIMProvisioningConnectorConstants.SCIM_DEFAULT_PASSWORD));
         }
     }
 
@@ -18,6 +18,8 @@
 
 package org.wso2.carbon.identity.provisioning.connector.scim;
 
+import java.io.File;
+
 public class SCIMProvisioningConnectorConstants {
 
     private SCIMProvisioningConnectorConstants(){}
@@ -31,4 +33,132 @@ public class SCIMProvisioningConnectorConstants {
 
     public static final String SCIM_ENABLE_PASSWORD_PROVISIONING = "scim-enable-pwd-provisioning";
     public static final String SCIM_DEFAULT_PASSWORD = "scim-default-pwd";
+
+    public static final String SCIM_ASYNC_PROVISIONING_ENABLED = "scim-async-provisioning-enabled";
+    public static final String SCIM_ASYNC_STRIPE_COUNT = "scim-async-stripe-count";
+    public static final String SCIM_ASYNC_QUEUE_CAPACITY = "scim-async-queue-capacity";
+    public static final String SCIM_ASYNC_REJECTION_POLICY = "scim-async-rejection-policy";
+    public static final String SCIM_ASYNC_SHUTDOWN_TIMEOUT = "scim-async-shutdown-timeout";
+
+    public static final int DEFAULT_ASYNC_STRIPE_COUNT = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1000;
+    public static final long DEFAULT_ASYNC_SHUTDOWN_TIMEOUT = 30000;
+
+    public static final String SCIM_BULK_EP = "scim-bulk-ep";
+    public static final String SCIM_BULK_MAX_OPERATIONS = "scim-bulk-max-operations";
+    public static final String SCIM_BULK_MAX_PAYLOAD_SIZE = "scim-bulk-max-payload-size";
+    public static final String SCIM_BULK_FLUSH_INTERVAL = "scim-bulk-flush-interval";
+
+    public static final int DEFAULT_BULK_MAX_OPERATIONS = 100;
+    public static final int DEFAULT_BULK_MAX_PAYLOAD_SIZE = 1048576;
+    public static final int DEFAULT_BULK_FLUSH_INTERVAL = 1000;
+
+    public static final String SCIM_HTTP_MAX_CONNECTIONS = "scim-http-max-connections";
+    public static final String SCIM_HTTP_MAX_CONNECTIONS_PER_ROUTE = "scim-http-max-connections-per-route";
+    public static final String SCIM_HTTP_CONNECT_TIMEOUT = "scim-http-connect-timeout";
+    public static final String SCIM_HTTP_READ_TIMEOUT = "scim-http-read-timeout";
+    public static final String SCIM_HTTP_IDLE_TIMEOUT = "scim-http-idle-timeout";
+    public static final String SCIM_HTTP_REQUEST_COMPRESSION_ENABLED = "scim-http-request-compression-enabled";
+    public static final String SCIM_HTTP_RESPONSE_COMPRESSION_ENABLED = "scim-http-response-compression-enabled";
+    public static final String SCIM_HTTP_COMPRESSION_THRESHOLD = "scim-http-compression-threshold";
+
+    public static final String SCIM_CONDITIONAL_WRITES_ENABLED = "scim-conditional-writes-enabled";
+
+    public static final String SCIM_ID_CACHE_SIZE = "scim-id-cache-size";
+    public static final String SCIM_ID_CACHE_TTL = "scim-id-cache-ttl";
+
+    public static final int DEFAULT_ID_CACHE_SIZE = 10000;
+    public static final int DEFAULT_ID_CACHE_TTL = 3600000;
+
+    public static final String SCIM_DIFF_UPDATES_ENABLED = "scim-diff-updates-enabled";
+    public static final String SCIM_FINGERPRINT_CACHE_SIZE = "scim-fingerprint-cache-size";
+
+    public static final int DEFAULT_FINGERPRINT_CACHE_SIZE = 100000;
+
+    public static final String SCIM_MEMBERSHIP_DELTA_ENABLED = "scim-membership-delta-enabled";
+    public static final String SCIM_MEMBERSHIP_CACHE_SIZE = "scim-membership-cache-size";
+    public static final String SCIM_GROUP_PATCH_CHUNK_SIZE = "scim-group-patch-chunk-size";
+
+    public static final int DEFAULT_MEMBERSHIP_CACHE_SIZE = 1000000;
+    public static final int DEFAULT_GROUP_PATCH_CHUNK_SIZE = 1000;
+
+    public static final String SCIM_JOURNAL_ENABLED = "scim-journal-enabled";
+    public static final String SCIM_JOURNAL_DIRECTORY = "scim-journal-directory";
+    public static final String SCIM_JOURNAL_SYNC_POLICY = "scim-journal-sync-policy";
+    public static final String SCIM_JOURNAL_SYNC_INTERVAL = "scim-journal-sync-interval";
+    public static final String SCIM_JOURNAL_SEGMENT_SIZE = "scim-journal-segment-size";
+    public static final String SCIM_JOURNAL_REPLAY_INTERVAL = "scim-journal-replay-interval";
+    public static final String SCIM_JOURNAL_MAX_ATTEMPTS = "scim-journal-max-attempts";
+
+    public static final String DEFAULT_JOURNAL_DIRECTORY = "repository" + File.separator + "data" + File.separator
+            + "scim-provisioning-journal";
+    public static final int DEFAULT_JOURNAL_SYNC_INTERVAL = 1000;
+    public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_JOURNAL_REPLAY_INTERVAL = 30000;
+    public static final int DEFAULT_JOURNAL_MAX_ATTEMPTS = 10;
+
+    public static final String SCIM_GUARD_ENABLED = "scim-guard-enabled";
+    public static final String SCIM_GUARD_INITIAL_LIMIT = "scim-guard-initial-limit";
+    public static final String SCIM_GUARD_MIN_LIMIT = "scim-guard-min-limit";
+    public static final String SCIM_GUARD_MAX_LIMIT = "scim-guard-max-limit";
+    public static final String SCIM_GUARD_LATENCY_THRESHOLD = "scim-guard-latency-threshold";
+    public static final String SCIM_GUARD_ACQUIRE_TIMEOUT = "scim-guard-acquire-timeout";
+    public static final String SCIM_CIRCUIT_FAILURE_RATE_THRESHOLD = "scim-circuit-failure-rate-threshold";
+    public static final String SCIM_CIRCUIT_WINDOW_SIZE = "scim-circuit-window-size";
+    public static final String SCIM_CIRCUIT_OPEN_DURATION = "scim-circuit-open-duration";
+    public static final String SCIM_CIRCUIT_HALF_OPEN_PROBES = "scim-circuit-half-open-probes";
+
+    public static final String SCIM_COALESCING_WINDOW = "scim-coalescing-window";
+    public static final String SCIM_COALESCING_CAPACITY = "scim-coalescing-capacity";
+    public static final String SCIM_COALESCING_REJECTION_POLICY = "scim-coalescing-rejection-policy";
+
+    public static final int DEFAULT_COALESCING_CAPACITY = 10000;
+
+    public static final String SCIM_MAPPING_PLAN_ENABLED = "scim-mapping-plan-enabled";
+
+    public static final String SCIM_MEMBER_RESOLUTION_ENABLED = "scim-member-resolution-enabled";
+    public static final String SCIM_MEMBER_RESOLUTION_BATCH_SIZE = "scim-member-resolution-batch-size";
+    public static final String SCIM_MEMBER_RESOLUTION_THREADS = "scim-member-resolution-threads";
+
+    public static final int DEFAULT_MEMBER_RESOLUTION_BATCH_SIZE = 50;
+    public static final int DEFAULT_MEMBER_RESOLUTION_THREADS = 4;
+
+    public static final String SCIM_RECONCILE_DIRECTORY = "scim-reconcile-directory";
+    public static final String SCIM_RECONCILE_PAGE_SIZE = "scim-reconcile-page-size";
+    public static final String SCIM_RECONCILE_PARTITION_SIZE = "scim-reconcile-partition-size";
+    public static final String SCIM_RECONCILE_THREADS = "scim-reconcile-threads";
+    public static final String SCIM_RECONCILE_DELETE_ENABLED = "scim-reconcile-delete-enabled";
+
+    public static final String DEFAULT_RECONCILE_DIRECTORY = "repository" + File.separator + "data"
+            + File.separator + "scim-reconciliation";
+
+    // followed by the name of the target, a dot and one of the endpoint or credential properties above,
+    // such as scim-fanout-target.replica.scim-user-ep.
+    public static final String SCIM_FANOUT_TARGET_PREFIX = "scim-fanout-target.";
+    public static final String SCIM_FANOUT_COMPLETION_POLICY = "scim-fanout-completion-policy";
+    public static final String SCIM_FANOUT_TIMEOUT = "scim-fanout-timeout";
+    public static final String SCIM_FANOUT_THREADS = "scim-fanout-threads";
+    public static final String SCIM_FANOUT_QUEUE_CAPACITY = "scim-fanout-queue-capacity";
+
+    public static final int DEFAULT_FANOUT_TIMEOUT = 30000;
+    public static final int DEFAULT_FANOUT_THREADS = 4;
+    public static final int DEFAULT_FANOUT_QUEUE_CAPACITY = 1000;
+
+    public static final String SCIM_SCHEDULER_ENABLED = "scim-scheduler-enabled";
+    public static final String SCIM_SCHEDULER_FLOW = "scim-scheduler-flow";
+    public static final String SCIM_SCHEDULER_WEIGHT = "scim-scheduler-weight";
+    // no longer applied, as it is a node setting given by SCHEDULER_MAX_CONCURRENCY_PROPERTY.
+    public static final String SCIM_SCHEDULER_MAX_CONCURRENCY = "scim-scheduler-max-concurrency";
+    public static final String SCIM_SCHEDULER_TIMEOUT = "scim-scheduler-timeout";
+    // also accepted as a fan-out target property, such as scim-fanout-target.replica.scim-rate-limit.
+    public static final String SCIM_RATE_LIMIT = "scim-rate-limit";
+    public static final String SCIM_RATE_LIMIT_BURST = "scim-rate-limit-burst";
+
+    public static final int DEFAULT_SCHEDULER_WEIGHT = 1;
+    // system property setting the number of SCIM requests the node sends at a time.
+    public static final String SCHEDULER_MAX_CONCURRENCY_PROPERTY = "scim.scheduler.max.concurrency";
+
+    public static final int DEFAULT_MAX_CONNECTORS = 1000;
+    public static final long DEFAULT_CONNECTOR_IDLE_TIMEOUT = 30 * 60 * 1000L;
+    public static final long DEFAULT_CONNECTOR_RETIRE_GRACE_PERIOD = 60 * 1000L;
 }
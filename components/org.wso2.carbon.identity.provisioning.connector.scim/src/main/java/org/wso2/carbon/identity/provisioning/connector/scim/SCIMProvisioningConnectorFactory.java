@@ -20,17 +20,90 @@ package org.wso2.carbon.identity.provisioning.connector.scim;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
 import org.wso2.carbon.identity.application.common.model.Property;
+import org.wso2.carbon.identity.provisioning.AbstractOutboundProvisioningConnector;
 import org.wso2.carbon.identity.provisioning.AbstractProvisioningConnectorFactory;
 import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.user.api.UserStoreException;
+import org.wso2.carbon.user.core.UserStoreManager;
+import org.wso2.carbon.user.core.service.RealmService;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * @author
+ * Builds SCIM provisioning connectors and keeps them warm between calls. A connector is kept per tenant
+ * and identity provider, or per tenant and SCIM endpoint pair when the identity provider is not known,
+ * along with a fingerprint of the properties it was built with. The same connector is handed back while
+ * the properties do not change, so its pooled connections, caches and queues are reused. Any change,
+ * including one of the endpoints, rebuilds the connector in the same slot. Connectors that were neither
+ * built nor used for the idle timeout, and the least recently built ones beyond the maximum number of
+ * connectors, are dropped.
+ * <p/>
+ * Callers may still hold a connector that was dropped, or replaced on a configuration change, so it is
+ * retired rather than shut down at once: it is shut down, draining its pending operations, once no
+ * provision call is in progress on it and the retirement grace period has passed. A connector replacing
+ * a retired one of the same slot waits for the retired one to be shut down, so that it releases its
+ * journal. Connectors are never shut down holding the lock of the slots or of a slot.
  */
 public class SCIMProvisioningConnectorFactory extends AbstractProvisioningConnectorFactory {
 
     public static final String SCIM = "scim";
     private static final Log log = LogFactory.getLog(SCIMProvisioningConnectorFactory.class);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // guarded by itself. Ordered from the least to the most recently built slot.
+    private final LinkedHashMap<String, ConnectorSlot> slots = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by the lock of the slots.
+    private final List<RetiredConnector> retiredConnectors = new ArrayList<>();
+    private final int maxConnectors;
+    private final long idleTimeout;
+    private final long retireGracePeriod;
+    private volatile RealmService realmService;
+
+    public SCIMProvisioningConnectorFactory() {
+        this(SCIMProvisioningConnectorConstants.DEFAULT_MAX_CONNECTORS,
+                SCIMProvisioningConnectorConstants.DEFAULT_CONNECTOR_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnectors maximum number of connectors kept
+     * @param idleTimeout   time in milliseconds after which an unused connector is dropped
+     */
+    public SCIMProvisioningConnectorFactory(int maxConnectors, long idleTimeout) {
+        this(maxConnectors, idleTimeout, SCIMProvisioningConnectorConstants.DEFAULT_CONNECTOR_RETIRE_GRACE_PERIOD);
+    }
+
+    /**
+     * @param maxConnectors     maximum number of connectors kept
+     * @param idleTimeout       time in milliseconds after which an unused connector is dropped
+     * @param retireGracePeriod time in milliseconds a dropped or replaced connector is kept before it is shut
+     *                          down, and the longest a replacing connector waits for its provision calls
+     */
+    public SCIMProvisioningConnectorFactory(int maxConnectors, long idleTimeout, long retireGracePeriod) {
+
+        this.maxConnectors = maxConnectors;
+        this.idleTimeout = idleTimeout;
+        this.retireGracePeriod = retireGracePeriod;
+    }
+
+    @Override
+    public AbstractOutboundProvisioningConnector getConnector(String identityProviderName,
+                                                              Property[] provisioningProperties,
+                                                              String tenantDomain)
+            throws IdentityProvisioningException {
+
+        return getConnector(identityProviderName, tenantDomain, provisioningProperties);
+    }
 
     @Override
     /**
@@ -38,13 +111,220 @@ public class SCIMProvisioningConnectorFactory extends AbstractProvisioningConnec
      */
     protected SCIMProvisioningConnector buildConnector(Property[] provisioningProperties)
             throws IdentityProvisioningException {
-        SCIMProvisioningConnector scimProvisioningConnector = new SCIMProvisioningConnector();
-        scimProvisioningConnector.init(provisioningProperties);
 
-        if (log.isDebugEnabled()) {
-            log.debug("Created new connector of type : " + SCIM);
+        return getConnector(null, getTenantDomain(), provisioningProperties);
+    }
+
+    /**
+     * @param identityProviderName name of the identity provider, or null if unknown
+     * @param tenantDomain         tenant domain of the identity provider
+     * @return connector built with the given properties
+     * @throws IdentityProvisioningException
+     */
+    private SCIMProvisioningConnector getConnector(String identityProviderName, String tenantDomain,
+                                                   Property[] provisioningProperties)
+            throws IdentityProvisioningException {
+
+        String slotKey = getSlotKey(identityProviderName, tenantDomain, provisioningProperties);
+        String fingerprint = getConfigFingerprint(tenantDomain, provisioningProperties);
+
+        while (true) {
+            ConnectorSlot slot;
+            List<RetiredConnector> expiredConnectors = new ArrayList<>();
+            synchronized (slots) {
+                slot = slots.get(slotKey);
+                if (slot == null) {
+                    slot = new ConnectorSlot(slotKey);
+                    slots.put(slotKey, slot);
+                }
+                slot.lastBuildTime = System.currentTimeMillis();
+                evictSlots(slot);
+                collectExpiredConnectors(null, expiredConnectors);
+            }
+            shutdown(expiredConnectors, false);
+
+            SCIMProvisioningConnector connector = slot.getConnector(identityProviderName, fingerprint,
+                    provisioningProperties);
+            if (connector != null) {
+                return connector;
+            }
+            // the slot was evicted in the meantime.
+        }
+    }
+
+    /**
+     * Removes the idle slots, and the least recently built ones beyond the maximum number of connectors,
+     * from the slots and retires their connectors. Must be called holding the lock of the slots.
+     *
+     * @param currentSlot slot being built, which is never evicted
+     */
+    private void evictSlots(ConnectorSlot currentSlot) {
+
+        long now = System.currentTimeMillis();
+        int excess = slots.size() - maxConnectors;
+        for (Iterator<ConnectorSlot> iterator = slots.values().iterator(); iterator.hasNext(); ) {
+            ConnectorSlot slot = iterator.next();
+            if (slot == currentSlot) {
+                continue;
+            }
+            if (excess > 0 || now - slot.getLastActivityTime() > idleTimeout) {
+                iterator.remove();
+                SCIMProvisioningConnector connector = slot.retire();
+                if (connector != null) {
+                    retiredConnectors.add(new RetiredConnector(slot.key, connector));
+                }
+                excess--;
+            }
         }
-        return scimProvisioningConnector;
+    }
+
+    /**
+     * Removes the retired connectors that are due to be shut down from the retired connectors. Must be
+     * called holding the lock of the slots.
+     *
+     * @param slotKey             key of the slot whose retired connectors are all due, or null to take only
+     *                            the ones idle for the grace period
+     * @param expiredConnectors   list the removed connectors are added to
+     */
+    private void collectExpiredConnectors(String slotKey, List<RetiredConnector> expiredConnectors) {
+
+        if (retiredConnectors.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<RetiredConnector> iterator = retiredConnectors.iterator(); iterator.hasNext(); ) {
+            RetiredConnector retiredConnector = iterator.next();
+            boolean expired = slotKey != null ? slotKey.equals(retiredConnector.slotKey) :
+                    retiredConnector.connector.getActiveCallCount() == 0
+                            && now - retiredConnector.retireTime >= retireGracePeriod;
+            if (expired) {
+                iterator.remove();
+                expiredConnectors.add(retiredConnector);
+            }
+        }
+    }
+
+    /**
+     * Shuts down the given retired connectors. Must be called without holding the lock of the slots.
+     *
+     * @param awaitIdle whether to wait, up to the grace period, for the provision calls in progress
+     */
+    private void shutdown(List<RetiredConnector> expiredConnectors, boolean awaitIdle) {
+
+        boolean interrupted = false;
+        for (RetiredConnector retiredConnector : expiredConnectors) {
+            if (awaitIdle && !interrupted) {
+                try {
+                    if (!retiredConnector.connector.awaitIdle(retireGracePeriod)) {
+                        log.warn("Shutting down connector of type : " + SCIM + " for " + retiredConnector.slotKey
+                                + " with " + retiredConnector.connector.getActiveCallCount()
+                                + " provision calls in progress");
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Shutting down connector of type : " + SCIM + " for " + retiredConnector.slotKey);
+            }
+            retiredConnector.connector.shutdown();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shuts down all connectors built by this factory, draining their pending asynchronous provisioning.
+     */
+    public void shutdown() {
+
+        List<RetiredConnector> builtConnectors = new ArrayList<>();
+        synchronized (slots) {
+            for (ConnectorSlot slot : slots.values()) {
+                SCIMProvisioningConnector connector = slot.retire();
+                if (connector != null) {
+                    builtConnectors.add(new RetiredConnector(slot.key, connector));
+                }
+            }
+            slots.clear();
+            builtConnectors.addAll(retiredConnectors);
+            retiredConnectors.clear();
+        }
+        shutdown(builtConnectors, true);
+    }
+
+    /**
+     * @return number of connectors kept by this factory
+     */
+    public int getConnectorCount() {
+
+        synchronized (slots) {
+            return slots.size();
+        }
+    }
+
+    /**
+     * @return connectors currently kept by this factory
+     */
+    public List<SCIMProvisioningConnector> getConnectors() {
+
+        List<SCIMProvisioningConnector> builtConnectors = new ArrayList<>();
+        synchronized (slots) {
+            for (ConnectorSlot slot : slots.values()) {
+                SCIMProvisioningConnector connector = slot.connector;
+                if (connector != null) {
+                    builtConnectors.add(connector);
+                }
+            }
+        }
+        return builtConnectors;
+    }
+
+    /**
+     * @param realmService realm service the user stores reconciled with are read from, or null if unavailable
+     */
+    public void setRealmService(RealmService realmService) {
+        this.realmService = realmService;
+    }
+
+    /**
+     * Starts reconciling the SCIM provider of an identity provider with the users and roles of the user
+     * store domain of its connector, in the background.
+     *
+     * @param tenantDomain         tenant domain of the identity provider
+     * @param identityProviderName name of the identity provider
+     * @return false if a reconciliation is already running for the identity provider
+     * @throws IdentityProvisioningException if no connector was built for the identity provider, or if its
+     *                                       user store cannot be read
+     */
+    public boolean startReconciliation(String tenantDomain, String identityProviderName)
+            throws IdentityProvisioningException {
+
+        ConnectorSlot slot;
+        synchronized (slots) {
+            slot = slots.get(getSlotKey(identityProviderName, tenantDomain, null));
+        }
+        SCIMProvisioningConnector connector = slot != null ? slot.connector : null;
+        if (connector == null) {
+            throw new IdentityProvisioningException("No connector of type : " + SCIM + " was built for identity "
+                    + "provider " + identityProviderName + " of tenant " + tenantDomain + ". Connectors are built "
+                    + "when the identity provider first provisions.");
+        }
+        RealmService currentRealmService = realmService;
+        if (currentRealmService == null) {
+            throw new IdentityProvisioningException("The realm service is not available");
+        }
+
+        UserStoreManager userStoreManager;
+        try {
+            int tenantId = currentRealmService.getTenantManager().getTenantId(tenantDomain);
+            userStoreManager = currentRealmService.getTenantUserRealm(tenantId).getUserStoreManager();
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while reading the user store of tenant " + tenantDomain,
+                    e);
+        }
+        return connector.startUserStoreReconciliation(userStoreManager);
     }
 
     @Override
@@ -52,4 +332,211 @@ public class SCIMProvisioningConnectorFactory extends AbstractProvisioningConnec
         return SCIM;
     }
 
+    /**
+     * @return key of the tenant and identity provider the properties configure a connector for, or of the
+     * tenant and SCIM endpoints if the identity provider is not known
+     */
+    private static String getSlotKey(String identityProviderName, String tenantDomain,
+                                     Property[] provisioningProperties) {
+
+        if (identityProviderName != null) {
+            return tenantDomain + "|idp|" + identityProviderName;
+        }
+        String userEndpoint = null;
+        String groupEndpoint = null;
+        if (provisioningProperties != null) {
+            for (Property property : provisioningProperties) {
+                if (SCIMProvisioningConnectorConstants.SCIM_USER_EP.equals(property.getName())) {
+                    userEndpoint = property.getValue();
+                } else if (SCIMProvisioningConnectorConstants.SCIM_GROUP_EP.equals(property.getName())) {
+                    groupEndpoint = property.getValue();
+                }
+            }
+        }
+        return tenantDomain + "|endpoints|" + userEndpoint + "|" + groupEndpoint;
+    }
+
+    /**
+     * @return digest of the tenant and of all the properties, independent of their order
+     * @throws IdentityProvisioningException
+     */
+    private String getConfigFingerprint(String tenantDomain, Property[] provisioningProperties)
+            throws IdentityProvisioningException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IdentityProvisioningException("Error while fingerprinting the SCIM connector properties", e);
+        }
+        update(digest, tenantDomain);
+
+        if (provisioningProperties != null) {
+            Property[] sortedProperties = provisioningProperties.clone();
+            Arrays.sort(sortedProperties, new Comparator<Property>() {
+                @Override
+                public int compare(Property property1, Property property2) {
+                    return String.valueOf(property1.getName()).compareTo(String.valueOf(property2.getName()));
+                }
+            });
+            for (Property property : sortedProperties) {
+                update(digest, property.getName());
+                update(digest, property.getValue());
+                update(digest, property.getDefaultValue());
+            }
+        }
+
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+
+        if (value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // the length keeps adjacent values from running into each other.
+        digest.update((byte) 1);
+        digest.update(new byte[]{(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                (byte) (bytes.length >>> 8), (byte) bytes.length});
+        digest.update(bytes);
+    }
+
+    private static String getTenantDomain() {
+        return PrivilegedCarbonContext.getThreadLocalCarbonContext().getTenantDomain();
+    }
+
+    /**
+     * Connector dropped from the slots or replaced, waiting to be shut down.
+     */
+    private static class RetiredConnector {
+
+        private final String slotKey;
+        private final SCIMProvisioningConnector connector;
+        private final long retireTime = System.currentTimeMillis();
+
+        RetiredConnector(String slotKey, SCIMProvisioningConnector connector) {
+
+            this.slotKey = slotKey;
+            this.connector = connector;
+        }
+    }
+
+    /**
+     * Connector of a tenant and identity provider, or of a tenant and SCIM endpoint pair, rebuilt whenever
+     * its properties change.
+     */
+    private class ConnectorSlot {
+
+        private final String key;
+        // held while building the connector, so that a slot builds one connector at a time.
+        private final Object buildLock = new Object();
+        private volatile long lastBuildTime = System.currentTimeMillis();
+        // written holding the lock of the slot, read without it while evicting.
+        private volatile SCIMProvisioningConnector connector;
+        // guarded by this.
+        private String fingerprint;
+        private boolean retired;
+
+        ConnectorSlot(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return connector built with the given properties, or null if the slot was retired
+         * @throws IdentityProvisioningException
+         */
+        SCIMProvisioningConnector getConnector(String identityProviderName, String fingerprint,
+                                               Property[] provisioningProperties)
+                throws IdentityProvisioningException {
+
+            synchronized (this) {
+                if (retired) {
+                    return null;
+                }
+                if (connector != null && fingerprint.equals(this.fingerprint)) {
+                    return connector;
+                }
+            }
+
+            synchronized (buildLock) {
+                SCIMProvisioningConnector replacedConnector;
+                synchronized (this) {
+                    if (retired) {
+                        return null;
+                    }
+                    if (connector != null && fingerprint.equals(this.fingerprint)) {
+                        return connector;
+                    }
+                    replacedConnector = connector;
+                    connector = null;
+                    this.fingerprint = null;
+                }
+
+                List<RetiredConnector> expiredConnectors = new ArrayList<>();
+                synchronized (slots) {
+                    if (replacedConnector != null) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Configuration of connector of type : " + SCIM + " for " + key
+                                    + " changed. Rebuilding the connector.");
+                        }
+                        retiredConnectors.add(new RetiredConnector(key, replacedConnector));
+                    }
+                    collectExpiredConnectors(key, expiredConnectors);
+                }
+                // the retired connectors of the slot are shut down first, so that they release their journal.
+                shutdown(expiredConnectors, true);
+
+                SCIMProvisioningConnector scimProvisioningConnector = new SCIMProvisioningConnector();
+                scimProvisioningConnector.setIdentityProviderName(identityProviderName);
+                scimProvisioningConnector.init(provisioningProperties);
+                synchronized (this) {
+                    if (!retired) {
+                        connector = scimProvisioningConnector;
+                        this.fingerprint = fingerprint;
+                        if (log.isDebugEnabled()) {
+                            log.debug("Created new connector of type : " + SCIM + " for " + key);
+                        }
+                        return scimProvisioningConnector;
+                    }
+                }
+                // the slot was retired while building, before the connector was handed out.
+                scimProvisioningConnector.shutdown();
+                return null;
+            }
+        }
+
+        /**
+         * @return last time the connector was built, handed out or used for provisioning
+         */
+        long getLastActivityTime() {
+
+            SCIMProvisioningConnector currentConnector = connector;
+            long lastActivityTime = lastBuildTime;
+            if (currentConnector != null) {
+                lastActivityTime = Math.max(lastActivityTime, currentConnector.getLastActivityTime());
+            }
+            return lastActivityTime;
+        }
+
+        /**
+         * Detaches the connector of the slot. The slot cannot be used afterwards.
+         *
+         * @return connector of the slot, to be shut down by the caller, or null if none was built
+         */
+        synchronized SCIMProvisioningConnector retire() {
+
+            retired = true;
+            SCIMProvisioningConnector retiredConnector = connector;
+            connector = null;
+            return retiredConnector;
+        }
+    }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.bulk;
+
+/**
+ * Notified once the outcome of a batched operation is known, i.e. once the bulk request carrying it has
+ * completed.
+ */
+public interface BulkOperationCallback {
+
+    /**
+     * Called when the SCIM provider reported the operation as successful.
+     */
+    void onSuccess();
+
+    /**
+     * Called when the operation failed, or its outcome could not be determined.
+     */
+    void onFailure();
+}
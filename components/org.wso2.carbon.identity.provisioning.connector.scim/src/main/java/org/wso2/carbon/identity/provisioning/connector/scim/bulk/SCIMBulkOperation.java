@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.bulk;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+
+import java.nio.charset.Charset;
+
+/**
+ * A single operation of a SCIM bulk request, along with the entity it was created for.
+ */
+public class SCIMBulkOperation {
+
+    private static final Log log = LogFactory.getLog(SCIMBulkOperation.class);
+
+    static final String METHOD = "method";
+    static final String PATH = "path";
+    static final String BULK_ID = "bulkId";
+    static final String DATA = "data";
+
+    private static final String METHOD_POST = "POST";
+    private static final String USERS_PATH = "/Users";
+    private static final String GROUPS_PATH = "/Groups";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ProvisioningEntityType entityType;
+    private final String entityName;
+    private final String bulkId;
+    private final JSONObject data;
+    private final int payloadSize;
+    private final BulkOperationCallback callback;
+
+    SCIMBulkOperation(ProvisioningEntityType entityType, String entityName, String bulkId, JSONObject data,
+                      BulkOperationCallback callback) {
+
+        this.entityType = entityType;
+        this.entityName = entityName;
+        this.bulkId = bulkId;
+        this.data = data;
+        this.payloadSize = getPayloadSize(data);
+        this.callback = callback;
+    }
+
+    public ProvisioningEntityType getEntityType() {
+        return entityType;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public String getBulkId() {
+        return bulkId;
+    }
+
+    public JSONObject getData() {
+        return data;
+    }
+
+    /**
+     * @return encoded size of the operation data in bytes
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * @param data operation data
+     * @return encoded size of the data in bytes
+     */
+    static int getPayloadSize(JSONObject data) {
+        return data.toString().getBytes(UTF8).length;
+    }
+
+    /**
+     * Notifies the callback of the operation, if any, of its outcome.
+     *
+     * @param success whether the SCIM provider reported the operation as successful
+     */
+    void complete(boolean success) {
+
+        if (callback == null) {
+            return;
+        }
+        try {
+            if (success) {
+                callback.onSuccess();
+            } else {
+                callback.onFailure();
+            }
+        } catch (RuntimeException e) {
+            log.error("Error while notifying the outcome of " + this, e);
+        }
+    }
+
+    JSONObject toJSON() throws JSONException {
+
+        JSONObject operation = new JSONObject();
+        operation.put(METHOD, METHOD_POST);
+        operation.put(PATH, entityType == ProvisioningEntityType.USER ? USERS_PATH : GROUPS_PATH);
+        operation.put(BULK_ID, bulkId);
+        operation.put(DATA, data);
+        return operation;
+    }
+
+    @Override
+    public String toString() {
+        return entityType + " : " + entityName;
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.bulk;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.SCIMResourceIdCache;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpResponse;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects user and group creations and sends them to the SCIM bulk endpoint, either once the batch
+ * reaches its operation or payload size limit, or once the oldest operation has waited for the flush
+ * interval. Groups created in the same batch as their members refer to them by bulkId, so the members
+ * resolve even though they do not exist on the SCIM target yet.
+ * <p/>
+ * Batches are sent in the order they were taken, without holding the lock operations are added under.
+ * Operations on an entity that is pending or being sent are expected to call {@link #flushIfPending}
+ * first, which returns once the bulk request creating the entity has completed. The ids assigned by the
+ * SCIM provider are added to the id cache, if one is given, as the bulk responses are read.
+ */
+public class SCIMBulkProcessor {
+
+    private static final Log log = LogFactory.getLog(SCIMBulkProcessor.class);
+
+    private static final String SCHEMAS = "schemas";
+    private static final String OPERATIONS = "Operations";
+    private static final String STATUS = "status";
+    private static final String CODE = "code";
+    private static final String DESCRIPTION = "description";
+    private static final String RESPONSE = "response";
+    private static final String DETAIL = "detail";
+    private static final String LOCATION = "location";
+    private static final String VERSION = "version";
+    private static final String MEMBERS = "members";
+    private static final String BULK_ID_REFERENCE_PREFIX = "bulkId:";
+    // wrapper added around the operations in each bulk request.
+    private static final int REQUEST_OVERHEAD_BYTES = 128;
+
+    private final String bulkEndpoint;
+    private final SCIMHttpTransport transport;
+    private final SCIMResourceIdCache idCache;
+    private final int maxOperations;
+    private final long maxPayloadBytes;
+    private final long flushInterval;
+    private final ScheduledExecutorService flushScheduler;
+    private final AtomicLong bulkIdSequence = new AtomicLong();
+
+    // guarded by this.
+    private final List<SCIMBulkOperation> pendingOperations = new ArrayList<>();
+    private final Map<String, String> pendingUserBulkIds = new HashMap<>();
+    private final Set<String> pendingEntityKeys = new HashSet<>();
+    private final List<Batch> inFlightBatches = new ArrayList<>();
+    private long pendingPayloadBytes;
+    private ScheduledFuture<?> scheduledFlush;
+    private long batchSequence;
+    private long completedBatchSequence;
+
+    /**
+     * @param bulkEndpoint    URL of the SCIM bulk endpoint
+     * @param transport       transport used to send the bulk requests
+     * @param idCache         cache the ids of the created users and groups are added to, may be null
+     * @param maxOperations   maximum number of operations in one bulk request
+     * @param maxPayloadBytes maximum size of one bulk request in bytes
+     * @param flushInterval   maximum time in milliseconds an operation waits before it is sent
+     */
+    public SCIMBulkProcessor(String bulkEndpoint, SCIMHttpTransport transport, SCIMResourceIdCache idCache,
+                             int maxOperations, long maxPayloadBytes, long flushInterval) {
+
+        this.bulkEndpoint = bulkEndpoint;
+        this.transport = transport;
+        this.idCache = idCache;
+        this.maxOperations = Math.max(1, maxOperations);
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.flushInterval = flushInterval;
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SCIMBulkFlusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param userName name of the user being created
+     * @param userData encoded SCIM user
+     * @param callback notified of the outcome of the creation, may be null
+     */
+    public void addUserCreation(String userName, JSONObject userData, BulkOperationCallback callback) {
+
+        List<Batch> readyBatches = new ArrayList<>(2);
+        try {
+            synchronized (this) {
+                SCIMBulkOperation operation = new SCIMBulkOperation(ProvisioningEntityType.USER, userName,
+                        nextBulkId(), userData, callback);
+                reserve(operation.getPayloadSize(), readyBatches);
+                // registered before adding, since adding may take the batch and forget the pending bulkIds.
+                if (userName != null) {
+                    pendingUserBulkIds.put(userName, operation.getBulkId());
+                }
+                add(operation, readyBatches);
+            }
+        } finally {
+            sendAll(readyBatches);
+        }
+    }
+
+    /**
+     * Queues a group creation. Members created earlier in the same batch are referenced by their bulkId.
+     *
+     * @param groupName name of the group being created
+     * @param groupData encoded SCIM group
+     * @param callback  notified of the outcome of the creation, may be null
+     * @throws JSONException if the group members cannot be read
+     */
+    public void addGroupCreation(String groupName, JSONObject groupData, BulkOperationCallback callback)
+            throws JSONException {
+
+        List<Batch> readyBatches = new ArrayList<>(2);
+        try {
+            synchronized (this) {
+                // take the batch first if the group does not fit, so that members are only referenced by
+                // bulkId when they are sent in the same request as the group. The references are counted in
+                // the size, since they are added once the batch is settled.
+                JSONArray members = groupData.optJSONArray(MEMBERS);
+                reserve(SCIMBulkOperation.getPayloadSize(groupData) + getMemberReferencesSize(members),
+                        readyBatches);
+
+                if (members != null && !pendingUserBulkIds.isEmpty()) {
+                    for (int i = 0; i < members.length(); i++) {
+                        JSONObject member = members.optJSONObject(i);
+                        if (member == null || member.has(SCIMConstants.CommonSchemaConstants.VALUE)) {
+                            continue;
+                        }
+                        String memberBulkId = pendingUserBulkIds.get(member.optString(
+                                SCIMConstants.CommonSchemaConstants.DISPLAY));
+                        if (memberBulkId != null) {
+                            member.put(SCIMConstants.CommonSchemaConstants.VALUE,
+                                    BULK_ID_REFERENCE_PREFIX + memberBulkId);
+                        }
+                    }
+                }
+
+                add(new SCIMBulkOperation(ProvisioningEntityType.GROUP, groupName, nextBulkId(), groupData,
+                        callback), readyBatches);
+            }
+        } finally {
+            sendAll(readyBatches);
+        }
+    }
+
+    /**
+     * Sends all pending operations and waits for them, and for any batch being sent, to complete.
+     */
+    public void flush() {
+
+        Batch batch;
+        boolean taken;
+        synchronized (this) {
+            batch = takeBatch();
+            taken = batch != null;
+            if (!taken && !inFlightBatches.isEmpty()) {
+                // batches complete in order, so the last one completes after all others.
+                batch = inFlightBatches.get(inFlightBatches.size() - 1);
+            }
+        }
+        if (taken) {
+            send(batch);
+        } else if (batch != null) {
+            awaitCompletion(batch);
+        }
+    }
+
+    /**
+     * Makes sure that the creation of the given users or groups has completed, if it was batched. The
+     * pending batch is sent if it holds any of them, and a batch being sent that holds any of them is
+     * waited for. Returns straight away for entities that are not in a batch.
+     *
+     * @param entityType user or group
+     * @param names      user names or group display names
+     */
+    public void flushIfPending(ProvisioningEntityType entityType, Collection<String> names) {
+
+        if (names == null || names.isEmpty()) {
+            return;
+        }
+        Batch batch = null;
+        boolean taken = false;
+        synchronized (this) {
+            for (String name : names) {
+                if (pendingEntityKeys.contains(getEntityKey(entityType, name))) {
+                    batch = takeBatch();
+                    taken = true;
+                    break;
+                }
+            }
+            for (int i = inFlightBatches.size() - 1; !taken && batch == null && i >= 0; i--) {
+                for (String name : names) {
+                    if (inFlightBatches.get(i).entityKeys.contains(getEntityKey(entityType, name))) {
+                        batch = inFlightBatches.get(i);
+                        break;
+                    }
+                }
+            }
+        }
+        if (taken) {
+            send(batch);
+        } else if (batch != null) {
+            awaitCompletion(batch);
+        }
+    }
+
+    /**
+     * Sends the pending operations and stops the flush timer.
+     */
+    public void shutdown() {
+
+        flush();
+        flushScheduler.shutdown();
+    }
+
+    /**
+     * Must be called holding the lock of this processor.
+     *
+     * @param members members of a group being created
+     * @return encoded size in bytes of the bulkId references the members would be given
+     */
+    private int getMemberReferencesSize(JSONArray members) {
+
+        int size = 0;
+        for (int i = 0; members != null && !pendingUserBulkIds.isEmpty() && i < members.length(); i++) {
+            JSONObject member = members.optJSONObject(i);
+            if (member == null || member.has(SCIMConstants.CommonSchemaConstants.VALUE)) {
+                continue;
+            }
+            String memberBulkId = pendingUserBulkIds.get(member.optString(
+                    SCIMConstants.CommonSchemaConstants.DISPLAY));
+            if (memberBulkId != null) {
+                // ,"value":"bulkId:<bulkId>" where bulkIds are ASCII.
+                size += SCIMConstants.CommonSchemaConstants.VALUE.length() + BULK_ID_REFERENCE_PREFIX.length()
+                        + memberBulkId.length() + 6;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Takes the pending operations if an operation of the given size would not fit in the same request.
+     */
+    private void reserve(int payloadSize, List<Batch> readyBatches) {
+
+        if (!pendingOperations.isEmpty()
+                && pendingPayloadBytes + payloadSize + REQUEST_OVERHEAD_BYTES > maxPayloadBytes) {
+            readyBatches.add(takeBatch());
+        }
+    }
+
+    private void add(SCIMBulkOperation operation, List<Batch> readyBatches) {
+
+        pendingOperations.add(operation);
+        pendingPayloadBytes += operation.getPayloadSize();
+        if (operation.getEntityName() != null) {
+            pendingEntityKeys.add(getEntityKey(operation.getEntityType(), operation.getEntityName()));
+        }
+
+        if (pendingOperations.size() >= maxOperations) {
+            readyBatches.add(takeBatch());
+        } else if (scheduledFlush == null) {
+            scheduledFlush = flushScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Moves the pending operations to a new batch, which the caller must send. Called holding the lock.
+     *
+     * @return the batch, or null if no operation is pending
+     */
+    private Batch takeBatch() {
+
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pendingOperations.isEmpty()) {
+            return null;
+        }
+
+        Batch batch = new Batch(++batchSequence, new ArrayList<>(pendingOperations),
+                new HashSet<>(pendingEntityKeys));
+        pendingOperations.clear();
+        pendingUserBulkIds.clear();
+        pendingEntityKeys.clear();
+        pendingPayloadBytes = 0;
+        inFlightBatches.add(batch);
+        return batch;
+    }
+
+    private void sendAll(List<Batch> batches) {
+
+        for (Batch batch : batches) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the batch once the batches taken before it have completed. Never throws, so that the batches
+     * taken after it are not held up.
+     */
+    private void send(Batch batch) {
+
+        awaitTurn(batch);
+        try {
+            send(batch.operations);
+        } catch (RuntimeException e) {
+            log.error("Error while sending SCIM bulk request to " + bulkEndpoint, e);
+        } finally {
+            synchronized (this) {
+                inFlightBatches.remove(batch);
+                completedBatchSequence = batch.sequence;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void awaitTurn(Batch batch) {
+        awaitSequence(batch.sequence - 1);
+    }
+
+    private synchronized void awaitCompletion(Batch batch) {
+        awaitSequence(batch.sequence);
+    }
+
+    /**
+     * Waits until the batch of the given sequence has completed. The wait is not interruptible, since the
+     * callers rely on the creations being done, but the interrupt is kept for the caller to act on.
+     */
+    private synchronized void awaitSequence(long sequence) {
+
+        boolean interrupted = false;
+        while (completedBatchSequence < sequence) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(List<SCIMBulkOperation> operations) {
+
+        Map<String, SCIMBulkOperation> operationsByBulkId = new HashMap<>();
+        SCIMHttpResponse response;
+        try {
+            JSONArray requestOperations = new JSONArray();
+            for (SCIMBulkOperation operation : operations) {
+                if (operation.getEntityType() == ProvisioningEntityType.GROUP) {
+                    resolveMembers(operation.getData());
+                }
+                requestOperations.put(operation.toJSON());
+                operationsByBulkId.put(operation.getBulkId(), operation);
+            }
+            JSONObject request = new JSONObject();
+            request.put(SCHEMAS, new JSONArray().put(SCIMConstants.CORE_SCHEMA_URI));
+            request.put(OPERATIONS, requestOperations);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Sending SCIM bulk request with " + operations.size() + " operations to " + bulkEndpoint);
+            }
+            response = transport.post(bulkEndpoint, request.toString());
+        } catch (Exception e) {
+            for (SCIMBulkOperation operation : operations) {
+                log.error("Error while provisioning " + operation + " through SCIM bulk request", e);
+                operation.complete(false);
+            }
+            return;
+        }
+
+        if (!response.isSuccess()) {
+            for (SCIMBulkOperation operation : operations) {
+                log.error("Error while provisioning " + operation + " through SCIM bulk request. Bulk endpoint " +
+                        "responded with status " + response.getStatusCode() + " : " + response.getBody());
+                operation.complete(false);
+            }
+            return;
+        }
+
+        processResponse(response.getBody(), operationsByBulkId);
+    }
+
+    /**
+     * Fills in the ids of group members that were neither found when the group was added nor created in
+     * the same batch, i.e. members created by an earlier batch that was still being sent.
+     */
+    private void resolveMembers(JSONObject groupData) throws JSONException {
+
+        JSONArray members = groupData.optJSONArray(MEMBERS);
+        for (int i = 0; idCache != null && members != null && i < members.length(); i++) {
+            JSONObject member = members.optJSONObject(i);
+            if (member == null || member.has(SCIMConstants.CommonSchemaConstants.VALUE)) {
+                continue;
+            }
+            String memberId = idCache.get(ProvisioningEntityType.USER, member.optString(
+                    SCIMConstants.CommonSchemaConstants.DISPLAY, null));
+            if (memberId != null) {
+                member.put(SCIMConstants.CommonSchemaConstants.VALUE, memberId);
+            }
+        }
+    }
+
+    private void processResponse(String responseBody, Map<String, SCIMBulkOperation> operationsByBulkId) {
+
+        try {
+            JSONArray results = new JSONObject(responseBody).optJSONArray(OPERATIONS);
+            for (int i = 0; results != null && i < results.length(); i++) {
+                JSONObject result = results.optJSONObject(i);
+                if (result == null) {
+                    continue;
+                }
+                SCIMBulkOperation operation = operationsByBulkId.remove(result.optString(SCIMBulkOperation.BULK_ID));
+                if (operation == null) {
+                    continue;
+                }
+
+                // SCIM 1.1 wraps the status code in an object while SCIM 2.0 returns it as a string.
+                Object status = result.opt(STATUS);
+                String code;
+                String description = null;
+                if (status instanceof JSONObject) {
+                    code = ((JSONObject) status).optString(CODE);
+                    description = ((JSONObject) status).optString(DESCRIPTION, null);
+                } else {
+                    code = String.valueOf(status);
+                }
+                if (description == null && result.optJSONObject(RESPONSE) != null) {
+                    description = result.optJSONObject(RESPONSE).optString(DETAIL, null);
+                }
+
+                if (!code.startsWith("2")) {
+                    log.error("Error while provisioning " + operation + " through SCIM bulk request. Status : "
+                            + code + (description != null ? ", " + description : ""));
+                    operation.complete(false);
+                } else {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Provisioned " + operation + " through SCIM bulk request");
+                    }
+                    cacheId(operation, result);
+                    operation.complete(true);
+                }
+            }
+        } catch (JSONException e) {
+            log.error("Error while reading SCIM bulk response : " + responseBody, e);
+        }
+
+        for (SCIMBulkOperation operation : operationsByBulkId.values()) {
+            log.warn("SCIM bulk response did not contain a result for " + operation);
+            operation.complete(false);
+        }
+    }
+
+    /**
+     * Adds the id the SCIM provider assigned to a created user or group to the id cache. SCIM 1.1 only
+     * returns it as the last segment of the resource location.
+     */
+    private void cacheId(SCIMBulkOperation operation, JSONObject result) {
+
+        if (idCache == null || operation.getEntityName() == null) {
+            return;
+        }
+        String id = null;
+        JSONObject resource = result.optJSONObject(RESPONSE);
+        if (resource != null) {
+            id = resource.optString(SCIMConstants.CommonSchemaConstants.ID, null);
+        }
+        String location = result.optString(LOCATION, null);
+        if (id == null && location != null) {
+            String path = location.endsWith("/") ? location.substring(0, location.length() - 1) : location;
+            id = path.substring(path.lastIndexOf('/') + 1);
+        }
+        if (id != null && !id.isEmpty()) {
+            idCache.put(operation.getEntityType(), operation.getEntityName(), id, result.optString(VERSION, null));
+        }
+    }
+
+    private static String getEntityKey(ProvisioningEntityType entityType, String name) {
+        return entityType + ":" + name;
+    }
+
+    private String nextBulkId() {
+        return Long.toString(bulkIdSequence.incrementAndGet());
+    }
+
+    /**
+     * Operations sent in one bulk request, numbered in the order they were taken from the pending batch.
+     */
+    private static final class Batch {
+
+        private final long sequence;
+        private final List<SCIMBulkOperation> operations;
+        private final Set<String> entityKeys;
+
+        private Batch(long sequence, List<SCIMBulkOperation> operations, Set<String> entityKeys) {
+
+            this.sequence = sequence;
+            this.operations = operations;
+            this.entityKeys = entityKeys;
+        }
+    }
+}
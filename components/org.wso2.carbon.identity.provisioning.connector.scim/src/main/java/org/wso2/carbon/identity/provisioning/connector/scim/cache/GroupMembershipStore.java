@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the members last provisioned for each group, so that a group update can be reduced to the
+ * members added and removed since. Members are kept as a sorted array of user names per group.
+ * <p/>
+ * The store is bounded by the total number of members it holds rather than by the number of groups.
+ * Once the bound is reached the least recently used groups are evicted, and an evicted group is simply
+ * provisioned in full on its next update. Groups larger than the bound are never stored.
+ */
+public class GroupMembershipStore {
+
+    private final long maxMembers;
+    private final LinkedHashMap<String, String[]> memberships = new LinkedHashMap<>(16, 0.75f, true);
+    private long memberCount;
+
+    /**
+     * @param maxMembers maximum number of members held across all groups
+     */
+    public GroupMembershipStore(long maxMembers) {
+        this.maxMembers = maxMembers;
+    }
+
+    /**
+     * Compares the given members with the ones last provisioned for the group.
+     *
+     * @param groupName group display name
+     * @param members   user names of the members about to be provisioned
+     * @return the difference, or null if the members last provisioned for the group are not known
+     */
+    public MembershipDelta diff(String groupName, Collection<String> members) {
+
+        if (groupName == null) {
+            return null;
+        }
+        String[] previous;
+        synchronized (this) {
+            previous = memberships.get(groupName);
+        }
+        if (previous == null) {
+            return null;
+        }
+        String[] current = toSortedArray(members);
+
+        List<String> addedMembers = new ArrayList<>();
+        List<String> removedMembers = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < previous.length || j < current.length) {
+            int comparison;
+            if (i == previous.length) {
+                comparison = 1;
+            } else if (j == current.length) {
+                comparison = -1;
+            } else {
+                comparison = previous[i].compareTo(current[j]);
+            }
+
+            if (comparison < 0) {
+                removedMembers.add(previous[i++]);
+            } else if (comparison > 0) {
+                addedMembers.add(current[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return new MembershipDelta(current, addedMembers, removedMembers);
+    }
+
+    /**
+     * Records the members successfully provisioned for the group.
+     *
+     * @param groupName group display name
+     * @param members   user names of the members provisioned
+     */
+    public void put(String groupName, Collection<String> members) {
+
+        if (groupName != null) {
+            store(groupName, toSortedArray(members));
+        }
+    }
+
+    /**
+     * Records the members of a group after the given difference was successfully provisioned.
+     *
+     * @param groupName group display name
+     * @param delta     difference provisioned
+     */
+    public void put(String groupName, MembershipDelta delta) {
+
+        if (groupName != null) {
+            store(groupName, delta.members);
+        }
+    }
+
+    /**
+     * Forgets the group, so that its next update is provisioned in full.
+     *
+     * @param groupName group display name
+     */
+    public synchronized void invalidate(String groupName) {
+
+        if (groupName == null) {
+            return;
+        }
+        String[] removed = memberships.remove(groupName);
+        if (removed != null) {
+            memberCount -= removed.length;
+        }
+    }
+
+    /**
+     * @return number of members held across all groups
+     */
+    public synchronized long getMemberCount() {
+        return memberCount;
+    }
+
+    private synchronized void store(String groupName, String[] members) {
+
+        invalidate(groupName);
+        if (members.length > maxMembers) {
+            return;
+        }
+        memberships.put(groupName, members);
+        memberCount += members.length;
+
+        Iterator<Map.Entry<String, String[]>> eldest = memberships.entrySet().iterator();
+        while (memberCount > maxMembers && eldest.hasNext()) {
+            Map.Entry<String, String[]> entry = eldest.next();
+            memberCount -= entry.getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private static String[] toSortedArray(Collection<String> members) {
+
+        if (members == null || members.isEmpty()) {
+            return new String[0];
+        }
+        String[] sorted = members.toArray(new String[members.size()]);
+        Arrays.sort(sorted);
+        // a duplicated member would otherwise show up as added or removed.
+        int length = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] != null && (length == 0 || !sorted[i].equals(sorted[length - 1]))) {
+                sorted[length++] = sorted[i];
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+
+    /**
+     * Members added to and removed from a group since it was last provisioned.
+     */
+    public static class MembershipDelta {
+
+        private final String[] members;
+        private final List<String> addedMembers;
+        private final List<String> removedMembers;
+
+        MembershipDelta(String[] members, List<String> addedMembers, List<String> removedMembers) {
+
+            this.members = members;
+            this.addedMembers = Collections.unmodifiableList(addedMembers);
+            this.removedMembers = Collections.unmodifiableList(removedMembers);
+        }
+
+        public List<String> getAddedMembers() {
+            return addedMembers;
+        }
+
+        public List<String> getRemovedMembers() {
+            return removedMembers;
+        }
+
+        public boolean isEmpty() {
+            return addedMembers.isEmpty() && removedMembers.isEmpty();
+        }
+    }
+}
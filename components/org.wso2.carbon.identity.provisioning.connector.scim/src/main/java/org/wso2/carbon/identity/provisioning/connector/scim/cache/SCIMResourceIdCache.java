@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.cache;
+
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, expiring cache of the SCIM resource ids assigned by the service provider to users and
+ * groups, keyed by user name or group display name. It saves the filtered lookup otherwise needed
+ * before every update or delete. The version of the resource last written, if the service provider
+ * returned one, is kept along with its id for conditional writes.
+ */
+public class SCIMResourceIdCache {
+
+    private final SegmentedLRUCache<CacheKey, CachedId> cachedIds;
+    private final long timeToLive;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param maxSize    maximum number of cached ids
+     * @param timeToLive time in milliseconds after which a cached id is looked up again
+     */
+    public SCIMResourceIdCache(int maxSize, long timeToLive) {
+
+        this.timeToLive = timeToLive;
+        this.cachedIds = new SegmentedLRUCache<>(maxSize);
+    }
+
+    /**
+     * @param entityType user or group
+     * @param name       user name or group display name
+     * @return cached SCIM id, or null if the id is not cached or has expired
+     */
+    public String get(ProvisioningEntityType entityType, String name) {
+
+        CachedId cachedId = getCachedId(entityType, name);
+        if (cachedId == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return cachedId.id;
+    }
+
+    /**
+     * @param entityType user or group
+     * @param name       user name or group display name
+     * @return version of the resource when it was last written or looked up, such as its ETag, or null
+     * if it is unknown or the id is not cached
+     */
+    public String getVersion(ProvisioningEntityType entityType, String name) {
+
+        CachedId cachedId = getCachedId(entityType, name);
+        return cachedId != null ? cachedId.version : null;
+    }
+
+    /**
+     * @param entityType user or group
+     * @param name       user name or group display name
+     * @param id         SCIM id assigned by the service provider
+     */
+    public void put(ProvisioningEntityType entityType, String name, String id) {
+        put(entityType, name, id, null);
+    }
+
+    /**
+     * @param entityType user or group
+     * @param name       user name or group display name
+     * @param id         SCIM id assigned by the service provider
+     * @param version    current version of the resource, or null if it is unknown
+     */
+    public void put(ProvisioningEntityType entityType, String name, String id, String version) {
+
+        if (name == null || id == null) {
+            return;
+        }
+        cachedIds.put(new CacheKey(entityType, name), new CachedId(id, version,
+                System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * @param entityType user or group
+     * @param name       user name or group display name
+     */
+    public void invalidate(ProvisioningEntityType entityType, String name) {
+
+        if (name == null) {
+            return;
+        }
+        cachedIds.remove(new CacheKey(entityType, name));
+    }
+
+    /**
+     * Moves the cached id of a renamed user or group to its new name.
+     *
+     * @param entityType user or group
+     * @param oldName    previous user name or group display name
+     * @param newName    new user name or group display name
+     * @param id         SCIM id of the resource
+     */
+    public void rename(ProvisioningEntityType entityType, String oldName, String newName, String id) {
+
+        CachedId cachedId = getCachedId(entityType, oldName);
+        invalidate(entityType, oldName);
+        put(entityType, newName, id, cachedId != null && id.equals(cachedId.id) ? cachedId.version : null);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of cached ids, including the expired ones not evicted yet
+     */
+    public int size() {
+        return cachedIds.size();
+    }
+
+    private CachedId getCachedId(ProvisioningEntityType entityType, String name) {
+
+        if (name == null) {
+            return null;
+        }
+        CacheKey key = new CacheKey(entityType, name);
+        CachedId cachedId = cachedIds.get(key);
+        if (cachedId != null && cachedId.expiryTime < System.currentTimeMillis()) {
+            cachedIds.remove(key, cachedId);
+            return null;
+        }
+        return cachedId;
+    }
+
+    private static class CachedId {
+
+        private final String id;
+        private final String version;
+        private final long expiryTime;
+
+        CachedId(String id, String version, long expiryTime) {
+
+            this.id = id;
+            this.version = version;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private static class CacheKey {
+
+        private final ProvisioningEntityType entityType;
+        private final String name;
+
+        CacheKey(ProvisioningEntityType entityType, String name) {
+
+            this.entityType = entityType;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey cacheKey = (CacheKey) o;
+            return entityType == cacheKey.entityType && name.equals(cacheKey.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * entityType.hashCode() + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU map split in segments, each behind its own lock, so that concurrent provisioning
+ * threads rarely contend. The size bound is split exactly across the segments and enforced per segment,
+ * so the cache never holds more than its maximum size, but may evict before reaching it when keys hash
+ * unevenly. Caches smaller than the segment count get one segment per entry.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class SegmentedLRUCache<K, V> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment<K, V>[] segments;
+
+    /**
+     * @param maxSize maximum number of entries, at least 1
+     */
+    @SuppressWarnings("unchecked")
+    SegmentedLRUCache(int maxSize) {
+
+        int size = Math.max(1, maxSize);
+        int segmentCount = Math.min(SEGMENT_COUNT, size);
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // the remainder goes to the first segments, so that the segment sizes add up to the maximum size.
+            segments[i] = new Segment<>(size / segmentCount + (i < size % segmentCount ? 1 : 0));
+        }
+    }
+
+    V get(K key) {
+
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    void put(K key, V value) {
+
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Removes the entry only if it still maps to the given value.
+     */
+    void remove(K key, V value) {
+
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment) {
+            if (segment.get(key) == value) {
+                segment.remove(key);
+            }
+        }
+    }
+
+    void remove(K key) {
+
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    int size() {
+
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment<K, V> getSegment(K key) {
+
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 2386419742104236518L;
+        private final int maxSize;
+
+        Segment(int maxSize) {
+
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
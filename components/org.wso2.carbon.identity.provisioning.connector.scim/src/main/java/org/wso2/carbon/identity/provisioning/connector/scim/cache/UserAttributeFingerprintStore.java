@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers a compact fingerprint of the attributes last provisioned for each user, so that updates
+ * which change nothing can be skipped and the others can be reduced to the attributes that changed.
+ * <p/>
+ * A fingerprint holds, per attribute, a numeric id of the claim URI and a 64 bit hash of the claim value,
+ * sorted by claim id. At millions of users a 32 bit hash would make a collision, and so a skipped change,
+ * likely. Claim URIs are numbered in a dictionary shared by all users. The number of fingerprints kept
+ * is bounded, the least recently used ones being evicted; an evicted user is simply provisioned in full
+ * on the next update.
+ */
+public class UserAttributeFingerprintStore {
+
+    // claim ids have to fit in a char.
+    private static final int MAX_CLAIM_IDS = 65536;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final SegmentedLRUCache<String, Fingerprint> fingerprints;
+    private final ConcurrentHashMap<String, Integer> claimIds = new ConcurrentHashMap<>();
+    private final List<String> claimUris = new ArrayList<>();
+
+    /**
+     * @param maxSize maximum number of users whose fingerprint is kept
+     */
+    public UserAttributeFingerprintStore(int maxSize) {
+        this.fingerprints = new SegmentedLRUCache<>(maxSize);
+    }
+
+    /**
+     * Compares the given attributes with the ones last provisioned for the user.
+     *
+     * @param userName user name
+     * @param claims   claim URIs and values about to be provisioned
+     * @return the difference, or null if no fingerprint is known for the user
+     */
+    public AttributeDelta diff(String userName, Map<String, String> claims) {
+
+        if (userName == null) {
+            return null;
+        }
+        Fingerprint previous = fingerprints.get(userName);
+        Fingerprint current = fingerprint(claims);
+        if (previous == null || current == null) {
+            return null;
+        }
+
+        Map<String, String> changedClaims = new HashMap<>();
+        Set<String> removedClaims = new HashSet<>();
+        int i = 0;
+        int j = 0;
+        while (i < previous.size() || j < current.size()) {
+            int previousClaimId = i < previous.size() ? previous.claimIds[i] : Integer.MAX_VALUE;
+            int currentClaimId = j < current.size() ? current.claimIds[j] : Integer.MAX_VALUE;
+            if (previousClaimId < currentClaimId) {
+                removedClaims.add(getClaimUri(previousClaimId));
+                i++;
+            } else if (previousClaimId > currentClaimId) {
+                String claimUri = getClaimUri(currentClaimId);
+                changedClaims.put(claimUri, claims.get(claimUri));
+                j++;
+            } else {
+                if (previous.valueHashes[i] != current.valueHashes[j]) {
+                    String claimUri = getClaimUri(currentClaimId);
+                    changedClaims.put(claimUri, claims.get(claimUri));
+                }
+                i++;
+                j++;
+            }
+        }
+        return new AttributeDelta(changedClaims, removedClaims);
+    }
+
+    /**
+     * Records the attributes successfully provisioned for the user.
+     *
+     * @param userName user name
+     * @param claims   claim URIs and values provisioned
+     */
+    public void put(String userName, Map<String, String> claims) {
+
+        if (userName == null) {
+            return;
+        }
+        Fingerprint fingerprint = fingerprint(claims);
+        if (fingerprint == null) {
+            fingerprints.remove(userName);
+        } else {
+            fingerprints.put(userName, fingerprint);
+        }
+    }
+
+    /**
+     * Forgets the user, so that its next update is provisioned in full.
+     *
+     * @param userName user name
+     */
+    public void invalidate(String userName) {
+
+        if (userName != null) {
+            fingerprints.remove(userName);
+        }
+    }
+
+    /**
+     * @return number of users whose fingerprint is kept
+     */
+    public int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * @return fingerprint of the claims, or null if the claim dictionary is full
+     */
+    private Fingerprint fingerprint(Map<String, String> claims) {
+
+        if (claims == null || claims.isEmpty()) {
+            return new Fingerprint(new char[0], new long[0]);
+        }
+        // claim ids and value hashes are sorted together, as claim id and index pairs.
+        long[] order = new long[claims.size()];
+        long[] hashes = new long[claims.size()];
+        int index = 0;
+        for (Map.Entry<String, String> claim : claims.entrySet()) {
+            int claimId = getClaimId(claim.getKey());
+            if (claimId < 0) {
+                return null;
+            }
+            hashes[index] = hash(claim.getValue());
+            order[index] = ((long) claimId << 32) | index;
+            index++;
+        }
+        Arrays.sort(order);
+        char[] claimIds = new char[order.length];
+        long[] valueHashes = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            claimIds[i] = (char) (order[i] >>> 32);
+            valueHashes[i] = hashes[(int) order[i]];
+        }
+        return new Fingerprint(claimIds, valueHashes);
+    }
+
+    private int getClaimId(String claimUri) {
+
+        Integer claimId = claimIds.get(claimUri);
+        if (claimId != null) {
+            return claimId;
+        }
+        synchronized (claimUris) {
+            claimId = claimIds.get(claimUri);
+            if (claimId == null) {
+                if (claimUris.size() >= MAX_CLAIM_IDS) {
+                    return -1;
+                }
+                claimId = claimUris.size();
+                claimUris.add(claimUri);
+                claimIds.put(claimUri, claimId);
+            }
+            return claimId;
+        }
+    }
+
+    private String getClaimUri(int claimId) {
+
+        synchronized (claimUris) {
+            return claimUris.get(claimId);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the value. Unlike {@link String#hashCode()}, it does not collide on values that
+     * only differ by a swapped pair of characters.
+     */
+    private static long hash(String value) {
+
+        if (value == null) {
+            return 0;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Claim ids of the attributes of a user in ascending order, with the hash of each value.
+     */
+    private static class Fingerprint {
+
+        private final char[] claimIds;
+        private final long[] valueHashes;
+
+        Fingerprint(char[] claimIds, long[] valueHashes) {
+
+            this.claimIds = claimIds;
+            this.valueHashes = valueHashes;
+        }
+
+        int size() {
+            return claimIds.length;
+        }
+    }
+
+    /**
+     * Attributes that changed since the user was last provisioned.
+     */
+    public static class AttributeDelta {
+
+        private final Map<String, String> changedClaims;
+        private final Set<String> removedClaims;
+
+        AttributeDelta(Map<String, String> changedClaims, Set<String> removedClaims) {
+
+            this.changedClaims = Collections.unmodifiableMap(changedClaims);
+            this.removedClaims = Collections.unmodifiableSet(removedClaims);
+        }
+
+        /**
+         * @return claim URIs and values that were added or changed
+         */
+        public Map<String, String> getChangedClaims() {
+            return changedClaims;
+        }
+
+        /**
+         * @return claim URIs that are no longer present
+         */
+        public Set<String> getRemovedClaims() {
+            return removedClaims;
+        }
+
+        public boolean isEmpty() {
+            return changedClaims.isEmpty() && removedClaims.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.executor;
+
+/**
+ * Behaviour of the asynchronous executor once the lane of a task is full.
+ */
+public enum AsyncRejectionPolicy {
+
+    /**
+     * Block the calling thread until the lane has room, or the executor is shut down.
+     */
+    BLOCK("block"),
+
+    /**
+     * Fail the provisioning call straight away.
+     */
+    REJECT("reject"),
+
+    /**
+     * Hold the calling thread until its task has run, as if asynchronous mode was disabled. The task
+     * still runs on its lane, after the tasks queued before it.
+     */
+    SYNC("sync");
+
+    private final String value;
+
+    AsyncRejectionPolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @param value configured policy name
+     * @return matching policy, or {@link #BLOCK} if the value is not recognised
+     */
+    public static AsyncRejectionPolicy fromValue(String value) {
+        for (AsyncRejectionPolicy policy : values()) {
+            if (policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        return BLOCK;
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.journal.ProvisioningJournal;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the operations on each user or group for a short window and merges the ones arriving within it
+ * into a single equivalent operation:
+ * <ul>
+ * <li>a creation followed by updates is sent as one creation carrying the merged attributes,</li>
+ * <li>a creation followed by a deletion is not sent at all,</li>
+ * <li>updates followed by a deletion are sent as the deletion only,</li>
+ * <li>successive updates are sent as one update carrying the merged attributes, as a replacement if any
+ * of them was one. A replacement discards the attributes of the updates before it.</li>
+ * </ul>
+ * An operation that cannot be merged, such as a creation following a deletion, closes the window of its
+ * entity and opens a new one.
+ * <p/>
+ * Operations are recorded in the journal, if one is given, as they are submitted, so held operations
+ * survive a crash. Once a window expires, its operations are replaced in the journal by the merged one.
+ * <p/>
+ * Expired windows are handed to the dispatcher in the order they were opened, which is expected to queue
+ * them, such as on the striped executor, rather than send them. The number of open windows is bounded.
+ * Once it is reached, the rejection policy decides whether a submission blocks, fails, or skips the window.
+ * Submissions on an entity wait while an operation on it is being handed to the dispatcher, so that they
+ * cannot overtake it.
+ */
+public class CoalescingStage {
+
+    private static final Log log = LogFactory.getLog(CoalescingStage.class);
+
+    /**
+     * Provisions the operations leaving the stage.
+     */
+    public interface Dispatcher {
+
+        /**
+         * @param entity          merged operation
+         * @param journalSequence sequence number of the operation in the journal, or 0 if there is no
+         *                        journal
+         * @throws IdentityProvisioningException if the operation cannot be queued
+         */
+        void dispatch(ProvisioningEntity entity, long journalSequence) throws IdentityProvisioningException;
+    }
+
+    private final long windowMillis;
+    private final int capacity;
+    private final AsyncRejectionPolicy rejectionPolicy;
+    private final ProvisioningJournal journal;
+    private final Dispatcher dispatcher;
+    private final ArrayDeque<Window> windows = new ArrayDeque<>();
+    private final Map<String, Window> openWindows = new HashMap<>();
+    // keys of the entities whose operations are being handed to the dispatcher outside the lock.
+    private final Set<String> dispatchingKeys = new HashSet<>();
+    private final AtomicLong savedCallCount = new AtomicLong();
+    private final Thread flusher;
+    private boolean shutdown;
+
+    /**
+     * @param windowMillis    time in milliseconds operations on an entity are held for
+     * @param capacity        maximum number of windows held at once
+     * @param rejectionPolicy behaviour of {@link #submit} once the capacity is reached. With
+     *                        {@link AsyncRejectionPolicy#SYNC}, the operation is dispatched straight away,
+     *                        after the window held for its entity, if any.
+     * @param journal         journal recording the held operations, may be null
+     * @param dispatcher      dispatcher of the merged operations
+     */
+    public CoalescingStage(long windowMillis, int capacity, AsyncRejectionPolicy rejectionPolicy,
+                           ProvisioningJournal journal, Dispatcher dispatcher) {
+
+        this.windowMillis = windowMillis;
+        this.capacity = Math.max(1, capacity);
+        this.rejectionPolicy = rejectionPolicy;
+        this.journal = journal;
+        this.dispatcher = dispatcher;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushExpiredWindows();
+            }
+        }, "SCIMCoalescingFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @param entityKey key identifying the remote resource. Operations without a key are dispatched
+     *                  straight away.
+     * @param entity    operation to provision
+     * @throws IdentityProvisioningException if the operation cannot be recorded in the journal or
+     *                                       dispatched, the stage is full and rejects it, or the stage is
+     *                                       shut down
+     */
+    public void submit(String entityKey, ProvisioningEntity entity) throws IdentityProvisioningException {
+
+        long journalSequence = journal != null ? journal.append(entityKey, entity) : 0;
+        if (entityKey == null) {
+            dispatchNow(entity, journalSequence);
+            return;
+        }
+
+        List<Window> bypassed = new ArrayList<>();
+        synchronized (this) {
+            while (true) {
+                if (shutdown) {
+                    discard(journalSequence);
+                    throw new IdentityProvisioningException("SCIM coalescing stage is shut down");
+                }
+                if (dispatchingKeys.contains(entityKey)) {
+                    if (!awaitSubmission(journalSequence)) {
+                        throw new IdentityProvisioningException("Interrupted while waiting for an operation on "
+                                + entityKey + " to leave the SCIM coalescing stage");
+                    }
+                    continue;
+                }
+                Window window = openWindows.get(entityKey);
+                if (window != null) {
+                    ProvisioningEntity previous = window.entity;
+                    if (window.merge(entity)) {
+                        window.journalSequences.add(journalSequence);
+                        recordMerge(previous, entity, window.entity);
+                        return;
+                    }
+                }
+                if (windows.size() < capacity) {
+                    window = new Window(entityKey, entity, journalSequence,
+                            System.currentTimeMillis() + windowMillis);
+                    openWindows.put(entityKey, window);
+                    windows.add(window);
+                    notifyAll();
+                    return;
+                }
+
+                if (rejectionPolicy == AsyncRejectionPolicy.REJECT) {
+                    discard(journalSequence);
+                    throw new IdentityProvisioningException("SCIM coalescing stage is full");
+                } else if (rejectionPolicy == AsyncRejectionPolicy.SYNC) {
+                    // the held operations of the entity are dispatched first, so they stay in order.
+                    openWindows.remove(entityKey);
+                    for (Iterator<Window> iterator = windows.iterator(); iterator.hasNext(); ) {
+                        Window held = iterator.next();
+                        if (held.entityKey.equals(entityKey)) {
+                            iterator.remove();
+                            bypassed.add(held);
+                        }
+                    }
+                    dispatchingKeys.add(entityKey);
+                    break;
+                }
+                if (!awaitSubmission(journalSequence)) {
+                    throw new IdentityProvisioningException("Interrupted while waiting for room in the SCIM "
+                            + "coalescing stage");
+                }
+            }
+        }
+
+        try {
+            for (Window held : bypassed) {
+                dispatch(held);
+            }
+            dispatchNow(entity, journalSequence);
+        } finally {
+            endDispatch(entityKey);
+        }
+    }
+
+    /**
+     * @return number of remote calls saved by merging operations
+     */
+    public long getSavedCallCount() {
+        return savedCallCount.get();
+    }
+
+    /**
+     * @return number of windows waiting to be dispatched
+     */
+    public synchronized int getPendingCount() {
+        return windows.size();
+    }
+
+    /**
+     * Dispatches all held operations straight away and stops the stage.
+     *
+     * @param timeoutMillis maximum time to wait for the held operations to be dispatched
+     */
+    public void shutdown(long timeoutMillis) {
+
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        try {
+            flusher.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher.isAlive()) {
+            log.warn("SCIM coalescing stage did not dispatch all held operations within " + timeoutMillis + "ms");
+        }
+    }
+
+    /**
+     * Waits for room in the stage or for the operations on an entity to be dispatched.
+     *
+     * @return false if the submitter was interrupted, in which case its operation is discarded
+     */
+    private boolean awaitSubmission(long journalSequence) {
+
+        try {
+            wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(journalSequence);
+            return false;
+        }
+    }
+
+    private synchronized void endDispatch(String entityKey) {
+
+        dispatchingKeys.remove(entityKey);
+        notifyAll();
+    }
+
+    /**
+     * Records the operations that will not be sent because of a merge.
+     *
+     * @param held   operation held before the merge, or null if the window was empty
+     * @param next   operation merged into the window
+     * @param merged operation held after the merge, or null if the operations cancelled each other
+     */
+    private static void recordMerge(ProvisioningEntity held, ProvisioningEntity next, ProvisioningEntity merged) {
+
+        ProvisioningMetrics metrics = ProvisioningMetrics.getInstance();
+        if (held != null) {
+            metrics.recordSkipped(held.getEntityType(), held.getOperation());
+            if (merged == null) {
+                metrics.recordSkipped(next.getEntityType(), next.getOperation());
+            }
+        }
+    }
+
+    /**
+     * Dispatches an operation that is not held, failing the submission if it cannot be dispatched.
+     */
+    private void dispatchNow(ProvisioningEntity entity, long journalSequence) throws IdentityProvisioningException {
+
+        try {
+            dispatcher.dispatch(entity, journalSequence);
+        } catch (IdentityProvisioningException e) {
+            discard(journalSequence);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops an operation that was recorded in the journal but not accepted by the stage.
+     */
+    private void discard(long journalSequence) {
+
+        if (journal != null) {
+            journal.acknowledge(journalSequence);
+        }
+    }
+
+    /**
+     * Dispatches the windows as they expire. An interrupt stops the stage as a shutdown does, once the
+     * held operations are dispatched.
+     */
+    private void flushExpiredWindows() {
+
+        boolean interrupted = false;
+        while (true) {
+            Window window;
+            synchronized (this) {
+                while (true) {
+                    window = windows.peek();
+                    if (window == null) {
+                        if (shutdown) {
+                            if (interrupted) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return;
+                        }
+                        interrupted |= await(0);
+                        continue;
+                    }
+                    long remaining = window.deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || shutdown) {
+                        break;
+                    }
+                    interrupted |= await(remaining);
+                }
+                windows.poll();
+                if (openWindows.get(window.entityKey) == window) {
+                    openWindows.remove(window.entityKey);
+                }
+                dispatchingKeys.add(window.entityKey);
+                // wakes up submitters waiting for room.
+                notifyAll();
+            }
+            try {
+                dispatch(window);
+            } finally {
+                endDispatch(window.entityKey);
+            }
+        }
+    }
+
+    /**
+     * @return true if the flusher was interrupted, in which case the stage is shut down
+     */
+    private boolean await(long timeoutMillis) {
+
+        try {
+            wait(timeoutMillis);
+            return false;
+        } catch (InterruptedException e) {
+            log.warn("SCIM coalescing flusher interrupted. Dispatching the held operations and shutting down.");
+            shutdown = true;
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the operations of the window in the journal by the merged one and hands it to the
+     * dispatcher. Failures are left to the journal replay, or counted as failed operations in the
+     * provisioning metrics if there is no journal.
+     */
+    private void dispatch(Window window) {
+
+        long journalSequence = 0;
+        if (journal != null) {
+            try {
+                journalSequence = window.journalSequences.size() == 1 && window.entity != null ?
+                        window.journalSequences.get(0) : journal.coalesce(window.journalSequences, window.entity);
+            } catch (IdentityProvisioningException e) {
+                log.error("Error while recording the merged operation on " + window.entityKey + ". Leaving its "
+                        + "operations to the journal replay.", e);
+                for (Long sequence : window.journalSequences) {
+                    journal.defer(sequence);
+                }
+                return;
+            }
+            if (journalSequence == 0) {
+                return;
+            }
+        }
+        if (window.entity == null) {
+            return;
+        }
+
+        try {
+            dispatcher.dispatch(window.entity, journalSequence);
+        } catch (IdentityProvisioningException e) {
+            handleDispatchFailure(window, journalSequence, e);
+        } catch (RuntimeException e) {
+            handleDispatchFailure(window, journalSequence, e);
+        }
+    }
+
+    private void handleDispatchFailure(Window window, long journalSequence, Exception e) {
+
+        if (journal != null) {
+            log.warn("Could not dispatch " + window.entity.getEntityType() + " : " + window.entity.getEntityName()
+                    + ". Leaving it to the journal replay : " + e.getMessage());
+            journal.defer(journalSequence);
+        } else {
+            log.error("Error while provisioning " + window.entity.getEntityType() + " : "
+                    + window.entity.getEntityName(), e);
+            ProvisioningMetrics.getInstance().recordFailure(window.entity.getEntityType(),
+                    window.entity.getOperation());
+        }
+    }
+
+    /**
+     * Operations on an entity held until the window expires, merged into one.
+     */
+    private class Window {
+
+        private final String entityKey;
+        private final long deadline;
+        // sequence numbers of the merged operations in the journal, in submission order.
+        private final List<Long> journalSequences = new ArrayList<>(2);
+        // null once a creation was cancelled by a deletion.
+        private ProvisioningEntity entity;
+
+        Window(String entityKey, ProvisioningEntity entity, long journalSequence, long deadline) {
+
+            this.entityKey = entityKey;
+            this.entity = entity;
+            this.deadline = deadline;
+            journalSequences.add(journalSequence);
+        }
+
+        /**
+         * @return false if the operation cannot be merged into the window
+         */
+        boolean merge(ProvisioningEntity next) {
+
+            if (entity == null) {
+                // the creation was cancelled, so the entity does not exist on the SCIM target.
+                if (next.getOperation() != ProvisioningOperation.POST) {
+                    return false;
+                }
+                entity = next;
+                return true;
+            }
+            if (isGroupRename(entity) || isGroupRename(next)) {
+                return false;
+            }
+
+            ProvisioningOperation current = entity.getOperation();
+            ProvisioningOperation operation = next.getOperation();
+            if (operation == ProvisioningOperation.DELETE) {
+                if (current == ProvisioningOperation.POST) {
+                    entity = null;
+                    savedCallCount.addAndGet(2);
+                    return true;
+                }
+                if (current == ProvisioningOperation.PUT || current == ProvisioningOperation.PATCH) {
+                    entity = next;
+                    savedCallCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+            if (operation != ProvisioningOperation.PUT && operation != ProvisioningOperation.PATCH) {
+                return false;
+            }
+
+            ProvisioningOperation mergedOperation;
+            if (current == ProvisioningOperation.POST) {
+                mergedOperation = ProvisioningOperation.POST;
+            } else if (current == ProvisioningOperation.PUT || operation == ProvisioningOperation.PUT) {
+                mergedOperation = ProvisioningOperation.PUT;
+            } else if (current == ProvisioningOperation.PATCH) {
+                mergedOperation = ProvisioningOperation.PATCH;
+            } else {
+                return false;
+            }
+
+            // a replacement of an existing entity leaves nothing of the updates before it.
+            Map<ClaimMapping, List<String>> attributes = current != ProvisioningOperation.POST
+                    && operation == ProvisioningOperation.PUT ? next.getAttributes() :
+                    mergeAttributes(entity.getAttributes(), next.getAttributes());
+            ProvisioningEntity merged = new ProvisioningEntity(entity.getEntityType(), entity.getEntityName(),
+                    mergedOperation, attributes);
+            merged.setJitProvisioning(entity.isJitProvisioning());
+            merged.setIdentifier(next.getIdentifier() != null ? next.getIdentifier() : entity.getIdentifier());
+            entity = merged;
+            savedCallCount.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static boolean isGroupRename(ProvisioningEntity entity) {
+
+        if (entity.getEntityType() != ProvisioningEntityType.GROUP || entity.getAttributes() == null) {
+            return false;
+        }
+        for (ClaimMapping claimMapping : entity.getAttributes().keySet()) {
+            if (IdentityProvisioningConstants.OLD_GROUP_NAME_CLAIM_URI.equals(getClaimUri(claimMapping))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the attributes of both operations, the later values replacing the earlier ones of a claim
+     */
+    private static Map<ClaimMapping, List<String>> mergeAttributes(Map<ClaimMapping, List<String>> earlier,
+                                                                   Map<ClaimMapping, List<String>> later) {
+
+        Map<String, Map.Entry<ClaimMapping, List<String>>> byClaim = new LinkedHashMap<>();
+        if (earlier != null) {
+            for (Map.Entry<ClaimMapping, List<String>> attribute : earlier.entrySet()) {
+                byClaim.put(getClaimUri(attribute.getKey()), attribute);
+            }
+        }
+        if (later != null) {
+            for (Map.Entry<ClaimMapping, List<String>> attribute : later.entrySet()) {
+                byClaim.put(getClaimUri(attribute.getKey()), attribute);
+            }
+        }
+        Map<ClaimMapping, List<String>> merged = new HashMap<>();
+        for (Map.Entry<ClaimMapping, List<String>> attribute : byClaim.values()) {
+            merged.put(attribute.getKey(), attribute.getValue());
+        }
+        return merged;
+    }
+
+    private static String getClaimUri(ClaimMapping claimMapping) {
+
+        if (claimMapping.getLocalClaim() != null && claimMapping.getLocalClaim().getClaimUri() != null) {
+            return claimMapping.getLocalClaim().getClaimUri();
+        }
+        return claimMapping.getRemoteClaim() != null ? claimMapping.getRemoteClaim().getClaimUri() : null;
+    }
+}
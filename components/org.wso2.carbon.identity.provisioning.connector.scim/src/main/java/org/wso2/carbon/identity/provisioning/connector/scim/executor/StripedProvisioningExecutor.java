@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs provisioning tasks on a fixed set of lanes, each drained by a single worker thread. Tasks are
+ * assigned to a lane by hashing their stripe key, so tasks sharing a key (e.g. operations on the same
+ * user) run one after the other in submission order, while tasks with different keys run in parallel.
+ * <p/>
+ * Each lane holds a bounded number of tasks. A task taking a free slot is handed to the lane straight
+ * away. Once the lane is full, the rejection policy decides whether the caller waits for a slot, is
+ * rejected, or waits for its task to run. Waiting callers are released with a rejection on shutdown.
+ */
+public class StripedProvisioningExecutor {
+
+    private static final Log log = LogFactory.getLog(StripedProvisioningExecutor.class);
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger EXECUTOR_COUNT = new AtomicInteger();
+
+    /**
+     * Provisioning work run on a lane.
+     */
+    public interface ProvisioningTask {
+
+        /**
+         * @throws IdentityProvisioningException if the provisioning fails
+         */
+        void run() throws IdentityProvisioningException;
+
+        /**
+         * Called on the worker thread when the task failed with no caller waiting for it.
+         *
+         * @param e failure of the task
+         */
+        void onFailure(IdentityProvisioningException e);
+    }
+
+    private final Lane[] lanes;
+    private final AsyncRejectionPolicy rejectionPolicy;
+    private final AtomicInteger nextUnkeyedLane = new AtomicInteger();
+
+    /**
+     * @param stripeCount     number of lanes, i.e. the maximum number of tasks running in parallel
+     * @param queueCapacity   maximum number of tasks waiting across all lanes
+     * @param rejectionPolicy what to do with a task when its lane is full
+     */
+    public StripedProvisioningExecutor(int stripeCount, int queueCapacity, AsyncRejectionPolicy rejectionPolicy) {
+
+        int laneCount = Math.max(1, stripeCount);
+        int laneCapacity = Math.max(1, queueCapacity / laneCount);
+        int executorId = EXECUTOR_COUNT.incrementAndGet();
+        this.rejectionPolicy = rejectionPolicy;
+
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(laneCapacity, "SCIMProvisioningWorker-" + executorId + "-" + i);
+        }
+    }
+
+    /**
+     * @param stripeKey key identifying the entity the task works on. Tasks without a key are spread
+     *                  across the lanes and are not ordered.
+     * @param task      provisioning task
+     * @throws IdentityProvisioningException if the task is rejected, or the caller is interrupted while
+     *                                       waiting for its lane
+     */
+    public void submit(String stripeKey, final Runnable task) throws IdentityProvisioningException {
+
+        submit(stripeKey, new ProvisioningTask() {
+            @Override
+            public void run() {
+                task.run();
+            }
+
+            @Override
+            public void onFailure(IdentityProvisioningException e) {
+                // a runnable does not throw it.
+            }
+        });
+    }
+
+    /**
+     * @param stripeKey key identifying the entity the task works on. Tasks without a key are spread
+     *                  across the lanes and are not ordered.
+     * @param task      provisioning task
+     * @throws IdentityProvisioningException if the task is rejected, if the caller is interrupted while
+     *                                       waiting for its lane, or if the task ran on behalf of the caller
+     *                                       under the {@link AsyncRejectionPolicy#SYNC} policy and failed
+     */
+    public void submit(String stripeKey, ProvisioningTask task) throws IdentityProvisioningException {
+
+        Lane lane = lanes[getLaneIndex(stripeKey)];
+        try {
+            if (rejectionPolicy == AsyncRejectionPolicy.BLOCK) {
+                lane.acquireSlot();
+                lane.execute(task);
+            } else if (lane.tryAcquireSlot()) {
+                lane.execute(task);
+            } else if (rejectionPolicy == AsyncRejectionPolicy.SYNC) {
+                lane.executeAndWait(task);
+            } else {
+                throw new RejectedExecutionException("Asynchronous provisioning lane is full");
+            }
+        } catch (RejectedExecutionException e) {
+            throw new IdentityProvisioningException("Asynchronous provisioning queue is full or shut down", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdentityProvisioningException("Interrupted while waiting for the asynchronous provisioning "
+                    + "queue", e);
+        }
+    }
+
+    /**
+     * @return number of lanes
+     */
+    public int getStripeCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return number of tasks waiting in each lane, indexed by lane
+     */
+    public int[] getLaneDepths() {
+
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].worker.getQueue().size();
+        }
+        return depths;
+    }
+
+    /**
+     * @return number of tasks waiting across all lanes
+     */
+    public int getQueueSize() {
+
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.worker.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * Stops accepting new tasks and waits for the queued ones to complete. Callers waiting for a lane
+     * are rejected.
+     *
+     * @param timeoutMillis maximum time to wait for all lanes to drain
+     */
+    public void shutdown(long timeoutMillis) {
+
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int droppedTasks = 0;
+        try {
+            for (Lane lane : lanes) {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                if (!lane.worker.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    droppedTasks += lane.worker.shutdownNow().size();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Lane lane : lanes) {
+                droppedTasks += lane.worker.shutdownNow().size();
+            }
+        }
+
+        if (droppedTasks > 0) {
+            log.warn("Asynchronous SCIM provisioning queue did not drain within " + timeoutMillis + "ms. "
+                    + droppedTasks + " pending provisioning tasks were dropped.");
+        }
+    }
+
+    private int getLaneIndex(String stripeKey) {
+
+        if (stripeKey == null) {
+            return (nextUnkeyedLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+        }
+        int hash = stripeKey.hashCode();
+        // spread the high bits, since similar user names tend to differ only in the last characters.
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Single worker draining the tasks of a lane, with a count of the slots its tasks hold.
+     */
+    private static class Lane {
+
+        private final ThreadPoolExecutor worker;
+        private final int capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        // guarded by lock.
+        private int slotsInUse;
+        private boolean shutdown;
+
+        Lane(int capacity, String threadName) {
+
+            this.capacity = capacity;
+            // the slots bound the lane, so the queue itself is unbounded and never rejects a handed task.
+            worker = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(threadName),
+                    new ThreadPoolExecutor.AbortPolicy());
+            // let idle workers die so that a discarded connector does not pin its threads.
+            worker.allowCoreThreadTimeOut(true);
+        }
+
+        void acquireSlot() throws InterruptedException {
+
+            lock.lockInterruptibly();
+            try {
+                while (slotsInUse >= capacity && !shutdown) {
+                    notFull.await();
+                }
+                if (shutdown) {
+                    throw new RejectedExecutionException("Asynchronous provisioning executor is shut down");
+                }
+                slotsInUse++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean tryAcquireSlot() {
+
+            lock.lock();
+            try {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Asynchronous provisioning executor is shut down");
+                }
+                if (slotsInUse >= capacity) {
+                    return false;
+                }
+                slotsInUse++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void releaseSlot() {
+
+            lock.lock();
+            try {
+                slotsInUse--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hands a task holding a slot to the worker. The slot is freed once the task has run.
+         */
+        void execute(final ProvisioningTask task) {
+
+            try {
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (IdentityProvisioningException e) {
+                            task.onFailure(e);
+                        } finally {
+                            releaseSlot();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                releaseSlot();
+                throw e;
+            }
+        }
+
+        /**
+         * Hands a task to the worker without a slot, and holds the caller until it has run. The task still
+         * runs after the tasks queued before it, so per-key ordering is kept, and the lane overshoots its
+         * capacity by at most the number of waiting callers. A failure of the task is thrown to the caller.
+         */
+        void executeAndWait(final ProvisioningTask task) throws InterruptedException,
+                IdentityProvisioningException {
+
+            final CountDownLatch done = new CountDownLatch(1);
+            final IdentityProvisioningException[] failure = new IdentityProvisioningException[1];
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (IdentityProvisioningException e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            done.await();
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        void shutdown() {
+
+            lock.lock();
+            try {
+                shutdown = true;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            worker.shutdown();
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+
+        private final String threadName;
+
+        LaneThreadFactory(String threadName) {
+            this.threadName = threadName;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.fanout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of an operation on the fan-out targets, which the caller waits on once the primary target has
+ * completed it.
+ */
+public class FanOutCompletion {
+
+    private final String description;
+    private final int targetCount;
+    private final int requiredSuccesses;
+    private final long timeout;
+    // guarded by this.
+    private int successCount;
+    private final List<String> failedTargets = new ArrayList<>();
+
+    /**
+     * @param description       description of the operation, such as {@code creating user alice}
+     * @param targetCount       number of fan-out targets the operation was sent to
+     * @param requiredSuccesses number of fan-out targets that must complete the operation
+     * @param timeout           maximum time in milliseconds to wait for them
+     */
+    FanOutCompletion(String description, int targetCount, int requiredSuccesses, long timeout) {
+
+        this.description = description;
+        this.targetCount = targetCount;
+        this.requiredSuccesses = requiredSuccesses;
+        this.timeout = timeout;
+    }
+
+    synchronized void succeeded() {
+
+        successCount++;
+        notifyAll();
+    }
+
+    synchronized void failed(String target) {
+
+        failedTargets.add(target);
+        notifyAll();
+    }
+
+    /**
+     * Waits until enough fan-out targets have completed the operation. Targets still sending it once
+     * this returns complete it in the background.
+     *
+     * @throws FanOutException if too many targets failed, or did not complete the operation in time
+     */
+    public synchronized void await() throws FanOutException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (successCount < requiredSuccesses) {
+            if (targetCount - failedTargets.size() < requiredSuccesses) {
+                throw new FanOutException("Error while " + description + ". SCIM targets " + failedTargets
+                        + " failed, only " + successCount + " of the " + requiredSuccesses
+                        + " required targets completed it");
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new FanOutException("Error while " + description + ". Only " + successCount + " of the "
+                        + requiredSuccesses + " required SCIM targets completed it within " + timeout + "ms");
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FanOutException("Interrupted while waiting for the SCIM targets " + description);
+            }
+        }
+    }
+}
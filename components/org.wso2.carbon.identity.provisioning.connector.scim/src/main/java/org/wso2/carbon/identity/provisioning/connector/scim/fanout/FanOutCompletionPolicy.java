@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.fanout;
+
+/**
+ * When a provisioning call sending to several SCIM targets returns.
+ */
+public enum FanOutCompletionPolicy {
+
+    /**
+     * Wait until every target has completed the operation. The call fails if any target fails.
+     */
+    ALL("all"),
+
+    /**
+     * Wait until a majority of the targets, the primary one included, has completed the operation. The
+     * call fails once a majority can no longer be reached.
+     */
+    QUORUM("quorum"),
+
+    /**
+     * Return once the primary target has completed the operation. The other targets complete it in the
+     * background. Their failures are retried from the journals of the targets if journaling is enabled,
+     * and only logged otherwise.
+     */
+    PRIMARY("primary");
+
+    private final String value;
+
+    FanOutCompletionPolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @param value configured policy name
+     * @return matching policy, or {@link #ALL} if the value is not recognised
+     */
+    public static FanOutCompletionPolicy fromValue(String value) {
+        for (FanOutCompletionPolicy policy : values()) {
+            if (policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        return ALL;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.fanout;
+
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+
+/**
+ * Thrown once an operation completed on the primary SCIM target but not on enough of the other targets
+ * to satisfy the completion policy.
+ */
+public class FanOutException extends IdentityProvisioningException {
+
+    private static final long serialVersionUID = 3866186712469731871L;
+
+    public FanOutException(String message) {
+        super(message);
+    }
+}
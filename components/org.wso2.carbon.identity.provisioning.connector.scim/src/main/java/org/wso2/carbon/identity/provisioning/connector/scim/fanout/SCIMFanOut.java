@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.fanout;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMResourceClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends provisioning operations to the SCIM targets mirroring the primary one, once the primary target
+ * has completed them, so that a target never holds a change the primary target rejected. The payload of
+ * an operation is built once by the caller and shared by all targets, which send it concurrently. The
+ * completion policy decides how many targets the caller waits for. Targets with a journal record the
+ * operation first and retry it if it fails, whatever the completion policy.
+ * <p/>
+ * Targets are sent operations that hold whatever state a target was in, such as replacing a user that
+ * may not exist there yet, so operations the primary target replays or reconciles can be sent to the
+ * targets again.
+ */
+public class SCIMFanOut {
+
+    private static final Log log = LogFactory.getLog(SCIMFanOut.class);
+
+    private final List<SCIMFanOutTarget> targets;
+    private final FanOutCompletionPolicy completionPolicy;
+    private final long timeout;
+
+    /**
+     * @param targets          targets mirroring the primary one
+     * @param completionPolicy when a provisioning call returns
+     * @param timeout          maximum time in milliseconds a provisioning call waits for the targets
+     */
+    public SCIMFanOut(List<SCIMFanOutTarget> targets, FanOutCompletionPolicy completionPolicy, long timeout) {
+
+        this.targets = new ArrayList<>(targets);
+        this.completionPolicy = completionPolicy;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Queues the operation on every target, once the primary target has completed it.
+     *
+     * @param key         key of the user or group the operation is on, ordering it on each target
+     * @param description description of the operation, such as {@code creating user alice}
+     * @param entity      user or group the operation was built from, recorded in the journals of the targets
+     * @param operation   operation to send
+     * @return completion of the operation, to wait on
+     */
+    public FanOutCompletion submit(String key, final String description, ProvisioningEntity entity,
+                                   final TargetOperation operation) {
+
+        final FanOutCompletion completion = new FanOutCompletion(description, targets.size(),
+                getRequiredSuccesses(), timeout);
+        for (final SCIMFanOutTarget target : targets) {
+            final long sequence;
+            try {
+                sequence = target.record(key, entity);
+            } catch (IdentityProvisioningException e) {
+                log.error("Error while " + description + " in SCIM target " + target.getName(), e);
+                completion.failed(target.getName());
+                continue;
+            }
+            try {
+                target.submit(key, new Runnable() {
+                    @Override
+                    public void run() {
+
+                        boolean sent = false;
+                        try {
+                            if (target.beginSend(sequence)) {
+                                operation.send(target.getClient());
+                                sent = true;
+                            } else if (log.isDebugEnabled()) {
+                                log.debug("Not " + description + " in SCIM target " + target.getName() + " now, "
+                                        + "since it was superseded or an earlier operation is pending in the "
+                                        + "journal of the target");
+                            }
+                        } catch (Exception e) {
+                            log.error("Error while " + description + " in SCIM target " + target.getName(), e);
+                            target.fail(sequence, e);
+                        } finally {
+                            if (sent) {
+                                target.acknowledge(sequence);
+                                completion.succeeded();
+                            } else {
+                                completion.failed(target.getName());
+                            }
+                        }
+                    }
+                });
+            } catch (IdentityProvisioningException e) {
+                log.error("Error while " + description + " in SCIM target " + target.getName(), e);
+                target.fail(sequence, null);
+                completion.failed(target.getName());
+            }
+        }
+        return completion;
+    }
+
+    /**
+     * @return number of targets that must complete an operation besides the primary one
+     */
+    private int getRequiredSuccesses() {
+
+        switch (completionPolicy) {
+            case PRIMARY:
+                return 0;
+            case QUORUM:
+                // a majority of the targets and the primary one, which has completed the operation.
+                return (targets.size() + 1) / 2;
+            default:
+                return targets.size();
+        }
+    }
+
+    /**
+     * @return targets mirroring the primary one
+     */
+    public List<SCIMFanOutTarget> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    /**
+     * Sends the operations queued for the targets, waiting for at most the given time, and closes the
+     * connections to the targets.
+     *
+     * @param timeoutMillis maximum time to wait for the queued operations of all targets
+     */
+    public void shutdown(long timeoutMillis) {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (SCIMFanOutTarget target : targets) {
+            target.close(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Operation sent to each target through its own client.
+     */
+    public interface TargetOperation {
+
+        /**
+         * @param client client of the target
+         * @throws IdentityProvisioningException
+         */
+        void send(SCIMResourceClient client) throws IdentityProvisioningException;
+    }
+
+    /**
+     * Builds the operation sent to a target for a user or group replayed from the journal of the target.
+     */
+    public interface TargetOperationFactory {
+
+        /**
+         * @param entity          user or group recorded in the journal
+         * @param passwordOmitted whether the entity carried a password claim, which was not journaled
+         * @return operation to send
+         * @throws IdentityProvisioningException if the operation cannot be built
+         */
+        TargetOperation create(ProvisioningEntity entity, boolean passwordOmitted)
+                throws IdentityProvisioningException;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.fanout;
+
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.connector.scim.executor.AsyncRejectionPolicy;
+import org.wso2.carbon.identity.provisioning.connector.scim.executor.StripedProvisioningExecutor;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointUnavailableException;
+import org.wso2.carbon.identity.provisioning.connector.scim.journal.ProvisioningJournal;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMMemberResolver;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMResourceClient;
+
+/**
+ * SCIM target provisioned alongside the primary one, with its own connections, id cache and workers, so
+ * that a slow or failing target holds up none of the others. Operations on the same user or group are
+ * sent to the target in order. Once the queue of the target is full, further operations fail for it
+ * straight away.
+ * <p/>
+ * With a journal, each operation is recorded before it is queued, and those that fail or could not be
+ * queued are retried by the replay thread of the journal, like the operations of the primary target.
+ */
+public class SCIMFanOutTarget {
+
+    private final String name;
+    private final SCIMHttpTransport transport;
+    private final SCIMResourceClient client;
+    private final SCIMMemberResolver memberResolver;
+    private final StripedProvisioningExecutor executor;
+    // set before the first operation is submitted, null if journaling is disabled.
+    private volatile ProvisioningJournal journal;
+
+    /**
+     * @param name           name of the target, used in logs and errors
+     * @param transport      transport used to reach the target
+     * @param client         client of the target
+     * @param memberResolver resolver used by the client, or null if it has none
+     * @param threads        maximum number of operations sent to the target in parallel
+     * @param queueCapacity  maximum number of operations waiting to be sent to the target
+     */
+    public SCIMFanOutTarget(String name, SCIMHttpTransport transport, SCIMResourceClient client,
+                            SCIMMemberResolver memberResolver, int threads, int queueCapacity) {
+
+        this.name = name;
+        this.transport = transport;
+        this.client = client;
+        this.memberResolver = memberResolver;
+        this.executor = new StripedProvisioningExecutor(threads, queueCapacity, AsyncRejectionPolicy.REJECT);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    SCIMResourceClient getClient() {
+        return client;
+    }
+
+    /**
+     * Records the operations of the target in the given journal, and starts retrying the failed ones.
+     *
+     * @param journal          journal of the target
+     * @param operationFactory builds the operations replayed from the journal
+     * @param replayInterval   time in milliseconds between two replay rounds
+     * @param syncInterval     time in milliseconds between two syncs
+     */
+    public void startJournal(ProvisioningJournal journal, final SCIMFanOut.TargetOperationFactory operationFactory,
+                             long replayInterval, long syncInterval) {
+
+        this.journal = journal;
+        journal.start(new ProvisioningJournal.ReplayHandler() {
+            @Override
+            public boolean replay(ProvisioningEntity entity, boolean passwordOmitted)
+                    throws IdentityProvisioningException {
+                try {
+                    operationFactory.create(entity, passwordOmitted).send(client);
+                    return true;
+                } catch (IdentityProvisioningException e) {
+                    if (isEndpointUnavailable(e)) {
+                        return false;
+                    }
+                    throw e;
+                }
+            }
+        }, replayInterval, syncInterval);
+    }
+
+    void submit(String key, Runnable task) throws IdentityProvisioningException {
+        executor.submit(key, task);
+    }
+
+    /**
+     * @return sequence number of the operation in the journal, or 0 if journaling is disabled
+     */
+    long record(String key, ProvisioningEntity entity) throws IdentityProvisioningException {
+        return journal != null ? journal.append(key, entity) : 0;
+    }
+
+    /**
+     * @return true if the operation is to be sent now, false if it was superseded or is deferred behind a
+     * failed operation on the same user or group
+     */
+    boolean beginSend(long sequence) {
+        return journal == null || journal.beginSend(sequence);
+    }
+
+    void acknowledge(long sequence) {
+
+        if (journal != null) {
+            journal.acknowledge(sequence);
+        }
+    }
+
+    /**
+     * Leaves the operation to the replay thread of the journal, counting an attempt unless the target was
+     * not accepting requests or the operation was never sent.
+     *
+     * @param error error the operation failed with, or null if it could not be queued
+     */
+    void fail(long sequence, Exception error) {
+
+        if (journal == null) {
+            return;
+        }
+        if (error == null || isEndpointUnavailable(error)) {
+            journal.defer(sequence);
+        } else {
+            journal.fail(sequence);
+        }
+    }
+
+    /**
+     * @return number of operations waiting to be sent to the target
+     */
+    public int getBacklog() {
+        return executor.getQueueSize();
+    }
+
+    /**
+     * @return number of operations recorded in the journal of the target and not acknowledged yet, or 0 if
+     * journaling is disabled
+     */
+    public int getJournalBacklog() {
+
+        ProvisioningJournal currentJournal = journal;
+        return currentJournal != null ? currentJournal.getUnacknowledgedCount() : 0;
+    }
+
+    /**
+     * Sends the queued operations, waiting for at most the given time, closes the journal and the
+     * connections to the target.
+     *
+     * @param timeoutMillis maximum time to wait for the queued operations
+     */
+    void close(long timeoutMillis) {
+
+        executor.shutdown(timeoutMillis);
+        if (journal != null) {
+            journal.close();
+        }
+        if (memberResolver != null) {
+            memberResolver.shutdown();
+        }
+        transport.close();
+    }
+
+    private static boolean isEndpointUnavailable(Throwable e) {
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EndpointUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+/**
+ * Limits the number of requests in flight to an endpoint, adapting the limit with AIMD: the limit grows
+ * by one for every limit's worth of fast, successful requests sent while it was fully used, and shrinks
+ * by a fixed ratio on every failed or slow request.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThreshold;
+    private double limit;
+    private int inFlight;
+
+    /**
+     * @param initialLimit     initial number of requests allowed in flight
+     * @param minLimit         lowest limit
+     * @param maxLimit         highest limit
+     * @param latencyThreshold latency in milliseconds above which a request counts as slow
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThreshold) {
+
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyThreshold = latencyThreshold;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * @param timeoutMillis time to wait for the limit to allow the request
+     * @return true if the request may be sent, false if the limit did not allow it in time
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (inFlight >= (int) limit) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * @param latencyMillis time the request took
+     * @param failed        whether the request failed in a way that suggests an overloaded endpoint
+     */
+    public synchronized void release(long latencyMillis, boolean failed) {
+
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        if (failed || latencyMillis > latencyThreshold) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        } else if (saturated) {
+            // grow only when the limit is what held requests back.
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return current number of requests allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+import java.util.List;
+
+/**
+ * Opens once the failure rate over the most recent requests reaches a threshold, failing further
+ * requests straight away. After the open duration a few probe requests are let through; the circuit
+ * closes if they all succeed and opens again as soon as one fails.
+ * <p/>
+ * Each request carries the permit it was sent with, so that results of requests sent before the last
+ * transition, such as successes arriving late from before the circuit opened, are not taken for the
+ * outcome of a probe.
+ */
+public class CircuitBreaker {
+
+    private final String endpoint;
+    private final int failureRateThreshold;
+    private final long openDuration;
+    private final int halfOpenProbes;
+    private final List<EndpointGuardListener> listeners;
+
+    private final boolean[] outcomes;
+    private int outcomeCount;
+    private int failureCount;
+    private int nextOutcome;
+
+    private CircuitState state = CircuitState.CLOSED;
+    // permit handed out to the requests sent in the current state.
+    private Permit permit = new Permit(false);
+    private long openedAt;
+    private int probePermits;
+    private int probeSuccesses;
+
+    /**
+     * @param endpoint             SCIM endpoint URL, reported to the listeners
+     * @param failureRateThreshold percentage of failed requests at which the circuit opens
+     * @param windowSize           number of most recent requests the failure rate is computed on
+     * @param openDuration         time in milliseconds the circuit stays open
+     * @param halfOpenProbes       number of successful probes needed to close the circuit
+     * @param listeners            listeners notified of state transitions
+     */
+    public CircuitBreaker(String endpoint, int failureRateThreshold, int windowSize, long openDuration,
+                          int halfOpenProbes, List<EndpointGuardListener> listeners) {
+
+        this.endpoint = endpoint;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        this.listeners = listeners;
+        this.outcomes = new boolean[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Identifies the state a request was sent in. Results reported with the permit of an earlier state
+     * are ignored.
+     */
+    public static final class Permit {
+
+        private final boolean probe;
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * @return permit to report the result of the request with, or null if the request may not be sent
+     */
+    public synchronized Permit tryAcquire() {
+
+        if (state == CircuitState.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDuration) {
+                return null;
+            }
+            probePermits = halfOpenProbes;
+            probeSuccesses = 0;
+            transition(CircuitState.HALF_OPEN);
+        }
+        if (state == CircuitState.HALF_OPEN) {
+            if (probePermits == 0) {
+                return null;
+            }
+            probePermits--;
+        }
+        return permit;
+    }
+
+    /**
+     * Gives back a permit acquired for a request that was not sent after all.
+     *
+     * @param requestPermit permit returned by {@link #tryAcquire()}
+     */
+    public synchronized void cancel(Permit requestPermit) {
+
+        if (requestPermit == permit && requestPermit.probe) {
+            probePermits++;
+        }
+    }
+
+    /**
+     * @param requestPermit permit returned by {@link #tryAcquire()}
+     * @param failed        whether the request failed
+     */
+    public synchronized void onResult(Permit requestPermit, boolean failed) {
+
+        if (requestPermit != permit) {
+            // sent before the last transition, so it tells nothing about the current state.
+            return;
+        }
+        if (state == CircuitState.HALF_OPEN) {
+            if (failed) {
+                open();
+            } else if (++probeSuccesses >= halfOpenProbes) {
+                resetWindow();
+                transition(CircuitState.CLOSED);
+            }
+        } else if (state == CircuitState.CLOSED) {
+            if (outcomeCount == outcomes.length) {
+                if (outcomes[nextOutcome]) {
+                    failureCount--;
+                }
+            } else {
+                outcomeCount++;
+            }
+            outcomes[nextOutcome] = failed;
+            nextOutcome = (nextOutcome + 1) % outcomes.length;
+            if (failed) {
+                failureCount++;
+            }
+            if (outcomeCount == outcomes.length && failureCount * 100 >= failureRateThreshold * outcomeCount) {
+                open();
+            }
+        }
+    }
+
+    public synchronized CircuitState getState() {
+        return state;
+    }
+
+    private void open() {
+
+        openedAt = System.currentTimeMillis();
+        transition(CircuitState.OPEN);
+    }
+
+    private void resetWindow() {
+
+        outcomeCount = 0;
+        failureCount = 0;
+        nextOutcome = 0;
+    }
+
+    private void transition(CircuitState newState) {
+
+        CircuitState previousState = state;
+        state = newState;
+        permit = new Permit(newState == CircuitState.HALF_OPEN);
+        for (EndpointGuardListener listener : listeners) {
+            listener.onStateChange(endpoint, previousState, newState);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the requests sent to a SCIM endpoint with an {@link AdaptiveConcurrencyLimiter} and a
+ * {@link CircuitBreaker}, so that a slow or failing endpoint sheds load instead of holding the
+ * provisioning threads.
+ */
+public class EndpointGuard {
+
+    private final String endpoint;
+    private final EndpointGuardConfig config;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * @param endpoint  SCIM endpoint URL
+     * @param config    limiter and circuit breaker settings
+     * @param listeners listeners notified of circuit state transitions
+     */
+    EndpointGuard(String endpoint, EndpointGuardConfig config, List<EndpointGuardListener> listeners) {
+
+        this.endpoint = endpoint;
+        this.config = config;
+        this.limiter = new AdaptiveConcurrencyLimiter(config.getInitialLimit(), config.getMinLimit(),
+                config.getMaxLimit(), config.getLatencyThreshold());
+        this.circuitBreaker = new CircuitBreaker(endpoint, config.getFailureRateThreshold(),
+                config.getWindowSize(), config.getOpenDuration(), config.getHalfOpenProbes(), listeners);
+    }
+
+    /**
+     * Waits for the endpoint to accept one more request. Every successful call must be followed by
+     * {@link #release(CircuitBreaker.Permit, long, boolean)}.
+     *
+     * @return permit to release once the request completes
+     * @throws EndpointUnavailableException if the circuit is open or the concurrency limit is reached
+     */
+    public CircuitBreaker.Permit acquire() throws EndpointUnavailableException {
+
+        CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            throw new EndpointUnavailableException("SCIM endpoint " + endpoint + " is unavailable. Circuit is "
+                    + circuitBreaker.getState());
+        }
+        boolean acquired;
+        try {
+            acquired = limiter.acquire(config.getAcquireTimeout());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            circuitBreaker.cancel(permit);
+            throw new EndpointUnavailableException("SCIM endpoint " + endpoint + " is unavailable. "
+                    + limiter.getInFlight() + " requests are already in flight");
+        }
+        return permit;
+    }
+
+    /**
+     * @param permit       permit returned by {@link #acquire()}
+     * @param latencyNanos time the request took
+     * @param failed       whether the request failed in a way that suggests an unhealthy endpoint
+     */
+    public void release(CircuitBreaker.Permit permit, long latencyNanos, boolean failed) {
+
+        limiter.release(TimeUnit.NANOSECONDS.toMillis(latencyNanos), failed);
+        circuitBreaker.onResult(permit, failed);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public CircuitState getState() {
+        return circuitBreaker.getState();
+    }
+
+    /**
+     * @return current number of requests allowed in flight
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    public int getInFlight() {
+        return limiter.getInFlight();
+    }
+}
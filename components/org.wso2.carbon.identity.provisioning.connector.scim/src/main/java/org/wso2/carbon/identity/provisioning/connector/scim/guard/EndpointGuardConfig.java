@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+/**
+ * Concurrency limit and circuit breaker settings of an {@link EndpointGuard}.
+ */
+public class EndpointGuardConfig {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 10;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 100;
+    public static final int DEFAULT_LATENCY_THRESHOLD = 2000;
+    public static final int DEFAULT_ACQUIRE_TIMEOUT = 1000;
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_OPEN_DURATION = 30000;
+    public static final int DEFAULT_HALF_OPEN_PROBES = 3;
+
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private int latencyThreshold = DEFAULT_LATENCY_THRESHOLD;
+    private int acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    private int failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int openDuration = DEFAULT_OPEN_DURATION;
+    private int halfOpenProbes = DEFAULT_HALF_OPEN_PROBES;
+
+    /**
+     * @return number of requests allowed in flight before any latency has been observed
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+    }
+
+    /**
+     * @return lowest number of requests the limit can shrink to
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    /**
+     * @return highest number of requests the limit can grow to
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return latency in milliseconds above which a request is taken as a sign of an overloaded endpoint
+     */
+    public int getLatencyThreshold() {
+        return latencyThreshold;
+    }
+
+    public void setLatencyThreshold(int latencyThreshold) {
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * @return time in milliseconds a request waits for the limit to allow it before failing
+     */
+    public int getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    public void setAcquireTimeout(int acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * @return percentage of failed requests in the window at which the circuit opens
+     */
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public void setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * @return number of most recent requests the failure rate is computed on
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return time in milliseconds the circuit stays open before probe requests are let through
+     */
+    public int getOpenDuration() {
+        return openDuration;
+    }
+
+    public void setOpenDuration(int openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @return number of successful probe requests needed to close the circuit again
+     */
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    public void setHalfOpenProbes(int halfOpenProbes) {
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EndpointGuardConfig)) {
+            return false;
+        }
+        EndpointGuardConfig that = (EndpointGuardConfig) o;
+        return initialLimit == that.initialLimit && minLimit == that.minLimit && maxLimit == that.maxLimit
+                && latencyThreshold == that.latencyThreshold && acquireTimeout == that.acquireTimeout
+                && failureRateThreshold == that.failureRateThreshold && windowSize == that.windowSize
+                && openDuration == that.openDuration && halfOpenProbes == that.halfOpenProbes;
+    }
+
+    @Override
+    public int hashCode() {
+
+        int result = initialLimit;
+        result = 31 * result + minLimit;
+        result = 31 * result + maxLimit;
+        result = 31 * result + latencyThreshold;
+        result = 31 * result + acquireTimeout;
+        result = 31 * result + failureRateThreshold;
+        result = 31 * result + windowSize;
+        result = 31 * result + openDuration;
+        result = 31 * result + halfOpenProbes;
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds one {@link EndpointGuard} per SCIM endpoint URL and guard configuration, shared by all the
+ * connectors sending to that endpoint, so that the limit and the health of an endpoint reflect all the
+ * traffic it receives. Connectors configuring the same endpoint differently each get a guard of their
+ * own configuration, instead of replacing the guard the others hold.
+ */
+public class EndpointGuardRegistry {
+
+    private static final Log log = LogFactory.getLog(EndpointGuardRegistry.class);
+
+    private static final ConcurrentMap<GuardKey, EndpointGuard> guards = new ConcurrentHashMap<>();
+    private static final List<EndpointGuardListener> listeners = new CopyOnWriteArrayList<>();
+
+    static {
+        listeners.add(new EndpointGuardListener() {
+            @Override
+            public void onStateChange(String endpoint, CircuitState previousState, CircuitState newState) {
+                if (newState == CircuitState.OPEN) {
+                    log.warn("Circuit of SCIM endpoint " + endpoint + " moved from " + previousState + " to "
+                            + newState + ". Requests to it fail until it recovers.");
+                } else {
+                    log.info("Circuit of SCIM endpoint " + endpoint + " moved from " + previousState + " to "
+                            + newState);
+                }
+            }
+        });
+    }
+
+    private EndpointGuardRegistry() {
+    }
+
+    /**
+     * @param endpoint SCIM endpoint URL
+     * @param config   limiter and circuit breaker settings
+     * @return guard of the endpoint with the given settings
+     */
+    public static EndpointGuard getGuard(String endpoint, EndpointGuardConfig config) {
+
+        GuardKey key = new GuardKey(endpoint, config);
+        EndpointGuard guard = guards.get(key);
+        if (guard != null) {
+            return guard;
+        }
+        EndpointGuard newGuard = new EndpointGuard(endpoint, config, listeners);
+        guard = guards.putIfAbsent(key, newGuard);
+        if (guard != null) {
+            return guard;
+        }
+        for (GuardKey existingKey : guards.keySet()) {
+            if (existingKey.endpoint.equals(endpoint) && !existingKey.config.equals(config)) {
+                log.warn("SCIM endpoint " + endpoint + " is guarded with different settings by other connectors."
+                        + " Its concurrency limit and circuit state are tracked separately for each setting.");
+                break;
+            }
+        }
+        return newGuard;
+    }
+
+    /**
+     * @return guards of all the endpoints
+     */
+    public static Collection<EndpointGuard> getGuards() {
+        return new ArrayList<>(guards.values());
+    }
+
+    /**
+     * @param listener listener to notify of circuit state transitions of every endpoint
+     */
+    public static void addListener(EndpointGuardListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(EndpointGuardListener listener) {
+        listeners.remove(listener);
+    }
+
+    private static final class GuardKey {
+
+        private final String endpoint;
+        private final EndpointGuardConfig config;
+
+        GuardKey(String endpoint, EndpointGuardConfig config) {
+
+            this.endpoint = endpoint;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GuardKey)) {
+                return false;
+            }
+            GuardKey that = (GuardKey) o;
+            return endpoint.equals(that.endpoint) && config.equals(that.config);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * endpoint.hashCode() + config.hashCode();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a SCIM endpoint whose circuit is open or whose concurrency
+ * limit is reached.
+ */
+public class EndpointUnavailableException extends IOException {
+
+    private static final long serialVersionUID = -4165723587063279134L;
+
+    public EndpointUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -18,19 +18,35 @@
 
 package org.wso2.carbon.identity.provisioning.connector.scim.internal;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.osgi.service.component.ComponentContext;
 import org.wso2.carbon.identity.provisioning.AbstractProvisioningConnectorFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
 import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.SCIMConnectorMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.RequestScheduler;
+import org.wso2.carbon.user.core.service.RealmService;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 
 /**
  * @scr.component name=
  * "org.wso2.carbon.identity.provisioning.connector.scim.internal.SCIMConnectorServiceComponent"
  * immediate="true"
+ * @scr.reference name="user.realmservice.default"
+ * interface="org.wso2.carbon.user.core.service.RealmService"
+ * cardinality="1..1" policy="dynamic" bind="setRealmService"
+ * unbind="unsetRealmService"
  */
 public class SCIMConnectorServiceComponent {
     private static Log log = LogFactory.getLog(SCIMConnectorServiceComponent.class);
+    private SCIMProvisioningConnectorFactory scimProvisioningConnectorFactory;
+    private ObjectName metricsObjectName;
+    private volatile RealmService realmService;
 
     protected void activate(ComponentContext context) {
 
@@ -39,8 +55,11 @@ public class SCIMConnectorServiceComponent {
         }
 
         try {
-            SCIMProvisioningConnectorFactory scimProvisioningConnectorFactory = new SCIMProvisioningConnectorFactory();
+            configureScheduler();
+            scimProvisioningConnectorFactory = new SCIMProvisioningConnectorFactory();
+            scimProvisioningConnectorFactory.setRealmService(realmService);
             context.getBundleContext().registerService(AbstractProvisioningConnectorFactory.class.getName(), scimProvisioningConnectorFactory, null);
+            registerMetrics();
             if (log.isDebugEnabled()) {
                 log.debug("SCIM Provisioning Connector bundle is activated");
             }
@@ -48,4 +67,89 @@ public class SCIMConnectorServiceComponent {
             log.error(" Error while activating SCIM Provisioning Connector ", e);
         }
     }
+
+    protected void deactivate(ComponentContext context) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Deactivating SCIMConnectorServiceComponent");
+        }
+
+        unregisterMetrics();
+        if (scimProvisioningConnectorFactory != null) {
+            scimProvisioningConnectorFactory.shutdown();
+            scimProvisioningConnectorFactory = null;
+        }
+    }
+
+    protected void setRealmService(RealmService realmService) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting the Realm Service");
+        }
+        this.realmService = realmService;
+        SCIMProvisioningConnectorFactory factory = scimProvisioningConnectorFactory;
+        if (factory != null) {
+            factory.setRealmService(realmService);
+        }
+    }
+
+    protected void unsetRealmService(RealmService realmService) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Unsetting the Realm Service");
+        }
+        this.realmService = null;
+        SCIMProvisioningConnectorFactory factory = scimProvisioningConnectorFactory;
+        if (factory != null) {
+            factory.setRealmService(null);
+        }
+    }
+
+    /**
+     * Sets the number of SCIM requests the node sends at a time, read once from the system properties.
+     */
+    private void configureScheduler() {
+
+        String maxConcurrency = System.getProperty(
+                SCIMProvisioningConnectorConstants.SCHEDULER_MAX_CONCURRENCY_PROPERTY);
+        if (StringUtils.isBlank(maxConcurrency)) {
+            return;
+        }
+        try {
+            RequestScheduler.getInstance().setMaxConcurrency(Integer.parseInt(maxConcurrency.trim()));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value " + maxConcurrency + " of system property "
+                    + SCIMProvisioningConnectorConstants.SCHEDULER_MAX_CONCURRENCY_PROPERTY + ". Sending at most "
+                    + RequestScheduler.DEFAULT_MAX_CONCURRENCY + " SCIM requests at a time.");
+        }
+    }
+
+    private void registerMetrics() {
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(SCIMConnectorMetrics.OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(new SCIMConnectorMetrics(scimProvisioningConnectorFactory), objectName);
+            metricsObjectName = objectName;
+        } catch (Exception e) {
+            // provisioning works without the metrics MBean.
+            log.error("Error while registering the SCIM connector metrics MBean", e);
+        }
+    }
+
+    private void unregisterMetrics() {
+
+        if (metricsObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+        } catch (Exception e) {
+            log.error("Error while unregistering the SCIM connector metrics MBean", e);
+        }
+        metricsObjectName = null;
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.journal;
+
+/**
+ * When the provisioning journal forces its writes to disk.
+ */
+public enum JournalSyncPolicy {
+
+    /**
+     * Force every record before the operation is sent. No acknowledged write is lost on a crash.
+     */
+    ALWAYS("always"),
+
+    /**
+     * Force the journal periodically. Operations recorded since the last sync may be lost if the
+     * operating system crashes, but not if only the server process does.
+     */
+    INTERVAL("interval"),
+
+    /**
+     * Leave it to the operating system to write the journal to disk.
+     */
+    NONE("none");
+
+    private final String value;
+
+    JournalSyncPolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @param value configured policy name
+     * @return matching policy, or {@link #INTERVAL} if the value is not recognised
+     */
+    public static JournalSyncPolicy fromValue(String value) {
+        for (JournalSyncPolicy policy : values()) {
+            if (policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        return INTERVAL;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.journal;
+
+import org.wso2.carbon.identity.application.common.model.Claim;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of the provisioning entities recorded in the journal. Passwords are never written to
+ * disk. Instead, an entity that carried a password claim is marked, so that its replay can tell it apart
+ * from an entity that never had one.
+ */
+final class ProvisioningEntityCodec {
+
+    private static final byte FORMAT_VERSION = 2;
+    // entries journaled before the password mark was added.
+    private static final byte FORMAT_VERSION_UNMARKED = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ProvisioningEntityCodec() {
+    }
+
+    /**
+     * @param entityKey key identifying the remote resource, may be null
+     * @param entity    provisioning entity
+     * @return encoded entity
+     * @throws IOException
+     */
+    static byte[] encode(String entityKey, ProvisioningEntity entity) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT_VERSION);
+        writeString(out, entityKey);
+        writeString(out, entity.getEntityType().name());
+        writeString(out, entity.getOperation().name());
+        writeString(out, entity.getEntityName());
+        out.writeBoolean(entity.isJitProvisioning());
+
+        List<Map.Entry<ClaimMapping, List<String>>> attributes = new ArrayList<>();
+        boolean passwordOmitted = false;
+        if (entity.getAttributes() != null) {
+            for (Map.Entry<ClaimMapping, List<String>> attribute : entity.getAttributes().entrySet()) {
+                if (!isPasswordClaim(attribute.getKey())) {
+                    attributes.add(attribute);
+                } else if (attribute.getValue() != null && !attribute.getValue().isEmpty()) {
+                    passwordOmitted = true;
+                }
+            }
+        }
+        out.writeBoolean(passwordOmitted);
+        out.writeInt(attributes.size());
+        for (Map.Entry<ClaimMapping, List<String>> attribute : attributes) {
+            writeString(out, getClaimUri(attribute.getKey().getLocalClaim()));
+            writeString(out, getClaimUri(attribute.getKey().getRemoteClaim()));
+            List<String> values = attribute.getValue();
+            out.writeInt(values != null ? values.size() : -1);
+            if (values != null) {
+                for (String value : values) {
+                    writeString(out, value);
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param payload encoded entity
+     * @return key identifying the remote resource, or null if the entity had none
+     * @throws IOException
+     */
+    static String decodeEntityKey(byte[] payload) throws IOException {
+
+        DataInputStream in = open(payload);
+        return readString(in);
+    }
+
+    /**
+     * @param payload encoded entity
+     * @return whether the entity carried a password claim, which was left out of the payload
+     * @throws IOException
+     */
+    static boolean isPasswordOmitted(byte[] payload) throws IOException {
+
+        DataInputStream in = open(payload);
+        for (int i = 0; i < 4; i++) {
+            readString(in);
+        }
+        in.readBoolean();
+        return payload[0] != FORMAT_VERSION_UNMARKED && in.readBoolean();
+    }
+
+    /**
+     * @param payload encoded entity
+     * @return decoded provisioning entity
+     * @throws IOException
+     */
+    static ProvisioningEntity decode(byte[] payload) throws IOException {
+
+        DataInputStream in = open(payload);
+        readString(in);
+        ProvisioningEntityType entityType = ProvisioningEntityType.valueOf(readString(in));
+        ProvisioningOperation operation = ProvisioningOperation.valueOf(readString(in));
+        String entityName = readString(in);
+        boolean jitProvisioning = in.readBoolean();
+        if (payload[0] != FORMAT_VERSION_UNMARKED) {
+            in.readBoolean();
+        }
+
+        int attributeCount = in.readInt();
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; i++) {
+            String localClaimUri = readString(in);
+            String remoteClaimUri = readString(in);
+            int valueCount = in.readInt();
+            List<String> values = null;
+            if (valueCount >= 0) {
+                values = new ArrayList<>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(readString(in));
+                }
+            }
+            attributes.put(ClaimMapping.build(localClaimUri, remoteClaimUri, null, false), values);
+        }
+
+        ProvisioningEntity entity = new ProvisioningEntity(entityType, entityName, operation, attributes);
+        entity.setJitProvisioning(jitProvisioning);
+        return entity;
+    }
+
+    private static DataInputStream open(byte[] payload) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_UNMARKED) {
+            throw new IOException("Unsupported journal entry format " + version);
+        }
+        return in;
+    }
+
+    private static boolean isPasswordClaim(ClaimMapping claimMapping) {
+
+        return IdentityProvisioningConstants.PASSWORD_CLAIM_URI.equals(getClaimUri(claimMapping.getLocalClaim()))
+                || IdentityProvisioningConstants.PASSWORD_CLAIM_URI.equals(
+                getClaimUri(claimMapping.getRemoteClaim()));
+    }
+
+    private static String getClaimUri(Claim claim) {
+        return claim != null ? claim.getClaimUri() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
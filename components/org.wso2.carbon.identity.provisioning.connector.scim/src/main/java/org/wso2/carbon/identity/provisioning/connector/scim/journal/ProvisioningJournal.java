@@ -0,0 +1,918 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.journal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal recording each provisioning operation before it is sent to the SCIM provider and
+ * marking it once acknowledged, so that operations lost to a crash or a SCIM provider outage are sent
+ * again later.
+ * <p/>
+ * Records are appended to segment files. Operations that fail are retried periodically by a replay
+ * thread, in journal order per entity. Once an operation on an entity has failed, later operations on
+ * the same entity are deferred to the replay thread as well, so that they never overtake it. Operations
+ * that still fail after the configured number of attempts are moved to a dead-letter file.
+ * <p/>
+ * Queued operations superseded by a later one on the same entity are dropped: every earlier operation
+ * when the entity is deleted, and earlier user replacements when the user is replaced again. A segment
+ * is deleted once all its operations are acknowledged and all older segments are gone. When the oldest
+ * segment holds only a few unacknowledged operations, they are copied forward so that it can be deleted.
+ * <p/>
+ * Only the sequence number, entity key and segment offset of an unacknowledged operation are kept in
+ * memory. Its payload is read back from the segment when it is replayed, copied or dead-lettered.
+ * <p/>
+ * Passwords are not journaled. User creations that carried one are replayed with
+ * {@code passwordOmitted} set, and a handler refusing them with {@link UnreplayableOperationException}
+ * has them dead-lettered straight away.
+ */
+public class ProvisioningJournal {
+
+    private static final Log log = LogFactory.getLog(ProvisioningJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DEAD_LETTER_FILE = "dead-letter.log";
+    private static final String LOCK_FILE = "journal.lock";
+
+    private static final byte RECORD_OPERATION = 1;
+    private static final byte RECORD_ACKNOWLEDGEMENT = 2;
+    // length and checksum, followed by the record type and sequence number.
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    private static final int RECORD_PREFIX_BYTES = 1 + 8;
+
+    /**
+     * Sends replayed operations to the SCIM provider.
+     */
+    public interface ReplayHandler {
+
+        /**
+         * @param entity          entity to provision
+         * @param passwordOmitted whether the entity carried a password claim, which was not journaled
+         * @return true if the operation was sent, false if the SCIM provider is not accepting requests at
+         * the moment, in which case the replay round ends without counting an attempt
+         * @throws UnreplayableOperationException if the operation cannot be replayed and is to be
+         *                                        dead-lettered without further attempts
+         * @throws IdentityProvisioningException  if the operation failed and has to be retried
+         */
+        boolean replay(ProvisioningEntity entity, boolean passwordOmitted) throws IdentityProvisioningException;
+    }
+
+    private enum EntryState {
+        // appended, waiting to be sent by the provisioning thread.
+        QUEUED,
+        // being sent by the provisioning thread.
+        SENDING,
+        // failed, deferred or recovered, waiting for the replay thread.
+        PENDING,
+        // being sent by the replay thread.
+        REPLAYING
+    }
+
+    private final File directory;
+    private final JournalSyncPolicy syncPolicy;
+    private final long segmentSize;
+    private final int maxAttempts;
+    private final ScheduledExecutorService scheduler;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final TreeMap<Long, Entry> liveEntries = new TreeMap<>();
+    private final Map<String, ArrayDeque<Entry>> entriesByKey = new HashMap<>();
+    private final CRC32 checksum = new CRC32();
+    private Segment activeSegment;
+    private long lastSequence;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    /**
+     * Opens the journal in the given directory and recovers the operations left unacknowledged by a
+     * previous run. Recovered operations are sent once {@link #start(ReplayHandler, long, long)} is called.
+     *
+     * @param directory   directory holding the journal files
+     * @param syncPolicy  when records are forced to disk
+     * @param segmentSize size in bytes after which a new segment is started
+     * @param maxAttempts number of attempts after which a failing operation is dead-lettered
+     * @throws IdentityProvisioningException if the journal cannot be opened
+     */
+    public ProvisioningJournal(File directory, JournalSyncPolicy syncPolicy, long segmentSize, int maxAttempts)
+            throws IdentityProvisioningException {
+
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.segmentSize = segmentSize;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SCIMProvisioningJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+            lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                lockChannel.close();
+                throw new IOException("Journal " + directory + " is in use by another connector");
+            }
+
+            synchronized (this) {
+                recover();
+                activeSegment = openSegment(lastSequence + 1);
+                compact();
+            }
+        } catch (IOException e) {
+            scheduler.shutdown();
+            throw new IdentityProvisioningException("Error while opening SCIM provisioning journal " + directory, e);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Opened SCIM provisioning journal " + directory + " with " + liveEntries.size()
+                    + " unacknowledged operations");
+        }
+    }
+
+    /**
+     * Starts replaying failed and recovered operations, and syncing the journal if the policy is
+     * {@link JournalSyncPolicy#INTERVAL}.
+     *
+     * @param replayHandler  handler sending the replayed operations
+     * @param replayInterval time in milliseconds between two replay rounds
+     * @param syncInterval   time in milliseconds between two syncs
+     */
+    public void start(final ReplayHandler replayHandler, long replayInterval, long syncInterval) {
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                replay(replayHandler);
+            }
+        }, 0, Math.max(1, replayInterval), TimeUnit.MILLISECONDS);
+
+        if (syncPolicy == JournalSyncPolicy.INTERVAL) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                }
+            }, syncInterval, Math.max(1, syncInterval), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records an operation before it is sent.
+     *
+     * @param entityKey key identifying the remote resource, or null if the entity has none
+     * @param entity    entity to provision
+     * @return sequence number of the operation in the journal
+     * @throws IdentityProvisioningException if the operation cannot be recorded
+     */
+    public long append(String entityKey, ProvisioningEntity entity) throws IdentityProvisioningException {
+
+        FileChannel channel;
+        long sequence;
+        try {
+            byte[] payload = ProvisioningEntityCodec.encode(entityKey, entity);
+            synchronized (this) {
+                sequence = ++lastSequence;
+                Entry entry = new Entry(sequence, entityKey != null ? entityKey : "#" + sequence,
+                        entity.getEntityType(), entity.getOperation(), EntryState.QUEUED);
+                supersede(entry);
+                entry.offset = write(activeSegment, RECORD_OPERATION, sequence, payload);
+                addEntry(entry, activeSegment);
+                channel = activeSegment.channel;
+                if (activeSegment.size >= segmentSize) {
+                    roll();
+                }
+            }
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while recording " + entity.getEntityType() + " "
+                    + entity.getOperation() + " in SCIM provisioning journal", e);
+        }
+
+        if (syncPolicy == JournalSyncPolicy.ALWAYS) {
+            // forced outside the lock, so that concurrent appends share a sync.
+            force(channel);
+        }
+        return sequence;
+    }
+
+    /**
+     * Replaces operations on one entity that were merged into a single operation, such as by the
+     * coalescing stage. The merged operation takes the place and the sequence number of the earliest
+     * operation still unacknowledged, so that it keeps its position among the operations on the entity.
+     * The others are acknowledged.
+     *
+     * @param sequences sequence numbers of the operations, in journal order
+     * @param merged    operation they were merged into, or null if they cancelled each other
+     * @return sequence number of the merged operation, or 0 if none is to be sent
+     * @throws IdentityProvisioningException if the merged operation cannot be recorded
+     */
+    public long coalesce(List<Long> sequences, ProvisioningEntity merged) throws IdentityProvisioningException {
+
+        FileChannel channel;
+        long mergedSequence = 0;
+        try {
+            synchronized (this) {
+                for (Long sequence : sequences) {
+                    Entry entry = liveEntries.get(sequence);
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (merged != null && mergedSequence == 0) {
+                        byte[] payload = ProvisioningEntityCodec.encode(entry.entityKey, merged);
+                        // recovery keeps the newest record of a sequence number, as for copied operations.
+                        long offset = write(activeSegment, RECORD_OPERATION, entry.sequence, payload);
+                        entry.segment.liveCount--;
+                        entry.segment = activeSegment;
+                        entry.offset = offset;
+                        entry.operation = merged.getOperation();
+                        activeSegment.operationCount++;
+                        activeSegment.liveCount++;
+                        mergedSequence = entry.sequence;
+                    } else {
+                        write(activeSegment, RECORD_ACKNOWLEDGEMENT, entry.sequence, new byte[0]);
+                        removeEntry(entry);
+                    }
+                }
+                channel = activeSegment.channel;
+                reclaim();
+                if (activeSegment.size >= segmentSize) {
+                    roll();
+                }
+            }
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while recording merged operations " + sequences
+                    + " in SCIM provisioning journal", e);
+        }
+
+        if (syncPolicy == JournalSyncPolicy.ALWAYS) {
+            force(channel);
+        }
+        return mergedSequence;
+    }
+
+    /**
+     * Called by the provisioning thread before sending an operation.
+     *
+     * @param sequence sequence number of the operation
+     * @return true if the operation is to be sent now, false if it was superseded or is deferred behind
+     * a failed operation on the same entity
+     */
+    public synchronized boolean beginSend(long sequence) {
+
+        Entry entry = liveEntries.get(sequence);
+        if (entry == null) {
+            return false;
+        }
+        for (Entry earlier : entriesByKey.get(entry.entityKey)) {
+            if (earlier == entry) {
+                break;
+            }
+            if (earlier.state == EntryState.PENDING || earlier.state == EntryState.REPLAYING) {
+                entry.state = EntryState.PENDING;
+                return false;
+            }
+        }
+        entry.state = EntryState.SENDING;
+        return true;
+    }
+
+    /**
+     * Marks an operation as acknowledged by the SCIM provider.
+     *
+     * @param sequence sequence number of the operation
+     */
+    public synchronized void acknowledge(long sequence) {
+
+        Entry entry = liveEntries.get(sequence);
+        if (entry == null) {
+            return;
+        }
+        try {
+            write(activeSegment, RECORD_ACKNOWLEDGEMENT, sequence, new byte[0]);
+        } catch (IOException e) {
+            // the operation is sent again after a restart, which the SCIM provider tolerates.
+            log.error("Error while acknowledging operation " + sequence + " in SCIM provisioning journal", e);
+        }
+        removeEntry(entry);
+        reclaim();
+    }
+
+    /**
+     * Marks an operation as failed. It is retried by the replay thread, or dead-lettered once it has
+     * failed the configured number of times.
+     *
+     * @param sequence sequence number of the operation
+     */
+    public synchronized void fail(long sequence) {
+
+        Entry entry = liveEntries.get(sequence);
+        if (entry == null) {
+            return;
+        }
+        entry.attempts++;
+        entry.state = EntryState.PENDING;
+        if (entry.attempts >= maxAttempts) {
+            deadLetter(entry);
+        }
+    }
+
+    /**
+     * Hands an operation that could not be sent to the replay thread, without counting it as a failed
+     * attempt.
+     *
+     * @param sequence sequence number of the operation
+     */
+    public synchronized void defer(long sequence) {
+
+        Entry entry = liveEntries.get(sequence);
+        if (entry != null) {
+            entry.state = EntryState.PENDING;
+        }
+    }
+
+    /**
+     * @return number of operations not acknowledged yet
+     */
+    public synchronized int getUnacknowledgedCount() {
+        return liveEntries.size();
+    }
+
+    /**
+     * @return number of operations waiting for the replay thread
+     */
+    public synchronized int getPendingCount() {
+
+        int pending = 0;
+        for (Entry entry : liveEntries.values()) {
+            if (entry.state == EntryState.PENDING) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Stops the replay thread and closes the journal. Unacknowledged operations are replayed on the
+     * next start.
+     */
+    public void close() {
+
+        scheduler.shutdownNow();
+        synchronized (this) {
+            try {
+                activeSegment.channel.force(false);
+            } catch (IOException e) {
+                log.error("Error while closing SCIM provisioning journal " + directory, e);
+            }
+            for (Segment segment : segments.values()) {
+                closeChannel(segment);
+            }
+            try {
+                lock.release();
+                lockChannel.close();
+            } catch (IOException e) {
+                log.error("Error while releasing SCIM provisioning journal lock " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the pending operations, entity by entity, in journal order. The operations of an entity
+     * stop at the first failure and are retried in the next round. The whole round stops once the SCIM
+     * provider is found not to accept requests.
+     */
+    private void replay(ReplayHandler replayHandler) {
+
+        List<List<Entry>> batches = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<Entry> entries : entriesByKey.values()) {
+                List<Entry> batch = new ArrayList<>();
+                for (Entry entry : entries) {
+                    if (entry.state != EntryState.PENDING) {
+                        break;
+                    }
+                    entry.state = EntryState.REPLAYING;
+                    batch.add(entry);
+                }
+                if (!batch.isEmpty()) {
+                    batches.add(batch);
+                }
+            }
+        }
+
+        boolean unavailable = false;
+        for (List<Entry> batch : batches) {
+            boolean failed = false;
+            for (Entry entry : batch) {
+                if (failed || unavailable || Thread.currentThread().isInterrupted()) {
+                    release(entry);
+                    continue;
+                }
+                try {
+                    byte[] payload = readPayload(entry);
+                    if (replayHandler.replay(ProvisioningEntityCodec.decode(payload),
+                            ProvisioningEntityCodec.isPasswordOmitted(payload))) {
+                        acknowledge(entry.sequence);
+                    } else {
+                        release(entry);
+                        unavailable = true;
+                    }
+                } catch (IOException e) {
+                    log.error("Error while reading operation " + entry.sequence + " from SCIM provisioning "
+                            + "journal", e);
+                    synchronized (this) {
+                        deadLetter(entry);
+                    }
+                } catch (UnreplayableOperationException e) {
+                    log.error("Cannot replay " + entry + " from SCIM provisioning journal : " + e.getMessage());
+                    synchronized (this) {
+                        deadLetter(entry);
+                    }
+                } catch (IdentityProvisioningException e) {
+                    log.warn("Error while replaying " + entry + " from SCIM provisioning journal : "
+                            + e.getMessage());
+                    fail(entry.sequence);
+                    failed = !isDeadLettered(entry);
+                } catch (RuntimeException e) {
+                    log.error("Error while replaying " + entry + " from SCIM provisioning journal", e);
+                    fail(entry.sequence);
+                    failed = !isDeadLettered(entry);
+                }
+            }
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+
+        if (entry.state == EntryState.REPLAYING) {
+            entry.state = EntryState.PENDING;
+        }
+    }
+
+    private synchronized boolean isDeadLettered(Entry entry) {
+        return !liveEntries.containsKey(entry.sequence);
+    }
+
+    private void sync() {
+
+        FileChannel channel;
+        synchronized (this) {
+            channel = activeSegment.channel;
+        }
+        force(channel);
+    }
+
+    private void force(FileChannel channel) {
+
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // the segment was rolled over, which forces it before closing.
+        } catch (IOException e) {
+            log.error("Error while syncing SCIM provisioning journal " + directory, e);
+        }
+    }
+
+    /**
+     * Drops the queued operations made obsolete by the given one.
+     */
+    private void supersede(Entry entry) throws IOException {
+
+        ArrayDeque<Entry> entries = entriesByKey.get(entry.entityKey);
+        if (entries == null) {
+            return;
+        }
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry earlier = iterator.next();
+            if (earlier.state != EntryState.QUEUED && earlier.state != EntryState.PENDING) {
+                continue;
+            }
+            boolean superseded = entry.operation == ProvisioningOperation.DELETE
+                    || (entry.entityType == ProvisioningEntityType.USER
+                    && entry.operation == ProvisioningOperation.PUT
+                    && earlier.operation == ProvisioningOperation.PUT);
+            if (superseded) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Dropping " + earlier + " superseded by " + entry);
+                }
+                write(activeSegment, RECORD_ACKNOWLEDGEMENT, earlier.sequence, new byte[0]);
+                iterator.remove();
+                liveEntries.remove(earlier.sequence);
+                earlier.segment.liveCount--;
+            }
+        }
+        if (entries.isEmpty()) {
+            entriesByKey.remove(entry.entityKey);
+        }
+    }
+
+    private void deadLetter(Entry entry) {
+
+        log.error("Moving " + entry + " to the SCIM provisioning dead-letter journal after " + entry.attempts
+                + " failed attempts");
+        try (FileChannel deadLetterChannel = new RandomAccessFile(new File(directory, DEAD_LETTER_FILE), "rw")
+                .getChannel()) {
+            ByteBuffer record = encodeRecord(RECORD_OPERATION, entry.sequence, readPayload(entry));
+            deadLetterChannel.position(deadLetterChannel.size());
+            while (record.hasRemaining()) {
+                deadLetterChannel.write(record);
+            }
+            deadLetterChannel.force(false);
+            write(activeSegment, RECORD_ACKNOWLEDGEMENT, entry.sequence, new byte[0]);
+        } catch (IOException e) {
+            log.error("Error while dead-lettering operation " + entry.sequence + " in SCIM provisioning journal", e);
+        }
+        removeEntry(entry);
+        reclaim();
+    }
+
+    private void addEntry(Entry entry, Segment segment) {
+
+        entry.segment = segment;
+        segment.operationCount++;
+        segment.liveCount++;
+        liveEntries.put(entry.sequence, entry);
+        ArrayDeque<Entry> entries = entriesByKey.get(entry.entityKey);
+        if (entries == null) {
+            entries = new ArrayDeque<>();
+            entriesByKey.put(entry.entityKey, entries);
+        }
+        entries.add(entry);
+    }
+
+    private void removeEntry(Entry entry) {
+
+        liveEntries.remove(entry.sequence);
+        entry.segment.liveCount--;
+        ArrayDeque<Entry> entries = entriesByKey.get(entry.entityKey);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                entriesByKey.remove(entry.entityKey);
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+
+        activeSegment.channel.force(false);
+        // reopened read-only if one of its operations has to be read back.
+        closeChannel(activeSegment);
+        activeSegment = openSegment(lastSequence + 1);
+        compact();
+    }
+
+    /**
+     * Deletes the oldest segments once all their operations are acknowledged.
+     */
+    private void reclaim() {
+
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == activeSegment || oldest.liveCount > 0) {
+                return;
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments, copying their few unacknowledged operations forward first.
+     */
+    private void compact() throws IOException {
+
+        reclaim();
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == activeSegment || oldest.liveCount * 2 > oldest.operationCount) {
+                return;
+            }
+            List<Entry> survivors = new ArrayList<>();
+            for (Entry entry : liveEntries.values()) {
+                if (entry.segment == oldest) {
+                    survivors.add(entry);
+                }
+            }
+            for (Entry entry : survivors) {
+                entry.offset = write(activeSegment, RECORD_OPERATION, entry.sequence, readPayload(entry));
+                oldest.liveCount--;
+                entry.segment = activeSegment;
+                activeSegment.operationCount++;
+                activeSegment.liveCount++;
+            }
+            activeSegment.channel.force(false);
+            deleteSegment(oldest);
+            reclaim();
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+
+        segments.remove(segment.firstSequence);
+        closeChannel(segment);
+        if (!segment.file.delete()) {
+            log.warn("Could not delete SCIM provisioning journal segment " + segment.file);
+        }
+    }
+
+    private Segment openSegment(long firstSequence) throws IOException {
+
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        Segment segment = new Segment(firstSequence, file);
+        segment.channel = channel;
+        segment.size = channel.size();
+        channel.position(segment.size);
+        segments.put(firstSequence, segment);
+        return segment;
+    }
+
+    /**
+     * @return offset of the record in the segment
+     */
+    private long write(Segment segment, byte recordType, long sequence, byte[] payload) throws IOException {
+
+        ByteBuffer record = encodeRecord(recordType, sequence, payload);
+        long offset = segment.size;
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            segment.channel.write(record);
+        }
+        segment.size += length;
+        return offset;
+    }
+
+    /**
+     * Reads the payload of an unacknowledged operation back from its segment.
+     */
+    private synchronized byte[] readPayload(Entry entry) throws IOException {
+
+        Segment segment = entry.segment;
+        if (segment.channel == null || !segment.channel.isOpen()) {
+            segment.channel = new RandomAccessFile(segment.file, "r").getChannel();
+        }
+        ByteBuffer body = readRecord(segment.channel, entry.offset, segment.channel.size());
+        if (body == null || body.get() != RECORD_OPERATION || body.getLong() != entry.sequence) {
+            throw new IOException("Cannot read " + entry + " back from " + segment.file);
+        }
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        return payload;
+    }
+
+    /**
+     * @return type, sequence number and payload of the record at the given position, or null if the
+     * record is torn or corrupt
+     */
+    private ByteBuffer readRecord(FileChannel channel, long position, long size) throws IOException {
+
+        if (position + RECORD_HEADER_BYTES > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(channel, header, position);
+        header.flip();
+        int length = header.getInt();
+        int expectedChecksum = header.getInt();
+        if (length < RECORD_PREFIX_BYTES || position + RECORD_HEADER_BYTES + length > size) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, position + RECORD_HEADER_BYTES);
+        checksum.reset();
+        checksum.update(body.array(), 0, length);
+        if ((int) checksum.getValue() != expectedChecksum) {
+            return null;
+        }
+        body.flip();
+        return body;
+    }
+
+    private void closeChannel(Segment segment) {
+
+        if (segment.channel == null) {
+            return;
+        }
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            log.warn("Error while closing SCIM provisioning journal segment " + segment.file, e);
+        }
+        segment.channel = null;
+    }
+
+    private ByteBuffer encodeRecord(byte recordType, long sequence, byte[] payload) {
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + RECORD_PREFIX_BYTES + payload.length);
+        record.putInt(RECORD_PREFIX_BYTES + payload.length);
+        record.putInt(0);
+        record.put(recordType);
+        record.putLong(sequence);
+        record.put(payload);
+
+        checksum.reset();
+        checksum.update(record.array(), RECORD_HEADER_BYTES, RECORD_PREFIX_BYTES + payload.length);
+        record.putInt(4, (int) checksum.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Reads the existing segments and rebuilds the unacknowledged operations. A record torn by a crash
+     * ends its segment.
+     */
+    private void recover() throws IOException {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        Map<Long, Entry> operations = new HashMap<>();
+        Set<Long> acknowledged = new HashSet<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long firstSequence;
+            try {
+                firstSequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(firstSequence, file);
+            segments.put(firstSequence, segment);
+            readSegment(segment, operations, acknowledged);
+            // segments may only hold operations copied forward, so new sequence numbers start after the
+            // newest segment as well.
+            lastSequence = Math.max(lastSequence, firstSequence);
+        }
+
+        for (Entry entry : new TreeMap<>(operations).values()) {
+            if (acknowledged.contains(entry.sequence)) {
+                continue;
+            }
+            entry.segment.operationCount--;
+            addEntry(entry, entry.segment);
+        }
+    }
+
+    private void readSegment(Segment segment, Map<Long, Entry> operations, Set<Long> acknowledged)
+            throws IOException {
+
+        try (FileChannel channel = new FileInputStream(segment.file).getChannel()) {
+            long position = 0;
+            long size = channel.size();
+            ByteBuffer body;
+            while ((body = readRecord(channel, position, size)) != null) {
+                long offset = position;
+                position += RECORD_HEADER_BYTES + body.remaining();
+
+                byte recordType = body.get();
+                long sequence = body.getLong();
+                lastSequence = Math.max(lastSequence, sequence);
+                if (recordType == RECORD_ACKNOWLEDGEMENT) {
+                    acknowledged.add(sequence);
+                } else if (recordType == RECORD_OPERATION) {
+                    byte[] payload = new byte[body.remaining()];
+                    body.get(payload);
+                    segment.operationCount++;
+                    // an operation copied forward is read again from the newer segment.
+                    ProvisioningEntity entity = ProvisioningEntityCodec.decode(payload);
+                    Entry entry = new Entry(sequence, entityKey(sequence, payload), entity.getEntityType(),
+                            entity.getOperation(), EntryState.PENDING);
+                    entry.segment = segment;
+                    entry.offset = offset;
+                    Entry previous = operations.put(sequence, entry);
+                    if (previous != null) {
+                        previous.segment.operationCount--;
+                    }
+                }
+            }
+            if (position < size) {
+                log.warn("Ignoring " + (size - position) + " unreadable bytes at the end of SCIM provisioning "
+                        + "journal segment " + segment.file);
+            }
+        }
+    }
+
+    private String entityKey(long sequence, byte[] payload) throws IOException {
+
+        String entityKey = ProvisioningEntityCodec.decodeEntityKey(payload);
+        return entityKey != null ? entityKey : "#" + sequence;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of journal segment");
+            }
+        }
+    }
+
+    private static class Segment {
+
+        private final long firstSequence;
+        private final File file;
+        private FileChannel channel;
+        private long size;
+        private int operationCount;
+        private int liveCount;
+
+        Segment(long firstSequence, File file) {
+
+            this.firstSequence = firstSequence;
+            this.file = file;
+        }
+    }
+
+    private static class Entry {
+
+        private final long sequence;
+        private final String entityKey;
+        private final ProvisioningEntityType entityType;
+        private ProvisioningOperation operation;
+        private EntryState state;
+        private int attempts;
+        private Segment segment;
+        // position of the operation record in the segment.
+        private long offset;
+
+        Entry(long sequence, String entityKey, ProvisioningEntityType entityType, ProvisioningOperation operation,
+              EntryState state) {
+
+            this.sequence = sequence;
+            this.entityKey = entityKey;
+            this.entityType = entityType;
+            this.operation = operation;
+            this.state = state;
+        }
+
+        @Override
+        public String toString() {
+            return "operation " + sequence + " on " + entityKey;
+        }
+    }
+}
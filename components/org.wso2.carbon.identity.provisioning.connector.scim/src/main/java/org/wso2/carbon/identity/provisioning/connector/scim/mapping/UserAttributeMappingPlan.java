@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.mapping;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.charon.core.schema.AttributeSchema;
+import org.wso2.charon.core.schema.SCIMAttributeSchema;
+import org.wso2.charon.core.schema.SCIMConstants;
+import org.wso2.charon.core.schema.SCIMSchemaDefinitions;
+import org.wso2.charon.core.schema.SCIMSubAttributeSchema;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled mapping of the claims of a claim dialect to the attributes of a SCIM user. The attributes
+ * of the charon user schema are resolved once, when the plan is compiled, into steps that write a claim
+ * value into the user JSON. Applying the plan is then a single lookup per claim, with no claim URI parsing
+ * or schema navigation.
+ * <p/>
+ * The plan produces the same JSON as building the user with
+ * {@link org.wso2.carbon.identity.scim.common.utils.AttributeMapper} and encoding it. It covers the simple
+ * and complex attributes of string and boolean type, and the multi-valued attributes of string values
+ * given either as a comma separated list or qualified by their type. Claims it does not cover, such as
+ * the meta attributes, addresses and extension attributes, are left to the mapper.
+ */
+public class UserAttributeMappingPlan {
+
+    private static final Log log = LogFactory.getLog(UserAttributeMappingPlan.class);
+
+    private static final String MULTI_VALUE_SEPARATOR = ",";
+
+    private static final ConcurrentHashMap<String, UserAttributeMappingPlan> plans = new ConcurrentHashMap<>();
+
+    private final String dialect;
+    private final ConcurrentHashMap<String, Step> steps = new ConcurrentHashMap<>();
+    // multi-valued attributes, whose typed values are compiled on first use as the types are not enumerated.
+    private final Set<String> multiValuedAttributes = new HashSet<>();
+
+    private UserAttributeMappingPlan(String dialect) {
+
+        this.dialect = dialect;
+        String prefix = dialect + ":";
+        for (AttributeSchema attribute : SCIMSchemaDefinitions.SCIM_USER_SCHEMA.getAttributesList()) {
+            String name = attribute.getName();
+            // assigned by the SCIM provider, never taken from the claims.
+            if (SCIMConstants.CommonSchemaConstants.ID.equals(name)
+                    || SCIMConstants.CommonSchemaConstants.META.equals(name)) {
+                continue;
+            }
+            List<SCIMSubAttributeSchema> subAttributes = attribute instanceof SCIMAttributeSchema ?
+                    ((SCIMAttributeSchema) attribute).getSubAttributes() : null;
+            if (attribute.isMultiValued()) {
+                if (attribute.getType() == SCIMSchemaDefinitions.DataType.STRING) {
+                    steps.put(prefix + name, new MultiValuedStep(name));
+                    multiValuedAttributes.add(name);
+                }
+            } else if (subAttributes != null && !subAttributes.isEmpty()) {
+                for (SCIMSubAttributeSchema subAttribute : subAttributes) {
+                    if (isPrimitive(subAttribute.getType())) {
+                        steps.put(prefix + name + "." + subAttribute.getName(),
+                                new SubAttributeStep(name, subAttribute.getName(), isBoolean(subAttribute.getType())));
+                    }
+                }
+            } else if (isPrimitive(attribute.getType())) {
+                steps.put(prefix + name, new SimpleStep(name, isBoolean(attribute.getType())));
+            }
+        }
+    }
+
+    private static boolean isPrimitive(SCIMSchemaDefinitions.DataType type) {
+        return type == SCIMSchemaDefinitions.DataType.STRING || isBoolean(type);
+    }
+
+    private static boolean isBoolean(SCIMSchemaDefinitions.DataType type) {
+        return type == SCIMSchemaDefinitions.DataType.BOOLEAN;
+    }
+
+    /**
+     * @param dialect claim dialect URI
+     * @return compiled plan of the dialect, or null if the dialect cannot be mapped by a plan
+     */
+    public static UserAttributeMappingPlan getPlan(String dialect) {
+
+        if (!SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT.equals(dialect)) {
+            return null;
+        }
+        UserAttributeMappingPlan plan = plans.get(dialect);
+        if (plan == null) {
+            plans.putIfAbsent(dialect, new UserAttributeMappingPlan(dialect));
+            plan = plans.get(dialect);
+        }
+        return plan;
+    }
+
+    /**
+     * @param claims claim values keyed by claim URI of the dialect
+     * @return SCIM user carrying the claim values, or null if a claim is not covered by the plan
+     * @throws JSONException
+     */
+    public JSONObject apply(Map<String, String> claims) throws JSONException {
+
+        JSONObject user = new JSONObject();
+        user.put(SCIMConstants.CommonSchemaConstants.SCHEMAS,
+                new JSONArray().put(SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT));
+        if (claims == null) {
+            return user;
+        }
+        for (Map.Entry<String, String> claim : claims.entrySet()) {
+            Step step = getStep(claim.getKey());
+            if (step == null || claim.getValue() == null || !step.apply(user, claim.getValue())) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Claim " + claim.getKey() + " is not covered by the mapping plan of " + dialect);
+                }
+                return null;
+            }
+        }
+        return user;
+    }
+
+    /**
+     * @param claimUri claim URI of the dialect
+     * @return step writing the claim, or null if the claim is not covered by the plan
+     */
+    private Step getStep(String claimUri) {
+
+        Step step = steps.get(claimUri);
+        if (step != null) {
+            return step;
+        }
+        // typed value of a multi-valued attribute, such as emails.work.
+        int separator = claimUri.lastIndexOf('.');
+        if (separator <= dialect.length() + 1 || !claimUri.startsWith(dialect + ":")) {
+            return null;
+        }
+        String attribute = claimUri.substring(dialect.length() + 1, separator);
+        if (!multiValuedAttributes.contains(attribute)) {
+            return null;
+        }
+        step = new TypedValueStep(attribute, claimUri.substring(separator + 1));
+        Step existing = steps.putIfAbsent(claimUri, step);
+        return existing != null ? existing : step;
+    }
+
+    /**
+     * @return number of claim URIs covered by the plan
+     */
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Writes a claim value into the user JSON.
+     */
+    private abstract static class Step {
+
+        /**
+         * @return false if the value conflicts with the ones already written
+         */
+        abstract boolean apply(JSONObject user, String value) throws JSONException;
+    }
+
+    private static class SimpleStep extends Step {
+
+        private final String attribute;
+        private final boolean booleanValue;
+
+        SimpleStep(String attribute, boolean booleanValue) {
+
+            this.attribute = attribute;
+            this.booleanValue = booleanValue;
+        }
+
+        @Override
+        boolean apply(JSONObject user, String value) throws JSONException {
+
+            user.put(attribute, booleanValue ? Boolean.valueOf(value) : value);
+            return true;
+        }
+    }
+
+    private static class SubAttributeStep extends Step {
+
+        private final String attribute;
+        private final String subAttribute;
+        private final boolean booleanValue;
+
+        SubAttributeStep(String attribute, String subAttribute, boolean booleanValue) {
+
+            this.attribute = attribute;
+            this.subAttribute = subAttribute;
+            this.booleanValue = booleanValue;
+        }
+
+        @Override
+        boolean apply(JSONObject user, String value) throws JSONException {
+
+            JSONObject complexValue = user.optJSONObject(attribute);
+            if (complexValue == null) {
+                complexValue = new JSONObject();
+                user.put(attribute, complexValue);
+            }
+            complexValue.put(subAttribute, booleanValue ? Boolean.valueOf(value) : value);
+            return true;
+        }
+    }
+
+    /**
+     * Multi-valued attribute given as a comma separated list of primitive values.
+     */
+    private static class MultiValuedStep extends Step {
+
+        private final String attribute;
+
+        MultiValuedStep(String attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        boolean apply(JSONObject user, String value) throws JSONException {
+
+            // the mapper lets one form replace the other depending on the claim order.
+            if (user.has(attribute)) {
+                return false;
+            }
+            JSONArray values = new JSONArray();
+            for (String primitiveValue : value.split(MULTI_VALUE_SEPARATOR)) {
+                values.put(primitiveValue);
+            }
+            user.put(attribute, values);
+            return true;
+        }
+    }
+
+    /**
+     * Value of a multi-valued attribute qualified by its type, such as the work email.
+     */
+    private static class TypedValueStep extends Step {
+
+        private final String attribute;
+        private final String type;
+
+        TypedValueStep(String attribute, String type) {
+
+            this.attribute = attribute;
+            this.type = type;
+        }
+
+        @Override
+        boolean apply(JSONObject user, String value) throws JSONException {
+
+            JSONArray values = user.optJSONArray(attribute);
+            if (values == null) {
+                values = new JSONArray();
+                user.put(attribute, values);
+            } else if (values.optJSONObject(0) == null) {
+                return false;
+            }
+            values.put(new JSONObject().put(SCIMConstants.CommonSchemaConstants.TYPE, type)
+                    .put(SCIMConstants.CommonSchemaConstants.VALUE, value));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets, in the style of an HDR histogram. Latencies are recorded
+ * in microseconds, each power of two being split into 32 buckets, so percentiles are reported within
+ * about 3% of the recorded values, up to about 19 hours. Recording does not allocate.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 35;
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+    private static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter totalMicros = new StripedCounter();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+
+        long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        counts.incrementAndGet(getBucketIndex(micros));
+        count.increment();
+        totalMicros.add(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * @return number of recorded latencies
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return mean latency in milliseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+
+        long recorded = count.sum();
+        return recorded == 0 ? 0 : totalMicros.sum() / 1000.0 / recorded;
+    }
+
+    /**
+     * @return highest recorded latency in milliseconds
+     */
+    public double getMax() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100, such as 99.9
+     * @return latency in milliseconds at or below which the given percentage of the recorded latencies
+     * fall, or 0 if nothing was recorded
+     */
+    public double getPercentile(double percentile) {
+
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(getHighestValue(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        totalMicros.reset();
+        maxMicros.set(0);
+    }
+
+    private static int getBucketIndex(long micros) {
+
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (micros >>> shift);
+    }
+
+    /**
+     * @return highest value in microseconds falling in the bucket
+     */
+    private static long getHighestValue(int bucketIndex) {
+
+        // the first two rows of buckets hold exact values.
+        if (bucketIndex < 2 * SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+        int shift = (bucketIndex >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = bucketIndex - ((long) shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
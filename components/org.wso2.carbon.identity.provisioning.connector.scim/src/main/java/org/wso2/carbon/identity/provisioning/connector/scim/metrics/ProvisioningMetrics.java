@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+/**
+ * Metrics of all the SCIM provisioning connectors of the node: latencies and outcomes of the
+ * provisioning operations by entity type and operation, latency of the {@code provision()} calls and
+ * bytes sent to the SCIM providers. Recording does not allocate or lock.
+ */
+public class ProvisioningMetrics {
+
+    private static final int OPERATION_COUNT = ProvisioningOperation.values().length;
+    private static final int SLOT_COUNT = ProvisioningEntityType.values().length * OPERATION_COUNT;
+
+    private static final ProvisioningMetrics instance = new ProvisioningMetrics();
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[SLOT_COUNT];
+    private final StripedCounter[] successes = new StripedCounter[SLOT_COUNT];
+    private final StripedCounter[] failures = new StripedCounter[SLOT_COUNT];
+    private final StripedCounter[] skips = new StripedCounter[SLOT_COUNT];
+    private final StripedCounter[] batches = new StripedCounter[SLOT_COUNT];
+    private final LatencyHistogram provisionLatency = new LatencyHistogram();
+    private final StripedCounter bytesSent = new StripedCounter();
+    private final StripedCounter requestCount = new StripedCounter();
+
+    private ProvisioningMetrics() {
+
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            latencies[slot] = new LatencyHistogram();
+            successes[slot] = new StripedCounter();
+            failures[slot] = new StripedCounter();
+            skips[slot] = new StripedCounter();
+            batches[slot] = new StripedCounter();
+        }
+    }
+
+    public static ProvisioningMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param nanos time in nanoseconds a {@code provision()} call took, until it returned to the caller
+     */
+    public void recordProvisionCall(long nanos) {
+        provisionLatency.record(nanos);
+    }
+
+    /**
+     * @param entityType user or group
+     * @param operation  provisioning operation
+     * @param nanos      time in nanoseconds the operation took, including its SCIM requests
+     * @param failed     whether the operation failed
+     */
+    public void recordOperation(ProvisioningEntityType entityType, ProvisioningOperation operation, long nanos,
+                                boolean failed) {
+
+        int slot = getSlot(entityType, operation);
+        latencies[slot].record(nanos);
+        if (failed) {
+            failures[slot].increment();
+        } else {
+            successes[slot].increment();
+        }
+    }
+
+    /**
+     * Records an operation that failed before any request was sent for it, such as one the asynchronous
+     * executor rejected.
+     *
+     * @param entityType user or group
+     * @param operation  provisioning operation
+     */
+    public void recordFailure(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        failures[getSlot(entityType, operation)].increment();
+    }
+
+    /**
+     * Records an operation left in a bulk batch. Its outcome is only known once the batch is sent.
+     *
+     * @param entityType user or group
+     * @param operation  provisioning operation
+     */
+    public void recordBatched(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        batches[getSlot(entityType, operation)].increment();
+    }
+
+    /**
+     * Records an operation dropped before being provisioned, such as a JIT operation while JIT
+     * provisioning is disabled or an operation merged into another one.
+     *
+     * @param entityType user or group
+     * @param operation  provisioning operation
+     */
+    public void recordSkipped(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        skips[getSlot(entityType, operation)].increment();
+    }
+
+    /**
+     * @param bytes size of a request body sent to a SCIM provider, or 0 for a request without a body
+     */
+    public void recordRequest(long bytes) {
+
+        requestCount.increment();
+        if (bytes > 0) {
+            bytesSent.add(bytes);
+        }
+    }
+
+    public LatencyHistogram getLatency(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        return latencies[getSlot(entityType, operation)];
+    }
+
+    public LatencyHistogram getProvisionLatency() {
+        return provisionLatency;
+    }
+
+    public long getSuccessCount(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        return successes[getSlot(entityType, operation)].sum();
+    }
+
+    public long getFailureCount(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        return failures[getSlot(entityType, operation)].sum();
+    }
+
+    public long getSkippedCount(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        return skips[getSlot(entityType, operation)].sum();
+    }
+
+    public long getBatchedCount(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        return batches[getSlot(entityType, operation)].sum();
+    }
+
+    public long getSuccessCount() {
+        return sum(successes);
+    }
+
+    public long getFailureCount() {
+        return sum(failures);
+    }
+
+    public long getSkippedCount() {
+        return sum(skips);
+    }
+
+    public long getBatchedCount() {
+        return sum(batches);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    public void reset() {
+
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            latencies[slot].reset();
+            successes[slot].reset();
+            failures[slot].reset();
+            skips[slot].reset();
+            batches[slot].reset();
+        }
+        provisionLatency.reset();
+        bytesSent.reset();
+        requestCount.reset();
+    }
+
+    private static int getSlot(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+        return entityType.ordinal() * OPERATION_COUNT + operation.ordinal();
+    }
+
+    private static long sum(StripedCounter[] counters) {
+
+        long sum = 0;
+        for (StripedCounter counter : counters) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+}
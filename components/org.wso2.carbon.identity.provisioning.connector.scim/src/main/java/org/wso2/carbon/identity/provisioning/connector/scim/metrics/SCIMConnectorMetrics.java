@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnector;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.EndpointRateLimiter;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.RequestScheduler;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.SchedulerFlow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exposes the {@link ProvisioningMetrics} of the node, the queue gauges of the connectors built by a
+ * factory and those of the {@link RequestScheduler}, as a JMX MBean, along with the reconciliation of the
+ * connectors of the factory.
+ */
+public class SCIMConnectorMetrics implements SCIMConnectorMetricsMBean {
+
+    public static final String OBJECT_NAME =
+            "org.wso2.carbon.identity.provisioning.connector.scim:type=SCIMConnectorMetrics";
+
+    private static final Log log = LogFactory.getLog(SCIMConnectorMetrics.class);
+
+    private final ProvisioningMetrics metrics = ProvisioningMetrics.getInstance();
+    private final SCIMProvisioningConnectorFactory connectorFactory;
+    // guarded by this.
+    private long lastRateTime = System.nanoTime();
+    private long lastRateCount;
+
+    /**
+     * @param connectorFactory factory whose connectors the queue gauges are read from
+     */
+    public SCIMConnectorMetrics(SCIMProvisioningConnectorFactory connectorFactory) {
+        this.connectorFactory = connectorFactory;
+    }
+
+    @Override
+    public long getProvisionCount() {
+        return metrics.getProvisionLatency().getCount();
+    }
+
+    @Override
+    public synchronized double getProvisionRate() {
+
+        long now = System.nanoTime();
+        long count = getProvisionCount();
+        double rate = now == lastRateTime ? 0 : (count - lastRateCount) * 1e9 / (now - lastRateTime);
+        lastRateTime = now;
+        lastRateCount = count;
+        return rate;
+    }
+
+    @Override
+    public double getProvisionLatencyP50() {
+        return metrics.getProvisionLatency().getPercentile(50);
+    }
+
+    @Override
+    public double getProvisionLatencyP99() {
+        return metrics.getProvisionLatency().getPercentile(99);
+    }
+
+    @Override
+    public double getProvisionLatencyP999() {
+        return metrics.getProvisionLatency().getPercentile(99.9);
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return metrics.getSuccessCount();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return metrics.getFailureCount();
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return metrics.getSkippedCount();
+    }
+
+    @Override
+    public long getBatchedCount() {
+        return metrics.getBatchedCount();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return metrics.getRequestCount();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return metrics.getBytesSent();
+    }
+
+    @Override
+    public int getConnectorCount() {
+        return connectorFactory.getConnectorCount();
+    }
+
+    @Override
+    public long getAsyncQueueDepth() {
+
+        long depth = 0;
+        for (SCIMProvisioningConnector connector : connectorFactory.getConnectors()) {
+            for (int laneDepth : connector.getAsyncLaneDepths()) {
+                depth += laneDepth;
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public long getJournalBacklog() {
+
+        long backlog = 0;
+        for (SCIMProvisioningConnector connector : connectorFactory.getConnectors()) {
+            backlog += connector.getJournalBacklog();
+        }
+        return backlog;
+    }
+
+    @Override
+    public long getCoalescingBacklog() {
+
+        long backlog = 0;
+        for (SCIMProvisioningConnector connector : connectorFactory.getConnectors()) {
+            backlog += connector.getCoalescingBacklog();
+        }
+        return backlog;
+    }
+
+    @Override
+    public String[] getOperationSummaries() {
+
+        List<String> summaries = new ArrayList<>();
+        for (ProvisioningEntityType entityType : ProvisioningEntityType.values()) {
+            for (ProvisioningOperation operation : ProvisioningOperation.values()) {
+                LatencyHistogram latency = metrics.getLatency(entityType, operation);
+                long skipped = metrics.getSkippedCount(entityType, operation);
+                long batched = metrics.getBatchedCount(entityType, operation);
+                if (latency.getCount() == 0 && skipped == 0 && batched == 0) {
+                    continue;
+                }
+                summaries.add(String.format(Locale.ENGLISH, "%s %s success=%d failure=%d skipped=%d batched=%d "
+                                + "p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", entityType, operation,
+                        metrics.getSuccessCount(entityType, operation), metrics.getFailureCount(entityType, operation),
+                        skipped, batched, latency.getPercentile(50), latency.getPercentile(99),
+                        latency.getPercentile(99.9), latency.getMax()));
+            }
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    @Override
+    public int getSchedulerInFlight() {
+        return RequestScheduler.getInstance().getInFlight();
+    }
+
+    @Override
+    public int getSchedulerQueueDepth() {
+        return RequestScheduler.getInstance().getQueueDepth();
+    }
+
+    @Override
+    public String[] getSchedulerFlowSummaries() {
+
+        List<String> summaries = new ArrayList<>();
+        for (SchedulerFlow flow : RequestScheduler.getInstance().getFlows()) {
+            LatencyHistogram waitTime = flow.getWaitTime();
+            summaries.add(String.format(Locale.ENGLISH, "%s weight=%d queued=%d inFlight=%d granted=%d timeouts=%d "
+                            + "waitMean=%.3fms waitP99=%.3fms waitMax=%.3fms", flow.getName(), flow.getWeight(),
+                    flow.getQueueDepth(), flow.getInFlight(), flow.getGrantedCount(), flow.getTimeoutCount(),
+                    waitTime.getMean(), waitTime.getPercentile(99), waitTime.getMax()));
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    @Override
+    public String[] getRateLimitSummaries() {
+
+        List<String> summaries = new ArrayList<>();
+        for (EndpointRateLimiter rateLimiter : RequestScheduler.getInstance().getRateLimiters()) {
+            summaries.add(String.format(Locale.ENGLISH, "%s rate=%d/s burst=%d delayed=%d delayMean=%.3fms "
+                            + "rejected=%d paused=%d", rateLimiter.getEndpoint(), rateLimiter.getRate(),
+                    rateLimiter.getBurst(), rateLimiter.getDelayedCount(), rateLimiter.getMeanDelay(),
+                    rateLimiter.getRejectedCount(), rateLimiter.getPauseCount()));
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    @Override
+    public double getLatencyPercentile(String entityType, String operation, double percentile) {
+
+        return metrics.getLatency(ProvisioningEntityType.valueOf(entityType.toUpperCase(Locale.ENGLISH)),
+                ProvisioningOperation.valueOf(operation.toUpperCase(Locale.ENGLISH))).getPercentile(percentile);
+    }
+
+    @Override
+    public void reset() {
+        metrics.reset();
+    }
+
+    @Override
+    public String startReconciliation(String tenantDomain, String identityProviderName) {
+
+        try {
+            if (!connectorFactory.startReconciliation(tenantDomain, identityProviderName)) {
+                return "A reconciliation is already running for " + identityProviderName;
+            }
+            return "Reconciliation started for " + identityProviderName;
+        } catch (IdentityProvisioningException e) {
+            log.error("Error while starting the reconciliation of " + identityProviderName, e);
+            return "Reconciliation not started: " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+/**
+ * JMX view of the metrics of the SCIM provisioning connectors, with the operation starting a reconciliation.
+ * Latencies are in milliseconds.
+ */
+public interface SCIMConnectorMetricsMBean {
+
+    long getProvisionCount();
+
+    /**
+     * @return {@code provision()} calls per second since the previous read of the rate
+     */
+    double getProvisionRate();
+
+    double getProvisionLatencyP50();
+
+    double getProvisionLatencyP99();
+
+    double getProvisionLatencyP999();
+
+    long getSuccessCount();
+
+    long getFailureCount();
+
+    long getSkippedCount();
+
+    long getBatchedCount();
+
+    long getRequestCount();
+
+    long getBytesSent();
+
+    int getConnectorCount();
+
+    /**
+     * @return provisioning tasks waiting in the asynchronous lanes of all connectors
+     */
+    long getAsyncQueueDepth();
+
+    /**
+     * @return operations recorded in the journals of all connectors and not acknowledged yet
+     */
+    long getJournalBacklog();
+
+    /**
+     * @return operations held for coalescing by all connectors
+     */
+    long getCoalescingBacklog();
+
+    /**
+     * @return one line per entity type and operation with its counts and latency percentiles
+     */
+    String[] getOperationSummaries();
+
+    /**
+     * @return outbound SCIM requests of the node holding a request slot of the scheduler
+     */
+    int getSchedulerInFlight();
+
+    /**
+     * @return outbound SCIM requests of the node waiting for a request slot of the scheduler
+     */
+    int getSchedulerQueueDepth();
+
+    /**
+     * @return one line per scheduler flow, such as a tenant, with its queue depth and wait time percentiles
+     */
+    String[] getSchedulerFlowSummaries();
+
+    /**
+     * @return one line per rate limited SCIM endpoint with its rate and the requests it delayed
+     */
+    String[] getRateLimitSummaries();
+
+    /**
+     * @param entityType user or group
+     * @param operation  provisioning operation, such as {@code POST}
+     * @param percentile percentile between 0 and 100, such as 99.9
+     * @return latency of the operation at the percentile
+     */
+    double getLatencyPercentile(String entityType, String operation, double percentile);
+
+    void reset();
+
+    /**
+     * Starts reconciling the SCIM provider of an identity provider with its user store domain, in the
+     * background.
+     *
+     * @param tenantDomain         tenant domain of the identity provider
+     * @param identityProviderName name of the identity provider
+     * @return whether the reconciliation was started, or why it was not
+     */
+    String startReconciliation(String tenantDomain, String identityProviderName);
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over cache line padded stripes, so that threads updating it concurrently rarely
+ * contend on the same cell. Updates do not allocate. Reading the counter sums all the stripes.
+ */
+public class StripedCounter {
+
+    // longs per stripe, so that every stripe sits on its own cache line.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @param value amount to add
+     */
+    public void add(long value) {
+        cells.getAndAdd(getStripe() * PADDING, value);
+    }
+
+    /**
+     * @return sum of all the stripes
+     */
+    public long sum() {
+
+        long sum = 0;
+        for (int stripe = 0; stripe <= mask; stripe++) {
+            sum += cells.get(stripe * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+
+        for (int stripe = 0; stripe <= mask; stripe++) {
+            cells.set(stripe * PADDING, 0);
+        }
+    }
+
+    private int getStripe() {
+
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
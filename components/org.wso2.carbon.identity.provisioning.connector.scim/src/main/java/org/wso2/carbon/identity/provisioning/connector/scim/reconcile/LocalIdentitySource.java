@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+
+import java.util.Iterator;
+
+/**
+ * Local users and groups a SCIM provider is reconciled against. Names are listed first and the entities
+ * are read one at a time later on, so a source does not need to hold its users in memory.
+ */
+public interface LocalIdentitySource {
+
+    /**
+     * @return names of the local users. An iterator listing them lazily throws a {@link ListingException}
+     * if the users cannot be listed.
+     * @throws IdentityProvisioningException if the users cannot be listed
+     */
+    Iterator<String> getUserNames() throws IdentityProvisioningException;
+
+    /**
+     * @param userName name of a listed user
+     * @return user entity carrying the user name and the claims of the user in the SCIM dialect, or null
+     * if the user no longer exists
+     * @throws IdentityProvisioningException if the user cannot be read
+     */
+    ProvisioningEntity getUser(String userName) throws IdentityProvisioningException;
+
+    /**
+     * @return names of the local groups
+     * @throws IdentityProvisioningException if the groups cannot be listed
+     */
+    Iterator<String> getGroupNames() throws IdentityProvisioningException;
+
+    /**
+     * @param groupName name of a listed group
+     * @return group entity carrying the group name and the user names of its members, or null if the
+     * group no longer exists
+     * @throws IdentityProvisioningException if the group cannot be read
+     */
+    ProvisioningEntity getGroup(String groupName) throws IdentityProvisioningException;
+
+    /**
+     * Thrown by the iterators of the names, which cannot throw checked exceptions, if the names cannot be
+     * listed.
+     */
+    class ListingException extends RuntimeException {
+
+        public ListingException(IdentityProvisioningException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IdentityProvisioningException getCause() {
+            return (IdentityProvisioningException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Progress of a reconciliation run, saved after every page of the remote listing and every compared
+ * partition so that an interrupted run resumes where it stopped.
+ */
+class ReconciliationCheckpoint {
+
+    private static final String CHECKPOINT_FILE = "checkpoint.properties";
+
+    /**
+     * Steps of the reconciliation of users or groups, in order.
+     */
+    enum Phase {
+        LISTING_LOCAL, LISTING_REMOTE, COMPARING, DONE
+    }
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    private ReconciliationCheckpoint(File directory) {
+        this.file = new File(directory, CHECKPOINT_FILE);
+    }
+
+    /**
+     * @param directory directory of the run
+     * @return checkpoint saved in the directory, or an empty one if there is none
+     * @throws IOException if the checkpoint cannot be read
+     */
+    static ReconciliationCheckpoint load(File directory) throws IOException {
+
+        ReconciliationCheckpoint checkpoint = new ReconciliationCheckpoint(directory);
+        if (checkpoint.file.isFile()) {
+            try (InputStream in = new FileInputStream(checkpoint.file)) {
+                checkpoint.properties.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return phase reached for the entity type, or null if its reconciliation has not started
+     */
+    synchronized Phase getPhase(ProvisioningEntityType entityType) {
+
+        String phase = properties.getProperty(getKey(entityType, "phase"));
+        return phase != null ? Phase.valueOf(phase) : null;
+    }
+
+    synchronized void setPhase(ProvisioningEntityType entityType, Phase phase) {
+        properties.setProperty(getKey(entityType, "phase"), phase.name());
+    }
+
+    synchronized int getPartitionCount(ProvisioningEntityType entityType) {
+        return Integer.parseInt(properties.getProperty(getKey(entityType, "partitions"), "1"));
+    }
+
+    synchronized void setPartitionCount(ProvisioningEntityType entityType, int partitionCount) {
+        properties.setProperty(getKey(entityType, "partitions"), String.valueOf(partitionCount));
+    }
+
+    /**
+     * @return 1-based index of the next page of the remote listing
+     */
+    synchronized int getRemoteStartIndex(ProvisioningEntityType entityType) {
+        return Integer.parseInt(properties.getProperty(getKey(entityType, "remote.start"), "1"));
+    }
+
+    /**
+     * @return length of each remote partition file once the pages before the next one were written
+     */
+    synchronized long[] getRemoteLengths(ProvisioningEntityType entityType) {
+
+        long[] lengths = new long[getPartitionCount(entityType)];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = Long.parseLong(properties.getProperty(getKey(entityType, "remote.length." + i), "0"));
+        }
+        return lengths;
+    }
+
+    synchronized void setRemoteProgress(ProvisioningEntityType entityType, int startIndex, long[] lengths) {
+
+        properties.setProperty(getKey(entityType, "remote.start"), String.valueOf(startIndex));
+        for (int i = 0; i < lengths.length; i++) {
+            properties.setProperty(getKey(entityType, "remote.length." + i), String.valueOf(lengths[i]));
+        }
+    }
+
+    synchronized boolean isCompared(ProvisioningEntityType entityType, int partition) {
+        return properties.containsKey(getKey(entityType, "compared." + partition));
+    }
+
+    synchronized void setCompared(ProvisioningEntityType entityType, int partition) {
+        properties.setProperty(getKey(entityType, "compared." + partition), "true");
+    }
+
+    /**
+     * Replaces the saved checkpoint, through a temporary file so that a crash never leaves a partial one.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    synchronized void save() throws IOException {
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
+            properties.store(out, null);
+            out.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the saved checkpoint.
+     */
+    synchronized void delete() {
+
+        properties.clear();
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static String getKey(ProvisioningEntityType entityType, String name) {
+        return entityType.name().toLowerCase(Locale.ENGLISH) + "." + name;
+    }
+}
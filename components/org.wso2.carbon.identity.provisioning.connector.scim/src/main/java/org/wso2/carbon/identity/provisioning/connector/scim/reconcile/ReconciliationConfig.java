@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import java.io.File;
+
+/**
+ * Settings of a reconciliation run.
+ */
+public class ReconciliationConfig {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_PARTITION_SIZE = 10000;
+    public static final int DEFAULT_THREADS = 4;
+
+    private File directory;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int partitionSize = DEFAULT_PARTITION_SIZE;
+    private int threads = DEFAULT_THREADS;
+    private boolean deleteEnabled;
+
+    /**
+     * @return directory holding the partition files and the checkpoint of the run
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return number of resources requested per page of the remote listing
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return number of remote resources per partition, bounding the resources held in memory by each
+     * diff thread
+     */
+    public int getPartitionSize() {
+        return partitionSize;
+    }
+
+    public void setPartitionSize(int partitionSize) {
+        this.partitionSize = partitionSize;
+    }
+
+    /**
+     * @return number of partitions compared in parallel
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return true to delete remote resources that have no local counterpart. Off by default, since the
+     * SCIM provider may hold users and groups that were not provisioned from here.
+     */
+    public boolean isDeleteEnabled() {
+        return deleteEnabled;
+    }
+
+    public void setDeleteEnabled(boolean deleteEnabled) {
+        this.deleteEnabled = deleteEnabled;
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.SCIMResourceIdCache;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointUnavailableException;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMResourceClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMResourcePage;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Brings a SCIM provider in line with the local users and groups, issuing only the creations,
+ * replacements and deletions required.
+ * <p/>
+ * Neither side is held in memory. The local names and the remote resources, paged through with
+ * startIndex and count, are first spilled to partition files by the hash of the user name or group
+ * display name, so that a user or group lands in the same partition on both sides. Partitions are then
+ * compared in parallel, each loading only its own remote resources into memory and reading the local
+ * entities one at a time. The partition count is derived from the size of the remote listing, so that
+ * a partition holds about {@link ReconciliationConfig#getPartitionSize()} remote resources.
+ * <p/>
+ * Progress is checkpointed after each remote page and each compared partition. A run that is stopped or
+ * fails, for instance because the SCIM provider became unavailable, resumes from its checkpoint when run
+ * again with the same directory. A partition interrupted while being compared is compared again as a
+ * whole. Users are reconciled before groups, so that the members of created groups already exist.
+ */
+public class ReconciliationEngine {
+
+    private static final Log log = LogFactory.getLog(ReconciliationEngine.class);
+
+    private static final int MAX_PARTITIONS = 1024;
+    private static final int PARTITIONS_PER_THREAD = 4;
+    private static final int PARTITION_BUFFER_SIZE = 4096;
+    private static final String LOCAL_PREFIX = "local-";
+    private static final String REMOTE_PREFIX = "remote-";
+    private static final String PARTITION_SUFFIX = ".dat";
+
+    private final SCIMResourceClient client;
+    private final SCIMResourceIdCache idCache;
+    private final ReconciliationTarget target;
+    private final ReconciliationConfig config;
+    private volatile boolean stopped;
+
+    /**
+     * @param client  client of the SCIM provider, used to list its resources
+     * @param idCache cache to seed with the ids of the listed resources, or null
+     * @param target  SCIM provider the operations are applied to
+     * @param config  settings of the run
+     */
+    public ReconciliationEngine(SCIMResourceClient client, SCIMResourceIdCache idCache, ReconciliationTarget target,
+                                ReconciliationConfig config) {
+
+        this.client = client;
+        this.idCache = idCache;
+        this.target = target;
+        this.config = config;
+    }
+
+    /**
+     * Reconciles the users and then the groups of the source, resuming the run checkpointed in the
+     * configured directory, if any. The directory is cleared once the run completes.
+     *
+     * @param source local users and groups
+     * @return outcome of the run
+     * @throws IdentityProvisioningException if the run was stopped or could not complete, in which case it
+     *                                       can be resumed
+     */
+    public ReconciliationReport run(LocalIdentitySource source) throws IdentityProvisioningException {
+
+        long startTime = System.currentTimeMillis();
+        File directory = config.getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IdentityProvisioningException("Cannot create reconciliation directory " + directory);
+        }
+
+        ReconciliationReport report = new ReconciliationReport();
+        try {
+            ReconciliationCheckpoint checkpoint = ReconciliationCheckpoint.load(directory);
+            reconcile(ProvisioningEntityType.USER, source, checkpoint, report);
+            reconcile(ProvisioningEntityType.GROUP, source, checkpoint, report);
+            checkpoint.delete();
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while accessing the reconciliation files in "
+                    + directory, e);
+        }
+        report.setDuration(System.currentTimeMillis() - startTime);
+        if (log.isDebugEnabled()) {
+            log.debug("Reconciliation completed. " + report);
+        }
+        return report;
+    }
+
+    /**
+     * Stops the run at the next entity or page. The run can be resumed later on.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private void reconcile(ProvisioningEntityType entityType, LocalIdentitySource source,
+                           ReconciliationCheckpoint checkpoint, ReconciliationReport report)
+            throws IdentityProvisioningException, IOException {
+
+        File typeDirectory = new File(config.getDirectory(), entityType.name().toLowerCase(Locale.ENGLISH));
+        ReconciliationCheckpoint.Phase phase = checkpoint.getPhase(entityType);
+        if (phase == ReconciliationCheckpoint.Phase.DONE) {
+            return;
+        }
+
+        if (phase == null) {
+            int remoteCount = client.listResources(entityType, 1, 1).getTotalResults();
+            int partitionSize = Math.max(1, config.getPartitionSize());
+            long partitionCount = Math.max((long) Math.max(1, config.getThreads()) * PARTITIONS_PER_THREAD,
+                    (remoteCount + partitionSize - 1L) / partitionSize);
+            checkpoint.setPartitionCount(entityType, (int) Math.min(MAX_PARTITIONS, partitionCount));
+            phase = ReconciliationCheckpoint.Phase.LISTING_LOCAL;
+        }
+        int partitionCount = checkpoint.getPartitionCount(entityType);
+
+        if (phase == ReconciliationCheckpoint.Phase.LISTING_LOCAL) {
+            listLocal(entityType, source, typeDirectory, partitionCount);
+            checkpoint.setRemoteProgress(entityType, 1, new long[partitionCount]);
+            checkpoint.setPhase(entityType, ReconciliationCheckpoint.Phase.LISTING_REMOTE);
+            checkpoint.save();
+            phase = ReconciliationCheckpoint.Phase.LISTING_REMOTE;
+        }
+        if (phase == ReconciliationCheckpoint.Phase.LISTING_REMOTE) {
+            listRemote(entityType, typeDirectory, partitionCount, checkpoint);
+            checkpoint.setPhase(entityType, ReconciliationCheckpoint.Phase.COMPARING);
+            checkpoint.save();
+        }
+
+        compare(entityType, source, typeDirectory, partitionCount, checkpoint, report);
+        checkpoint.setPhase(entityType, ReconciliationCheckpoint.Phase.DONE);
+        checkpoint.save();
+        deleteDirectory(typeDirectory);
+    }
+
+    private void listLocal(ProvisioningEntityType entityType, LocalIdentitySource source, File typeDirectory,
+                           int partitionCount) throws IdentityProvisioningException, IOException {
+
+        deleteDirectory(typeDirectory);
+        Iterator<String> names = entityType == ProvisioningEntityType.USER ?
+                source.getUserNames() : source.getGroupNames();
+        try (PartitionWriters writers = new PartitionWriters(typeDirectory, LOCAL_PREFIX, partitionCount, null)) {
+            while (names.hasNext()) {
+                checkStopped();
+                String name = names.next();
+                if (name != null) {
+                    writers.get(getPartition(name, partitionCount)).writeUTF(name);
+                }
+            }
+        } catch (LocalIdentitySource.ListingException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void listRemote(ProvisioningEntityType entityType, File typeDirectory, int partitionCount,
+                            ReconciliationCheckpoint checkpoint) throws IdentityProvisioningException, IOException {
+
+        int startIndex = checkpoint.getRemoteStartIndex(entityType);
+        long[] lengths = checkpoint.getRemoteLengths(entityType);
+        if (!hasLengths(typeDirectory, lengths)) {
+            // pages written before the checkpoint were lost, in a crash of the host for instance.
+            startIndex = 1;
+            lengths = new long[partitionCount];
+        }
+
+        String nameAttribute = entityType == ProvisioningEntityType.USER ?
+                SCIMConstants.UserSchemaConstants.USER_NAME : SCIMConstants.GroupSchemaConstants.DISPLAY_NAME;
+        try (PartitionWriters writers = new PartitionWriters(typeDirectory, REMOTE_PREFIX, partitionCount,
+                lengths)) {
+            while (true) {
+                checkStopped();
+                SCIMResourcePage page = client.listResources(entityType, startIndex, config.getPageSize());
+                if (page.getResources().isEmpty()) {
+                    break;
+                }
+                for (JSONObject resource : page.getResources()) {
+                    String name = resource.optString(nameAttribute, null);
+                    String id = resource.optString(SCIMConstants.CommonSchemaConstants.ID, null);
+                    if (name == null || id == null) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Skipping SCIM resource without a " + nameAttribute + " or an id : " + resource);
+                        }
+                        continue;
+                    }
+                    DataOutputStream out = writers.get(getPartition(name, partitionCount));
+                    out.writeUTF(name);
+                    out.writeUTF(id);
+                    byte[] json = resource.toString().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(json.length);
+                    out.write(json);
+                }
+                startIndex += page.getResources().size();
+                checkpoint.setRemoteProgress(entityType, startIndex, writers.getLengths());
+                checkpoint.save();
+                if (startIndex > page.getTotalResults()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void compare(final ProvisioningEntityType entityType, final LocalIdentitySource source,
+                         final File typeDirectory, int partitionCount, final ReconciliationCheckpoint checkpoint,
+                         final ReconciliationReport report) throws IdentityProvisioningException, IOException {
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(config.getThreads(),
+                partitionCount)), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SCIMReconciliation-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < partitionCount; i++) {
+                if (checkpoint.isCompared(entityType, i)) {
+                    continue;
+                }
+                final int partition = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        comparePartition(entityType, source, typeDirectory, partition, report);
+                        checkpoint.setCompared(entityType, partition);
+                        checkpoint.save();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    // the other partitions stop at their next entity, the run resumes from the checkpoint.
+                    stopped = true;
+                    if (e.getCause() instanceof IdentityProvisioningException) {
+                        throw (IdentityProvisioningException) e.getCause();
+                    }
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IdentityProvisioningException("Error while comparing " + entityType + " partitions",
+                            e.getCause());
+                } catch (InterruptedException e) {
+                    stopped = true;
+                    Thread.currentThread().interrupt();
+                    throw new IdentityProvisioningException("Interrupted while comparing " + entityType
+                            + " partitions", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void comparePartition(ProvisioningEntityType entityType, LocalIdentitySource source, File typeDirectory,
+                                  int partition, ReconciliationReport report)
+            throws IdentityProvisioningException, IOException {
+
+        Map<String, RemoteResource> remoteResources = readRemote(getPartitionFile(typeDirectory, REMOTE_PREFIX,
+                partition));
+        File localFile = getPartitionFile(typeDirectory, LOCAL_PREFIX, partition);
+        if (localFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(localFile),
+                    PARTITION_BUFFER_SIZE))) {
+                while (true) {
+                    String name;
+                    try {
+                        name = in.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    checkStopped();
+                    reconcileEntity(entityType, name, remoteResources.remove(name), source, report);
+                }
+            }
+        }
+
+        if (config.isDeleteEnabled()) {
+            for (Map.Entry<String, RemoteResource> remoteResource : remoteResources.entrySet()) {
+                checkStopped();
+                if (idCache != null) {
+                    idCache.put(entityType, remoteResource.getKey(), remoteResource.getValue().id);
+                }
+                delete(entityType, remoteResource.getKey(), report);
+            }
+        }
+    }
+
+    private void reconcileEntity(ProvisioningEntityType entityType, String name, RemoteResource remoteResource,
+                                 LocalIdentitySource source, ReconciliationReport report)
+            throws IdentityProvisioningException {
+
+        try {
+            ProvisioningEntity localEntity = entityType == ProvisioningEntityType.USER ?
+                    source.getUser(name) : source.getGroup(name);
+            if (remoteResource != null && idCache != null) {
+                idCache.put(entityType, name, remoteResource.id);
+            }
+            if (localEntity == null) {
+                // removed locally since it was listed.
+                if (remoteResource != null && config.isDeleteEnabled()) {
+                    delete(entityType, name, report);
+                }
+                return;
+            }
+
+            if (remoteResource == null) {
+                target.provision(new ProvisioningEntity(entityType, name, ProvisioningOperation.POST,
+                        localEntity.getAttributes()));
+                report.record(entityType, ReconciliationReport.Outcome.CREATED);
+                return;
+            }
+
+            if (target.isUpToDate(localEntity, new JSONObject(remoteResource.json))) {
+                report.record(entityType, ReconciliationReport.Outcome.UNCHANGED);
+            } else {
+                target.provision(new ProvisioningEntity(entityType, name, ProvisioningOperation.PUT,
+                        localEntity.getAttributes()));
+                report.record(entityType, ReconciliationReport.Outcome.UPDATED);
+            }
+        } catch (IdentityProvisioningException | JSONException e) {
+            failed(entityType, name, e, report);
+        }
+    }
+
+    private void delete(ProvisioningEntityType entityType, String name, ReconciliationReport report)
+            throws IdentityProvisioningException {
+
+        String claimUri = entityType == ProvisioningEntityType.USER ?
+                IdentityProvisioningConstants.USERNAME_CLAIM_URI : IdentityProvisioningConstants.GROUP_CLAIM_URI;
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(ClaimMapping.build(claimUri, claimUri, null, false), Collections.singletonList(name));
+        try {
+            target.provision(new ProvisioningEntity(entityType, name, ProvisioningOperation.DELETE, attributes));
+            report.record(entityType, ReconciliationReport.Outcome.DELETED);
+        } catch (IdentityProvisioningException e) {
+            failed(entityType, name, e, report);
+        }
+    }
+
+    private void failed(ProvisioningEntityType entityType, String name, Exception e, ReconciliationReport report)
+            throws IdentityProvisioningException {
+
+        if (isEndpointUnavailable(e)) {
+            throw new IdentityProvisioningException("SCIM provider unavailable while reconciling " + entityType
+                    + " " + name, e);
+        }
+        log.error("Error while reconciling " + entityType + " " + name, e);
+        report.record(entityType, ReconciliationReport.Outcome.FAILED);
+    }
+
+    private Map<String, RemoteResource> readRemote(File file) throws IOException {
+
+        Map<String, RemoteResource> resources = new HashMap<>();
+        if (!file.isFile()) {
+            return resources;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                PARTITION_BUFFER_SIZE))) {
+            while (true) {
+                String name;
+                try {
+                    name = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String id = in.readUTF();
+                byte[] json = new byte[in.readInt()];
+                in.readFully(json);
+                if (resources.put(name, new RemoteResource(id, new String(json, StandardCharsets.UTF_8))) != null) {
+                    log.warn("SCIM provider holds more than one resource named " + name
+                            + ". Reconciling the last one listed.");
+                }
+            }
+        }
+        return resources;
+    }
+
+    private void checkStopped() throws IdentityProvisioningException {
+
+        if (stopped) {
+            throw new IdentityProvisioningException("Reconciliation stopped");
+        }
+    }
+
+    private static boolean hasLengths(File typeDirectory, long[] lengths) {
+
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > 0 && getPartitionFile(typeDirectory, REMOTE_PREFIX, i).length() < lengths[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getPartition(String name, int partitionCount) {
+        return (name.hashCode() & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    private static File getPartitionFile(File typeDirectory, String prefix, int partition) {
+        return new File(typeDirectory, prefix + partition + PARTITION_SUFFIX);
+    }
+
+    private static boolean isEndpointUnavailable(Throwable e) {
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EndpointUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void deleteDirectory(File directory) {
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Cannot delete reconciliation file " + file);
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            log.warn("Cannot delete reconciliation directory " + directory);
+        }
+    }
+
+    private static class RemoteResource {
+
+        private final String id;
+        private final String json;
+
+        RemoteResource(String id, String json) {
+
+            this.id = id;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Appends to the partition files of one side, truncating them first to the given lengths.
+     */
+    private static class PartitionWriters implements Closeable {
+
+        private final FileOutputStream[] files;
+        private final DataOutputStream[] streams;
+
+        PartitionWriters(File typeDirectory, String prefix, int partitionCount, long[] lengths) throws IOException {
+
+            if (!typeDirectory.isDirectory() && !typeDirectory.mkdirs()) {
+                throw new IOException("Cannot create reconciliation directory " + typeDirectory);
+            }
+            files = new FileOutputStream[partitionCount];
+            streams = new DataOutputStream[partitionCount];
+            try {
+                for (int i = 0; i < partitionCount; i++) {
+                    File file = getPartitionFile(typeDirectory, prefix, i);
+                    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                        randomAccessFile.setLength(lengths != null ? lengths[i] : 0);
+                    }
+                    files[i] = new FileOutputStream(file, true);
+                    streams[i] = new DataOutputStream(new BufferedOutputStream(files[i], PARTITION_BUFFER_SIZE));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        DataOutputStream get(int partition) {
+            return streams[partition];
+        }
+
+        /**
+         * @return length of each partition file, once the buffered records are written out
+         */
+        long[] getLengths() throws IOException {
+
+            long[] lengths = new long[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                streams[i].flush();
+                lengths[i] = files[i].getChannel().size();
+            }
+            return lengths;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            IOException failure = null;
+            for (int i = 0; i < streams.length; i++) {
+                try {
+                    if (streams[i] != null) {
+                        streams[i].close();
+                    } else if (files[i] != null) {
+                        files[i].close();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
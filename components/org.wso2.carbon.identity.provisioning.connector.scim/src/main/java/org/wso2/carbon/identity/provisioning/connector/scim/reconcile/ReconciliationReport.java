@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of users and groups created, updated, deleted, left unchanged and failed by a reconciliation
+ * run. Entities handled by an interrupted run are not counted again when the run is resumed.
+ */
+public class ReconciliationReport {
+
+    enum Outcome {
+        CREATED, UPDATED, DELETED, UNCHANGED, FAILED
+    }
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray(ProvisioningEntityType.values().length * Outcome.values().length);
+    private volatile long duration;
+
+    void record(ProvisioningEntityType entityType, Outcome outcome) {
+        counts.incrementAndGet(getIndex(entityType, outcome));
+    }
+
+    void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public long getCreatedCount(ProvisioningEntityType entityType) {
+        return counts.get(getIndex(entityType, Outcome.CREATED));
+    }
+
+    public long getUpdatedCount(ProvisioningEntityType entityType) {
+        return counts.get(getIndex(entityType, Outcome.UPDATED));
+    }
+
+    public long getDeletedCount(ProvisioningEntityType entityType) {
+        return counts.get(getIndex(entityType, Outcome.DELETED));
+    }
+
+    public long getUnchangedCount(ProvisioningEntityType entityType) {
+        return counts.get(getIndex(entityType, Outcome.UNCHANGED));
+    }
+
+    public long getFailedCount(ProvisioningEntityType entityType) {
+        return counts.get(getIndex(entityType, Outcome.FAILED));
+    }
+
+    /**
+     * @return duration of the run in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder();
+        for (ProvisioningEntityType entityType : new ProvisioningEntityType[]{ProvisioningEntityType.USER,
+                ProvisioningEntityType.GROUP}) {
+            builder.append(entityType).append(" : ");
+            for (Outcome outcome : Outcome.values()) {
+                builder.append(counts.get(getIndex(entityType, outcome))).append(' ')
+                        .append(outcome.name().toLowerCase()).append(outcome == Outcome.FAILED ? "; " : ", ");
+            }
+        }
+        return builder.append("in ").append(duration).append("ms").toString();
+    }
+
+    private static int getIndex(ProvisioningEntityType entityType, Outcome outcome) {
+        return entityType.ordinal() * Outcome.values().length + outcome.ordinal();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+
+/**
+ * SCIM provider being reconciled, as seen by the {@link ReconciliationEngine}: it decides whether a
+ * remote resource matches the local entity and applies the operations found to be required.
+ */
+public interface ReconciliationTarget {
+
+    /**
+     * @param localEntity    local user or group
+     * @param remoteResource SCIM resource of the same name, without its meta attributes
+     * @return true if the remote resource carries the attributes the local entity would be provisioned with
+     * @throws IdentityProvisioningException if the local entity cannot be mapped
+     */
+    boolean isUpToDate(ProvisioningEntity localEntity, JSONObject remoteResource)
+            throws IdentityProvisioningException;
+
+    /**
+     * @param entity creation, replacement or deletion to apply to the SCIM provider
+     * @throws IdentityProvisioningException if the operation failed
+     */
+    void provision(ProvisioningEntity entity) throws IdentityProvisioningException;
+}
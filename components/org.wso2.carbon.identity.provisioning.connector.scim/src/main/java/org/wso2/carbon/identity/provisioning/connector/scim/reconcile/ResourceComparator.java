@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Compares the SCIM resource a connector would send with the one held by the SCIM provider. Only the
+ * attributes that would be sent are compared, since providers add attributes of their own, such as the
+ * id and the meta attributes. Multi-valued attributes are compared regardless of order, and must have
+ * the same number of values on both sides.
+ */
+public final class ResourceComparator {
+
+    private ResourceComparator() {
+    }
+
+    /**
+     * @param actual   resource held by the SCIM provider
+     * @param expected resource the connector would send
+     * @param ignored  attributes of the expected resource not to compare, such as the password
+     * @return true if every attribute of the expected resource has the same value in the actual one
+     */
+    public static boolean contains(JSONObject actual, JSONObject expected, Collection<String> ignored) {
+
+        Iterator<?> keys = expected.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (ignored.contains(key)) {
+                continue;
+            }
+            if (!actual.has(key) || !containsValue(actual.opt(key), expected.opt(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsValue(Object actual, Object expected) {
+
+        if (expected instanceof JSONObject) {
+            return actual instanceof JSONObject && contains((JSONObject) actual, (JSONObject) expected,
+                    Collections.<String>emptySet());
+        }
+        if (expected instanceof JSONArray) {
+            if (!(actual instanceof JSONArray) || ((JSONArray) actual).length() != ((JSONArray) expected).length()) {
+                return false;
+            }
+            JSONArray expectedValues = (JSONArray) expected;
+            JSONArray actualValues = (JSONArray) actual;
+            for (int i = 0; i < expectedValues.length(); i++) {
+                boolean found = false;
+                for (int j = 0; j < actualValues.length() && !found; j++) {
+                    found = containsValue(actualValues.opt(j), expectedValues.opt(i));
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // providers may return booleans and numbers as strings, or the other way round.
+        return actual != null && !(actual instanceof JSONObject) && !(actual instanceof JSONArray)
+                && String.valueOf(actual).equals(String.valueOf(expected));
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.apache.commons.lang.StringUtils;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.user.api.UserStoreException;
+import org.wso2.carbon.user.core.UserStoreManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Users and roles of one domain of a Carbon user store. The user store only lists users matching a
+ * filter, capped at its {@code MaxUserNameListLength}, so user names are listed a page at a time by
+ * walking name prefixes: a prefix whose listing returns fewer names than the page size is complete,
+ * otherwise it is split into longer prefixes, one per character. The page size must therefore not exceed
+ * the {@code MaxUserNameListLength} of the user store. Prefixes are extended with the printable ASCII
+ * characters and the other characters seen in the names listed so far, so a name whose character at a
+ * split position is neither, or a wildcard of the user store filters, may be missed. So may a name equal
+ * to a split prefix holding the single character wildcard of the JDBC user stores, {@code _}, when more
+ * than a page of names of its length match the prefix.
+ * <p/>
+ * Claims are read per user, in the given dialect. Roles are listed at once, as roles are few.
+ */
+public class UserStoreIdentitySource implements LocalIdentitySource {
+
+    private static final String DOMAIN_SEPARATOR = "/";
+    private static final String PRIMARY_DOMAIN = "PRIMARY";
+    private static final String WILDCARD = "*";
+    // longer prefixes mean the user store does not apply the filter, and would be walked forever.
+    private static final int MAX_PREFIX_LENGTH = 256;
+    // the single character wildcard of the JDBC user stores, '_', still lists the names holding it.
+    private static final String FILTER_WILDCARDS = "*%?";
+    private static final char[] PREFIX_CHARACTERS;
+
+    static {
+        StringBuilder characters = new StringBuilder();
+        for (char c = ' '; c < 0x7f; c++) {
+            if (!isWildcard(c) && !DOMAIN_SEPARATOR.equals(String.valueOf(c))) {
+                characters.append(c);
+            }
+        }
+        PREFIX_CHARACTERS = characters.toString().toCharArray();
+    }
+
+    private final UserStoreManager userStoreManager;
+    private final String domain;
+    private final String[] claimUris;
+    private final int pageSize;
+
+    /**
+     * @param userStoreManager user store manager of the tenant
+     * @param domain           user store domain to read, or null for the primary user store
+     * @param claimDialect     dialect of the claims to read for each user
+     * @param pageSize         maximum number of user names listed at once
+     * @throws IdentityProvisioningException if the claims of the dialect cannot be read
+     */
+    public UserStoreIdentitySource(UserStoreManager userStoreManager, String domain, String claimDialect,
+                                   int pageSize) throws IdentityProvisioningException {
+
+        this.userStoreManager = userStoreManager;
+        this.domain = StringUtils.isBlank(domain) ? PRIMARY_DOMAIN : domain;
+        this.pageSize = pageSize;
+
+        List<String> dialectClaimUris = new ArrayList<>();
+        try {
+            org.wso2.carbon.user.api.ClaimMapping[] claimMappings =
+                    userStoreManager.getClaimManager().getAllClaimMappings(claimDialect);
+            for (org.wso2.carbon.user.api.ClaimMapping claimMapping : claimMappings != null ? claimMappings :
+                    new org.wso2.carbon.user.api.ClaimMapping[0]) {
+                String claimUri = claimMapping.getClaim().getClaimUri();
+                // assigned by the SCIM provider, never provisioned.
+                if (!claimUri.equals(claimDialect + ":id") && !claimUri.startsWith(claimDialect + ":meta.")) {
+                    dialectClaimUris.add(claimUri);
+                }
+            }
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while reading the claims of dialect " + claimDialect, e);
+        }
+        this.claimUris = dialectClaimUris.toArray(new String[dialectClaimUris.size()]);
+    }
+
+    @Override
+    public Iterator<String> getUserNames() throws IdentityProvisioningException {
+        return new UserNameIterator();
+    }
+
+    @Override
+    public ProvisioningEntity getUser(String userName) throws IdentityProvisioningException {
+
+        Map<String, String> claims;
+        try {
+            claims = userStoreManager.getUserClaimValues(userName, claimUris, null);
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while reading the claims of user " + userName, e);
+        }
+        if (claims == null) {
+            return null;
+        }
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(buildClaimMapping(IdentityProvisioningConstants.USERNAME_CLAIM_URI),
+                Collections.singletonList(userName));
+        for (Map.Entry<String, String> claim : claims.entrySet()) {
+            if (StringUtils.isNotEmpty(claim.getValue())) {
+                attributes.put(buildClaimMapping(claim.getKey()), Collections.singletonList(claim.getValue()));
+            }
+        }
+        return new ProvisioningEntity(ProvisioningEntityType.USER, userName, ProvisioningOperation.PUT, attributes);
+    }
+
+    @Override
+    public Iterator<String> getGroupNames() throws IdentityProvisioningException {
+
+        String[] roleNames;
+        try {
+            roleNames = userStoreManager.getRoleNames();
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while listing the roles of domain " + domain, e);
+        }
+        List<String> groupNames = new ArrayList<>();
+        for (String roleName : roleNames != null ? roleNames : new String[0]) {
+            if (isInDomain(roleName)) {
+                groupNames.add(roleName);
+            }
+        }
+        return groupNames.iterator();
+    }
+
+    @Override
+    public ProvisioningEntity getGroup(String groupName) throws IdentityProvisioningException {
+
+        String[] memberNames;
+        try {
+            memberNames = userStoreManager.getUserListOfRole(groupName);
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while reading the members of role " + groupName, e);
+        }
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(buildClaimMapping(IdentityProvisioningConstants.GROUP_CLAIM_URI),
+                Collections.singletonList(groupName));
+        attributes.put(buildClaimMapping(IdentityProvisioningConstants.USERNAME_CLAIM_URI),
+                memberNames != null ? Arrays.asList(memberNames) : Collections.<String>emptyList());
+        return new ProvisioningEntity(ProvisioningEntityType.GROUP, groupName, ProvisioningOperation.PUT,
+                attributes);
+    }
+
+    /**
+     * @param filter user name filter, without the domain
+     * @return names of the users of the domain matching the filter, at most a page of them
+     */
+    private String[] listUsers(String filter) throws IdentityProvisioningException {
+
+        try {
+            String[] userNames = userStoreManager.listUsers(domain + DOMAIN_SEPARATOR + filter, pageSize);
+            return userNames != null ? userNames : new String[0];
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while listing the users of domain " + domain
+                    + " matching " + filter, e);
+        }
+    }
+
+    /**
+     * @return user name without the domain it may be qualified with
+     */
+    private String getLocalName(String userName) {
+
+        int separator = userName.indexOf(DOMAIN_SEPARATOR);
+        if (separator > 0 && domain.equalsIgnoreCase(userName.substring(0, separator))) {
+            return userName.substring(separator + 1);
+        }
+        return userName;
+    }
+
+    /**
+     * Role names of secondary user stores carry their domain, those of the primary user store carry none,
+     * and internal and application roles are never provisioned.
+     */
+    private boolean isInDomain(String roleName) {
+
+        int separator = roleName.indexOf(DOMAIN_SEPARATOR);
+        if (PRIMARY_DOMAIN.equalsIgnoreCase(domain)) {
+            return separator < 0 || PRIMARY_DOMAIN.equalsIgnoreCase(roleName.substring(0, separator));
+        }
+        return separator > 0 && domain.equalsIgnoreCase(roleName.substring(0, separator));
+    }
+
+    private static boolean isWildcard(char c) {
+        return FILTER_WILDCARDS.indexOf(c) >= 0;
+    }
+
+    private static ClaimMapping buildClaimMapping(String claimUri) {
+        return ClaimMapping.build(claimUri, claimUri, null, false);
+    }
+
+    /**
+     * Lists the prefixes depth first, in character order, holding one page of names and the prefixes left
+     * to list. A split prefix is revisited once its longer prefixes are listed, to extend it with the
+     * characters seen since it was split.
+     */
+    private class UserNameIterator implements Iterator<String> {
+
+        private final Deque<PendingPrefix> prefixes = new ArrayDeque<>();
+        private final Deque<String> userNames = new ArrayDeque<>();
+        // characters of the names listed so far, beyond the printable ASCII characters.
+        private final SortedSet<Character> seenCharacters = new TreeSet<>();
+
+        UserNameIterator() {
+            prefixes.push(new PendingPrefix("", null));
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            while (userNames.isEmpty() && !prefixes.isEmpty()) {
+                PendingPrefix pendingPrefix = prefixes.pop();
+                if (pendingPrefix.extendedWith != null) {
+                    extend(pendingPrefix.prefix, pendingPrefix.extendedWith);
+                    continue;
+                }
+                try {
+                    list(pendingPrefix.prefix);
+                } catch (IdentityProvisioningException e) {
+                    throw new ListingException(e);
+                }
+            }
+            return !userNames.isEmpty();
+        }
+
+        @Override
+        public String next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return userNames.poll();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void list(String prefix) throws IdentityProvisioningException {
+
+            String[] names = listUsers(prefix + WILDCARD);
+            for (String name : names) {
+                for (char c : getLocalName(name).toCharArray()) {
+                    if (!isWildcard(c) && Arrays.binarySearch(PREFIX_CHARACTERS, c) < 0
+                            && !DOMAIN_SEPARATOR.equals(String.valueOf(c))) {
+                        seenCharacters.add(c);
+                    }
+                }
+            }
+            if (names.length < pageSize) {
+                // the filters may match more than the prefix, as they ignore case or hold wildcards.
+                for (String name : names) {
+                    if (getLocalName(name).startsWith(prefix)) {
+                        userNames.add(name);
+                    }
+                }
+                return;
+            }
+            if (prefix.length() >= MAX_PREFIX_LENGTH) {
+                throw new IdentityProvisioningException("Users of domain " + domain + " cannot be listed "
+                        + "by prefix, as more than " + pageSize + " users match the prefix " + prefix);
+            }
+
+            // the listing was capped. The name equal to the prefix, if any, matches none of the longer prefixes.
+            if (!prefix.isEmpty()) {
+                for (String name : listUsers(prefix)) {
+                    if (getLocalName(name).equals(prefix)) {
+                        userNames.add(name);
+                    }
+                }
+            }
+            extend(prefix, new TreeSet<Character>());
+        }
+
+        /**
+         * Queues the longer prefixes of a split prefix for the characters it was not extended with yet,
+         * followed by the split prefix itself, to be revisited with the characters seen in the meantime.
+         *
+         * @param prefix       split prefix
+         * @param extendedWith characters the prefix was extended with already
+         */
+        private void extend(String prefix, SortedSet<Character> extendedWith) {
+
+            List<Character> characters = new ArrayList<>();
+            for (char c : PREFIX_CHARACTERS) {
+                if (!extendedWith.contains(c)) {
+                    characters.add(c);
+                }
+            }
+            for (Character c : seenCharacters) {
+                if (!extendedWith.contains(c)) {
+                    characters.add(c);
+                }
+            }
+            if (characters.isEmpty()) {
+                return;
+            }
+
+            SortedSet<Character> extendedCharacters = new TreeSet<>(extendedWith);
+            extendedCharacters.addAll(characters);
+            prefixes.push(new PendingPrefix(prefix, extendedCharacters));
+            // pushed in reverse, so that the longer prefixes are listed in character order.
+            for (int i = characters.size() - 1; i >= 0; i--) {
+                prefixes.push(new PendingPrefix(prefix + characters.get(i), null));
+            }
+        }
+    }
+
+    private static class PendingPrefix {
+
+        private final String prefix;
+        // characters a split prefix was extended with, or null if the prefix is still to be listed.
+        private final SortedSet<Character> extendedWith;
+
+        PendingPrefix(String prefix, SortedSet<Character> extendedWith) {
+            this.prefix = prefix;
+            this.extendedWith = extendedWith;
+        }
+    }
+}
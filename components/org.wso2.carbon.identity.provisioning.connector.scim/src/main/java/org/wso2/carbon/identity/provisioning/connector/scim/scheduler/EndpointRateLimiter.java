@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.scheduler;
+
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointUnavailableException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket holding the requests sent to a SCIM endpoint to the rate its SCIM service provider
+ * accepts. A request takes the next token and waits until it is due, so a burst above the rate is spread
+ * over time instead of being answered with 429. Unused tokens accumulate up to the burst size. A 429
+ * carrying Retry-After holds back all the requests to the endpoint until then.
+ */
+public class EndpointRateLimiter {
+
+    private final String endpoint;
+    private final int rate;
+    private final int burst;
+    private final long intervalNanos;
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong totalDelayNanos = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong pauseCount = new AtomicLong();
+    // guarded by this. Time the next token is due at.
+    private long nextTokenTime;
+
+    /**
+     * @param endpoint SCIM endpoint URL
+     * @param rate     requests per second
+     * @param burst    requests sent without delay after the endpoint has been idle
+     */
+    EndpointRateLimiter(String endpoint, int rate, int burst) {
+
+        this.endpoint = endpoint;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.nextTokenTime = System.nanoTime() - (this.burst - 1) * intervalNanos;
+    }
+
+    /**
+     * Waits until the request may be sent.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @throws EndpointUnavailableException if the request would have to wait longer than the timeout
+     * @throws InterruptedIOException       if interrupted while waiting
+     */
+    public void acquire(long timeout) throws IOException {
+
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextTokenTime = Math.max(nextTokenTime, now - (burst - 1) * intervalNanos);
+            delay = nextTokenTime - now;
+            if (delay > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                rejectedCount.incrementAndGet();
+                throw new EndpointUnavailableException("Rate limit of SCIM endpoint " + endpoint
+                        + " would delay the request by more than " + timeout + "ms");
+            }
+            nextTokenTime += intervalNanos;
+        }
+        if (delay <= 0) {
+            return;
+        }
+        delayedCount.incrementAndGet();
+        totalDelayNanos.addAndGet(delay);
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit of SCIM endpoint "
+                    + endpoint);
+        }
+    }
+
+    /**
+     * Holds back the requests to the endpoint, as asked by a 429 response.
+     *
+     * @param seconds time to hold the requests back for
+     */
+    public synchronized void pause(int seconds) {
+
+        nextTokenTime = Math.max(nextTokenTime, System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        pauseCount.incrementAndGet();
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return requests per second
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return requests that had to wait for a token
+     */
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    /**
+     * @return mean wait of the delayed requests, in milliseconds
+     */
+    public double getMeanDelay() {
+
+        long delayed = delayedCount.get();
+        return delayed == 0 ? 0 : totalDelayNanos.get() / 1e6 / delayed;
+    }
+
+    /**
+     * @return requests refused because their wait would have exceeded the timeout
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return 429 responses that held the requests back
+     */
+    public long getPauseCount() {
+        return pauseCount.get();
+    }
+}
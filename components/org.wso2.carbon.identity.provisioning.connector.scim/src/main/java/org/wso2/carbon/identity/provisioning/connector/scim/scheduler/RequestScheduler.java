@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.scheduler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointUnavailableException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules the outbound SCIM requests of all the connectors of the node. A bounded number of requests
+ * are sent at a time. Once all request slots are taken, requests queue per flow, and a freed slot goes to
+ * the flow with the lowest virtual start time (start-time fair queuing), so each backlogged flow gets a
+ * share of the slots in proportion to its weight whatever the backlog of the others. A flow that was
+ * idle joins at the current virtual time and earns no credit for its idle period.
+ * <p/>
+ * The number of request slots is a setting of the node, and the weight of a flow is fixed by the first
+ * connector scheduling its requests in it, so that connectors configured differently do not override
+ * each other.
+ * <p/>
+ * Also holds the {@link EndpointRateLimiter} of each rate limited SCIM endpoint, shared by all the
+ * connectors sending to it.
+ */
+public class RequestScheduler {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 64;
+
+    private static final Log log = LogFactory.getLog(RequestScheduler.class);
+    private static final RequestScheduler instance = new RequestScheduler();
+
+    private final ConcurrentMap<String, SchedulerFlow> flows = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, EndpointRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock.
+    private final Set<SchedulerFlow> backloggedFlows = new LinkedHashSet<>();
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int inFlight;
+    private int queueDepth;
+    private double virtualTime;
+
+    private RequestScheduler() {
+    }
+
+    public static RequestScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param name   flow name, such as a tenant domain
+     * @param weight share of the request slots of the flow, relative to the weights of the other flows
+     * @return flow of the given name, created with the given weight if absent. An existing flow keeps its
+     * weight.
+     */
+    public SchedulerFlow getFlow(String name, int weight) {
+
+        int flowWeight = Math.max(1, weight);
+        SchedulerFlow flow = flows.get(name);
+        if (flow == null) {
+            SchedulerFlow newFlow = new SchedulerFlow(name, flowWeight);
+            flow = flows.putIfAbsent(name, newFlow);
+            if (flow == null) {
+                return newFlow;
+            }
+        }
+        if (flow.getWeight() != flowWeight) {
+            log.warn("Scheduler flow " + name + " was created with weight " + flow.getWeight() + " by another "
+                    + "connector. Ignoring the weight " + flowWeight + " configured for it.");
+        }
+        return flow;
+    }
+
+    /**
+     * @return flows of all the connectors
+     */
+    public Collection<SchedulerFlow> getFlows() {
+        return new ArrayList<>(flows.values());
+    }
+
+    /**
+     * @param endpoint SCIM endpoint URL
+     * @param rate     requests per second accepted by the endpoint
+     * @param burst    requests sent without delay after the endpoint has been idle
+     * @return rate limiter of the endpoint. A rate limiter configured differently is replaced.
+     */
+    public EndpointRateLimiter getRateLimiter(String endpoint, int rate, int burst) {
+
+        while (true) {
+            EndpointRateLimiter rateLimiter = rateLimiters.get(endpoint);
+            if (rateLimiter != null && rateLimiter.getRate() == rate && rateLimiter.getBurst() == Math.max(1, burst)) {
+                return rateLimiter;
+            }
+            EndpointRateLimiter newRateLimiter = new EndpointRateLimiter(endpoint, rate, burst);
+            if (rateLimiter == null ? rateLimiters.putIfAbsent(endpoint, newRateLimiter) == null :
+                    rateLimiters.replace(endpoint, rateLimiter, newRateLimiter)) {
+                return newRateLimiter;
+            }
+        }
+    }
+
+    /**
+     * @return rate limiters of all the rate limited endpoints
+     */
+    public Collection<EndpointRateLimiter> getRateLimiters() {
+        return new ArrayList<>(rateLimiters.values());
+    }
+
+    /**
+     * @param maxConcurrency requests of the node sent at a time, set once for the node
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+
+        lock.lock();
+        try {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrency() {
+
+        lock.lock();
+        try {
+            return maxConcurrency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return requests holding a request slot
+     */
+    public int getInFlight() {
+
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return requests of all flows waiting for a request slot
+     */
+    public int getQueueDepth() {
+
+        lock.lock();
+        try {
+            return queueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a request slot for the flow, waiting for its turn if all of them are taken. The slot must be
+     * given back with {@link #release(SchedulerFlow)} once the request is sent.
+     *
+     * @param flow    flow of the request
+     * @param timeout maximum time to wait, in milliseconds
+     * @throws EndpointUnavailableException if no slot became free for the flow within the timeout
+     * @throws InterruptedIOException       if interrupted while waiting
+     */
+    public void acquire(SchedulerFlow flow, long timeout) throws IOException {
+
+        long startTime = System.nanoTime();
+        lock.lock();
+        try {
+            if (queueDepth == 0 && inFlight < maxConcurrency) {
+                grant(flow);
+                flow.granted(0);
+                return;
+            }
+
+            Waiter waiter = new Waiter(lock.newCondition());
+            flow.waiters.add(waiter);
+            flow.queueDepth++;
+            queueDepth++;
+            backloggedFlows.add(flow);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                while (!waiter.granted) {
+                    if (remaining <= 0) {
+                        cancel(flow, waiter);
+                        flow.timedOut();
+                        throw new EndpointUnavailableException("No outbound SCIM request slot became free for "
+                                + flow.getName() + " within " + timeout + "ms");
+                    }
+                    remaining = waiter.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    release(flow);
+                } else {
+                    cancel(flow, waiter);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an outbound SCIM request slot");
+            }
+            flow.granted(System.nanoTime() - startTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the request slot taken for the flow, handing it to the next flow in turn.
+     *
+     * @param flow flow of the request
+     */
+    public void release(SchedulerFlow flow) {
+
+        lock.lock();
+        try {
+            inFlight--;
+            flow.inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void grant(SchedulerFlow flow) {
+
+        double startTag = Math.max(flow.finishTag, virtualTime);
+        virtualTime = startTag;
+        flow.finishTag = startTag + 1.0 / flow.getWeight();
+        inFlight++;
+        flow.inFlight++;
+    }
+
+    private void cancel(SchedulerFlow flow, Waiter waiter) {
+
+        flow.waiters.remove(waiter);
+        flow.queueDepth--;
+        queueDepth--;
+        if (flow.waiters.isEmpty()) {
+            backloggedFlows.remove(flow);
+        }
+    }
+
+    /**
+     * Hands the free slots to the waiting requests of the flows with the lowest virtual start times.
+     */
+    private void dispatch() {
+
+        while (inFlight < maxConcurrency && queueDepth > 0) {
+            SchedulerFlow next = null;
+            double nextStartTag = 0;
+            for (SchedulerFlow flow : backloggedFlows) {
+                double startTag = Math.max(flow.finishTag, virtualTime);
+                if (next == null || startTag < nextStartTag) {
+                    next = flow;
+                    nextStartTag = startTag;
+                }
+            }
+            Waiter waiter = next.waiters.peek();
+            cancel(next, waiter);
+            grant(next);
+            waiter.granted = true;
+            waiter.condition.signal();
+        }
+    }
+
+    static class Waiter {
+
+        private final Condition condition;
+        // guarded by the scheduler lock.
+        private boolean granted;
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
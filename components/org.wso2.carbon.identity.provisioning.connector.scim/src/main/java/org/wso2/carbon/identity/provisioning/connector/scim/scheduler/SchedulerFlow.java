@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.scheduler;
+
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound SCIM traffic of a tenant, or of a group of identity providers, sharing the request slots of
+ * the {@link RequestScheduler} with the other flows in proportion to its weight.
+ */
+public class SchedulerFlow {
+
+    private final String name;
+    private final int weight;
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final AtomicLong grantedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    // guarded by the scheduler lock.
+    final Queue<RequestScheduler.Waiter> waiters = new ArrayDeque<>();
+    double finishTag;
+    volatile int queueDepth;
+    volatile int inFlight;
+
+    SchedulerFlow(String name, int weight) {
+
+        this.name = name;
+        this.weight = weight;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return share of the request slots of the flow, relative to the weights of the other flows
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return time the requests of the flow waited for a request slot
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return requests of the flow waiting for a request slot
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return requests of the flow holding a request slot
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public long getGrantedCount() {
+        return grantedCount.get();
+    }
+
+    /**
+     * @return requests of the flow refused because no request slot became free in time
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    void granted(long waitNanos) {
+
+        grantedCount.incrementAndGet();
+        waitTime.record(waitNanos);
+    }
+
+    void timedOut() {
+        timeoutCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Request entity sending another entity gzip compressed. The body is compressed once, when the entity is
+ * created, so that its length is known and the request does not need chunked transfer encoding.
+ */
+public class GzipRequestEntity implements RequestEntity {
+
+    private final byte[] content;
+    private final String contentType;
+
+    /**
+     * @param entity entity to compress, which must be repeatable
+     * @throws IOException if the entity cannot be written
+     */
+    public GzipRequestEntity(RequestEntity entity) throws IOException {
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.max(32,
+                entity.getContentLength() / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            entity.writeRequest(gzip);
+        }
+        this.content = compressed.toByteArray();
+        this.contentType = entity.getContentType();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void writeRequest(OutputStream outputStream) throws IOException {
+        outputStream.write(content);
+    }
+
+    @Override
+    public long getContentLength() {
+        return content.length;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+}
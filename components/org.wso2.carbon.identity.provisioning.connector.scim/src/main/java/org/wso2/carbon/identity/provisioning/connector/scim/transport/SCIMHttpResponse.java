@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Status, headers and body of a response received from a SCIM endpoint.
+ */
+public class SCIMHttpResponse {
+
+    private final int statusCode;
+    private final String body;
+    private final Map<String, String> headers;
+
+    public SCIMHttpResponse(int statusCode, String body, Map<String, String> headers) {
+
+        this.statusCode = statusCode;
+        this.body = body;
+        this.headers = headers != null ? headers : Collections.<String, String>emptyMap();
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @param name header name, case insensitive
+     * @return header value, or null if the header is not present
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public boolean isSuccess() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+}
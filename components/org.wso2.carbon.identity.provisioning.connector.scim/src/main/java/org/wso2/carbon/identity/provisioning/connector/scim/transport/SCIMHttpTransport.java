@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.CircuitBreaker;
+import org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointGuard;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.EndpointRateLimiter;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.RequestScheduler;
+import org.wso2.carbon.identity.provisioning.connector.scim.scheduler.SchedulerFlow;
+import org.wso2.carbon.identity.scim.common.utils.BasicAuthUtil;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends requests to a SCIM service provider, authenticating with the credentials configured for the
+ * connector. Connections are pooled and kept alive between requests, so a transport is meant to be
+ * created once per connector and shared by all its operations. It must be closed once the connector
+ * is discarded.
+ * <p/>
+ * If enabled, request bodies from the compression threshold up are sent gzip compressed. A SCIM host
+ * answering a compressed request with 415 is sent that request again uncompressed, and all later
+ * requests uncompressed too. Compressed responses are accepted if enabled, and decompressed whenever
+ * the host sends them.
+ * <p/>
+ * Requests to a rate limited endpoint wait for their token first, then requests of a scheduled flow wait
+ * for a request slot of the node, so that a throttled endpoint does not hold slots the other flows need.
+ */
+public class SCIMHttpTransport {
+
+    private static final Log log = LogFactory.getLog(SCIMHttpTransport.class);
+
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String GZIP = "gzip";
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private final String authorizationHeader;
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final IdleConnectionTimeoutThread idleConnectionEvictor;
+    private final HttpClient httpClient;
+    private final List<EndpointGuard> endpointGuards = new CopyOnWriteArrayList<>();
+    private final List<EndpointRateLimiter> rateLimiters = new CopyOnWriteArrayList<>();
+    private final int schedulingTimeout;
+    private volatile SchedulerFlow schedulerFlow;
+    private final boolean requestCompressionEnabled;
+    private final boolean responseCompressionEnabled;
+    private final int compressionThreshold;
+    private final Set<String> uncompressedHosts = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param userName user name of the SCIM service provider account
+     * @param password password of the SCIM service provider account
+     * @param config   connection pool and timeout settings
+     */
+    public SCIMHttpTransport(String userName, String password, SCIMTransportConfig config) {
+
+        this.authorizationHeader = BasicAuthUtil.getBase64EncodedBasicAuthHeader(userName, password);
+
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setMaxTotalConnections(config.getMaxConnections());
+        params.setDefaultMaxConnectionsPerHost(config.getMaxConnectionsPerRoute());
+        params.setConnectionTimeout(config.getConnectTimeout());
+        params.setSoTimeout(config.getReadTimeout());
+        params.setStaleCheckingEnabled(true);
+
+        httpClient = new HttpClient(connectionManager);
+        httpClient.getParams().setConnectionManagerTimeout(config.getConnectTimeout());
+
+        idleConnectionEvictor = new IdleConnectionTimeoutThread();
+        idleConnectionEvictor.setName("SCIMIdleConnectionEvictor");
+        idleConnectionEvictor.setConnectionTimeout(config.getIdleTimeout());
+        idleConnectionEvictor.setTimeoutInterval(Math.max(1000, config.getIdleTimeout() / 2));
+        idleConnectionEvictor.addConnectionManager(connectionManager);
+        idleConnectionEvictor.start();
+
+        requestCompressionEnabled = config.isRequestCompressionEnabled();
+        responseCompressionEnabled = config.isResponseCompressionEnabled();
+        compressionThreshold = config.getCompressionThreshold();
+        schedulingTimeout = config.getSchedulingTimeout();
+    }
+
+    /**
+     * @param url  endpoint URL
+     * @param body JSON request body
+     * @return response of the endpoint
+     * @throws IOException if the request could not be sent or the response could not be read
+     */
+    public SCIMHttpResponse post(String url, String body) throws IOException {
+
+        PostMethod postMethod = new PostMethod(url);
+        postMethod.setRequestEntity(createJSONEntity(body));
+        return execute(postMethod);
+    }
+
+    /**
+     * @param body JSON request body
+     * @return request entity carrying the body
+     * @throws IOException if the body cannot be encoded
+     */
+    public StringRequestEntity createJSONEntity(String body) throws IOException {
+        return new StringRequestEntity(body, SCIMConstants.APPLICATION_JSON, CHARSET_UTF8);
+    }
+
+    /**
+     * Guards the requests sent to the endpoint, and to the resources under it, with the given guard.
+     *
+     * @param guard guard of a SCIM endpoint
+     */
+    public void addEndpointGuard(EndpointGuard guard) {
+        endpointGuards.add(guard);
+    }
+
+    /**
+     * Holds the requests sent to the endpoint, and to the resources under it, to the rate of the given
+     * rate limiter.
+     *
+     * @param rateLimiter rate limiter of a SCIM endpoint
+     */
+    public void addRateLimiter(EndpointRateLimiter rateLimiter) {
+        rateLimiters.add(rateLimiter);
+    }
+
+    /**
+     * Sends all requests in turn with the other flows of the {@link RequestScheduler}.
+     *
+     * @param flow flow the requests belong to, or null to send them unscheduled
+     */
+    public void setSchedulerFlow(SchedulerFlow flow) {
+        this.schedulerFlow = flow;
+    }
+
+    /**
+     * Executes the given method and reads the whole response, returning the connection to the pool
+     * afterwards.
+     *
+     * @param method HTTP method to execute
+     * @return response of the endpoint
+     * @throws IOException if the request could not be sent or the response could not be read, or
+     *                     {@link org.wso2.carbon.identity.provisioning.connector.scim.guard.EndpointUnavailableException}
+     *                     if the endpoint is not accepting requests or the request could not be scheduled in time
+     */
+    public SCIMHttpResponse execute(HttpMethodBase method) throws IOException {
+
+        RequestEntity uncompressedEntity = compress(method);
+        SCIMHttpResponse response = send(method);
+        if (uncompressedEntity != null && response.getStatusCode() == SC_UNSUPPORTED_MEDIA_TYPE) {
+            String host = method.getURI().getAuthority();
+            if (uncompressedHosts.add(host)) {
+                log.info("SCIM host " + host + " does not accept compressed requests. Sending them uncompressed.");
+            }
+            method.removeRequestHeader(CONTENT_ENCODING_HEADER);
+            ((EntityEnclosingMethod) method).setRequestEntity(uncompressedEntity);
+            response = send(method);
+        }
+        return response;
+    }
+
+    /**
+     * Replaces the body of the method by its compressed form, if it is large enough and its host accepts
+     * compressed requests.
+     *
+     * @return uncompressed body of the method, or null if it was not compressed
+     */
+    private RequestEntity compress(HttpMethodBase method) throws IOException {
+
+        if (!requestCompressionEnabled || !(method instanceof EntityEnclosingMethod)) {
+            return null;
+        }
+        RequestEntity entity = ((EntityEnclosingMethod) method).getRequestEntity();
+        if (entity == null || !entity.isRepeatable() || entity.getContentLength() < compressionThreshold
+                || uncompressedHosts.contains(method.getURI().getAuthority())) {
+            return null;
+        }
+        ((EntityEnclosingMethod) method).setRequestEntity(new GzipRequestEntity(entity));
+        method.setRequestHeader(CONTENT_ENCODING_HEADER, GZIP);
+        return entity;
+    }
+
+    private SCIMHttpResponse send(HttpMethodBase method) throws IOException {
+
+        EndpointRateLimiter rateLimiter = getRateLimiter(method);
+        if (rateLimiter != null) {
+            rateLimiter.acquire(schedulingTimeout);
+        }
+        SchedulerFlow flow = schedulerFlow;
+        if (flow != null) {
+            RequestScheduler.getInstance().acquire(flow, schedulingTimeout);
+        }
+        SCIMHttpResponse response;
+        try {
+            response = sendGuarded(method);
+        } finally {
+            if (flow != null) {
+                RequestScheduler.getInstance().release(flow);
+            }
+        }
+        if (rateLimiter != null && response.getStatusCode() == SC_TOO_MANY_REQUESTS) {
+            int retryAfter = getRetryAfter(response);
+            if (retryAfter > 0) {
+                rateLimiter.pause(retryAfter);
+            }
+        }
+        return response;
+    }
+
+    private SCIMHttpResponse sendGuarded(HttpMethodBase method) throws IOException {
+
+        EndpointGuard guard = getEndpointGuard(method);
+        CircuitBreaker.Permit permit = guard != null ? guard.acquire() : null;
+
+        method.setRequestHeader(SCIMConstants.AUTHORIZATION_HEADER, authorizationHeader);
+        if (responseCompressionEnabled) {
+            method.setRequestHeader(ACCEPT_ENCODING_HEADER, GZIP);
+        }
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            int statusCode = httpClient.executeMethod(method);
+            String body = getResponseBody(method);
+            Map<String, String> headers = new HashMap<>();
+            for (Header header : method.getResponseHeaders()) {
+                headers.put(header.getName().toLowerCase(), header.getValue());
+            }
+            // client errors say nothing about the health of the endpoint.
+            failed = statusCode >= 500 || statusCode == SC_TOO_MANY_REQUESTS;
+            ProvisioningMetrics.getInstance().recordRequest(getContentLength(method));
+            return new SCIMHttpResponse(statusCode, body, headers);
+        } finally {
+            method.releaseConnection();
+            if (guard != null) {
+                guard.release(permit, System.nanoTime() - startTime, failed);
+            }
+        }
+    }
+
+    /**
+     * @return response body, decompressed if the host compressed it
+     */
+    private static String getResponseBody(HttpMethodBase method) throws IOException {
+
+        Header contentEncoding = method.getResponseHeader(CONTENT_ENCODING_HEADER);
+        if (contentEncoding == null || !GZIP.equalsIgnoreCase(contentEncoding.getValue().trim())) {
+            return method.getResponseBodyAsString();
+        }
+        InputStream responseBody = method.getResponseBodyAsStream();
+        if (responseBody == null) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream gzip = new GZIPInputStream(responseBody)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), method.getResponseCharSet());
+    }
+
+    /**
+     * @return seconds to wait before the next request, or 0 if not given in seconds
+     */
+    private static int getRetryAfter(SCIMHttpResponse response) {
+
+        String retryAfter = response.getHeader(RETRY_AFTER_HEADER);
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(retryAfter.trim());
+        } catch (NumberFormatException e) {
+            // an HTTP date is not worth parsing for the short pauses SCIM service providers ask for.
+            return 0;
+        }
+    }
+
+    private static long getContentLength(HttpMethodBase method) {
+
+        if (method instanceof EntityEnclosingMethod) {
+            RequestEntity entity = ((EntityEnclosingMethod) method).getRequestEntity();
+            return entity != null ? entity.getContentLength() : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * @return guard of the longest endpoint URL the method URL starts with, or null if it is not guarded
+     */
+    private EndpointGuard getEndpointGuard(HttpMethodBase method) throws IOException {
+
+        if (endpointGuards.isEmpty()) {
+            return null;
+        }
+        String url = method.getURI().toString();
+        EndpointGuard match = null;
+        for (EndpointGuard guard : endpointGuards) {
+            if (url.startsWith(guard.getEndpoint())
+                    && (match == null || guard.getEndpoint().length() > match.getEndpoint().length())) {
+                match = guard;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * @return rate limiter of the longest endpoint URL the method URL starts with, or null if it is not
+     * rate limited
+     */
+    private EndpointRateLimiter getRateLimiter(HttpMethodBase method) throws IOException {
+
+        if (rateLimiters.isEmpty()) {
+            return null;
+        }
+        String url = method.getURI().toString();
+        EndpointRateLimiter match = null;
+        for (EndpointRateLimiter rateLimiter : rateLimiters) {
+            if (url.startsWith(rateLimiter.getEndpoint())
+                    && (match == null || rateLimiter.getEndpoint().length() > match.getEndpoint().length())) {
+                match = rateLimiter;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Closes all pooled connections. The transport cannot be used afterwards.
+     */
+    public void close() {
+
+        idleConnectionEvictor.shutdown();
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.SCIMResourceIdCache;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the user names of group members to their SCIM ids, so that groups reference their members by
+ * {@code value} rather than by display name only. Names are first looked up in the
+ * {@link SCIMResourceIdCache}, which also serves the single user lookups of {@link SCIMResourceClient}.
+ * The remaining names are looked up in batches, each a single request filtering on
+ * {@code userName eq "a" or userName eq "b" ...}, and the batches of a group are sent concurrently.
+ * <p/>
+ * SCIM providers that do not support the standard filter syntax with the {@code or} operator, such as
+ * those built on charon 1.x, reject the batch filter with status 400. The names are then looked up one at
+ * a time with the {@code userNameEq} filter of {@link SCIMResourceClient}, for this and every later batch.
+ */
+public class SCIMMemberResolver {
+
+    private static final Log log = LogFactory.getLog(SCIMMemberResolver.class);
+
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final String RESOURCES = "Resources";
+    private static final String FILTER = "filter=";
+    private static final String USER_FILTER = "filter=userNameEq";
+    private static final String COUNT = "&count=";
+    private static final String EQUALS = " eq ";
+    private static final String OR = " or ";
+
+    private final SCIMHttpTransport transport;
+    private final String userEndpoint;
+    private final SCIMResourceIdCache idCache;
+    private final int batchSize;
+    private final ExecutorService executor;
+    // set once the SCIM provider rejected a batch filter.
+    private volatile boolean batchFilterUnsupported;
+
+    /**
+     * @param transport    transport used to reach the SCIM service provider
+     * @param userEndpoint URL of the SCIM users endpoint
+     * @param idCache      cache of resolved SCIM ids, or null to look all members up
+     * @param batchSize    maximum number of user names in one filter
+     * @param threads      maximum number of batches sent concurrently, counting the calling thread
+     */
+    public SCIMMemberResolver(SCIMHttpTransport transport, String userEndpoint, SCIMResourceIdCache idCache,
+                              int batchSize, int threads) {
+
+        this.transport = transport;
+        this.userEndpoint = userEndpoint;
+        this.idCache = idCache;
+        this.batchSize = Math.max(1, batchSize);
+        if (threads > 1) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SCIMMemberResolver-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @param userNames user names of the members
+     * @return SCIM id of each member found in the SCIM provider, keyed by user name. Members that do not
+     * exist in the SCIM provider are left out.
+     * @throws IdentityProvisioningException if a batch could not be looked up
+     */
+    public Map<String, String> resolve(Collection<String> userNames) throws IdentityProvisioningException {
+
+        Map<String, String> userIds = new HashMap<>();
+        if (userNames == null || userNames.isEmpty()) {
+            return userIds;
+        }
+
+        List<String> unresolved = new ArrayList<>();
+        for (String userName : new LinkedHashSet<>(userNames)) {
+            String userId = idCache != null ? idCache.get(ProvisioningEntityType.USER, userName) : null;
+            if (userId != null) {
+                userIds.put(userName, userId);
+            } else if (userName != null) {
+                unresolved.add(userName);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            return userIds;
+        }
+        int cachedCount = userIds.size();
+
+        // the calling thread looks the first batch up while the others are sent by the pool.
+        List<Future<Map<String, String>>> results = new ArrayList<>();
+        if (executor != null) {
+            for (int start = batchSize; start < unresolved.size(); start += batchSize) {
+                final List<String> batch = unresolved.subList(start, Math.min(unresolved.size(), start + batchSize));
+                results.add(executor.submit(new Callable<Map<String, String>>() {
+                    @Override
+                    public Map<String, String> call() throws IdentityProvisioningException {
+                        return lookup(batch);
+                    }
+                }));
+            }
+            userIds.putAll(lookup(unresolved.subList(0, Math.min(unresolved.size(), batchSize))));
+        } else {
+            for (int start = 0; start < unresolved.size(); start += batchSize) {
+                userIds.putAll(lookup(unresolved.subList(start, Math.min(unresolved.size(), start + batchSize))));
+            }
+        }
+
+        try {
+            for (Future<Map<String, String>> result : results) {
+                userIds.putAll(result.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IdentityProvisioningException) {
+                throw (IdentityProvisioningException) e.getCause();
+            }
+            throw new IdentityProvisioningException("Error while resolving group members", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdentityProvisioningException("Interrupted while resolving group members", e);
+        } finally {
+            for (Future<Map<String, String>> result : results) {
+                result.cancel(true);
+            }
+        }
+
+        int missingCount = unresolved.size() - (userIds.size() - cachedCount);
+        if (missingCount > 0 && log.isDebugEnabled()) {
+            log.debug(missingCount + " of " + unresolved.size() + " looked up members do not exist in the SCIM "
+                    + "provider");
+        }
+        return userIds;
+    }
+
+    /**
+     * Stops the threads looking batches up.
+     */
+    public void shutdown() {
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return SCIM id of each user of the batch found in the SCIM provider, keyed by user name
+     */
+    private Map<String, String> lookup(List<String> batch) throws IdentityProvisioningException {
+
+        Map<String, String> userIds = new HashMap<>();
+        if (!batchFilterUnsupported) {
+            StringBuilder filter = new StringBuilder();
+            for (String userName : batch) {
+                if (filter.length() > 0) {
+                    filter.append(OR);
+                }
+                filter.append(SCIMConstants.UserSchemaConstants.USER_NAME).append(EQUALS).append('"')
+                        .append(userName.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            SCIMHttpResponse response = execute(FILTER + encode(filter.toString(), batch.size() + " users") + COUNT
+                    + batch.size(), batch.size() + " users");
+            if (response.getStatusCode() != HttpStatus.SC_BAD_REQUEST) {
+                readUserIds(response, batch, userIds, batch.size() + " users");
+                return userIds;
+            }
+            batchFilterUnsupported = true;
+            log.warn("SCIM provider at " + userEndpoint + " does not support filters with the or operator. Group "
+                    + "members are looked up one at a time.");
+        }
+
+        for (String userName : batch) {
+            // the same lookup as the one of SCIMResourceClient.
+            SCIMHttpResponse response = execute(USER_FILTER + encode(userName, "user " + userName),
+                    "user " + userName);
+            readUserIds(response, Collections.singletonList(userName), userIds, "user " + userName);
+        }
+        return userIds;
+    }
+
+    private String encode(String filter, String description) throws IdentityProvisioningException {
+
+        try {
+            return URLEncoder.encode(filter, CHARSET_UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IdentityProvisioningException("Error while encoding filter for " + description, e);
+        }
+    }
+
+    private SCIMHttpResponse execute(String queryString, String description) throws IdentityProvisioningException {
+
+        GetMethod getMethod = new GetMethod(userEndpoint);
+        getMethod.setQueryString(queryString);
+        try {
+            return transport.execute(getMethod);
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while looking up " + description, e);
+        }
+    }
+
+    /**
+     * Adds the SCIM ids of the requested users found in the response to the given ids, keyed by user name.
+     */
+    private void readUserIds(SCIMHttpResponse response, List<String> userNames, Map<String, String> userIds,
+                             String description) throws IdentityProvisioningException {
+
+        if (!response.isSuccess()) {
+            throw new IdentityProvisioningException("Error while looking up " + description + ". SCIM provider "
+                    + "responded with status " + response.getStatusCode() + " : " + response.getBody());
+        }
+
+        // user names are matched case insensitively by the SCIM provider.
+        Map<String, String> requestedNames = new HashMap<>();
+        for (String userName : userNames) {
+            requestedNames.put(userName.toLowerCase(Locale.ENGLISH), userName);
+        }
+        try {
+            JSONArray resources = new JSONObject(response.getBody()).optJSONArray(RESOURCES);
+            for (int i = 0; resources != null && i < resources.length(); i++) {
+                JSONObject resource = resources.optJSONObject(i);
+                String userName = resource != null ? resource.optString(SCIMConstants.UserSchemaConstants.USER_NAME,
+                        null) : null;
+                String userId = resource != null ? resource.optString(SCIMConstants.CommonSchemaConstants.ID,
+                        null) : null;
+                if (userName == null || userId == null) {
+                    continue;
+                }
+                String requestedName = requestedNames.get(userName.toLowerCase(Locale.ENGLISH));
+                if (requestedName != null) {
+                    userIds.put(requestedName, userId);
+                    if (idCache != null) {
+                        idCache.put(ProvisioningEntityType.USER, requestedName, userId,
+                                SCIMResourceClient.getVersion(resource));
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            throw new IdentityProvisioningException("Error while reading the SCIM provider response for "
+                    + description, e);
+        }
+    }
+}
@@ -0,0 +1,754 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.SCIMResourceIdCache;
+import org.wso2.charon.core.client.SCIMClient;
+import org.wso2.charon.core.exceptions.CharonException;
+import org.wso2.charon.core.objects.AbstractSCIMObject;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates, updates and deletes users and groups on a SCIM service provider over a shared
+ * {@link SCIMHttpTransport}. Updates and deletes are addressed by user name or group display name, which
+ * are resolved to the SCIM resource id with a filtered lookup, the same way the scim-common
+ * ProvisioningClient does. Resolved ids are kept in a {@link SCIMResourceIdCache}, if one is given,
+ * so that most writes take a single round-trip. Group members are referenced by their SCIM id if a
+ * {@link SCIMMemberResolver} is given, and by their user name only otherwise.
+ * <p/>
+ * With conditional writes, replacements and modifications carry the version of the resource last
+ * returned by the service provider in an If-Match header. A write based on a stale version, such as the
+ * retry of a write that did complete, is then rejected by the service provider rather than overwriting
+ * the resource, and the version is looked up again before the next write.
+ */
+public class SCIMResourceClient {
+
+    private static final Log log = LogFactory.getLog(SCIMResourceClient.class);
+
+    private static final String USER_FILTER = "filter=userNameEq";
+    private static final String GROUP_FILTER = "filter=displayNameEq";
+    private static final String RESOURCES = "Resources";
+    private static final String TOTAL_RESULTS = "totalResults";
+    private static final String START_INDEX = "startIndex=";
+    private static final String COUNT = "count=";
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final String META = "meta";
+    private static final String SCHEMAS = "schemas";
+    private static final String OPERATION = "operation";
+    private static final String OPERATION_DELETE = "delete";
+    private static final String META_ATTRIBUTES = "attributes";
+    private static final String META_VERSION = "version";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String IF_MATCH_HEADER = "If-Match";
+
+    private static final ResourceMethodFactory DELETE_METHOD_FACTORY = new ResourceMethodFactory() {
+        @Override
+        HttpMethodBase create(String resourceUrl) {
+            return new DeleteMethod(resourceUrl);
+        }
+    };
+
+    private final SCIMHttpTransport transport;
+    private final String userEndpoint;
+    private final String groupEndpoint;
+    private final SCIMResourceIdCache idCache;
+    private final SCIMMemberResolver memberResolver;
+    private final boolean conditionalWritesEnabled;
+
+    /**
+     * @param transport     transport used to reach the SCIM service provider
+     * @param userEndpoint  URL of the SCIM users endpoint
+     * @param groupEndpoint URL of the SCIM groups endpoint
+     * @param idCache       cache of resolved SCIM ids, or null to look ids up before every request
+     */
+    public SCIMResourceClient(SCIMHttpTransport transport, String userEndpoint, String groupEndpoint,
+                              SCIMResourceIdCache idCache) {
+        this(transport, userEndpoint, groupEndpoint, idCache, null, false);
+    }
+
+    /**
+     * @param transport      transport used to reach the SCIM service provider
+     * @param userEndpoint   URL of the SCIM users endpoint
+     * @param groupEndpoint  URL of the SCIM groups endpoint
+     * @param idCache        cache of resolved SCIM ids, or null to look ids up before every request
+     * @param memberResolver resolver of the SCIM ids of group members, or null to reference members by
+     *                       user name only
+     * @param conditionalWritesEnabled whether replacements and modifications are made conditional on the
+     *                                 version of the resource
+     */
+    public SCIMResourceClient(SCIMHttpTransport transport, String userEndpoint, String groupEndpoint,
+                              SCIMResourceIdCache idCache, SCIMMemberResolver memberResolver,
+                              boolean conditionalWritesEnabled) {
+
+        this.transport = transport;
+        this.userEndpoint = userEndpoint;
+        this.groupEndpoint = groupEndpoint;
+        this.idCache = idCache;
+        this.memberResolver = memberResolver;
+        this.conditionalWritesEnabled = conditionalWritesEnabled;
+    }
+
+    /**
+     * @param userName name of the user to create
+     * @param user     user encoded as SCIM JSON
+     * @return SCIM id assigned to the user, if returned by the service provider
+     * @throws IdentityProvisioningException
+     */
+    public String createUser(String userName, JSONObject user) throws IdentityProvisioningException {
+
+        PostMethod postMethod = new PostMethod(userEndpoint);
+        postMethod.setRequestEntity(createEntity(user));
+        SCIMHttpResponse response = send(postMethod, "creating user " + userName);
+
+        String userId = getId(response);
+        if (idCache != null) {
+            idCache.put(ProvisioningEntityType.USER, userName, userId, getVersion(response));
+        }
+        return userId;
+    }
+
+    /**
+     * @param userName  name of the user to update
+     * @param user      user encoded as SCIM JSON, carrying the new attribute values
+     * @param operation {@link ProvisioningOperation#PUT} to replace the user or
+     *                  {@link ProvisioningOperation#PATCH} to modify it
+     * @throws IdentityProvisioningException
+     */
+    public void updateUser(String userName, JSONObject user, ProvisioningOperation operation)
+            throws IdentityProvisioningException {
+
+        if (sendUser(userName, user, operation) == null) {
+            throw new IdentityProvisioningException("User " + userName + " does not exist in the SCIM provider");
+        }
+    }
+
+    /**
+     * Replaces the user, or creates it if it does not exist in the SCIM provider.
+     *
+     * @param userName name of the user
+     * @param user     user encoded as SCIM JSON, carrying all its attributes
+     * @throws IdentityProvisioningException
+     */
+    public void replaceUser(String userName, JSONObject user) throws IdentityProvisioningException {
+
+        if (sendUser(userName, user, ProvisioningOperation.PUT) == null) {
+            createUser(userName, user);
+        }
+    }
+
+    /**
+     * @return SCIM id of the user, or null if the user does not exist in the SCIM provider
+     */
+    private String sendUser(String userName, JSONObject user, final ProvisioningOperation operation)
+            throws IdentityProvisioningException {
+
+        final RequestEntity entity = createEntity(user);
+        return sendToResource(ProvisioningEntityType.USER, userName, new ResourceMethodFactory() {
+            @Override
+            HttpMethodBase create(String resourceUrl) {
+                EntityEnclosingMethod method = ProvisioningOperation.PATCH.equals(operation) ?
+                        new PatchMethod(resourceUrl) : new PutMethod(resourceUrl);
+                method.setRequestEntity(entity);
+                return method;
+            }
+        }, "updating user " + userName);
+    }
+
+    /**
+     * Sends a SCIM PATCH carrying only the given user attributes. The attributes listed for removal are
+     * removed by the service provider before the given attributes are applied.
+     *
+     * @param userName          name of the user to patch
+     * @param userData          user encoded as SCIM JSON, carrying the attributes to set. It is modified
+     *                          to list the removed attributes.
+     * @param removedAttributes names of the attributes to remove, such as {@code nickName} or
+     *                          {@code emails}
+     * @throws IdentityProvisioningException
+     */
+    public void patchUser(String userName, JSONObject userData, Collection<String> removedAttributes)
+            throws IdentityProvisioningException {
+
+        final RequestEntity entity;
+        try {
+            if (!removedAttributes.isEmpty()) {
+                JSONObject meta = userData.optJSONObject(META);
+                if (meta == null) {
+                    meta = new JSONObject();
+                    userData.put(META, meta);
+                }
+                meta.put(META_ATTRIBUTES, new JSONArray(removedAttributes));
+            }
+            entity = transport.createJSONEntity(userData.toString());
+        } catch (JSONException | IOException e) {
+            throw new IdentityProvisioningException("Error while encoding SCIM object", e);
+        }
+
+        String userId = sendToResource(ProvisioningEntityType.USER, userName, new ResourceMethodFactory() {
+            @Override
+            HttpMethodBase create(String resourceUrl) {
+                PatchMethod method = new PatchMethod(resourceUrl);
+                method.setRequestEntity(entity);
+                return method;
+            }
+        }, "patching user " + userName);
+
+        if (userId == null) {
+            throw new IdentityProvisioningException("User " + userName + " does not exist in the SCIM provider");
+        }
+    }
+
+    /**
+     * @param userName name of the user to delete
+     * @throws IdentityProvisioningException
+     */
+    public void deleteUser(String userName) throws IdentityProvisioningException {
+
+        String userId = sendToResource(ProvisioningEntityType.USER, userName, DELETE_METHOD_FACTORY,
+                "deleting user " + userName);
+        if (userId == null && log.isDebugEnabled()) {
+            log.debug("User " + userName + " does not exist in the SCIM provider. Nothing to delete.");
+        }
+        if (idCache != null) {
+            idCache.invalidate(ProvisioningEntityType.USER, userName);
+        }
+    }
+
+    /**
+     * @param groupName   display name of the group to create
+     * @param memberNames user names of the members of the group
+     * @return SCIM id assigned to the group, if returned by the service provider
+     * @throws IdentityProvisioningException
+     */
+    public String createGroup(String groupName, Collection<String> memberNames) throws IdentityProvisioningException {
+
+        PostMethod postMethod = new PostMethod(groupEndpoint);
+        postMethod.setRequestEntity(new StreamingGroupRequestEntity(groupName, memberNames,
+                getUserIds(memberNames)));
+        SCIMHttpResponse response = send(postMethod, "creating group " + groupName);
+
+        String groupId = getId(response);
+        if (idCache != null) {
+            idCache.put(ProvisioningEntityType.GROUP, groupName, groupId, getVersion(response));
+        }
+        return groupId;
+    }
+
+    /**
+     * @param newGroupName new display name of the group
+     * @param oldGroupName previous display name if the group is being renamed, null otherwise
+     * @param memberNames  user names of the members of the group
+     * @param operation    {@link ProvisioningOperation#PUT} to replace the group or
+     *                     {@link ProvisioningOperation#PATCH} to modify it
+     * @throws IdentityProvisioningException
+     */
+    public void updateGroup(String newGroupName, String oldGroupName, Collection<String> memberNames,
+                            ProvisioningOperation operation) throws IdentityProvisioningException {
+
+        String groupName = oldGroupName != null ? oldGroupName : newGroupName;
+        String groupId = sendGroup(groupName, newGroupName, memberNames, operation);
+        if (groupId == null) {
+            throw new IdentityProvisioningException("Group " + groupName + " does not exist in the SCIM provider");
+        }
+        if (idCache != null && oldGroupName != null) {
+            idCache.rename(ProvisioningEntityType.GROUP, oldGroupName, newGroupName, groupId);
+        }
+    }
+
+    /**
+     * Replaces the group, or creates it if it does not exist in the SCIM provider. A group being renamed
+     * is looked up by its new name if its previous name is not found, in case the rename already took
+     * place.
+     *
+     * @param newGroupName new display name of the group
+     * @param oldGroupName previous display name if the group is being renamed, null otherwise
+     * @param memberNames  user names of the members of the group
+     * @throws IdentityProvisioningException
+     */
+    public void replaceGroup(String newGroupName, String oldGroupName, Collection<String> memberNames)
+            throws IdentityProvisioningException {
+
+        if (oldGroupName != null) {
+            String groupId = sendGroup(oldGroupName, newGroupName, memberNames, ProvisioningOperation.PUT);
+            if (groupId != null) {
+                if (idCache != null) {
+                    idCache.rename(ProvisioningEntityType.GROUP, oldGroupName, newGroupName, groupId);
+                }
+                return;
+            }
+        }
+        if (sendGroup(newGroupName, newGroupName, memberNames, ProvisioningOperation.PUT) == null) {
+            createGroup(newGroupName, memberNames);
+        }
+    }
+
+    /**
+     * @return SCIM id of the group, or null if the group does not exist in the SCIM provider
+     */
+    private String sendGroup(String groupName, String newGroupName, Collection<String> memberNames,
+                             final ProvisioningOperation operation) throws IdentityProvisioningException {
+
+        final RequestEntity entity = new StreamingGroupRequestEntity(newGroupName, memberNames,
+                getUserIds(memberNames));
+        return sendToResource(ProvisioningEntityType.GROUP, groupName, new ResourceMethodFactory() {
+            @Override
+            HttpMethodBase create(String resourceUrl) {
+                EntityEnclosingMethod method = ProvisioningOperation.PATCH.equals(operation) ?
+                        new PatchMethod(resourceUrl) : new PutMethod(resourceUrl);
+                method.setRequestEntity(entity);
+                return method;
+            }
+        }, "updating group " + groupName);
+    }
+
+    /**
+     * Adds and removes the given members through SCIM PATCH requests, each carrying at most
+     * {@code chunkSize} member operations, and renames the group if a new name is given. Removed members
+     * are addressed by their SCIM id, resolved in batches by the member resolver if one is configured, so
+     * members that no longer exist in the SCIM provider are skipped.
+     *
+     * @param groupName      current display name of the group
+     * @param newGroupName   new display name if the group is being renamed, null otherwise
+     * @param addedMembers   user names of the members to add
+     * @param removedMembers user names of the members to remove
+     * @param chunkSize      maximum number of member operations per request
+     * @throws IdentityProvisioningException
+     */
+    public void patchGroupMembers(String groupName, String newGroupName, List<String> addedMembers,
+                                  List<String> removedMembers, int chunkSize) throws IdentityProvisioningException {
+
+        List<JSONObject> memberOperations = new ArrayList<>(addedMembers.size() + removedMembers.size());
+        Map<String, String> addedMemberIds = getUserIds(addedMembers);
+        // without a member resolver, removed members are looked up one at a time below.
+        Map<String, String> removedMemberIds = memberResolver != null ? getUserIds(removedMembers) : null;
+        try {
+            for (String userName : addedMembers) {
+                JSONObject member = new JSONObject();
+                if (addedMemberIds.containsKey(userName)) {
+                    member.put(SCIMConstants.CommonSchemaConstants.VALUE, addedMemberIds.get(userName));
+                }
+                memberOperations.add(member.put(SCIMConstants.CommonSchemaConstants.DISPLAY, userName));
+            }
+            for (String userName : removedMembers) {
+                String userId = removedMemberIds != null ? removedMemberIds.get(userName) : getUserId(userName);
+                if (userId == null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("User " + userName + " does not exist in the SCIM provider. Not removing it "
+                                + "from group " + groupName);
+                    }
+                    continue;
+                }
+                memberOperations.add(new JSONObject()
+                        .put(SCIMConstants.CommonSchemaConstants.VALUE, userId)
+                        .put(SCIMConstants.CommonSchemaConstants.DISPLAY, userName)
+                        .put(OPERATION, OPERATION_DELETE));
+            }
+        } catch (JSONException e) {
+            throw new IdentityProvisioningException("Error while encoding members of group " + groupName, e);
+        }
+
+        int chunk = Math.max(1, chunkSize);
+        int start = 0;
+        String targetGroupName = groupName;
+        do {
+            int end = Math.min(memberOperations.size(), start + chunk);
+            JSONObject groupData = new JSONObject();
+            try {
+                groupData.put(SCHEMAS, new JSONArray().put(SCIMConstants.CORE_SCHEMA_URI));
+                if (newGroupName != null && start == 0) {
+                    groupData.put(SCIMConstants.GroupSchemaConstants.DISPLAY_NAME, newGroupName);
+                }
+                if (end > start) {
+                    groupData.put(SCIMConstants.GroupSchemaConstants.MEMBERS, new JSONArray(memberOperations.subList(start, end)));
+                }
+            } catch (JSONException e) {
+                throw new IdentityProvisioningException("Error while encoding members of group " + groupName, e);
+            }
+            if (newGroupName != null && start == 0) {
+                patchGroup(targetGroupName, newGroupName, groupData.toString());
+                // the remaining chunks address the group by its new name.
+                targetGroupName = newGroupName;
+            } else {
+                patchGroup(targetGroupName, null, groupData.toString());
+            }
+            start = end;
+        } while (start < memberOperations.size());
+    }
+
+    /**
+     * @param groupName display name of the group to delete
+     * @throws IdentityProvisioningException
+     */
+    public void deleteGroup(String groupName) throws IdentityProvisioningException {
+
+        String groupId = sendToResource(ProvisioningEntityType.GROUP, groupName, DELETE_METHOD_FACTORY,
+                "deleting group " + groupName);
+        if (groupId == null && log.isDebugEnabled()) {
+            log.debug("Group " + groupName + " does not exist in the SCIM provider. Nothing to delete.");
+        }
+        if (idCache != null) {
+            idCache.invalidate(ProvisioningEntityType.GROUP, groupName);
+        }
+    }
+
+    /**
+     * @param userName user name
+     * @return SCIM id of the user, or null if the user does not exist in the SCIM provider
+     * @throws IdentityProvisioningException
+     */
+    public String getUserId(String userName) throws IdentityProvisioningException {
+        return getResourceId(ProvisioningEntityType.USER, userName);
+    }
+
+    /**
+     * @param userNames user names
+     * @return SCIM id of each user found in the SCIM provider keyed by user name, or an empty map if no
+     * member resolver is configured
+     * @throws IdentityProvisioningException
+     */
+    public Map<String, String> getUserIds(Collection<String> userNames) throws IdentityProvisioningException {
+
+        if (memberResolver == null) {
+            return Collections.emptyMap();
+        }
+        return memberResolver.resolve(userNames);
+    }
+
+    /**
+     * @param groupName group display name
+     * @return SCIM id of the group, or null if the group does not exist in the SCIM provider
+     * @throws IdentityProvisioningException
+     */
+    public String getGroupId(String groupName) throws IdentityProvisioningException {
+        return getResourceId(ProvisioningEntityType.GROUP, groupName);
+    }
+
+    /**
+     * Fetches one page of the users or groups of the SCIM service provider.
+     *
+     * @param entityType {@link ProvisioningEntityType#USER} or {@link ProvisioningEntityType#GROUP}
+     * @param startIndex 1-based index of the first resource of the page
+     * @param count      maximum number of resources in the page
+     * @return resources of the page, without their meta attributes
+     * @throws IdentityProvisioningException
+     */
+    public SCIMResourcePage listResources(ProvisioningEntityType entityType, int startIndex, int count)
+            throws IdentityProvisioningException {
+
+        String resourceType = entityType == ProvisioningEntityType.USER ? "users" : "groups";
+        GetMethod getMethod = new GetMethod(getEndpoint(entityType));
+        getMethod.setQueryString(START_INDEX + startIndex + "&" + COUNT + count);
+        SCIMHttpResponse response = send(getMethod, "listing " + resourceType + " from index " + startIndex);
+        try {
+            JSONObject body = new JSONObject(response.getBody());
+            JSONArray resourceArray = body.optJSONArray(RESOURCES);
+            List<JSONObject> resources = new ArrayList<>(resourceArray != null ? resourceArray.length() : 0);
+            for (int i = 0; resourceArray != null && i < resourceArray.length(); i++) {
+                JSONObject resource = resourceArray.optJSONObject(i);
+                if (resource != null) {
+                    resource.remove(META);
+                    resources.add(resource);
+                }
+            }
+            return new SCIMResourcePage(body.optInt(TOTAL_RESULTS, resources.size()), resources);
+        } catch (JSONException e) {
+            throw new IdentityProvisioningException("Error while reading the SCIM provider response listing "
+                    + resourceType + " from index " + startIndex, e);
+        }
+    }
+
+    /**
+     * @param scimObject SCIM user or group
+     * @return the object encoded as SCIM JSON
+     * @throws IdentityProvisioningException
+     */
+    public String encode(AbstractSCIMObject scimObject) throws IdentityProvisioningException {
+
+        try {
+            return new SCIMClient().encodeSCIMObject(scimObject,
+                    SCIMConstants.identifyFormat(SCIMConstants.APPLICATION_JSON));
+        } catch (CharonException e) {
+            throw new IdentityProvisioningException("Error while encoding SCIM object", e);
+        }
+    }
+
+    private void patchGroup(String groupName, String newGroupName, String groupData)
+            throws IdentityProvisioningException {
+
+        final RequestEntity entity;
+        try {
+            entity = transport.createJSONEntity(groupData);
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while encoding SCIM object", e);
+        }
+        String groupId = sendToResource(ProvisioningEntityType.GROUP, groupName, new ResourceMethodFactory() {
+            @Override
+            HttpMethodBase create(String resourceUrl) {
+                PatchMethod method = new PatchMethod(resourceUrl);
+                method.setRequestEntity(entity);
+                return method;
+            }
+        }, "patching group " + groupName);
+
+        if (groupId == null) {
+            throw new IdentityProvisioningException("Group " + groupName + " does not exist in the SCIM provider");
+        }
+        if (idCache != null && newGroupName != null) {
+            idCache.rename(ProvisioningEntityType.GROUP, groupName, newGroupName, groupId);
+        }
+    }
+
+    private String getResourceId(ProvisioningEntityType entityType, String name)
+            throws IdentityProvisioningException {
+
+        String id = idCache != null ? idCache.get(entityType, name) : null;
+        if (id == null) {
+            ResourceReference reference = lookup(entityType, name);
+            if (reference == null) {
+                return null;
+            }
+            id = reference.id;
+            if (idCache != null) {
+                idCache.put(entityType, name, id, reference.version);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Sends a request to the resource of the given user or group. If the cached id of the resource turns
+     * out to be stale, it is looked up again and the request is retried once. Replacements and
+     * modifications are made conditional on the known version of the resource, if conditional writes are
+     * enabled.
+     *
+     * @return SCIM id of the resource, or null if the resource does not exist in the SCIM provider
+     */
+    private String sendToResource(ProvisioningEntityType entityType, String name, ResourceMethodFactory methodFactory,
+                                  String description) throws IdentityProvisioningException {
+
+        String id = idCache != null ? idCache.get(entityType, name) : null;
+        String version = id != null ? idCache.getVersion(entityType, name) : null;
+        boolean cached = id != null;
+        if (!cached) {
+            ResourceReference reference = lookup(entityType, name);
+            if (reference == null) {
+                return null;
+            }
+            id = reference.id;
+            version = reference.version;
+        }
+
+        SCIMHttpResponse response = execute(createResourceMethod(entityType, id, version, methodFactory),
+                description);
+        if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+            if (idCache != null) {
+                idCache.invalidate(entityType, name);
+            }
+            if (!cached) {
+                return null;
+            }
+            ResourceReference reference = lookup(entityType, name);
+            if (reference == null) {
+                return null;
+            }
+            id = reference.id;
+            version = reference.version;
+            response = execute(createResourceMethod(entityType, id, version, methodFactory), description);
+            if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                return null;
+            }
+        }
+
+        if (response.getStatusCode() == HttpStatus.SC_PRECONDITION_FAILED) {
+            // the next write looks the current version up.
+            if (idCache != null) {
+                idCache.invalidate(entityType, name);
+            }
+            throw new IdentityProvisioningException("Error while " + description + ". The resource was modified "
+                    + "in the SCIM provider since version " + version);
+        }
+        checkResponse(response, description);
+        if (idCache != null) {
+            idCache.put(entityType, name, id, getVersion(response));
+        }
+        return id;
+    }
+
+    private HttpMethodBase createResourceMethod(ProvisioningEntityType entityType, String id, String version,
+                                                ResourceMethodFactory methodFactory) {
+
+        HttpMethodBase method = methodFactory.create(getEndpoint(entityType) + "/" + id);
+        // deletes are not conditional, the resource is to be removed whatever its version.
+        if (conditionalWritesEnabled && version != null && method instanceof EntityEnclosingMethod) {
+            method.setRequestHeader(IF_MATCH_HEADER, version);
+        }
+        return method;
+    }
+
+    /**
+     * @return id and version of the resource, or null if the resource does not exist in the SCIM provider
+     */
+    private ResourceReference lookup(ProvisioningEntityType entityType, String name)
+            throws IdentityProvisioningException {
+
+        String resourceType = entityType == ProvisioningEntityType.USER ? "user" : "group";
+        String filter = entityType == ProvisioningEntityType.USER ? USER_FILTER : GROUP_FILTER;
+        GetMethod getMethod = new GetMethod(getEndpoint(entityType));
+        try {
+            getMethod.setQueryString(filter + URLEncoder.encode(name, CHARSET_UTF8));
+        } catch (UnsupportedEncodingException e) {
+            throw new IdentityProvisioningException("Error while encoding filter for " + resourceType + " " + name, e);
+        }
+
+        SCIMHttpResponse response = send(getMethod, "looking up " + resourceType + " " + name);
+        try {
+            JSONArray resources = new JSONObject(response.getBody()).optJSONArray(RESOURCES);
+            if (resources == null || resources.length() == 0 || resources.optJSONObject(0) == null) {
+                return null;
+            }
+            JSONObject resource = resources.optJSONObject(0);
+            String id = resource.optString(SCIMConstants.CommonSchemaConstants.ID, null);
+            return id != null ? new ResourceReference(id, getVersion(resource)) : null;
+        } catch (JSONException e) {
+            throw new IdentityProvisioningException("Error while reading the SCIM provider response for "
+                    + resourceType + " " + name, e);
+        }
+    }
+
+    private RequestEntity createEntity(JSONObject scimObject) throws IdentityProvisioningException {
+
+        try {
+            return transport.createJSONEntity(scimObject.toString());
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while encoding SCIM object", e);
+        }
+    }
+
+    private SCIMHttpResponse send(HttpMethodBase method, String description) throws IdentityProvisioningException {
+
+        SCIMHttpResponse response = execute(method, description);
+        checkResponse(response, description);
+        return response;
+    }
+
+    private SCIMHttpResponse execute(HttpMethodBase method, String description) throws IdentityProvisioningException {
+
+        try {
+            return transport.execute(method);
+        } catch (IOException e) {
+            throw new IdentityProvisioningException("Error while " + description, e);
+        }
+    }
+
+    private void checkResponse(SCIMHttpResponse response, String description) throws IdentityProvisioningException {
+
+        if (!response.isSuccess()) {
+            throw new IdentityProvisioningException("Error while " + description + ". SCIM provider responded "
+                    + "with status " + response.getStatusCode() + " : " + response.getBody());
+        }
+    }
+
+    private String getEndpoint(ProvisioningEntityType entityType) {
+        return entityType == ProvisioningEntityType.USER ? userEndpoint : groupEndpoint;
+    }
+
+    private String getId(SCIMHttpResponse response) {
+
+        try {
+            return new JSONObject(response.getBody()).optString(SCIMConstants.CommonSchemaConstants.ID, null);
+        } catch (JSONException e) {
+            // the resource was created, the service provider just did not return it.
+            return null;
+        }
+    }
+
+    /**
+     * @return version of the resource returned in the ETag header or the meta attribute of the response,
+     * or null if the response carries none
+     */
+    private String getVersion(SCIMHttpResponse response) {
+
+        String version = response.getHeader(ETAG_HEADER);
+        if (version != null || response.getBody() == null || response.getBody().isEmpty()) {
+            return version;
+        }
+        try {
+            return getVersion(new JSONObject(response.getBody()));
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param resource SCIM resource
+     * @return version held in the meta attribute of the resource, or null if it holds none
+     */
+    static String getVersion(JSONObject resource) {
+
+        JSONObject meta = resource.optJSONObject(META);
+        return meta != null ? meta.optString(META_VERSION, null) : null;
+    }
+
+    /**
+     * SCIM id and version of a resource.
+     */
+    private static class ResourceReference {
+
+        private final String id;
+        private final String version;
+
+        ResourceReference(String id, String version) {
+
+            this.id = id;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Creates the request to send once the SCIM id of the target resource is known.
+     */
+    private abstract static class ResourceMethodFactory {
+
+        abstract HttpMethodBase create(String resourceUrl);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+/**
+ * Connection pool, timeout, compression and scheduling settings of a {@link SCIMHttpTransport}.
+ */
+public class SCIMTransportConfig {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_IDLE_TIMEOUT = 60000;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_SCHEDULING_TIMEOUT = 30000;
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private boolean requestCompressionEnabled;
+    private boolean responseCompressionEnabled;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private int schedulingTimeout = DEFAULT_SCHEDULING_TIMEOUT;
+
+    /**
+     * @return maximum number of pooled connections across all SCIM endpoints
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return maximum number of pooled connections to a single SCIM host
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return time in milliseconds to wait for a connection to be established or to become free in the pool
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return time in milliseconds to wait for response data
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @return time in milliseconds after which an unused pooled connection is closed
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return whether request bodies are sent gzip compressed to the SCIM hosts accepting them
+     */
+    public boolean isRequestCompressionEnabled() {
+        return requestCompressionEnabled;
+    }
+
+    public void setRequestCompressionEnabled(boolean requestCompressionEnabled) {
+        this.requestCompressionEnabled = requestCompressionEnabled;
+    }
+
+    /**
+     * @return whether gzip compressed response bodies are accepted
+     */
+    public boolean isResponseCompressionEnabled() {
+        return responseCompressionEnabled;
+    }
+
+    public void setResponseCompressionEnabled(boolean responseCompressionEnabled) {
+        this.responseCompressionEnabled = responseCompressionEnabled;
+    }
+
+    /**
+     * @return size in bytes from which request bodies are compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return maximum time a request waits for the rate limit of its endpoint, and then for a request
+     * slot of the node, in milliseconds
+     */
+    public int getSchedulingTimeout() {
+        return schedulingTimeout;
+    }
+
+    public void setSchedulingTimeout(int schedulingTimeout) {
+        this.schedulingTimeout = schedulingTimeout;
+    }
+}
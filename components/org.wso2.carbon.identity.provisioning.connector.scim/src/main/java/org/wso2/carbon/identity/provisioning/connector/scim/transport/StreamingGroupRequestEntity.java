@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Request entity writing a SCIM group straight to the request body from its display name and member
+ * names, instead of building a charon {@link org.wso2.charon.core.objects.Group} with one map per member
+ * and encoding it to a string first. The JSON written is the same as the charon encoding of the group,
+ * members whose SCIM id is known carrying it as their value:
+ * <pre>
+ * {"schemas":["urn:scim:schemas:core:1.0"],"displayName":"...","members":[{"value":"...","display":"..."},...]}
+ * </pre>
+ * The content length is computed by building the body once without writing it, so nothing but a small
+ * chunk is buffered for big groups and the request does not need chunked transfer encoding.
+ */
+public class StreamingGroupRequestEntity implements RequestEntity {
+
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int CHUNK_SIZE = 8192;
+
+    private final String displayName;
+    private final Collection<String> memberNames;
+    private final Map<String, String> memberIds;
+    private long contentLength = -1;
+
+    /**
+     * @param displayName display name of the group
+     * @param memberNames user names of the members, or null if the group has no members
+     */
+    public StreamingGroupRequestEntity(String displayName, Collection<String> memberNames) {
+        this(displayName, memberNames, null);
+    }
+
+    /**
+     * @param displayName display name of the group
+     * @param memberNames user names of the members, or null if the group has no members
+     * @param memberIds   SCIM ids of the members keyed by user name, or null if none is known
+     */
+    public StreamingGroupRequestEntity(String displayName, Collection<String> memberNames,
+                                       Map<String, String> memberIds) {
+
+        this.displayName = displayName;
+        this.memberNames = memberNames;
+        this.memberIds = memberIds;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void writeRequest(OutputStream outputStream) throws IOException {
+
+        Writer writer = new OutputStreamWriter(outputStream, CHARSET_UTF8);
+        write(writer);
+        // the stream belongs to the connection, so it is only flushed.
+        writer.flush();
+    }
+
+    @Override
+    public synchronized long getContentLength() {
+
+        if (contentLength < 0) {
+            try {
+                contentLength = write(null);
+            } catch (IOException e) {
+                // not thrown without a writer.
+                return -1;
+            }
+        }
+        return contentLength;
+    }
+
+    /**
+     * Builds the body in chunks, so that the writer is called once per chunk rather than once per
+     * character.
+     *
+     * @param writer writer of the body, or null to only count its bytes
+     * @return length of the body in UTF-8 bytes
+     */
+    private long write(Writer writer) throws IOException {
+
+        StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 256);
+        long length = 0;
+        chunk.append("{\"schemas\":[");
+        appendString(chunk, SCIMConstants.CORE_SCHEMA_URI);
+        chunk.append(']');
+        if (displayName != null) {
+            chunk.append(",\"").append(SCIMConstants.GroupSchemaConstants.DISPLAY_NAME).append("\":");
+            appendString(chunk, displayName);
+        }
+        if (memberNames != null && !memberNames.isEmpty()) {
+            chunk.append(",\"").append(SCIMConstants.GroupSchemaConstants.MEMBERS).append("\":[");
+            boolean first = true;
+            for (String memberName : memberNames) {
+                if (!first) {
+                    chunk.append(',');
+                }
+                first = false;
+                chunk.append('{');
+                String memberId = memberIds != null ? memberIds.get(memberName) : null;
+                if (memberId != null) {
+                    chunk.append('"').append(SCIMConstants.CommonSchemaConstants.VALUE).append("\":");
+                    appendString(chunk, memberId);
+                    chunk.append(',');
+                }
+                chunk.append('"').append(SCIMConstants.CommonSchemaConstants.DISPLAY).append("\":");
+                appendString(chunk, memberName);
+                chunk.append('}');
+                if (chunk.length() >= CHUNK_SIZE) {
+                    length += flush(chunk, writer);
+                }
+            }
+            chunk.append(']');
+        }
+        chunk.append('}');
+        return length + flush(chunk, writer);
+    }
+
+    /**
+     * @return length of the chunk in UTF-8 bytes
+     */
+    private static long flush(StringBuilder chunk, Writer writer) throws IOException {
+
+        long length;
+        if (writer != null) {
+            writer.append(chunk);
+            length = 0;
+        } else {
+            length = getUTF8Length(chunk);
+        }
+        chunk.setLength(0);
+        return length;
+    }
+
+    private static long getUTF8Length(CharSequence chars) {
+
+        long length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced by '?' when encoded.
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public String getContentType() {
+        return SCIMConstants.APPLICATION_JSON + "; charset=" + CHARSET_UTF8;
+    }
+
+    /**
+     * Appends a JSON string, escaped the same way as org.json does.
+     */
+    private static void appendString(StringBuilder builder, String value) {
+
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        char previous = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    builder.append('\\');
+                    builder.append(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        builder.append('\\');
+                    }
+                    builder.append(c);
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        builder.append("\\u");
+                        builder.append(HEX_DIGITS[(c >> 12) & 0xf]);
+                        builder.append(HEX_DIGITS[(c >> 8) & 0xf]);
+                        builder.append(HEX_DIGITS[(c >> 4) & 0xf]);
+                        builder.append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        builder.append(c);
+                    }
+            }
+            previous = c;
+        }
+        builder.append('"');
+    }
+}
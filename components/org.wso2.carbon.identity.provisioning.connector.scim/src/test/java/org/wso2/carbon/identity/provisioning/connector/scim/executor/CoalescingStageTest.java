@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.executor;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the coalescing stage merges the operations on an entity, counts the calls it saves, and
+ * keeps the operations on each entity in submission order whatever the rejection policy.
+ */
+public class CoalescingStageTest {
+
+    private static final String DISPLAY_NAME_CLAIM = "http://wso2.org/claims/displayName";
+    private static final String NICK_NAME_CLAIM = "http://wso2.org/claims/nickName";
+    private static final String TITLE_CLAIM = "http://wso2.org/claims/title";
+    private static final String SEQUENCE_CLAIM = "http://wso2.org/claims/sequence";
+    // long enough for every test operation on an entity to arrive within one window.
+    private static final long WINDOW = 60000;
+
+    private final List<ProvisioningEntity> dispatched = Collections.synchronizedList(
+            new ArrayList<ProvisioningEntity>());
+    private CoalescingStage stage;
+
+    @After
+    public void tearDown() {
+
+        if (stage != null) {
+            stage.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void testCreationAndUpdateAreSentAsCreation() throws Exception {
+
+        stage = newStage(WINDOW, 10, AsyncRejectionPolicy.BLOCK);
+        stage.submit("alice", entity(ProvisioningOperation.POST, DISPLAY_NAME_CLAIM, "Alice"));
+        stage.submit("alice", entity(ProvisioningOperation.PATCH, NICK_NAME_CLAIM, "ally"));
+        stage.shutdown(1000);
+
+        assertEquals(1, dispatched.size());
+        assertEquals(ProvisioningOperation.POST, dispatched.get(0).getOperation());
+        assertEquals(claims(DISPLAY_NAME_CLAIM, "Alice", NICK_NAME_CLAIM, "ally"), claimsOf(dispatched.get(0)));
+        assertEquals(1, stage.getSavedCallCount());
+    }
+
+    @Test
+    public void testCreationAndDeletionAreNotSent() throws Exception {
+
+        stage = newStage(WINDOW, 10, AsyncRejectionPolicy.BLOCK);
+        stage.submit("alice", entity(ProvisioningOperation.POST, DISPLAY_NAME_CLAIM, "Alice"));
+        stage.submit("alice", entity(ProvisioningOperation.DELETE, null, null));
+        stage.shutdown(1000);
+
+        assertTrue(dispatched.isEmpty());
+        assertEquals(2, stage.getSavedCallCount());
+    }
+
+    @Test
+    public void testUpdateAndDeletionAreSentAsDeletion() throws Exception {
+
+        stage = newStage(WINDOW, 10, AsyncRejectionPolicy.BLOCK);
+        stage.submit("alice", entity(ProvisioningOperation.PATCH, DISPLAY_NAME_CLAIM, "Alice"));
+        stage.submit("alice", entity(ProvisioningOperation.DELETE, null, null));
+        stage.shutdown(1000);
+
+        assertEquals(1, dispatched.size());
+        assertEquals(ProvisioningOperation.DELETE, dispatched.get(0).getOperation());
+        assertEquals(1, stage.getSavedCallCount());
+    }
+
+    @Test
+    public void testCreationAfterDeletionOpensNewWindow() throws Exception {
+
+        stage = newStage(WINDOW, 10, AsyncRejectionPolicy.BLOCK);
+        stage.submit("alice", entity(ProvisioningOperation.DELETE, null, null));
+        stage.submit("alice", entity(ProvisioningOperation.POST, DISPLAY_NAME_CLAIM, "Alice"));
+        stage.shutdown(1000);
+
+        assertEquals(2, dispatched.size());
+        assertEquals(ProvisioningOperation.DELETE, dispatched.get(0).getOperation());
+        assertEquals(ProvisioningOperation.POST, dispatched.get(1).getOperation());
+        assertEquals(0, stage.getSavedCallCount());
+    }
+
+    @Test
+    public void testReplacementDiscardsEarlierUpdates() throws Exception {
+
+        stage = newStage(WINDOW, 10, AsyncRejectionPolicy.BLOCK);
+        stage.submit("alice", entity(ProvisioningOperation.PATCH, NICK_NAME_CLAIM, "ally"));
+        stage.submit("alice", entity(ProvisioningOperation.PUT, DISPLAY_NAME_CLAIM, "Alice"));
+        stage.submit("alice", entity(ProvisioningOperation.PATCH, TITLE_CLAIM, "Engineer"));
+        stage.shutdown(1000);
+
+        assertEquals(1, dispatched.size());
+        assertEquals(ProvisioningOperation.PUT, dispatched.get(0).getOperation());
+        assertEquals(claims(DISPLAY_NAME_CLAIM, "Alice", TITLE_CLAIM, "Engineer"), claimsOf(dispatched.get(0)));
+        assertEquals(2, stage.getSavedCallCount());
+    }
+
+    @Test
+    public void testOrderPerEntityWithBlockPolicy() throws Exception {
+        assertOrderPerEntity(AsyncRejectionPolicy.BLOCK);
+    }
+
+    @Test
+    public void testOrderPerEntityWithSyncPolicy() throws Exception {
+        assertOrderPerEntity(AsyncRejectionPolicy.SYNC);
+    }
+
+    /**
+     * Submits numbered updates on a few entities from several threads through a stage small enough to be
+     * full most of the time, and checks that every entity receives increasing numbers, ending with the
+     * last one submitted.
+     */
+    private void assertOrderPerEntity(AsyncRejectionPolicy rejectionPolicy) throws Exception {
+
+        final int submitterCount = 4;
+        final int entitiesPerSubmitter = 4;
+        final int updatesPerEntity = 200;
+        final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        stage = new CoalescingStage(1, 2, rejectionPolicy, null, new CoalescingStage.Dispatcher() {
+            @Override
+            public void dispatch(ProvisioningEntity entity, long journalSequence) {
+
+                try {
+                    // widens the gap between taking an operation out of the stage and queueing it.
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                List<Integer> sequences = received.get(entity.getEntityName());
+                if (sequences == null) {
+                    received.putIfAbsent(entity.getEntityName(),
+                            Collections.synchronizedList(new ArrayList<Integer>()));
+                    sequences = received.get(entity.getEntityName());
+                }
+                sequences.add(Integer.valueOf(claimsOf(entity).get(SEQUENCE_CLAIM)));
+            }
+        });
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < submitterCount; i++) {
+            final int submitterId = i;
+            Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < updatesPerEntity; j++) {
+                            for (int k = 0; k < entitiesPerSubmitter; k++) {
+                                String name = "user-" + submitterId + "-" + k;
+                                stage.submit(name, new ProvisioningEntity(ProvisioningEntityType.USER, name,
+                                        ProvisioningOperation.PATCH, attributes(SEQUENCE_CLAIM,
+                                        String.valueOf(j))));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            submitters.add(submitter);
+            submitter.start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        stage.shutdown(5000);
+
+        assertTrue("Submission failed: " + errors, errors.isEmpty());
+        assertEquals(submitterCount * entitiesPerSubmitter, received.size());
+        for (Map.Entry<String, List<Integer>> entry : received.entrySet()) {
+            List<Integer> sequences = entry.getValue();
+            for (int i = 1; i < sequences.size(); i++) {
+                assertTrue("Operations on " + entry.getKey() + " arrived out of order : " + sequences,
+                        sequences.get(i) > sequences.get(i - 1));
+            }
+            assertEquals(Integer.valueOf(updatesPerEntity - 1), sequences.get(sequences.size() - 1));
+        }
+    }
+
+    private CoalescingStage newStage(long windowMillis, int capacity, AsyncRejectionPolicy rejectionPolicy) {
+
+        return new CoalescingStage(windowMillis, capacity, rejectionPolicy, null, new CoalescingStage.Dispatcher() {
+            @Override
+            public void dispatch(ProvisioningEntity entity, long journalSequence) {
+                dispatched.add(entity);
+            }
+        });
+    }
+
+    private static ProvisioningEntity entity(ProvisioningOperation operation, String claimUri, String value) {
+
+        Map<ClaimMapping, List<String>> attributes = claimUri != null ? attributes(claimUri, value) :
+                new HashMap<ClaimMapping, List<String>>();
+        return new ProvisioningEntity(ProvisioningEntityType.USER, "alice", operation, attributes);
+    }
+
+    private static Map<ClaimMapping, List<String>> attributes(String claimUri, String value) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(ClaimMapping.build(claimUri, null, null, false), Collections.singletonList(value));
+        return attributes;
+    }
+
+    private static Map<String, String> claims(String... claimsAndValues) {
+
+        Map<String, String> claims = new HashMap<>();
+        List<String> list = Arrays.asList(claimsAndValues);
+        for (int i = 0; i < list.size(); i += 2) {
+            claims.put(list.get(i), list.get(i + 1));
+        }
+        return claims;
+    }
+
+    private static Map<String, String> claimsOf(ProvisioningEntity entity) {
+
+        Map<String, String> claims = new HashMap<>();
+        for (Map.Entry<ClaimMapping, List<String>> attribute : entity.getAttributes().entrySet()) {
+            claims.put(attribute.getKey().getLocalClaim().getClaimUri(), attribute.getValue().get(0));
+        }
+        return claims;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.executor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.PatchMethod;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMTransportConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that interleaved operations on many users reach a SCIM server in submission order per user,
+ * whatever the rejection policy, and that full lanes reject or release their callers as configured.
+ */
+public class StripedProvisioningExecutorTest {
+
+    private static final int SUBMITTER_COUNT = 8;
+    private static final int USERS_PER_SUBMITTER = 50;
+    private static final List<String> OPERATIONS = Arrays.asList("POST", "PATCH", "DELETE");
+
+    private HttpServer server;
+    private String userEndpoint;
+    private SCIMHttpTransport transport;
+    private final Map<String, List<String>> receivedOperations = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/scim/Users", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream body = exchange.getRequestBody()) {
+                    while (body.read() != -1) {
+                        // drain the request so that the connection can be reused.
+                    }
+                }
+                String path = exchange.getRequestURI().getPath();
+                String user = path.substring(path.lastIndexOf('/') + 1);
+                List<String> operations = receivedOperations.get(user);
+                if (operations == null) {
+                    receivedOperations.putIfAbsent(user, Collections.synchronizedList(new ArrayList<String>()));
+                    operations = receivedOperations.get(user);
+                }
+                operations.add(exchange.getRequestMethod());
+                try {
+                    // vary the service time, so that operations sent out of order would overtake each other.
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // no body, so that the response goes out in a single write.
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+        userEndpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/scim/Users";
+        transport = new SCIMHttpTransport("admin", "admin", new SCIMTransportConfig());
+    }
+
+    @After
+    public void tearDown() {
+
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testOrderPerUserWithBlockPolicy() throws Exception {
+        assertOrderPerUser(AsyncRejectionPolicy.BLOCK);
+    }
+
+    @Test
+    public void testOrderPerUserWithSyncPolicy() throws Exception {
+        assertOrderPerUser(AsyncRejectionPolicy.SYNC);
+    }
+
+    @Test
+    public void testRejectPolicyFailsOnFullLane() throws Exception {
+
+        StripedProvisioningExecutor executor = new StripedProvisioningExecutor(1, 1, AsyncRejectionPolicy.REJECT);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.submit("user", blockUntil(release));
+            try {
+                executor.submit("user", blockUntil(release));
+                fail("A task submitted to a full lane must be rejected");
+            } catch (IdentityProvisioningException e) {
+                // expected.
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void testSyncPolicyThrowsFailureToCaller() throws Exception {
+
+        StripedProvisioningExecutor executor = new StripedProvisioningExecutor(1, 1, AsyncRejectionPolicy.SYNC);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<IdentityProvisioningException> asyncFailure = new AtomicReference<>();
+        try {
+            executor.submit("user", blockUntil(release));
+            // the lane is full, so the failing task runs on behalf of this caller once the blocker is released.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    release.countDown();
+                }
+            }).start();
+            try {
+                executor.submit("user", failWith("sync", asyncFailure));
+                fail("The failure of a task run for the caller must be thrown to the caller");
+            } catch (IdentityProvisioningException e) {
+                assertEquals("sync", e.getMessage());
+            }
+            assertTrue("A failure thrown to the caller must not be reported as asynchronous",
+                    asyncFailure.get() == null);
+
+            executor.submit("user", failWith("async", asyncFailure));
+        } finally {
+            release.countDown();
+            executor.shutdown(1000);
+        }
+        assertEquals("async", asyncFailure.get().getMessage());
+    }
+
+    @Test
+    public void testShutdownReleasesBlockedSubmitter() throws Exception {
+
+        final StripedProvisioningExecutor executor = new StripedProvisioningExecutor(1, 1,
+                AsyncRejectionPolicy.BLOCK);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("user", blockUntil(release));
+
+        final AtomicReference<Throwable> submitError = new AtomicReference<>();
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.submit("user", new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    });
+                } catch (Throwable e) {
+                    submitError.set(e);
+                }
+            }
+        });
+        submitter.start();
+        while (submitter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        // shut down while the lane is still full, so that only the shutdown can release the submitter.
+        Thread shutdown = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.shutdown(5000);
+            }
+        });
+        shutdown.start();
+        submitter.join(5000);
+        release.countDown();
+        shutdown.join();
+        assertTrue("Blocked submitter was not released on shutdown", !submitter.isAlive());
+        assertTrue("Blocked submitter must be rejected on shutdown",
+                submitError.get() instanceof IdentityProvisioningException);
+    }
+
+    /**
+     * Submits POST, PATCH and DELETE back to back for every user from several threads, so that the
+     * operations of different users interleave, through lanes small enough to be full most of the time.
+     */
+    private void assertOrderPerUser(AsyncRejectionPolicy rejectionPolicy) throws Exception {
+
+        final StripedProvisioningExecutor executor = new StripedProvisioningExecutor(4, 8, rejectionPolicy);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < SUBMITTER_COUNT; i++) {
+            final int submitterId = i;
+            Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < USERS_PER_SUBMITTER; j++) {
+                            String user = "user-" + submitterId + "-" + j;
+                            for (String operation : OPERATIONS) {
+                                executor.submit(user, send(operation, userEndpoint + "/" + user, errors));
+                            }
+                        }
+                    } catch (IdentityProvisioningException e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            submitters.add(submitter);
+            submitter.start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        executor.shutdown(TimeUnit.SECONDS.toMillis(30));
+
+        assertTrue("Provisioning failed: " + errors, errors.isEmpty());
+        assertEquals(SUBMITTER_COUNT * USERS_PER_SUBMITTER, receivedOperations.size());
+        for (Map.Entry<String, List<String>> entry : receivedOperations.entrySet()) {
+            assertEquals("Operations on " + entry.getKey() + " arrived out of order", OPERATIONS,
+                    entry.getValue());
+        }
+    }
+
+    private Runnable send(final String operation, final String url, final List<Throwable> errors) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                HttpMethodBase method;
+                if ("POST".equals(operation)) {
+                    method = new PostMethod(url);
+                } else if ("PATCH".equals(operation)) {
+                    method = new PatchMethod(url);
+                } else {
+                    method = new DeleteMethod(url);
+                }
+                try {
+                    transport.execute(method);
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+        };
+    }
+
+    private static StripedProvisioningExecutor.ProvisioningTask failWith(final String message,
+            final AtomicReference<IdentityProvisioningException> asyncFailure) {
+
+        return new StripedProvisioningExecutor.ProvisioningTask() {
+            @Override
+            public void run() throws IdentityProvisioningException {
+                throw new IdentityProvisioningException(message);
+            }
+
+            @Override
+            public void onFailure(IdentityProvisioningException e) {
+                asyncFailure.set(e);
+            }
+        };
+    }
+
+    private static Runnable blockUntil(final CountDownLatch release) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
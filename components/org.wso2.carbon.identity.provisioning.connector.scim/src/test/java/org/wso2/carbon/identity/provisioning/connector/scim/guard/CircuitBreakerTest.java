@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.guard;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that only the probes sent while the circuit is half open decide whether it closes.
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testLateSuccessIsNotTakenForProbe() {
+
+        CircuitBreaker circuitBreaker = newCircuitBreaker();
+        CircuitBreaker.Permit late = circuitBreaker.tryAcquire();
+        CircuitBreaker.Permit failing = circuitBreaker.tryAcquire();
+        circuitBreaker.onResult(failing, true);
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+
+        CircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertNotNull(probe);
+        assertEquals(CircuitState.HALF_OPEN, circuitBreaker.getState());
+        assertNull("Only one probe may be in flight", circuitBreaker.tryAcquire());
+
+        circuitBreaker.onResult(late, false);
+        assertEquals("A request sent before the circuit opened must not close it", CircuitState.HALF_OPEN,
+                circuitBreaker.getState());
+        circuitBreaker.onResult(probe, false);
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testCancelledProbeIsGivenBack() {
+
+        CircuitBreaker circuitBreaker = newCircuitBreaker();
+        CircuitBreaker.Permit late = circuitBreaker.tryAcquire();
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), true);
+
+        circuitBreaker.cancel(late);
+        CircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertNotNull(probe);
+        assertNull("Cancelling a request sent before the circuit opened must not add a probe",
+                circuitBreaker.tryAcquire());
+        circuitBreaker.cancel(probe);
+        assertNotNull(circuitBreaker.tryAcquire());
+    }
+
+    /**
+     * @return circuit breaker opening on a single failure, with one probe let through straight away
+     */
+    private static CircuitBreaker newCircuitBreaker() {
+        return new CircuitBreaker("https://localhost/scim", 100, 1, 0, 1,
+                Collections.<EndpointGuardListener>emptyList());
+    }
+}
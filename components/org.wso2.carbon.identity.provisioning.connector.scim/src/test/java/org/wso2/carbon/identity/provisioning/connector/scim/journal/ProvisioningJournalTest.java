@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.journal;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the journal keeps exactly the unacknowledged operations across restarts, including after a
+ * crash tore its last record, and that superseded, merged, compacted and dead-lettered operations are
+ * replayed as they should be.
+ */
+public class ProvisioningJournalTest {
+
+    private static final String DISPLAY_NAME_CLAIM = "urn:scim:schemas:core:1.0:displayName";
+    private static final long NO_ROLLING = Long.MAX_VALUE;
+    private static final long REPLAY_INTERVAL = 10;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ProvisioningJournal> openJournals = new ArrayList<>();
+    private final List<String> replayed = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+
+        for (ProvisioningJournal journal : openJournals) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testAcknowledgedOperationsAreNotRecovered() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        long bob = journal.append("bob", entity("bob", ProvisioningOperation.POST, "Bob"));
+        journal.append("alice", entity("alice", ProvisioningOperation.PATCH, "Alice Smith"));
+        assertTrue(journal.beginSend(bob));
+        journal.acknowledge(bob);
+        close(journal);
+
+        journal = open(directory, NO_ROLLING, 3);
+        assertEquals(2, journal.getUnacknowledgedCount());
+        assertEquals("Recovered operations must wait for the replay thread", 2, journal.getPendingCount());
+
+        startRecording(journal);
+        awaitUnacknowledged(journal, 0);
+        assertEquals(Arrays.asList("alice POST Alice", "alice PATCH Alice Smith"), replayed);
+        close(journal);
+
+        assertEquals(0, open(directory, NO_ROLLING, 3).getUnacknowledgedCount());
+    }
+
+    @Test
+    public void testTruncatedLastRecordIsDropped() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        journal.append("bob", entity("bob", ProvisioningOperation.POST, "Bob"));
+        close(journal);
+
+        try (RandomAccessFile segment = new RandomAccessFile(lastSegment(directory), "rw")) {
+            segment.setLength(segment.length() - 3);
+        }
+        assertRecoveredAfterTornRecord(directory);
+    }
+
+    @Test
+    public void testCorruptLastRecordIsDropped() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        journal.append("bob", entity("bob", ProvisioningOperation.POST, "Bob"));
+        close(journal);
+
+        try (RandomAccessFile segment = new RandomAccessFile(lastSegment(directory), "rw")) {
+            segment.seek(segment.length() - 1);
+            int last = segment.read();
+            segment.seek(segment.length() - 1);
+            segment.write(last ^ 0xFF);
+        }
+        assertRecoveredAfterTornRecord(directory);
+    }
+
+    @Test
+    public void testDeleteSupersedesQueuedOperations() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        long post = journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        journal.append("alice", entity("alice", ProvisioningOperation.PATCH, "Alice Smith"));
+        long sending = journal.append("bob", entity("bob", ProvisioningOperation.PATCH, "Bob"));
+        assertTrue(journal.beginSend(sending));
+
+        journal.append("alice", entity("alice", ProvisioningOperation.DELETE, null));
+        journal.append("bob", entity("bob", ProvisioningOperation.DELETE, null));
+        assertFalse("A superseded operation must not be sent", journal.beginSend(post));
+        assertEquals("An operation being sent must not be superseded", 3, journal.getUnacknowledgedCount());
+        close(journal);
+
+        journal = open(directory, NO_ROLLING, 3);
+        assertEquals(3, journal.getUnacknowledgedCount());
+        startRecording(journal);
+        awaitUnacknowledged(journal, 0);
+        assertEquals(Arrays.asList("alice DELETE null"), replayedOf("alice"));
+        assertEquals(Arrays.asList("bob PATCH Bob", "bob DELETE null"), replayedOf("bob"));
+    }
+
+    @Test
+    public void testCoalescedOperationsAreReplayedAfterRestart() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        long post = journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        long patch = journal.append("alice", entity("alice", ProvisioningOperation.PATCH, "Alice Smith"));
+        long bobPost = journal.append("bob", entity("bob", ProvisioningOperation.POST, "Bob"));
+        long bobPatch = journal.append("bob", entity("bob", ProvisioningOperation.PATCH, "Bobby"));
+        journal.append("alice", entity("alice", ProvisioningOperation.PATCH, "Alice B. Smith"));
+
+        assertEquals("The merged operation must keep the earliest sequence number", post,
+                journal.coalesce(Arrays.asList(post, patch),
+                        entity("alice", ProvisioningOperation.POST, "Alice Smith")));
+        assertEquals("Operations cancelling each other must leave nothing to send", 0,
+                journal.coalesce(Arrays.asList(bobPost, bobPatch), null));
+        assertEquals(2, journal.getUnacknowledgedCount());
+        close(journal);
+
+        journal = open(directory, NO_ROLLING, 3);
+        assertEquals(2, journal.getUnacknowledgedCount());
+        startRecording(journal);
+        awaitUnacknowledged(journal, 0);
+        assertEquals(Arrays.asList("alice POST Alice Smith", "alice PATCH Alice B. Smith"), replayed);
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws Exception {
+
+        File directory = folder.newFolder();
+        // every append starts a new segment.
+        ProvisioningJournal journal = open(directory, 1, 3);
+        long alice = journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        long bob = journal.append("bob", entity("bob", ProvisioningOperation.POST, "Bob"));
+        assertEquals(3, segments(directory).size());
+
+        assertTrue(journal.beginSend(bob));
+        journal.acknowledge(bob);
+        assertEquals("A segment must not be deleted before older ones", 3, segments(directory).size());
+        assertTrue(journal.beginSend(alice));
+        journal.acknowledge(alice);
+        assertEquals(1, segments(directory).size());
+        close(journal);
+
+        assertEquals(0, open(directory, 1, 3).getUnacknowledgedCount());
+    }
+
+    @Test
+    public void testCompactionCopiesOperationsForward() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        List<Long> sequences = new ArrayList<>();
+        for (String user : Arrays.asList("alice", "bob", "carol", "dave")) {
+            sequences.add(journal.append(user, entity(user, ProvisioningOperation.POST, user)));
+        }
+        for (long sequence : sequences.subList(0, 3)) {
+            assertTrue(journal.beginSend(sequence));
+            journal.acknowledge(sequence);
+        }
+        close(journal);
+        File oldSegment = lastSegment(directory);
+
+        // the segment holds one live operation out of four, so opening copies it forward.
+        journal = open(directory, NO_ROLLING, 3);
+        assertEquals(1, journal.getUnacknowledgedCount());
+        assertFalse("The compacted segment must be deleted", oldSegment.exists());
+        assertEquals(1, segments(directory).size());
+        close(journal);
+
+        journal = open(directory, NO_ROLLING, 3);
+        assertEquals(1, journal.getUnacknowledgedCount());
+        startRecording(journal);
+        awaitUnacknowledged(journal, 0);
+        assertEquals(Arrays.asList("dave POST dave"), replayed);
+    }
+
+    @Test
+    public void testFailingOperationsAreDeadLettered() throws Exception {
+
+        File directory = folder.newFolder();
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 2);
+        long post = journal.append("alice", entity("alice", ProvisioningOperation.POST, "Alice"));
+        assertTrue(journal.beginSend(post));
+        journal.fail(post);
+        long patch = journal.append("alice", entity("alice", ProvisioningOperation.PATCH, "Alice Smith"));
+        assertFalse("An operation must be deferred behind a failed one", journal.beginSend(patch));
+        assertEquals(2, journal.getPendingCount());
+
+        journal.start(new ProvisioningJournal.ReplayHandler() {
+            @Override
+            public boolean replay(ProvisioningEntity entity, boolean passwordOmitted)
+                    throws IdentityProvisioningException {
+
+                replayed.add(describe(entity));
+                throw new IdentityProvisioningException("SCIM provider rejected " + entity.getEntityName());
+            }
+        }, REPLAY_INTERVAL, REPLAY_INTERVAL);
+        awaitUnacknowledged(journal, 0);
+        // one more attempt for the failed creation, two for the update.
+        assertEquals(Arrays.asList("alice POST Alice", "alice PATCH Alice Smith", "alice PATCH Alice Smith"),
+                replayed);
+        assertTrue(new File(directory, "dead-letter.log").length() > 0);
+        close(journal);
+
+        assertEquals(0, open(directory, NO_ROLLING, 2).getUnacknowledgedCount());
+    }
+
+    /**
+     * Checks that only the second of two operations was lost, and that the journal appends after the
+     * torn record without losing the new operation on the next restart.
+     */
+    private void assertRecoveredAfterTornRecord(File directory) throws Exception {
+
+        ProvisioningJournal journal = open(directory, NO_ROLLING, 3);
+        assertEquals(1, journal.getUnacknowledgedCount());
+        journal.append("carol", entity("carol", ProvisioningOperation.POST, "Carol"));
+        close(journal);
+
+        journal = open(directory, NO_ROLLING, 3);
+        assertEquals(2, journal.getUnacknowledgedCount());
+        startRecording(journal);
+        awaitUnacknowledged(journal, 0);
+        assertEquals(Arrays.asList("alice POST Alice"), replayedOf("alice"));
+        assertEquals(Arrays.asList("carol POST Carol"), replayedOf("carol"));
+        assertEquals(2, replayed.size());
+    }
+
+    private ProvisioningJournal open(File directory, long segmentSize, int maxAttempts)
+            throws IdentityProvisioningException {
+
+        ProvisioningJournal journal = new ProvisioningJournal(directory, JournalSyncPolicy.ALWAYS, segmentSize,
+                maxAttempts);
+        openJournals.add(journal);
+        return journal;
+    }
+
+    private void close(ProvisioningJournal journal) {
+
+        openJournals.remove(journal);
+        journal.close();
+    }
+
+    private void startRecording(ProvisioningJournal journal) {
+
+        journal.start(new ProvisioningJournal.ReplayHandler() {
+            @Override
+            public boolean replay(ProvisioningEntity entity, boolean passwordOmitted) {
+
+                replayed.add(describe(entity));
+                return true;
+            }
+        }, REPLAY_INTERVAL, REPLAY_INTERVAL);
+    }
+
+    private List<String> replayedOf(String user) {
+
+        List<String> operations = new ArrayList<>();
+        synchronized (replayed) {
+            for (String operation : replayed) {
+                if (operation.startsWith(user + " ")) {
+                    operations.add(operation);
+                }
+            }
+        }
+        return operations;
+    }
+
+    private static void awaitUnacknowledged(ProvisioningJournal journal, int expected) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (journal.getUnacknowledgedCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, journal.getUnacknowledgedCount());
+    }
+
+    private static List<File> segments(File directory) {
+
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("segment-")) {
+                    segments.add(file);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static File lastSegment(File directory) throws IOException {
+
+        List<File> segments = segments(directory);
+        // opening the journal starts an empty segment after the ones it recovered.
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).length() > 0) {
+                return segments.get(i);
+            }
+        }
+        throw new IOException("No journal segment with records in " + directory);
+    }
+
+    private static ProvisioningEntity entity(String user, ProvisioningOperation operation, String displayName) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        if (displayName != null) {
+            attributes.put(ClaimMapping.build("http://wso2.org/claims/displayName", DISPLAY_NAME_CLAIM, null,
+                    false), Collections.singletonList(displayName));
+        }
+        return new ProvisioningEntity(ProvisioningEntityType.USER, user, operation, attributes);
+    }
+
+    private static String describe(ProvisioningEntity entity) {
+
+        String displayName = null;
+        for (Map.Entry<ClaimMapping, List<String>> attribute : entity.getAttributes().entrySet()) {
+            if (DISPLAY_NAME_CLAIM.equals(attribute.getKey().getRemoteClaim().getClaimUri())) {
+                displayName = attribute.getValue().get(0);
+            }
+        }
+        return entity.getEntityName() + " " + entity.getOperation() + " " + displayName;
+    }
+}
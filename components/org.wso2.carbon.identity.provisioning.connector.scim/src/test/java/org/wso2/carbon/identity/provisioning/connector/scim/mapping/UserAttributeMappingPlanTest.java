@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.mapping;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.scim.common.utils.AttributeMapper;
+import org.wso2.charon.core.client.SCIMClient;
+import org.wso2.charon.core.objects.AbstractSCIMObject;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the mapping plan builds the same SCIM user JSON as the attribute mapper of the SCIM common
+ * component, for every claim the plan covers, alone and combined with the others.
+ */
+public class UserAttributeMappingPlanTest {
+
+    private static final String PREFIX = SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT + ":";
+
+    private UserAttributeMappingPlan plan;
+    private final Map<String, String> coveredClaims = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() {
+
+        plan = UserAttributeMappingPlan.getPlan(SCIMProvisioningConnectorConstants.DEFAULT_SCIM_DIALECT);
+        assertNotNull(plan);
+
+        coveredClaims.put(PREFIX + "userName", "alice");
+        coveredClaims.put(PREFIX + "externalId", "ext-42");
+        coveredClaims.put(PREFIX + "displayName", "Alice Smith");
+        coveredClaims.put(PREFIX + "nickName", "ally");
+        coveredClaims.put(PREFIX + "profileUrl", "https://example.com/alice");
+        coveredClaims.put(PREFIX + "title", "Engineer");
+        coveredClaims.put(PREFIX + "userType", "Employee");
+        coveredClaims.put(PREFIX + "preferredLanguage", "en-US");
+        coveredClaims.put(PREFIX + "locale", "en_US");
+        coveredClaims.put(PREFIX + "timezone", "Asia/Colombo");
+        coveredClaims.put(PREFIX + "active", "true");
+        coveredClaims.put(PREFIX + "name.formatted", "Ms. Alice J Smith");
+        coveredClaims.put(PREFIX + "name.familyName", "Smith");
+        coveredClaims.put(PREFIX + "name.givenName", "Alice");
+        coveredClaims.put(PREFIX + "name.middleName", "J");
+        coveredClaims.put(PREFIX + "name.honorificPrefix", "Ms.");
+        coveredClaims.put(PREFIX + "name.honorificSuffix", "III");
+        coveredClaims.put(PREFIX + "emails.work", "alice@work.example.com");
+        coveredClaims.put(PREFIX + "emails.home", "alice@home.example.com");
+        coveredClaims.put(PREFIX + "phoneNumbers.mobile", "+94 77 1234567");
+        coveredClaims.put(PREFIX + "phoneNumbers.work", "+94 11 1234567");
+        coveredClaims.put(PREFIX + "ims.skype", "alice.smith");
+        coveredClaims.put(PREFIX + "photos.thumbnail", "https://example.com/alice.png");
+        coveredClaims.put(PREFIX + "entitlements", "read,write");
+        coveredClaims.put(PREFIX + "roles", "admin,everyone");
+        coveredClaims.put(PREFIX + "groups", "engineering");
+    }
+
+    @Test
+    public void testEachClaimMapsLikeAttributeMapper() throws Exception {
+
+        for (Map.Entry<String, String> claim : coveredClaims.entrySet()) {
+            Map<String, String> claims = new HashMap<>();
+            claims.put(claim.getKey(), claim.getValue());
+            assertSameUser(claim.getKey(), claims);
+        }
+    }
+
+    @Test
+    public void testAllClaimsMapLikeAttributeMapper() throws Exception {
+
+        assertSameUser("all covered claims", coveredClaims);
+    }
+
+    @Test
+    public void testMultiValuedClaimsInBothFormsAreLeftToAttributeMapper() throws Exception {
+
+        Map<String, String> claims = new HashMap<>();
+        claims.put(PREFIX + "emails", "alice@example.com");
+        claims.put(PREFIX + "emails.work", "alice@work.example.com");
+        assertNull(plan.apply(claims));
+    }
+
+    @Test
+    public void testUncoveredClaimsAreLeftToAttributeMapper() throws Exception {
+
+        List<String> uncoveredClaims = Arrays.asList(PREFIX + "id", PREFIX + "meta.created",
+                PREFIX + "addresses.work.streetAddress", PREFIX + "unknownAttribute", PREFIX + "name.unknown",
+                "urn:scim:schemas:extension:enterprise:1.0:employeeNumber");
+        for (String claimUri : uncoveredClaims) {
+            Map<String, String> claims = new HashMap<>();
+            claims.put(PREFIX + "userName", "alice");
+            claims.put(claimUri, "value");
+            assertNull(claimUri, plan.apply(claims));
+        }
+    }
+
+    private void assertSameUser(String message, Map<String, String> claims) throws Exception {
+
+        JSONObject planned = plan.apply(claims);
+        assertNotNull(message + " is not covered by the plan", planned);
+        AbstractSCIMObject user = (AbstractSCIMObject) AttributeMapper.constructSCIMObjectFromAttributes(claims,
+                SCIMConstants.USER_INT);
+        JSONObject mapped = new JSONObject(new SCIMClient().encodeSCIMObject(user,
+                SCIMConstants.identifyFormat(SCIMConstants.APPLICATION_JSON)));
+        assertSameJson(message, mapped, planned);
+    }
+
+    /**
+     * Compares two JSON values, ignoring the order of the values of multi-valued attributes.
+     */
+    private static void assertSameJson(String path, Object expected, Object actual) {
+
+        if (expected instanceof JSONObject) {
+            assertTrue(path + " is not an object: " + actual, actual instanceof JSONObject);
+            JSONObject expectedObject = (JSONObject) expected;
+            JSONObject actualObject = (JSONObject) actual;
+            assertEquals(path + " attributes", keys(expectedObject), keys(actualObject));
+            for (String key : keys(expectedObject)) {
+                assertSameJson(path + "/" + key, expectedObject.opt(key), actualObject.opt(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            assertTrue(path + " is not an array: " + actual, actual instanceof JSONArray);
+            JSONArray expectedArray = (JSONArray) expected;
+            List<Object> remaining = new ArrayList<>();
+            for (int i = 0; i < ((JSONArray) actual).length(); i++) {
+                remaining.add(((JSONArray) actual).opt(i));
+            }
+            assertEquals(path + " values", expectedArray.length(), remaining.size());
+            for (int i = 0; i < expectedArray.length(); i++) {
+                remaining.remove(findSame(path, expectedArray.opt(i), remaining));
+            }
+        } else {
+            assertEquals(path, String.valueOf(expected), String.valueOf(actual));
+        }
+    }
+
+    private static int findSame(String path, Object expected, List<Object> candidates) {
+
+        for (int i = 0; i < candidates.size(); i++) {
+            try {
+                assertSameJson(path, expected, candidates.get(i));
+                return i;
+            } catch (AssertionError e) {
+                // try the next value.
+            }
+        }
+        fail(path + " has no value matching " + expected + " in " + candidates);
+        return -1;
+    }
+
+    private static List<String> keys(JSONObject object) {
+
+        List<String> keys = new ArrayList<>();
+        for (Iterator<?> iterator = object.keys(); iterator.hasNext(); ) {
+            keys.add((String) iterator.next());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+}
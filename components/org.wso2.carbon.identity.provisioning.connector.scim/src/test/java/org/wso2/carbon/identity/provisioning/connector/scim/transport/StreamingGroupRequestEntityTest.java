@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.wso2.charon.core.client.SCIMClient;
+import org.wso2.charon.core.objects.Group;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the streamed group body carries the same JSON as the charon encoding of the equivalent
+ * {@link Group}, which is what the connector sent before the body was streamed, and that the announced
+ * content length matches the bytes written.
+ */
+public class StreamingGroupRequestEntityTest {
+
+    private static final List<String> AWKWARD_NAMES = Arrays.asList("quote\"d", "back\\slash", "sl/ash</tag>",
+            "tab\tnew\nline\rform\ffeed\bback", "control\u0001char", "unicode \u00e9\u4e2d\u6587 \ud83d\ude00",
+            "latin1 control\u0085", "separator\u2028", "");
+
+    @Test
+    public void testGroupWithoutMembers() throws Exception {
+
+        assertSameGroup("engineering", null, null);
+        assertSameGroup("engineering", Collections.<String>emptyList(), null);
+    }
+
+    @Test
+    public void testGroupWithOneMember() throws Exception {
+
+        assertSameGroup("engineering", Collections.singletonList("alice"), null);
+        assertSameGroup("engineering", Collections.singletonList("alice"),
+                Collections.singletonMap("alice", "2819c223-7f76-453a-919d-413861904646"));
+    }
+
+    @Test
+    public void testGroupWithManyMembers() throws Exception {
+
+        List<String> memberNames = new ArrayList<>();
+        Map<String, String> memberIds = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            memberNames.add("user-" + i);
+            // only some members are known to the SCIM provider.
+            if (i % 3 == 0) {
+                memberIds.put("user-" + i, "id-" + i);
+            }
+        }
+        assertSameGroup("engineering", memberNames, memberIds);
+    }
+
+    @Test
+    public void testNamesNeedingEscapes() throws Exception {
+
+        Map<String, String> memberIds = new HashMap<>();
+        for (String name : AWKWARD_NAMES) {
+            memberIds.put(name, "id \"" + name + "\"");
+        }
+        for (String name : AWKWARD_NAMES) {
+            assertSameGroup(name, AWKWARD_NAMES, null);
+            assertSameGroup(name, AWKWARD_NAMES, memberIds);
+        }
+    }
+
+    @Test
+    public void testRenamedGroup() throws Exception {
+
+        // a renamed group is sent with its new display name, addressed by the old one in the URL.
+        assertSameGroup("engineering-renamed", Arrays.asList("alice", "bob"),
+                Collections.singletonMap("bob", "id-b"));
+    }
+
+    private static void assertSameGroup(String displayName, List<String> memberNames,
+                                        Map<String, String> memberIds) throws Exception {
+
+        Group group = new Group();
+        group.setDisplayName(displayName);
+        if (memberNames != null) {
+            for (String memberName : memberNames) {
+                Map<String, Object> member = new HashMap<>();
+                if (memberIds != null && memberIds.containsKey(memberName)) {
+                    member.put(SCIMConstants.CommonSchemaConstants.VALUE, memberIds.get(memberName));
+                }
+                member.put(SCIMConstants.CommonSchemaConstants.DISPLAY, memberName);
+                group.setMember(member);
+            }
+        }
+        String encoded = new SCIMClient().encodeSCIMObject(group,
+                SCIMConstants.identifyFormat(SCIMConstants.APPLICATION_JSON));
+
+        StreamingGroupRequestEntity entity = new StreamingGroupRequestEntity(displayName, memberNames, memberIds);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        entity.writeRequest(body);
+        String streamed = new String(body.toByteArray(), "UTF-8");
+
+        assertEquals("Content length of " + displayName, body.size(), entity.getContentLength());
+        assertEquals("Body of " + displayName, toJava(new JSONObject(encoded)), toJava(new JSONObject(streamed)));
+    }
+
+    /**
+     * @return the JSON value as maps, lists and strings, so that objects compare regardless of key order
+     */
+    private static Object toJava(Object value) throws Exception {
+
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Map<String, Object> map = new TreeMap<>();
+            for (Iterator<?> keys = object.keys(); keys.hasNext(); ) {
+                String key = (String) keys.next();
+                map.put(key, toJava(object.get(key)));
+            }
+            return map;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < array.length(); i++) {
+                list.add(toJava(array.get(i)));
+            }
+            return list;
+        }
+        return String.valueOf(value);
+    }
+}